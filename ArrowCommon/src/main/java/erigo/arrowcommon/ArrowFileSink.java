@@ -0,0 +1,74 @@
+/*
+Copyright 2020 Erigo
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package erigo.arrowcommon;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+//
+// Writes each batch to its own Arrow file (named by IpcBatch.name) in the given folder.
+//
+// Optionally, each file written is added to a TimeIndex; its time range is taken from the
+// ColumnStats of the time column in the batch's footer metadata.
+//
+public class ArrowFileSink implements BatchSink {
+
+    private final File dir;
+    private final TimeIndex.Writer timeIndex;
+    private final String timeColumn;
+
+    public ArrowFileSink(String dirI) {
+        this(dirI, null, null);
+    }
+
+    public ArrowFileSink(String dirI, TimeIndex.Writer timeIndexI, String timeColumnI) {
+        dir = new File(dirI);
+        timeIndex = timeIndexI;
+        timeColumn = timeColumnI;
+    }
+
+    public String getName() {
+        return "file";
+    }
+
+    public void write(IpcBatch batchI) throws IOException {
+        try (FileOutputStream fos = new FileOutputStream(new File(dir, batchI.name))) {
+            writeFully(fos.getChannel(), batchI.fileBytes());
+        }
+        if (timeIndex != null) {
+            ColumnStats stats = ColumnStats.fromMetadata(batchI.footerMetadata, 0, timeColumn, true);
+            boolean bTimes = (stats != null) && !stats.allNull();
+            timeIndex.add(batchI.name, 0, 0, batchI.rowCount, bTimes ? stats.min : Double.NaN, bTimes ? stats.max : Double.NaN);
+        }
+    }
+
+    public void close() {
+        if (timeIndex != null) {
+            timeIndex.close();
+        }
+    }
+
+    private static void writeFully(FileChannel channelI, ByteBuffer bytesI) throws IOException {
+        while (bytesI.hasRemaining()) {
+            channelI.write(bytesI);
+        }
+    }
+
+}
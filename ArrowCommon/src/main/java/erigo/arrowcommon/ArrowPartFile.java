@@ -0,0 +1,124 @@
+/*
+Copyright 2020 Erigo
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+
+package erigo.arrowcommon;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.vector.VectorLoader;
+import org.apache.arrow.vector.VectorSchemaRoot;
+import org.apache.arrow.vector.VectorUnloader;
+import org.apache.arrow.vector.ipc.ArrowFileWriter;
+import org.apache.arrow.vector.ipc.ArrowStreamWriter;
+import org.apache.arrow.vector.ipc.ArrowWriter;
+import org.apache.arrow.vector.ipc.message.ArrowRecordBatch;
+import org.apache.arrow.vector.types.pojo.Schema;
+
+//
+// One output file of the partitioned writers (PartitionedArrowWriter, KeyPartitionedWriter),
+// written a record batch at a time.
+//
+// An Arrow file is written with a ".tmp" suffix and renamed when it is closed, so readers which
+// look for "*.arrow" (e.g. ArrowScan) only ever see complete files; each batch's ColumnStats go in
+// its footer. An Arrow IPC stream is written under its final name instead, so it can be followed
+// while it grows (ArrowStreamFollower).
+//
+class ArrowPartFile {
+
+    private final File file;
+    private final File tmpFile;
+    private final boolean bStream;
+    private final FileOutputStream fos;
+    private final VectorSchemaRoot fileRoot;
+    private final ArrowWriter writer;
+    // ArrowFileWriter holds on to this map, so statistics added after each batch end up in the footer
+    private final Map<String,String> footerMetadata = new HashMap<>();
+
+    // Batches and rows written so far
+    int numBatches = 0;
+    long numRows = 0;
+
+    //
+    // fileI:    the final name of the file
+    // bStreamI: write an Arrow IPC stream rather than an Arrow file
+    //
+    ArrowPartFile(BufferAllocator allocatorI, File fileI, Schema schemaI, boolean bStreamI) throws IOException {
+        file = fileI;
+        bStream = bStreamI;
+        tmpFile = bStreamI ? fileI : new File(fileI.getParentFile(), fileI.getName() + ".tmp");
+        fos = new FileOutputStream(tmpFile);
+        fileRoot = VectorSchemaRoot.create(schemaI, allocatorI);
+        if (bStreamI) {
+            writer = new ArrowStreamWriter(fileRoot, null, fos.getChannel());
+        } else {
+            writer = new ArrowFileWriter(fileRoot, null, fos.getChannel(), footerMetadata);
+        }
+        writer.start();
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    long bytesWritten() {
+        return writer.bytesWritten();
+    }
+
+    //
+    // Append the given rows as one record batch; their buffers are loaded into the file's root
+    // rather than copied, and released again once the batch has been written
+    //
+    void write(VectorSchemaRoot rootI) throws IOException {
+        try (ArrowRecordBatch batch = new VectorUnloader(rootI).getRecordBatch()) {
+            new VectorLoader(fileRoot).load(batch);
+        }
+        writer.writeBatch();
+        if (!bStream) {
+            ColumnStats.addToMetadata(footerMetadata, numBatches, fileRoot);
+        }
+        ++numBatches;
+        numRows += fileRoot.getRowCount();
+        // Give the batch's buffers back now rather than at the next write(): a writer may keep
+        // many part files open (e.g. one per key), and the rows held here aren't counted against
+        // its memory cap
+        fileRoot.clear();
+    }
+
+    //
+    // Finish the file and give it its final name
+    //
+    void close() throws IOException {
+        try {
+            writer.end();
+        } finally {
+            writer.close();
+            fileRoot.close();
+            fos.close();
+        }
+        if (!bStream) {
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+}
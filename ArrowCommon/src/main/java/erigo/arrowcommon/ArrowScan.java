@@ -0,0 +1,244 @@
+/*
+Copyright 2020 Erigo
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+/*
+
+ArrowScan
+
+Command line front end to ArrowScanner: read a set of Arrow files written by CT2Arrow or
+OBD2Arrow, keep only the requested columns and the rows which satisfy the given range and
+equality conditions, and write the result out as an Arrow stream (to stdout by default).
+
+Sample usage; return ct_timestamp and sensor02 for unit 5 from all PHM08 batch files in the
+current folder:
+
+java -jar ArrowCommon.jar -i . -cols ct_timestamp,sensor02 -range unit:5:5
+
+Files in the input folders which don't have all of the requested and predicate columns (e.g.
+CT2Arrow rollup files or per-group files written next to the batch files), or whose columns
+don't match those of the first matching file, are skipped; "-debug" lists them.
+
+With a time index (written alongside the data by CT2Arrow, OBD2Arrow and the time-partitioned
+layout), a time range is found without opening the files outside of it; e.g. one hour of a
+partitioned OBD archive:
+
+java -jar ArrowCommon.jar -tindex out/OBD/_time_index.tsv -range TIMESTAMP:1600000000000:1600003599999
+
+ */
+
+package erigo.arrowcommon;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.util.*;
+
+import org.apache.arrow.memory.PooledAllocationManager;
+import org.apache.arrow.memory.RootAllocator;
+import org.apache.commons.cli.*;
+
+public class ArrowScan {
+
+	//
+	// Main function
+	//
+	public static void main(String[] argsI) {
+		try {
+			new ArrowScan(argsI);
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.err.println(e);
+		}
+	}
+
+	//
+	// ArrowScan constructor
+	// Everything happens in this method
+	//
+	public ArrowScan(String[] argsI) throws Exception {
+
+		//
+		// Argument processing using Apache Commons CLI
+		//
+		// 1. Setup command line options
+		Options options = new Options();
+		options.addOption("h", "help", false, "Print this message.");
+		options.addOption(Option.builder("i").argName("input(s)").hasArg().desc("Comma-separated list of Arrow files and/or folders; folders are searched recursively for \"*.arrow\" files. Files which lack any of the requested or predicate columns, or whose columns differ from those of the first matching file, are skipped.").build());
+		options.addOption(Option.builder("tindex").argName("index file(s)").hasArg().desc("Instead of \"-i\", read the files listed in the given comma-separated time index file(s) (" + TimeIndex.INDEX_NAME + " or *" + TimeIndex.INDEX_SUFFIX + "); with a \"-range\" condition on the index's time column, only the batches whose time range overlaps it are read.").build());
+		options.addOption(Option.builder("cols").argName("column name(s)").hasArg().desc("Comma-separated list of the columns to return; by default, all columns are returned.").build());
+		options.addOption(Option.builder("range").argName("col:lo:hi").hasArg().desc("Keep rows where numeric column \"col\" is in the inclusive range [lo,hi]; leave lo or hi empty for an open-ended range. May be specified more than once.").build());
+		options.addOption(Option.builder("eq").argName("col=value").hasArg().desc("Keep rows where string column \"col\" equals \"value\". May be specified more than once.").build());
+		options.addOption(Option.builder("o").argName("output file").hasArg().desc("Write the resulting Arrow stream to this file; by default, the stream is written to stdout.").build());
+		options.addOption("x", "debug", false, "Debug mode; print scan statistics when done.");
+
+		// 2. Parse command line options
+		CommandLineParser parser = new DefaultParser();
+		CommandLine line = null;
+		try {	line = parser.parse( options, argsI );	}
+		catch( ParseException exp ) {	// oops, something went wrong
+			System.err.println( "Command line argument parsing failed: " + exp.getMessage() );
+			return;
+		}
+
+		// 3. Retrieve the command line values
+		if (line.hasOption("help")) {			// Display help message and quit
+			HelpFormatter formatter = new HelpFormatter();
+			formatter.setWidth(120);
+			formatter.printHelp( "ArrowScan", options );
+			return;
+		}
+
+		if (line.hasOption("i") == line.hasOption("tindex")) {
+			System.err.println("Error: you must specify either one or more input files or folders (\"-i\") or time index files (\"-tindex\")");
+			return;
+		}
+		List<File> files = new ArrayList<>();
+		if (line.hasOption("i")) {
+			for (String name : line.getOptionValue("i").split(",")) {
+				addFiles(new File(name.trim()), files);
+			}
+			if (files.isEmpty()) {
+				System.err.println("Error: no Arrow files found");
+				return;
+			}
+			Collections.sort(files);
+		}
+
+		List<String> projection = null;
+		if (line.hasOption("cols")) {
+			projection = new ArrayList<>();
+			for (String col : line.getOptionValue("cols").split(",")) {
+				projection.add(col.trim());
+			}
+		}
+
+		// Build the predicate; all conditions are ANDed together
+		List<Predicate> conditions = new ArrayList<>();
+		if (line.hasOption("range")) {
+			for (String rangeStr : line.getOptionValues("range")) {
+				String[] parts = rangeStr.split(":", -1);
+				if (parts.length != 3) {
+					System.err.println("Error: range must be specified as col:lo:hi; got " + rangeStr);
+					return;
+				}
+				try {
+					double lo = parts[1].trim().isEmpty() ? Double.NEGATIVE_INFINITY : Double.parseDouble(parts[1].trim());
+					double hi = parts[2].trim().isEmpty() ? Double.POSITIVE_INFINITY : Double.parseDouble(parts[2].trim());
+					conditions.add(new RangePredicate(parts[0].trim(), lo, hi));
+				} catch (NumberFormatException nfe) {
+					System.err.println("Error: illegal range bound in " + rangeStr);
+					return;
+				}
+			}
+		}
+		if (line.hasOption("eq")) {
+			for (String eqStr : line.getOptionValues("eq")) {
+				int eqIdx = eqStr.indexOf('=');
+				if (eqIdx < 1) {
+					System.err.println("Error: equality condition must be specified as col=value; got " + eqStr);
+					return;
+				}
+				conditions.add(new EqualsPredicate(eqStr.substring(0, eqIdx).trim(), eqStr.substring(eqIdx + 1)));
+			}
+		}
+		Predicate predicate = null;
+		if (conditions.size() == 1) {
+			predicate = conditions.get(0);
+		} else if (conditions.size() > 1) {
+			predicate = new AndPredicate(conditions);
+		}
+
+		boolean bDebug = line.hasOption("debug");
+
+		// Look the time range up in the time index(es); the files and batches found are the only ones read
+		Map<File,BitSet> batchSelection = null;
+		if (line.hasOption("tindex")) {
+			batchSelection = new LinkedHashMap<>();
+			for (String name : line.getOptionValue("tindex").split(",")) {
+				TimeIndex index = TimeIndex.read(new File(name.trim()));
+				// Intersect all of the ranges given on the time column
+				double lo = Double.NEGATIVE_INFINITY;
+				double hi = Double.POSITIVE_INFINITY;
+				for (Predicate condition : conditions) {
+					if ( (condition instanceof RangePredicate) && ((RangePredicate)condition).column.equals(index.timeColumn) ) {
+						lo = Math.max(lo, ((RangePredicate)condition).lo);
+						hi = Math.min(hi, ((RangePredicate)condition).hi);
+					}
+				}
+				List<TimeIndex.Entry> entries = index.lookup(lo, hi);
+				for (TimeIndex.Entry entry : entries) {
+					batchSelection.computeIfAbsent(index.getFile(entry), f -> new BitSet()).set(entry.batch);
+				}
+				if (bDebug) {
+					System.err.println("Time index " + name.trim() + ": " + entries.size() + " of " + index.getEntries().size() + " batches have " + index.timeColumn + " in [" + lo + "," + hi + "]" + (index.isInOrder() ? " (binary search)" : " (index not in time order; checked every entry)"));
+				}
+			}
+			files.addAll(batchSelection.keySet());
+			if (files.isEmpty()) {
+				System.err.println("Error: no batches in the requested time range");
+				return;
+			}
+		}
+
+		if (bDebug) {
+			System.err.println("Scanning " + files.size() + " file(s); predicate = " + predicate + "; projection = " + projection);
+		}
+
+		// Each batch read allocates its buffers; a pooled allocator reuses them from batch to batch
+		RootAllocator allocator = PooledAllocationManager.newRootAllocator(Long.MAX_VALUE);
+		ArrowScanner scanner = new ArrowScanner(allocator);
+		if (batchSelection != null) {
+			scanner.selectBatches(batchSelection);
+		}
+		OutputStream out = line.hasOption("o") ? new FileOutputStream(line.getOptionValue("o")) : System.out;
+		try {
+			scanner.scan(files, projection, predicate, Channels.newChannel(out));
+		} finally {
+			out.flush();
+			if (out != System.out) {
+				out.close();
+			}
+		}
+		if (bDebug) {
+			for (File file : scanner.skippedFiles) {
+				System.err.println("Skipped " + file + ": columns don't match the query");
+			}
+			System.err.println(scanner.summary());
+		}
+		if ( (scanner.filesSkipped > 0) && (scanner.filesSkipped == files.size()) ) {
+			System.err.println("Warning: none of the " + files.size() + " file(s) have all of the requested columns; nothing was written");
+		}
+		allocator.close();
+	}
+
+	//
+	// Add the given file, or all "*.arrow" files under the given folder, to the list
+	//
+	private static void addFiles(File fileI, List<File> filesI) {
+		if (fileI.isDirectory()) {
+			File[] children = fileI.listFiles();
+			if (children != null) {
+				for (File child : children) {
+					addFiles(child, filesI);
+				}
+			}
+		} else if (fileI.isFile() && fileI.getName().endsWith(".arrow")) {
+			filesI.add(fileI);
+		}
+	}
+
+} //end class ArrowScan
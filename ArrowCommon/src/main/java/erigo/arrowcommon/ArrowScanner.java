@@ -0,0 +1,465 @@
+/*
+Copyright 2020 Erigo
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package erigo.arrowcommon;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.arrow.flatbuf.Buffer;
+import org.apache.arrow.flatbuf.FieldNode;
+import org.apache.arrow.flatbuf.MessageHeader;
+import org.apache.arrow.flatbuf.RecordBatch;
+import org.apache.arrow.memory.ArrowBuf;
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.vector.FieldVector;
+import org.apache.arrow.vector.TypeLayout;
+import org.apache.arrow.vector.VarCharVector;
+import org.apache.arrow.vector.VectorLoader;
+import org.apache.arrow.vector.VectorSchemaRoot;
+import org.apache.arrow.vector.ipc.ArrowFileReader;
+import org.apache.arrow.vector.ipc.ArrowStreamWriter;
+import org.apache.arrow.vector.ipc.ReadChannel;
+import org.apache.arrow.vector.ipc.message.ArrowBlock;
+import org.apache.arrow.vector.ipc.message.ArrowFieldNode;
+import org.apache.arrow.vector.ipc.message.ArrowRecordBatch;
+import org.apache.arrow.vector.ipc.message.MessageMetadataResult;
+import org.apache.arrow.vector.ipc.message.MessageSerializer;
+import org.apache.arrow.vector.types.pojo.Field;
+import org.apache.arrow.vector.types.pojo.Schema;
+
+//
+// Scan a set of Arrow files (as written by CT2Arrow or OBD2Arrow) with projection
+// and predicate pushdown; the result is written out as an Arrow stream.
+//
+// 1. File and batch pruning: the footer of each file is read (cheap, it sits at the
+//    end of the file) and the predicate is checked against the per-batch ColumnStats
+//    which the writers store in the footer metadata. Files and batches which can't
+//    match are never read.
+// 2. Projection: for the surviving batches, only the record batch metadata and the
+//    buffers belonging to the projected and predicate columns are read from disk;
+//    the other columns' buffers are skipped over entirely.
+// 3. The predicate is evaluated over the loaded columns into a selection bitmap and
+//    the selected rows of the projected columns are written to the output stream.
+//
+// The batches to consider can also be narrowed down up front with selectBatches(), e.g. to the
+// batches which a TimeIndex lookup found for a time range.
+//
+public class ArrowScanner {
+
+    private final BufferAllocator allocator;
+
+    // The batches of each file which may be read (null = all of them)
+    private Map<File,BitSet> batchSelection = null;
+
+    // Scan statistics, updated by scan()
+    public long totalFileBytes = 0;
+    public long bytesRead = 0;
+    public int filesScanned = 0;
+    public int filesPruned = 0;
+    public int filesSkipped = 0;
+    public final List<File> skippedFiles = new ArrayList<>();
+    public int batchesScanned = 0;
+    public int batchesPruned = 0;
+    public long rowsScanned = 0;
+    public long rowsSelected = 0;
+
+    public ArrowScanner(BufferAllocator allocatorI) {
+        allocator = allocatorI;
+    }
+
+    //
+    // Only read the given batches (by index within the file) of each file; a file which isn't in
+    // the map is skipped. Batches which aren't selected count as pruned.
+    //
+    public void selectBatches(Map<File,BitSet> batchSelectionI) {
+        batchSelection = batchSelectionI;
+    }
+
+    //
+    // Scan the given files and write the selected rows of the projected columns to the output channel
+    // as an Arrow stream.
+    //
+    // projectionI: names of the columns to return; null or empty means all columns
+    // predicateI:  predicate which rows must satisfy; null means all rows
+    //
+    // The output schema is taken from the first file which has all of the projected and predicate
+    // columns. Files which don't fit the query (e.g. CT2Arrow rollup or per-group files sitting in
+    // the same folder as the data files) are skipped and listed in skippedFiles: those which lack
+    // any of the projected or predicate columns, and those whose projected columns differ from the
+    // output schema (when all columns are returned, the whole schema must match).
+    //
+    public void scan(List<File> filesI, List<String> projectionI, Predicate predicateI, WritableByteChannel outI) throws IOException {
+        Set<String> needCols = new HashSet<>();
+        if (projectionI != null) {
+            needCols.addAll(projectionI);
+        }
+        if (predicateI != null) {
+            predicateI.addColumns(needCols);
+        }
+        VectorSchemaRoot outRoot = null;
+        ArrowStreamWriter writer = null;
+        try {
+            for (File file : filesI) {
+                totalFileBytes += file.length();
+                try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                    ScanFile scanFile = new ScanFile(file, channel);
+                    if (!hasColumns(scanFile.schema, needCols)) {
+                        skipFile(file);
+                        continue;
+                    }
+                    Schema outSchema = projectSchema(scanFile.schema, projectionI);
+                    if (outRoot == null) {
+                        outRoot = VectorSchemaRoot.create(outSchema, allocator);
+                        writer = new ArrowStreamWriter(outRoot, null, outI);
+                        writer.start();
+                    } else if (!sameColumns(outSchema, outRoot.getSchema())) {
+                        skipFile(file);
+                        continue;
+                    }
+                    scanFile.scan(projectionI, predicateI, outRoot, writer);
+                }
+            }
+            if (writer != null) {
+                writer.end();
+            }
+        } finally {
+            if (writer != null) {
+                writer.close();
+            }
+            if (outRoot != null) {
+                outRoot.close();
+            }
+        }
+    }
+
+    private void skipFile(File fileI) {
+        ++filesSkipped;
+        skippedFiles.add(fileI);
+    }
+
+    //
+    // Same column names and types, in the same order; field metadata (such as the "sorted" flag
+    // on ct_timestamp) may differ
+    //
+    private static boolean sameColumns(Schema aI, Schema bI) {
+        List<Field> a = aI.getFields();
+        List<Field> b = bI.getFields();
+        if (a.size() != b.size()) {
+            return false;
+        }
+        for (int i = 0; i < a.size(); ++i) {
+            if ( !a.get(i).getName().equals(b.get(i).getName()) || !a.get(i).getType().equals(b.get(i).getType()) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean hasColumns(Schema schemaI, Set<String> colsI) {
+        Set<String> names = new HashSet<>();
+        for (Field field : schemaI.getFields()) {
+            names.add(field.getName());
+        }
+        return names.containsAll(colsI);
+    }
+
+    //
+    // Build the output schema from the given projection, keeping the file's column order
+    //
+    private static Schema projectSchema(Schema schemaI, List<String> projectionI) throws IOException {
+        if ( (projectionI == null) || projectionI.isEmpty() ) {
+            return new Schema(schemaI.getFields());
+        }
+        List<Field> fields = new ArrayList<>();
+        for (Field field : schemaI.getFields()) {
+            if (projectionI.contains(field.getName())) {
+                fields.add(field);
+            }
+        }
+        if (fields.size() != projectionI.size()) {
+            throw new IOException("ArrowScanner: one or more projected columns are not in the file schema: " + projectionI);
+        }
+        return new Schema(fields);
+    }
+
+    //
+    // Per-file scanning state
+    //
+    private class ScanFile {
+
+        final File file;
+        final FileChannel channel;
+        final Schema schema;
+        final List<ArrowBlock> blocks;
+        final Map<String,String> metadata;
+        // For each top-level field: index of its first FieldNode and first buffer in
+        // the record batch metadata, plus how many nodes and buffers it owns
+        final int[] nodeStart;
+        final int[] nodeCount;
+        final int[] bufferStart;
+        final int[] bufferCount;
+
+        ScanFile(File fileI, FileChannel channelI) throws IOException {
+            file = fileI;
+            channel = channelI;
+            // Use ArrowFileReader only to read the footer; the batches themselves are
+            // read piecemeal below.
+            ArrowFileReader footerReader = new ArrowFileReader(channelI, allocator);
+            schema = footerReader.getVectorSchemaRoot().getSchema();
+            blocks = footerReader.getRecordBlocks();
+            metadata = footerReader.getMetaData();
+            bytesRead += footerReader.bytesRead();
+            List<Field> fields = schema.getFields();
+            nodeStart = new int[fields.size()];
+            nodeCount = new int[fields.size()];
+            bufferStart = new int[fields.size()];
+            bufferCount = new int[fields.size()];
+            int nodeIdx = 0;
+            int bufferIdx = 0;
+            for (int i = 0; i < fields.size(); ++i) {
+                nodeStart[i] = nodeIdx;
+                bufferStart[i] = bufferIdx;
+                int[] counts = new int[2];
+                countNodesAndBuffers(fields.get(i), counts);
+                nodeCount[i] = counts[0];
+                bufferCount[i] = counts[1];
+                nodeIdx += counts[0];
+                bufferIdx += counts[1];
+            }
+            // NB: we deliberately don't close footerReader; that would close the channel,
+            // which is owned by the caller.
+            footerReader.getVectorSchemaRoot().close();
+        }
+
+        void scan(List<String> projectionI, Predicate predicateI, VectorSchemaRoot outRootI, ArrowStreamWriter writerI) throws IOException {
+            // Prune the whole file if no batch can match
+            BitSet selected = (batchSelection == null) ? null : batchSelection.get(file);
+            boolean[] bBatchMightMatch = new boolean[blocks.size()];
+            boolean bAnyMatch = false;
+            for (int b = 0; b < blocks.size(); ++b) {
+                final int batchIdx = b;
+                if ( (batchSelection != null) && ((selected == null) || !selected.get(b)) ) {
+                    continue;
+                }
+                bBatchMightMatch[b] = (predicateI == null) || predicateI.mightMatch(col -> lookupStats(batchIdx, col));
+                bAnyMatch |= bBatchMightMatch[b];
+            }
+            if (!bAnyMatch) {
+                ++filesPruned;
+                batchesPruned += blocks.size();
+                return;
+            }
+            ++filesScanned;
+
+            // The columns we need to load: projection plus predicate columns
+            Set<String> loadCols = new HashSet<>();
+            if ( (projectionI == null) || projectionI.isEmpty() ) {
+                for (Field field : schema.getFields()) {
+                    loadCols.add(field.getName());
+                }
+            } else {
+                loadCols.addAll(projectionI);
+            }
+            if (predicateI != null) {
+                predicateI.addColumns(loadCols);
+            }
+            List<Field> loadFields = new ArrayList<>();
+            List<Integer> loadFieldIdx = new ArrayList<>();
+            List<Field> fields = schema.getFields();
+            for (int i = 0; i < fields.size(); ++i) {
+                if (loadCols.contains(fields.get(i).getName())) {
+                    loadFields.add(fields.get(i));
+                    loadFieldIdx.add(i);
+                }
+            }
+            if (loadFields.size() != loadCols.size()) {
+                throw new IOException("ArrowScanner: file " + file + " is missing one or more of the columns " + loadCols);
+            }
+
+            try (VectorSchemaRoot loadRoot = VectorSchemaRoot.create(new Schema(loadFields), allocator)) {
+                for (int b = 0; b < blocks.size(); ++b) {
+                    if (!bBatchMightMatch[b]) {
+                        ++batchesPruned;
+                        continue;
+                    }
+                    ++batchesScanned;
+                    loadBatch(blocks.get(b), loadRoot, loadFieldIdx);
+                    int rowCount = loadRoot.getRowCount();
+                    rowsScanned += rowCount;
+                    long[] selection = new long[Predicate.numSelectionWords(rowCount)];
+                    if (predicateI == null) {
+                        for (int w = 0; w < selection.length; ++w) {
+                            selection[w] = Predicate.tailMask(w, rowCount);
+                        }
+                    } else {
+                        predicateI.evaluate(loadRoot, selection);
+                    }
+                    int numSelected = 0;
+                    for (long word : selection) {
+                        numSelected += Long.bitCount(word);
+                    }
+                    if (numSelected == 0) {
+                        continue;
+                    }
+                    rowsSelected += numSelected;
+                    copySelected(loadRoot, selection, numSelected, outRootI);
+                    writerI.writeBatch();
+                }
+            }
+        }
+
+        //
+        // Read the record batch metadata for the given block, then read only the buffers
+        // for the requested fields and load them into the given root.
+        //
+        void loadBatch(ArrowBlock blockI, VectorSchemaRoot loadRootI, List<Integer> loadFieldIdxI) throws IOException {
+            channel.position(blockI.getOffset());
+            MessageMetadataResult msg = MessageSerializer.readMessage(new ReadChannel(channel));
+            if ( (msg == null) || (msg.headerType() != MessageHeader.RecordBatch) ) {
+                throw new IOException("ArrowScanner: expected a record batch at offset " + blockI.getOffset() + " in file " + file);
+            }
+            bytesRead += blockI.getMetadataLength();
+            RecordBatch batchFB = (RecordBatch)msg.getMessage().header(new RecordBatch());
+            long bodyStart = blockI.getOffset() + blockI.getMetadataLength();
+
+            List<ArrowFieldNode> nodes = new ArrayList<>();
+            List<ArrowBuf> buffers = new ArrayList<>();
+            List<ArrowBuf> spans = new ArrayList<>();
+            try {
+                for (int fieldIdx : loadFieldIdxI) {
+                    for (int n = nodeStart[fieldIdx]; n < nodeStart[fieldIdx] + nodeCount[fieldIdx]; ++n) {
+                        FieldNode node = batchFB.nodes(n);
+                        nodes.add(new ArrowFieldNode(node.length(), node.nullCount()));
+                    }
+                    // A field's buffers are laid out contiguously in the body; read them with one call
+                    int first = bufferStart[fieldIdx];
+                    int last = first + bufferCount[fieldIdx] - 1;
+                    long spanStart = batchFB.buffers(first).offset();
+                    Buffer lastBuf = batchFB.buffers(last);
+                    long spanLen = lastBuf.offset() + lastBuf.length() - spanStart;
+                    ArrowBuf span = allocator.buffer(Math.max(spanLen, 1));
+                    spans.add(span);
+                    readFully(span, bodyStart + spanStart, spanLen);
+                    for (int i = first; i <= last; ++i) {
+                        Buffer bufFB = batchFB.buffers(i);
+                        buffers.add(span.slice(bufFB.offset() - spanStart, bufFB.length()));
+                    }
+                }
+                ArrowRecordBatch batch = new ArrowRecordBatch((int)batchFB.length(), nodes, buffers);
+                try {
+                    new VectorLoader(loadRootI).load(batch);
+                } finally {
+                    batch.close();
+                }
+            } finally {
+                for (ArrowBuf span : spans) {
+                    span.getReferenceManager().release();
+                }
+            }
+        }
+
+        void readFully(ArrowBuf bufI, long positionI, long lengthI) throws IOException {
+            if (lengthI == 0) {
+                return;
+            }
+            ByteBuffer nioBuf = bufI.nioBuffer(0, (int)lengthI);
+            long pos = positionI;
+            while (nioBuf.hasRemaining()) {
+                int numRead = channel.read(nioBuf, pos);
+                if (numRead < 0) {
+                    throw new IOException("ArrowScanner: unexpected end of file " + file);
+                }
+                pos += numRead;
+            }
+            bytesRead += lengthI;
+        }
+
+        ColumnStats lookupStats(int batchIdxI, String columnI) {
+            Field field = schema.findField(columnI);
+            if (field == null) {
+                return null;
+            }
+            boolean bNumeric = !(field.getType() instanceof org.apache.arrow.vector.types.pojo.ArrowType.Utf8);
+            return ColumnStats.fromMetadata(metadata, batchIdxI, columnI, bNumeric);
+        }
+
+    }
+
+    //
+    // Count the FieldNodes and buffers which the given field (and its children) occupy in a record batch
+    //
+    private static void countNodesAndBuffers(Field fieldI, int[] countsI) {
+        countsI[0] += 1;
+        countsI[1] += TypeLayout.getTypeBufferCount(fieldI.getType());
+        for (Field child : fieldI.getChildren()) {
+            countNodesAndBuffers(child, countsI);
+        }
+    }
+
+    //
+    // Copy the selected rows of the output columns from the loaded root into the output root
+    //
+    private static void copySelected(VectorSchemaRoot loadRootI, long[] selectionI, int numSelectedI, VectorSchemaRoot outRootI) {
+        int rowCount = loadRootI.getRowCount();
+        for (FieldVector outVec : outRootI.getFieldVectors()) {
+            FieldVector inVec = loadRootI.getVector(outVec.getField().getName());
+            outVec.reset();
+            if (outVec instanceof VarCharVector) {
+                // Pre-size the data buffer so copyFromSafe doesn't repeatedly reallocate
+                ((VarCharVector)outVec).allocateNew(inVec.getDataBuffer().capacity(), numSelectedI);
+            } else {
+                outVec.setInitialCapacity(numSelectedI);
+                outVec.allocateNew();
+            }
+            int outIdx = 0;
+            for (int w = 0; w < selectionI.length; ++w) {
+                long word = selectionI[w];
+                while (word != 0) {
+                    int bit = Long.numberOfTrailingZeros(word);
+                    int inIdx = (w << 6) + bit;
+                    if (inIdx >= rowCount) {
+                        break;
+                    }
+                    outVec.copyFromSafe(inIdx, outIdx++, inVec);
+                    word &= (word - 1);
+                }
+            }
+            outVec.setValueCount(outIdx);
+        }
+        outRootI.setRowCount(numSelectedI);
+    }
+
+    //
+    // Summary of the last scan, suitable for printing
+    //
+    public String summary() {
+        double pct = (totalFileBytes > 0) ? (100.0 * bytesRead / totalFileBytes) : 0.0;
+        return String.format("files scanned/pruned/skipped = %d/%d/%d, batches scanned/pruned = %d/%d, rows scanned/selected = %d/%d, bytes read = %d of %d (%.2f%%)",
+                filesScanned, filesPruned, filesSkipped, batchesScanned, batchesPruned, rowsScanned, rowsSelected, bytesRead, totalFileBytes, pct);
+    }
+
+}
@@ -0,0 +1,309 @@
+/*
+Copyright 2020 Erigo
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+
+package erigo.arrowcommon;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import org.apache.arrow.flatbuf.MessageHeader;
+import org.apache.arrow.memory.ArrowBuf;
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.memory.ForeignAllocationManager;
+import org.apache.arrow.vector.ipc.ArrowReader;
+import org.apache.arrow.vector.ipc.message.ArrowDictionaryBatch;
+import org.apache.arrow.vector.ipc.message.ArrowRecordBatch;
+import org.apache.arrow.vector.ipc.message.MessageMetadataResult;
+import org.apache.arrow.vector.ipc.message.MessageSerializer;
+import org.apache.arrow.vector.types.pojo.Schema;
+
+//
+// Follows an Arrow IPC stream file while it is being written (e.g. by CT2Arrow's "-stream <file>"
+// output), so a consumer gets each record batch as soon as it is in the file instead of waiting
+// for the writer to close it. An Arrow file (ArrowFileReader) can't be read this way because its
+// footer is only written at the end.
+//
+// This is used like ArrowStreamReader: getVectorSchemaRoot(), then loadNextBatch() until it
+// returns false. loadNextBatch() waits until the next message is complete in the file, i.e. the
+// file holds its whole length prefix, metadata and body, polling the file size every
+// pollMillis. It returns false at the end-of-stream marker, once stop() has been called, or
+// once the file hasn't grown for idleTimeoutMillis (if set).
+//
+// The file is memory mapped from the next unread message to its current end, and mapped again
+// from there whenever a message runs past the end of the mapping and the file has grown. Record
+// batches are read in place, like ZeroCopyStreamReader: the vectors point into the mapping, which
+// stays mapped until the reader and every vector taken from it are closed. Each mapping counts
+// against the allocator while in use.
+//
+// The stream must be written to a regular file from its start (a named pipe or socket can't be
+// mapped), and the file must only be appended to.
+//
+public class ArrowStreamFollower extends ArrowReader {
+
+    // Largest region mapped at once; a single message must fit in it
+    private static final long MAX_MAP_SIZE = Integer.MAX_VALUE;
+
+    private final File file;
+    private FileChannel channel = null;
+    private long pollMillis = 10;
+    private long idleTimeoutMillis = 0;
+    private volatile boolean bStopRequested = false;
+    private boolean bEndOfStream = false;
+
+    // The current mapping covers file offsets [mapStart, mapStart + map.capacity())
+    private MappedByteBuffer map = null;
+    private ArrowBuf mapBuf = null;
+    private long mapStart = 0;
+
+    // File offset of the next message
+    private long offset = 0;
+
+    // Statistics
+    public long remaps = 0;
+
+    public ArrowStreamFollower(File fileI, BufferAllocator allocatorI) {
+        super(allocatorI);
+        file = fileI;
+    }
+
+    //
+    // How often to check whether the file has grown while waiting for a message; default 10 ms
+    //
+    public void setPollMillis(long pollMillisI) {
+        pollMillis = Math.max(1, pollMillisI);
+    }
+
+    //
+    // Give up (loadNextBatch() returns false) once the file hasn't grown for this long while
+    // waiting for a message; 0 (the default) waits for the writer indefinitely
+    //
+    public void setIdleTimeoutMillis(long idleTimeoutMillisI) {
+        idleTimeoutMillis = idleTimeoutMillisI;
+    }
+
+    //
+    // Called from another thread to make a waiting loadNextBatch() return false
+    //
+    public void stop() {
+        bStopRequested = true;
+    }
+
+    //
+    // Has the end-of-stream marker been read, i.e. the writer closed the stream?
+    //
+    public boolean isEndOfStream() {
+        return bEndOfStream;
+    }
+
+    //
+    // Bytes of the stream read so far
+    //
+    @Override
+    public long bytesRead() {
+        return offset;
+    }
+
+    @Override
+    protected Schema readSchema() throws IOException {
+        MessageMetadataResult result = readMessage();
+        if (result == null) {
+            throw new IOException("ArrowStreamFollower: no schema in " + file);
+        }
+        if (result.headerType() != MessageHeader.Schema) {
+            throw new IOException("ArrowStreamFollower: expected a Schema message but the header type was " + result.headerType());
+        }
+        return MessageSerializer.deserializeSchema(result);
+    }
+
+    @Override
+    public boolean loadNextBatch() throws IOException {
+        prepareLoadNextBatch();
+        MessageMetadataResult result = readMessage();
+        while ( (result != null) && (result.headerType() == MessageHeader.DictionaryBatch) ) {
+            ArrowDictionaryBatch dictionaryBatch = MessageSerializer.deserializeDictionaryBatch(result, readBody(result));
+            loadDictionary(dictionaryBatch);
+            result = readMessage();
+        }
+        if (result == null) {
+            return false;
+        }
+        if (result.headerType() != MessageHeader.RecordBatch) {
+            throw new IOException("ArrowStreamFollower: expected a RecordBatch message but the header type was " + result.headerType());
+        }
+        ArrowRecordBatch batch = MessageSerializer.deserializeRecordBatch(result, readBody(result));
+        loadRecordBatch(batch);
+        return true;
+    }
+
+    @Override
+    protected void closeReadSource() throws IOException {
+        releaseMap();
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    //
+    // Wait for the next message to be complete in the file and return its metadata; null at the
+    // end of the stream or if we stopped waiting
+    //
+    private MessageMetadataResult readMessage() throws IOException {
+        long lastGrowth = System.currentTimeMillis();
+        long lastSize = -1;
+        while (!bEndOfStream) {
+            MessageMetadataResult result = parseMessage();
+            if (result != null) {
+                return result;
+            }
+            if (bEndOfStream) {
+                break;
+            }
+            // The message runs past the end of the mapping: map the rest of the file if it has
+            // grown since, else wait for the writer
+            long size = fileSize();
+            if (size < offset) {
+                throw new IOException("ArrowStreamFollower: " + file + " was truncated");
+            }
+            if ( (size > offset) && ((map == null) || (size > mapStart + map.capacity())) ) {
+                remap(size);
+                continue;
+            }
+            if (size != lastSize) {
+                lastSize = size;
+                lastGrowth = System.currentTimeMillis();
+            }
+            if (bStopRequested) {
+                break;
+            }
+            if ( (idleTimeoutMillis > 0) && (System.currentTimeMillis() - lastGrowth >= idleTimeoutMillis) ) {
+                break;
+            }
+            try {
+                Thread.sleep(pollMillis);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return null;
+    }
+
+    //
+    // Metadata of the message at the current offset, if the whole message (prefix, metadata and
+    // body) is in the mapping; the offset is then moved to its body. Returns null if more of the
+    // file is needed, or at the end-of-stream marker (bEndOfStream is then set).
+    //
+    private MessageMetadataResult parseMessage() throws IOException {
+        if (map == null) {
+            return null;
+        }
+        int pos = (int)(offset - mapStart);
+        int available = map.capacity() - pos;
+        if (available < 4) {
+            return null;
+        }
+        int prefixLength = 4;
+        int metadataLength = map.getInt(pos);
+        if (metadataLength == MessageSerializer.IPC_CONTINUATION_TOKEN) {
+            if (available < 8) {
+                return null;
+            }
+            prefixLength = 8;
+            metadataLength = map.getInt(pos + 4);
+        }
+        if (metadataLength == 0) {
+            bEndOfStream = true;
+            offset += prefixLength;
+            return null;
+        }
+        if ( (metadataLength < 0) || ((long)prefixLength + metadataLength > MAX_MAP_SIZE) ) {
+            throw new IOException("ArrowStreamFollower: bad message length at offset " + offset + " of " + file);
+        }
+        if (available < prefixLength + metadataLength) {
+            return null;
+        }
+        ByteBuffer metadata = map.duplicate();
+        metadata.position(pos + prefixLength);
+        metadata = metadata.slice().order(ByteOrder.LITTLE_ENDIAN);
+        metadata.limit(metadataLength);
+        MessageMetadataResult result = MessageMetadataResult.create(metadata, metadataLength);
+        long messageLength = prefixLength + metadataLength + result.getMessageBodyLength();
+        if ( (result.getMessageBodyLength() < 0) || (messageLength > MAX_MAP_SIZE) ) {
+            throw new IOException("ArrowStreamFollower: bad message body length at offset " + offset + " of " + file);
+        }
+        if (available < messageLength) {
+            return null;
+        }
+        offset += prefixLength + metadataLength;
+        return result;
+    }
+
+    //
+    // The body of the given message (which parseMessage() just returned), as a slice of the
+    // mapping. Deserializing the message releases the body once its buffers have been taken, so
+    // the slice carries a reference of its own.
+    //
+    private ArrowBuf readBody(MessageMetadataResult resultI) {
+        long bodyLength = resultI.getMessageBodyLength();
+        ArrowBuf body = mapBuf.slice(offset - mapStart, bodyLength);
+        body.getReferenceManager().retain();
+        offset += bodyLength;
+        return body;
+    }
+
+    //
+    // Current size of the file; 0 until the writer has created it
+    //
+    private long fileSize() throws IOException {
+        if (channel == null) {
+            if (!file.exists()) {
+                return 0;
+            }
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        }
+        return channel.size();
+    }
+
+    //
+    // Map the file from the current offset up to the given size
+    //
+    private void remap(long sizeI) throws IOException {
+        releaseMap();
+        long length = Math.min(sizeI - offset, MAX_MAP_SIZE);
+        map = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+        map.order(ByteOrder.LITTLE_ENDIAN);
+        // Vectors from earlier batches keep their own references to the previous mapping
+        mapBuf = ForeignAllocationManager.wrap(allocator, map, null);
+        mapStart = offset;
+        ++remaps;
+    }
+
+    private void releaseMap() {
+        if (mapBuf != null) {
+            mapBuf.getReferenceManager().release();
+            mapBuf = null;
+            map = null;
+        }
+    }
+
+}
@@ -0,0 +1,138 @@
+/*
+Copyright 2020 Erigo
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package erigo.arrowcommon;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+
+//
+// Writes the batches as one continuous Arrow IPC stream: the schema message once, then each
+// batch's record batch message, then the end-of-stream marker when the sink is closed. The
+// target may be:
+//
+//     <path>            a regular file or a named pipe (FIFO) which a consumer is reading from
+//     -                 standard output, e.g. to pipe the stream straight into a consumer process
+//     tcp:<host>:<port> a TCP connection to a consumer listening at the given address
+//
+// Nothing is buffered here: each batch is handed to the file descriptor or socket as soon as it
+// arrives (Nagle's algorithm is turned off for TCP), so with small, frequent batches a consumer
+// sees rows shortly after they are flushed.
+//
+// All batches must have the same schema; a batch with a different schema is rejected.
+//
+public class ArrowStreamSink implements BatchSink {
+
+    public static final String STDOUT = "-";
+    public static final String TCP_PREFIX = "tcp:";
+
+    private final String path;
+    private final WritableByteChannel channel;
+    private ByteBuffer schemaMessage = null;
+
+    // Statistics
+    public long bytesWritten = 0;
+
+    public ArrowStreamSink(String pathI) throws IOException {
+        path = pathI;
+        if (pathI.equals(STDOUT)) {
+            channel = new FileOutputStream(FileDescriptor.out).getChannel();
+        } else if (pathI.startsWith(TCP_PREFIX)) {
+            SocketChannel socket = SocketChannel.open(parseAddress(pathI));
+            socket.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel = socket;
+        } else {
+            channel = new FileOutputStream(pathI).getChannel();
+        }
+    }
+
+    //
+    // Target for one of several streams (e.g. one per column group) sharing a base target: a file
+    // or pipe gets the suffix "_g<idx>", a TCP target the port number plus idx. Standard output
+    // can only carry one stream.
+    //
+    public static String indexedTarget(String targetI, int idxI) throws IOException {
+        if (targetI.equals(STDOUT)) {
+            throw new IOException("ArrowStreamSink: only one stream can be written to standard output");
+        }
+        if (targetI.startsWith(TCP_PREFIX)) {
+            InetSocketAddress address = parseAddress(targetI);
+            return TCP_PREFIX + address.getHostString() + ":" + (address.getPort() + idxI);
+        }
+        return String.format("%s_g%02d", targetI, idxI);
+    }
+
+    //
+    // Parse a "tcp:<host>:<port>" target
+    //
+    private static InetSocketAddress parseAddress(String targetI) throws IOException {
+        String hostPort = targetI.substring(TCP_PREFIX.length());
+        int colonIdx = hostPort.lastIndexOf(':');
+        int port = -1;
+        if (colonIdx > 0) {
+            try {
+                port = Integer.parseInt(hostPort.substring(colonIdx + 1));
+            } catch (NumberFormatException nfe) {
+                port = -1;
+            }
+        }
+        if ( (port < 1) || (port > 65535) ) {
+            throw new IOException("ArrowStreamSink: stream target must be of the form tcp:<host>:<port>; got \"" + targetI + "\"");
+        }
+        return new InetSocketAddress(hostPort.substring(0, colonIdx), port);
+    }
+
+    public String getName() {
+        return "stream";
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public void write(IpcBatch batchI) throws IOException {
+        if (schemaMessage == null) {
+            schemaMessage = batchI.schemaMessage();
+            writeFully(batchI.schemaMessage());
+        } else if (!schemaMessage.equals(batchI.schemaMessage())) {
+            throw new IOException("ArrowStreamSink: batch " + batchI.name + " has a different schema than the stream");
+        }
+        writeFully(batchI.batchMessage());
+    }
+
+    public void close() throws IOException {
+        try {
+            if (schemaMessage != null) {
+                writeFully(IpcBatch.endOfStream());
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void writeFully(ByteBuffer bytesI) throws IOException {
+        while (bytesI.hasRemaining()) {
+            bytesWritten += channel.write(bytesI);
+        }
+    }
+
+}
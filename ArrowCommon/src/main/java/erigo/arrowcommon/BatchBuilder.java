@@ -0,0 +1,102 @@
+/*
+Copyright 2020 Erigo
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package erigo.arrowcommon;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.vector.FieldVector;
+import org.apache.arrow.vector.VectorSchemaRoot;
+
+//
+// The columns of the record batch being built, and its root. A source adds rows through the
+// column builders; finish() sets the value counts and row count so the root can be written, and
+// reset() clears the columns (keeping their buffers) for the next batch.
+//
+public class BatchBuilder implements AutoCloseable {
+
+    private final List<ColumnBuilder> columns = new ArrayList<>();
+    private final VectorSchemaRoot root;
+    private int rowCount = 0;
+
+    public BatchBuilder(List<ColumnBuilder.Spec> specsI, BufferAllocator allocatorI, int initialCapacityI) {
+        List<FieldVector> vectors = new ArrayList<>();
+        for (ColumnBuilder.Spec spec : specsI) {
+            ColumnBuilder col = ColumnBuilder.create(spec, allocatorI, initialCapacityI);
+            columns.add(col);
+            vectors.add(col.getVector());
+        }
+        root = new VectorSchemaRoot(vectors);
+    }
+
+    public VectorSchemaRoot getRoot() {
+        return root;
+    }
+
+    public int getNumColumns() {
+        return columns.size();
+    }
+
+    public ColumnBuilder getColumn(int colI) {
+        return columns.get(colI);
+    }
+
+    //
+    // Number of rows added to the current batch
+    //
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    //
+    // Index of the next row; the source fills every column at this index, then calls endRow()
+    //
+    public int nextRow() {
+        return rowCount;
+    }
+
+    public void endRow() {
+        ++rowCount;
+    }
+
+    //
+    // Set the value counts and row count of the root; it can then be written out
+    //
+    public VectorSchemaRoot finish() {
+        for (ColumnBuilder col : columns) {
+            col.setValueCount(rowCount);
+        }
+        root.setRowCount(rowCount);
+        return root;
+    }
+
+    //
+    // Clear the columns for the next batch
+    //
+    public void reset() {
+        for (ColumnBuilder col : columns) {
+            col.reset();
+        }
+        rowCount = 0;
+    }
+
+    public void close() {
+        root.close();
+    }
+
+}
@@ -0,0 +1,51 @@
+/*
+Copyright 2020 Erigo
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package erigo.arrowcommon;
+
+import java.io.IOException;
+
+//
+// An output for serialized record batches (Arrow files, a continuous Arrow stream, the shared
+// memory ring, Plasma, ...). A FanOut hands each IpcBatch to all of its sinks, each on its own
+// thread; a sink is only ever called from that one thread, so it needs no locking of its own
+// unless it shares a resource (e.g. one ring) with other sinks.
+//
+public interface BatchSink extends AutoCloseable {
+
+    //
+    // Short name used in log messages and statistics (e.g. "file", "plasma")
+    //
+    String getName();
+
+    //
+    // Write one batch; the IpcBatch is shared with other sinks and must not be modified
+    //
+    void write(IpcBatch batchI) throws IOException;
+
+    //
+    // Statistics of this sink beyond the FanOut's own counts (e.g. retries); null if none
+    //
+    default String getStats() {
+        return null;
+    }
+
+    //
+    // Called once, after the last batch
+    //
+    void close() throws IOException;
+
+}
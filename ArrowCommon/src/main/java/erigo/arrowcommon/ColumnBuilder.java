@@ -0,0 +1,528 @@
+/*
+Copyright 2020 Erigo
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package erigo.arrowcommon;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+
+import org.apache.arrow.memory.ArrowBuf;
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.vector.BaseFixedWidthVector;
+import org.apache.arrow.vector.BigIntVector;
+import org.apache.arrow.vector.BitVector;
+import org.apache.arrow.vector.BitVectorHelper;
+import org.apache.arrow.vector.FieldVector;
+import org.apache.arrow.vector.Float4Vector;
+import org.apache.arrow.vector.Float8Vector;
+import org.apache.arrow.vector.IntVector;
+import org.apache.arrow.vector.TimeStampMicroTZVector;
+import org.apache.arrow.vector.TimeStampMilliTZVector;
+import org.apache.arrow.vector.VarCharVector;
+import org.apache.arrow.vector.types.FloatingPointPrecision;
+import org.apache.arrow.vector.types.TimeUnit;
+import org.apache.arrow.vector.types.pojo.ArrowType;
+import org.apache.arrow.vector.types.pojo.Field;
+import org.apache.arrow.vector.types.pojo.FieldType;
+
+//
+// Builds one column of a record batch; the shared column-building core of the ingest programs.
+//
+// Values are stored by row index, either already typed (setLong(), setDouble(), setBytes()) or
+// parsed from a field of a line of text (parse()). The text parsers work on the line in place:
+// no field strings are split out or trimmed, integers are parsed directly, and floating point
+// values take a fast exact path for the usual short decimals (e.g. "518.67", "-0.0017"),
+// falling back to Float/Double.parseFloat for anything else. Empty fields and fields which
+// don't parse are stored as null.
+//
+// Fixed width values are written straight into the vector's buffers; the capacity is checked
+// once per value rather than through setSafe(), and grows by doubling.
+//
+// Between batches, reset() only clears the validity bits (and, for strings, the offset count) of
+// the rows which were used; unlike ValueVector.reset(), it doesn't zero-fill the value buffers,
+// which are simply overwritten by the next batch. The values in null slots are undefined, as
+// Arrow allows.
+//
+// Timestamp columns (TIMESTAMP_MILLI, TIMESTAMP_MICRO) are Arrow timestamps in UTC; they are
+// stored and parsed as integer counts of their unit since the epoch.
+//
+public abstract class ColumnBuilder {
+
+    public enum Type { INT32, INT64, FLOAT32, FLOAT64, BIT, UTF8, TIMESTAMP_MILLI, TIMESTAMP_MICRO }
+
+    // Field metadata marking a column whose values never decrease, within each batch and from one
+    // batch to the next (e.g. an event time column); readers may binary-search such a column
+    public static final String SORTED_KEY = "sorted";
+    public static final String SORTED_ASCENDING = "ascending";
+
+    //
+    // Name and type of a column, and whether its values are known to be in ascending order
+    //
+    public static class Spec {
+        public final String name;
+        public final Type type;
+        public final boolean bSorted;
+        public Spec(String nameI, Type typeI) {
+            this(nameI, typeI, false);
+        }
+        public Spec(String nameI, Type typeI, boolean bSortedI) {
+            name = nameI;
+            type = typeI;
+            bSorted = bSortedI;
+        }
+    }
+
+    // Powers of 10 which are exactly representable as float/double; used by the fast parsing path
+    private static final float[] FLOAT_POW10 = { 1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f };
+    private static final double[] DOUBLE_POW10 = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+                                                   1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+    public final String name;
+    public final Type type;
+
+    protected ColumnBuilder(String nameI, Type typeI) {
+        name = nameI;
+        type = typeI;
+    }
+
+    public static ColumnBuilder create(Spec specI, BufferAllocator allocatorI, int initialCapacityI) {
+        String name = specI.name;
+        switch (specI.type) {
+            case INT32:
+                return new IntColumn(name, new IntVector(name, fieldType(specI, new ArrowType.Int(32, true)), allocatorI), initialCapacityI);
+            case INT64:
+                return new BigIntColumn(name, Type.INT64, new BigIntVector(name, fieldType(specI, new ArrowType.Int(64, true)), allocatorI), initialCapacityI);
+            case FLOAT32:
+                return new Float4Column(name, new Float4Vector(name, fieldType(specI, new ArrowType.FloatingPoint(FloatingPointPrecision.SINGLE)), allocatorI), initialCapacityI);
+            case FLOAT64:
+                return new Float8Column(name, new Float8Vector(name, fieldType(specI, new ArrowType.FloatingPoint(FloatingPointPrecision.DOUBLE)), allocatorI), initialCapacityI);
+            case BIT:
+                return new BitColumn(name, new BitVector(name, fieldType(specI, ArrowType.Bool.INSTANCE), allocatorI), initialCapacityI);
+            case UTF8:
+                return new Utf8Column(name, new VarCharVector(name, fieldType(specI, ArrowType.Utf8.INSTANCE), allocatorI), initialCapacityI);
+            case TIMESTAMP_MILLI:
+                return new BigIntColumn(name, Type.TIMESTAMP_MILLI, new TimeStampMilliTZVector(name, fieldType(specI, new ArrowType.Timestamp(TimeUnit.MILLISECOND, "UTC")), allocatorI), initialCapacityI);
+            case TIMESTAMP_MICRO:
+                return new BigIntColumn(name, Type.TIMESTAMP_MICRO, new TimeStampMicroTZVector(name, fieldType(specI, new ArrowType.Timestamp(TimeUnit.MICROSECOND, "UTC")), allocatorI), initialCapacityI);
+            default:
+                throw new IllegalArgumentException("ColumnBuilder: unknown type " + specI.type);
+        }
+    }
+
+    //
+    // Nullable field type for the given column, with the sorted marker if the column is sorted
+    //
+    private static FieldType fieldType(Spec specI, ArrowType typeI) {
+        Map<String,String> metadata = specI.bSorted ? Collections.singletonMap(SORTED_KEY, SORTED_ASCENDING) : null;
+        return new FieldType(true, typeI, null, metadata);
+    }
+
+    //
+    // Is the given field marked as sorted?
+    //
+    public static boolean isSorted(Field fieldI) {
+        Map<String,String> metadata = fieldI.getMetadata();
+        return (metadata != null) && SORTED_ASCENDING.equals(metadata.get(SORTED_KEY));
+    }
+
+    public abstract FieldVector getVector();
+
+    //
+    // Parse the text in lineI[startI, endI) (surrounding whitespace is ignored) and store it at the given row
+    //
+    public abstract void parse(String lineI, int startI, int endI, int rowI);
+
+    public abstract void setNull(int rowI);
+
+    public void setLong(int rowI, long valueI) {
+        throw new UnsupportedOperationException("ColumnBuilder: column " + name + " (" + type + ") can't store an integer");
+    }
+
+    public void setDouble(int rowI, double valueI) {
+        throw new UnsupportedOperationException("ColumnBuilder: column " + name + " (" + type + ") can't store a floating point value");
+    }
+
+    public void setBytes(int rowI, byte[] valueI) {
+        throw new UnsupportedOperationException("ColumnBuilder: column " + name + " (" + type + ") can't store bytes");
+    }
+
+    public void setValueCount(int rowCountI) {
+        getVector().setValueCount(rowCountI);
+    }
+
+    //
+    // Clear the column for the next batch; the buffers are kept, and only the validity bits of
+    // the rows used since the last reset are cleared
+    //
+    public abstract void reset();
+
+    //
+    // Zero the validity bytes covering rows [0, numRowsI)
+    //
+    public static void clearValidity(ArrowBuf validityI, int numRowsI) {
+        if (numRowsI > 0) {
+            validityI.setZero(0, BitVectorHelper.getValidityBufferSize(numRowsI));
+        }
+    }
+
+    //
+    // Text parsing helpers; these return false if the text isn't a valid value
+    //
+
+    static int skipLeadingSpace(String lineI, int startI, int endI) {
+        while ( (startI < endI) && (lineI.charAt(startI) <= ' ') ) {
+            ++startI;
+        }
+        return startI;
+    }
+
+    static int skipTrailingSpace(String lineI, int startI, int endI) {
+        while ( (endI > startI) && (lineI.charAt(endI - 1) <= ' ') ) {
+            --endI;
+        }
+        return endI;
+    }
+
+    //
+    // Parse a (trimmed, non-empty) decimal integer into longResultI[0]
+    //
+    static boolean parseLong(String lineI, int startI, int endI, long[] longResultI) {
+        int i = startI;
+        boolean bNeg = false;
+        char c = lineI.charAt(i);
+        if ( (c == '-') || (c == '+') ) {
+            bNeg = (c == '-');
+            if (++i == endI) {
+                return false;
+            }
+        }
+        long result = 0;
+        for (; i < endI; ++i) {
+            int digit = lineI.charAt(i) - '0';
+            if ( (digit < 0) || (digit > 9) ) {
+                return false;
+            }
+            // Accumulate negatively so that Long.MIN_VALUE can be parsed
+            if (result < (Long.MIN_VALUE + digit) / 10) {
+                return false;
+            }
+            result = result * 10 - digit;
+        }
+        if (!bNeg) {
+            if (result == Long.MIN_VALUE) {
+                return false;
+            }
+            result = -result;
+        }
+        longResultI[0] = result;
+        return true;
+    }
+
+    //
+    // Split a (trimmed, non-empty) plain decimal ("123", "-0.0017", "5.") into an integer mantissa and a
+    // power of 10 (stored in partsI[0] and partsI[1]). Returns false for anything else (exponents,
+    // "NaN", too many digits, ...), in which case the caller falls back to the JDK parser.
+    //
+    private static boolean splitDecimal(String lineI, int startI, int endI, long[] partsI) {
+        int i = startI;
+        boolean bNeg = false;
+        char c = lineI.charAt(i);
+        if ( (c == '-') || (c == '+') ) {
+            bNeg = (c == '-');
+            ++i;
+        }
+        long mantissa = 0;
+        int numDigits = 0;
+        int fracDigits = 0;
+        boolean bPoint = false;
+        boolean bAnyDigit = false;
+        for (; i < endI; ++i) {
+            c = lineI.charAt(i);
+            if (c == '.') {
+                if (bPoint) {
+                    return false;
+                }
+                bPoint = true;
+                continue;
+            }
+            int digit = c - '0';
+            if ( (digit < 0) || (digit > 9) ) {
+                return false;
+            }
+            bAnyDigit = true;
+            if ( (mantissa != 0) || (digit != 0) ) {
+                if (++numDigits > 15) {
+                    return false;
+                }
+            }
+            mantissa = mantissa * 10 + digit;
+            if (bPoint) {
+                ++fracDigits;
+            }
+        }
+        if (!bAnyDigit) {
+            // e.g. "-" or "."
+            return false;
+        }
+        partsI[0] = bNeg ? -mantissa : mantissa;
+        partsI[1] = fracDigits;
+        return true;
+    }
+
+    //
+    // Parse a (trimmed, non-empty) float. When the mantissa and the power of 10 are both exactly
+    // representable as floats, a single division gives the correctly rounded result, the same as
+    // Float.parseFloat.
+    //
+    static float parseFloat(String lineI, int startI, int endI, long[] scratchI) throws NumberFormatException {
+        if ( splitDecimal(lineI, startI, endI, scratchI) && (Math.abs(scratchI[0]) <= (1L << 24)) && (scratchI[1] < FLOAT_POW10.length) ) {
+            if ( (scratchI[0] == 0) && (lineI.charAt(startI) == '-') ) {
+                return -0.0f;
+            }
+            return (float)scratchI[0] / FLOAT_POW10[(int)scratchI[1]];
+        }
+        return Float.parseFloat(lineI.substring(startI, endI));
+    }
+
+    //
+    // Parse a (trimmed, non-empty) double; the same fast path as parseFloat(), with double precision
+    //
+    static double parseDouble(String lineI, int startI, int endI, long[] scratchI) throws NumberFormatException {
+        if ( splitDecimal(lineI, startI, endI, scratchI) && (Math.abs(scratchI[0]) <= (1L << 53)) && (scratchI[1] < DOUBLE_POW10.length) ) {
+            if ( (scratchI[0] == 0) && (lineI.charAt(startI) == '-') ) {
+                return -0.0;
+            }
+            return (double)scratchI[0] / DOUBLE_POW10[(int)scratchI[1]];
+        }
+        return Double.parseDouble(lineI.substring(startI, endI));
+    }
+
+    //
+    // Base for the fixed width columns: direct buffer writes with a single capacity check
+    //
+    private abstract static class FixedWidthColumn extends ColumnBuilder {
+        final BaseFixedWidthVector vec;
+        final long[] scratch = new long[2];
+        // One more than the highest row stored since the last reset
+        int rowsUsed = 0;
+        FixedWidthColumn(String nameI, Type typeI, BaseFixedWidthVector vecI, int initialCapacityI) {
+            super(nameI, typeI);
+            vec = vecI;
+            vec.allocateNew(Math.max(initialCapacityI, 1));
+        }
+        public FieldVector getVector() {
+            return vec;
+        }
+        final void ensureCapacity(int rowI) {
+            while (rowI >= vec.getValueCapacity()) {
+                vec.reAlloc();
+            }
+            if (rowI >= rowsUsed) {
+                rowsUsed = rowI + 1;
+            }
+        }
+        public void reset() {
+            clearValidity(vec.getValidityBuffer(), rowsUsed);
+            vec.setValueCount(0);
+            rowsUsed = 0;
+        }
+        public void setNull(int rowI) {
+            ensureCapacity(rowI);
+            BitVectorHelper.unsetBit(vec.getValidityBuffer(), rowI);
+        }
+        final void markValid(int rowI) {
+            BitVectorHelper.setBit(vec.getValidityBuffer(), rowI);
+        }
+        public void parse(String lineI, int startI, int endI, int rowI) {
+            int start = skipLeadingSpace(lineI, startI, endI);
+            int end = skipTrailingSpace(lineI, start, endI);
+            if ( (start == end) || !parseTrimmed(lineI, start, end, rowI) ) {
+                setNull(rowI);
+            }
+        }
+        abstract boolean parseTrimmed(String lineI, int startI, int endI, int rowI);
+    }
+
+    private static class IntColumn extends FixedWidthColumn {
+        IntColumn(String nameI, IntVector vecI, int initialCapacityI) {
+            super(nameI, Type.INT32, vecI, initialCapacityI);
+        }
+        public void setLong(int rowI, long valueI) {
+            ensureCapacity(rowI);
+            vec.getDataBuffer().setInt((long)rowI * 4, (int)valueI);
+            markValid(rowI);
+        }
+        boolean parseTrimmed(String lineI, int startI, int endI, int rowI) {
+            if ( !parseLong(lineI, startI, endI, scratch) || (scratch[0] < Integer.MIN_VALUE) || (scratch[0] > Integer.MAX_VALUE) ) {
+                return false;
+            }
+            setLong(rowI, scratch[0]);
+            return true;
+        }
+    }
+
+    //
+    // 64-bit integers; also used for timestamps, which have the same layout
+    //
+    private static class BigIntColumn extends FixedWidthColumn {
+        BigIntColumn(String nameI, Type typeI, BaseFixedWidthVector vecI, int initialCapacityI) {
+            super(nameI, typeI, vecI, initialCapacityI);
+        }
+        public void setLong(int rowI, long valueI) {
+            ensureCapacity(rowI);
+            vec.getDataBuffer().setLong((long)rowI * 8, valueI);
+            markValid(rowI);
+        }
+        boolean parseTrimmed(String lineI, int startI, int endI, int rowI) {
+            if (!parseLong(lineI, startI, endI, scratch)) {
+                return false;
+            }
+            setLong(rowI, scratch[0]);
+            return true;
+        }
+    }
+
+    private static class Float4Column extends FixedWidthColumn {
+        Float4Column(String nameI, Float4Vector vecI, int initialCapacityI) {
+            super(nameI, Type.FLOAT32, vecI, initialCapacityI);
+        }
+        public void setDouble(int rowI, double valueI) {
+            ensureCapacity(rowI);
+            vec.getDataBuffer().setFloat((long)rowI * 4, (float)valueI);
+            markValid(rowI);
+        }
+        boolean parseTrimmed(String lineI, int startI, int endI, int rowI) {
+            try {
+                setDouble(rowI, parseFloat(lineI, startI, endI, scratch));
+                return true;
+            } catch (NumberFormatException nfe) {
+                return false;
+            }
+        }
+    }
+
+    private static class Float8Column extends FixedWidthColumn {
+        Float8Column(String nameI, Float8Vector vecI, int initialCapacityI) {
+            super(nameI, Type.FLOAT64, vecI, initialCapacityI);
+        }
+        public void setDouble(int rowI, double valueI) {
+            ensureCapacity(rowI);
+            vec.getDataBuffer().setDouble((long)rowI * 8, valueI);
+            markValid(rowI);
+        }
+        boolean parseTrimmed(String lineI, int startI, int endI, int rowI) {
+            try {
+                setDouble(rowI, parseDouble(lineI, startI, endI, scratch));
+                return true;
+            } catch (NumberFormatException nfe) {
+                return false;
+            }
+        }
+    }
+
+    //
+    // Only 0 and 1 are valid bit values
+    //
+    private static class BitColumn extends FixedWidthColumn {
+        BitColumn(String nameI, BitVector vecI, int initialCapacityI) {
+            super(nameI, Type.BIT, vecI, initialCapacityI);
+        }
+        public void setLong(int rowI, long valueI) {
+            if ( (valueI != 0) && (valueI != 1) ) {
+                setNull(rowI);
+                return;
+            }
+            ensureCapacity(rowI);
+            if (valueI == 1) {
+                BitVectorHelper.setBit(vec.getDataBuffer(), rowI);
+            } else {
+                BitVectorHelper.unsetBit(vec.getDataBuffer(), rowI);
+            }
+            markValid(rowI);
+        }
+        boolean parseTrimmed(String lineI, int startI, int endI, int rowI) {
+            if (!parseLong(lineI, startI, endI, scratch)) {
+                return false;
+            }
+            setLong(rowI, scratch[0]);
+            return true;
+        }
+    }
+
+    //
+    // Strings are stored as UTF-8; ASCII text (the usual case) is encoded without creating a String
+    //
+    private static class Utf8Column extends ColumnBuilder {
+        final VarCharVector vec;
+        byte[] scratch = new byte[64];
+        int rowsUsed = 0;
+        Utf8Column(String nameI, VarCharVector vecI, int initialCapacityI) {
+            super(nameI, Type.UTF8);
+            vec = vecI;
+            vec.allocateNew(Math.max(initialCapacityI, 1));
+        }
+        public FieldVector getVector() {
+            return vec;
+        }
+        public void setNull(int rowI) {
+            used(rowI);
+            vec.setNull(rowI);
+        }
+        public void setBytes(int rowI, byte[] valueI) {
+            used(rowI);
+            vec.setSafe(rowI, valueI);
+        }
+        //
+        // The offsets past the first are rewritten as rows are stored, so resetting the last set
+        // row is enough to reuse them
+        //
+        public void reset() {
+            clearValidity(vec.getValidityBuffer(), rowsUsed);
+            vec.setLastSet(-1);
+            vec.setValueCount(0);
+            rowsUsed = 0;
+        }
+        private void used(int rowI) {
+            if (rowI >= rowsUsed) {
+                rowsUsed = rowI + 1;
+            }
+        }
+        public void parse(String lineI, int startI, int endI, int rowI) {
+            used(rowI);
+            int start = skipLeadingSpace(lineI, startI, endI);
+            int end = skipTrailingSpace(lineI, start, endI);
+            int len = end - start;
+            if (len == 0) {
+                vec.setNull(rowI);
+                return;
+            }
+            if (scratch.length < len) {
+                scratch = new byte[Math.max(len, scratch.length * 2)];
+            }
+            for (int i = 0; i < len; ++i) {
+                char c = lineI.charAt(start + i);
+                if (c >= 0x80) {
+                    vec.setSafe(rowI, lineI.substring(start, end).getBytes(StandardCharsets.UTF_8));
+                    return;
+                }
+                scratch[i] = (byte)c;
+            }
+            vec.setSafe(rowI, scratch, 0, len);
+        }
+    }
+
+}
@@ -0,0 +1,215 @@
+/*
+Copyright 2020 Erigo
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package erigo.arrowcommon;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.arrow.vector.BaseIntVector;
+import org.apache.arrow.vector.BitVector;
+import org.apache.arrow.vector.FieldVector;
+import org.apache.arrow.vector.FloatingPointVector;
+import org.apache.arrow.vector.TimeStampVector;
+import org.apache.arrow.vector.VarCharVector;
+import org.apache.arrow.vector.VectorSchemaRoot;
+
+//
+// Min/max/null-count statistics for one column of one record batch.
+//
+// The writers (CT2Arrow, OBD2Arrow) store these statistics in the custom
+// metadata of the Arrow file footer, one set of keys per batch and column:
+//
+//     stats.<batch index>.<column name>.min
+//     stats.<batch index>.<column name>.max
+//     stats.<batch index>.<column name>.nulls
+//
+// ArrowScanner reads them back to skip files and batches which can't possibly
+// satisfy a query predicate without reading any of the batch data.
+//
+public class ColumnStats {
+
+    public static final String KEY_PREFIX = "stats.";
+
+    public String column;       // name of the column these statistics describe
+    public boolean bNumeric;    // true for numeric columns, false for string columns
+    public double min = Double.NaN;
+    public double max = Double.NaN;
+    public String minStr = null;
+    public String maxStr = null;
+    public long nullCount = 0;
+
+    public ColumnStats(String columnI, boolean bNumericI) {
+        column = columnI;
+        bNumeric = bNumericI;
+    }
+
+    //
+    // Compute statistics for every supported column in the given root.
+    // Columns of unsupported types (lists, structs, etc.) are skipped.
+    //
+    public static List<ColumnStats> compute(VectorSchemaRoot rootI) {
+        List<ColumnStats> statsList = new ArrayList<>();
+        int rowCount = rootI.getRowCount();
+        for (FieldVector vec : rootI.getFieldVectors()) {
+            ColumnStats stats = compute(vec, rowCount);
+            if (stats != null) {
+                statsList.add(stats);
+            }
+        }
+        return statsList;
+    }
+
+    //
+    // Compute statistics over the first rowCountI entries in the given vector.
+    // Returns null if the vector type isn't supported.
+    //
+    public static ColumnStats compute(FieldVector vecI, int rowCountI) {
+        String name = vecI.getField().getName();
+        if (vecI instanceof VarCharVector) {
+            VarCharVector vec = (VarCharVector)vecI;
+            ColumnStats stats = new ColumnStats(name, false);
+            for (int i = 0; i < rowCountI; ++i) {
+                if (vec.isNull(i)) {
+                    ++stats.nullCount;
+                    continue;
+                }
+                String str = new String(vec.get(i), StandardCharsets.UTF_8);
+                if ( (stats.minStr == null) || (str.compareTo(stats.minStr) < 0) ) {
+                    stats.minStr = str;
+                }
+                if ( (stats.maxStr == null) || (str.compareTo(stats.maxStr) > 0) ) {
+                    stats.maxStr = str;
+                }
+            }
+            return stats;
+        }
+        if ( !(vecI instanceof BaseIntVector) && !(vecI instanceof FloatingPointVector) && !(vecI instanceof BitVector) && !(vecI instanceof TimeStampVector) ) {
+            return null;
+        }
+        ColumnStats stats = new ColumnStats(name, true);
+        if (StatsKernels.isSupported(vecI)) {
+            // Fixed width numeric columns are summarized straight from their buffers
+            StatsKernels.Summary summary = StatsKernels.summarize(vecI, rowCountI);
+            stats.min = summary.min;
+            stats.max = summary.max;
+            stats.nullCount = summary.nullCount;
+            return stats;
+        }
+        for (int i = 0; i < rowCountI; ++i) {
+            if (vecI.isNull(i)) {
+                ++stats.nullCount;
+                continue;
+            }
+            double val = numericValue(vecI, i);
+            if (Double.isNaN(stats.min) || (val < stats.min)) {
+                stats.min = val;
+            }
+            if (Double.isNaN(stats.max) || (val > stats.max)) {
+                stats.max = val;
+            }
+        }
+        return stats;
+    }
+
+    //
+    // Return the value at the given index of a numeric vector as a double; a timestamp is returned as
+    // its count of time units since the epoch. The caller must check that the entry isn't null.
+    //
+    public static double numericValue(FieldVector vecI, int indexI) {
+        if (vecI instanceof FloatingPointVector) {
+            return ((FloatingPointVector)vecI).getValueAsDouble(indexI);
+        } else if (vecI instanceof BaseIntVector) {
+            return ((BaseIntVector)vecI).getValueAsLong(indexI);
+        } else if (vecI instanceof BitVector) {
+            return ((BitVector)vecI).get(indexI);
+        } else if (vecI instanceof TimeStampVector) {
+            return ((TimeStampVector)vecI).get(indexI);
+        }
+        throw new IllegalArgumentException("ColumnStats: unsupported vector type for column " + vecI.getField().getName());
+    }
+
+    //
+    // Add these statistics to the given footer metadata map
+    //
+    public void addToMetadata(Map<String,String> metadataI, int batchIndexI) {
+        String keyBase = KEY_PREFIX + batchIndexI + "." + column + ".";
+        if (bNumeric) {
+            if (!Double.isNaN(min)) {
+                metadataI.put(keyBase + "min", Double.toString(min));
+                metadataI.put(keyBase + "max", Double.toString(max));
+            }
+        } else if (minStr != null) {
+            metadataI.put(keyBase + "min", minStr);
+            metadataI.put(keyBase + "max", maxStr);
+        }
+        metadataI.put(keyBase + "nulls", Long.toString(nullCount));
+    }
+
+    //
+    // Convenience method: compute statistics for every column in the given root and
+    // add them to the footer metadata map for the given batch index.
+    //
+    public static void addToMetadata(Map<String,String> metadataI, int batchIndexI, VectorSchemaRoot rootI) {
+        for (ColumnStats stats : compute(rootI)) {
+            stats.addToMetadata(metadataI, batchIndexI);
+        }
+    }
+
+    //
+    // Read statistics for the given batch/column back out of footer metadata.
+    // Returns null if the writer didn't store statistics for this column.
+    //
+    public static ColumnStats fromMetadata(Map<String,String> metadataI, int batchIndexI, String columnI, boolean bNumericI) {
+        if (metadataI == null) {
+            return null;
+        }
+        String keyBase = KEY_PREFIX + batchIndexI + "." + columnI + ".";
+        String nullsStr = metadataI.get(keyBase + "nulls");
+        if (nullsStr == null) {
+            return null;
+        }
+        ColumnStats stats = new ColumnStats(columnI, bNumericI);
+        try {
+            stats.nullCount = Long.parseLong(nullsStr);
+            String minStr = metadataI.get(keyBase + "min");
+            String maxStr = metadataI.get(keyBase + "max");
+            if (bNumericI) {
+                if (minStr != null) {
+                    stats.min = Double.parseDouble(minStr);
+                    stats.max = Double.parseDouble(maxStr);
+                }
+            } else {
+                stats.minStr = minStr;
+                stats.maxStr = maxStr;
+            }
+        } catch (NumberFormatException nfe) {
+            // Corrupt statistics are treated the same as no statistics
+            return null;
+        }
+        return stats;
+    }
+
+    //
+    // Are all of the values in this column null?
+    //
+    public boolean allNull() {
+        return bNumeric ? Double.isNaN(min) : (minStr == null);
+    }
+
+}
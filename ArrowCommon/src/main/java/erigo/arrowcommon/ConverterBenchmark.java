@@ -0,0 +1,395 @@
+/*
+Copyright 2020 Erigo
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+
+/*
+
+ConverterBenchmark
+
+Macro benchmark for the file converters (OBD2Arrow, PHM08_to_Plasma): run a converter's main()
+end to end on an input file, in this JVM, a number of times (after warm-up runs) and report for
+each run and on average
+
+    MB/s        input file size over wall clock time
+    rows/s      input lines (less the header lines) over wall clock time
+    GC          time spent in garbage collection and number of collections
+    alloc       bytes allocated on the Java heap by all threads, and the rate of allocation
+
+Use OBDGenerator and PHM08Generator to make inputs 100x to 1000x the size of the sample data.
+
+The converter's arguments are given with "-args"; in them, {in} is replaced by the input file,
+{tmp} by a fresh temporary folder for the run's output (deleted afterwards) and {ring} by a
+shared memory ring file in that folder. The ring stands in for a local Plasma store: it takes the
+same serialized record batches, without needing a Plasma store or the native Plasma library. E.g.
+
+java -cp OBD2Arrow.jar erigo.arrowcommon.ConverterBenchmark -main erigo.obd2arrow.OBD2Arrow -in obd_10g.csv -header 1 -args "-i {in} -o {tmp}/out.arrow"
+java -cp PHM08_to_Plasma.jar erigo.arrowcommon.ConverterBenchmark -main erigo.phm08_to_plasma.PHM08_to_Plasma -in phm08_1g.txt -args "{in} {ring}"
+
+The converter's own output is suppressed (unless "-v" is given); if it reports an error or
+exception, the end of its output is printed after the run. The converters catch their own
+exceptions and return normally when they give up part way through, so a run in which any line of
+the converter's output mentions an error or exception counts as failed: it is left out of the
+mean (and the CSV file), and if every measured run fails, no results are reported at all.
+
+ */
+
+package erigo.arrowcommon;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.util.*;
+
+import org.apache.commons.cli.*;
+
+public class ConverterBenchmark {
+
+	// Amount of the converter's output kept, to show after a run which reports an error
+	private static final int OUTPUT_TAIL_SIZE = 4096;
+
+	//
+	// Results of one run
+	//
+	private static class Result {
+		boolean bFailed;
+		double elapsed_sec;
+		long gcTime_msec;
+		long gcCount;
+		long allocated;
+	}
+
+	//
+	// Main function
+	//
+	public static void main(String[] argsI) {
+		try {
+			new ConverterBenchmark(argsI);
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.err.println(e);
+		}
+	}
+
+	//
+	// ConverterBenchmark constructor
+	// Everything happens in this method
+	//
+	public ConverterBenchmark(String[] argsI) throws Exception {
+
+		//
+		// Argument processing using Apache Commons CLI
+		//
+		// 1. Setup command line options
+		Options options = new Options();
+		options.addOption("h", "help", false, "Print this message.");
+		options.addOption(Option.builder("main").argName("class").hasArg().desc("Main class of the converter, e.g. erigo.obd2arrow.OBD2Arrow or erigo.phm08_to_plasma.PHM08_to_Plasma.").build());
+		options.addOption(Option.builder("in").argName("input file").hasArg().desc("Input file; its size and number of lines give the MB/s and rows/s.").build());
+		options.addOption(Option.builder("header").argName("num lines").hasArg().desc("Number of header lines in the input file (1 for an OBD CSV file); default = 0.").build());
+		options.addOption(Option.builder("args").argName("arguments").hasArg().desc("Arguments for the converter; {in} is replaced by the input file, {tmp} by a temporary folder for the run's output and {ring} by a shared memory ring file in it (the local stand-in for Plasma).").build());
+		options.addOption(Option.builder("runs").argName("num runs").hasArg().desc("Number of measured runs; default = 3.").build());
+		options.addOption(Option.builder("warmup").argName("num runs").hasArg().desc("Number of warm-up runs, which aren't measured; default = 1.").build());
+		options.addOption(Option.builder("csv").argName("file").hasArg().desc("Append the average results to this CSV file (with a header line if the file is new).").build());
+		options.addOption("v", "verbose", false, "Show the converter's output.");
+
+		// 2. Parse command line options
+		CommandLineParser parser = new DefaultParser();
+		CommandLine line = null;
+		try {	line = parser.parse( options, argsI );	}
+		catch( ParseException exp ) {	// oops, something went wrong
+			System.err.println( "Command line argument parsing failed: " + exp.getMessage() );
+			return;
+		}
+
+		// 3. Retrieve the command line values
+		if (line.hasOption("help")) {			// Display help message and quit
+			HelpFormatter formatter = new HelpFormatter();
+			formatter.setWidth(120);
+			formatter.printHelp( "ConverterBenchmark", options );
+			return;
+		}
+
+		if ( !line.hasOption("main") || !line.hasOption("in") ) {
+			System.err.println("Error: you must specify the converter's main class and the input file");
+			return;
+		}
+		Method mainMethod;
+		try {
+			mainMethod = Class.forName(line.getOptionValue("main")).getMethod("main", String[].class);
+		} catch (ClassNotFoundException | NoSuchMethodException e) {
+			System.err.println("Error: " + line.getOptionValue("main") + " is not a class with a main method on the classpath");
+			return;
+		}
+		File inFile = new File(line.getOptionValue("in"));
+		if (!inFile.isFile()) {
+			System.err.println("Error: the input file, " + inFile + ", does not exist");
+			return;
+		}
+		int headerLines = 0;
+		int numRuns = 0;
+		int numWarmup = 0;
+		try {
+			headerLines = Integer.parseInt(line.getOptionValue("header", "0"));
+			numRuns = Integer.parseInt(line.getOptionValue("runs", "3"));
+			numWarmup = Integer.parseInt(line.getOptionValue("warmup", "1"));
+		} catch (NumberFormatException nfe) {
+			numRuns = 0;
+		}
+		if ( (headerLines < 0) || (numRuns < 1) || (numWarmup < 0) ) {
+			System.err.println("Error: the number of runs must be an integer greater than 0, and the number of header lines and warm-up runs integers at least 0");
+			return;
+		}
+		List<String> converterArgs = Arrays.asList(line.getOptionValue("args", "{in}").trim().split("\\s+"));
+		boolean bVerbose = line.hasOption("v");
+
+		long inBytes = inFile.length();
+		long inRows = Math.max(0, countLines(inFile) - headerLines);
+		System.err.println("Input " + inFile + ": " + String.format("%.1f", inBytes / 1048576.0) + " MB, " + inRows + " rows");
+
+		List<GarbageCollectorMXBean> gcBeans = ManagementFactory.getGarbageCollectorMXBeans();
+		com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		threadBean.setThreadAllocatedMemoryEnabled(true);
+
+		List<Result> results = new ArrayList<>();
+		PrintStream origOut = System.out;
+		PrintStream origErr = System.err;
+		for (int run = 1; run <= numWarmup + numRuns; ++run) {
+			boolean bWarmup = run <= numWarmup;
+			File tmpDir = Files.createTempDirectory("convbench").toFile();
+			String[] runArgs = new String[converterArgs.size()];
+			for (int i = 0; i < runArgs.length; ++i) {
+				runArgs[i] = converterArgs.get(i)
+						.replace("{in}", inFile.getPath())
+						.replace("{tmp}", tmpDir.getPath())
+						.replace("{ring}", new File(tmpDir, "ring").getPath());
+			}
+
+			// Start each run from a collected heap
+			System.gc();
+			TailOutputStream tail = new TailOutputStream(bVerbose ? origErr : null);
+			PrintStream tailStream = new PrintStream(tail, true);
+			Result result = new Result();
+			long gcTimeStart = 0;
+			long gcCountStart = 0;
+			for (GarbageCollectorMXBean gcBean : gcBeans) {
+				gcTimeStart += Math.max(0, gcBean.getCollectionTime());
+				gcCountStart += Math.max(0, gcBean.getCollectionCount());
+			}
+			Map<Long,Long> allocStart = allocatedBytes(threadBean);
+			long startNanos = System.nanoTime();
+			try {
+				if (!bVerbose) {
+					System.setOut(tailStream);
+				}
+				System.setErr(tailStream);
+				mainMethod.invoke(null, (Object)runArgs);
+			} catch (InvocationTargetException ite) {
+				ite.getCause().printStackTrace(tailStream);
+				result.bFailed = true;
+			} finally {
+				System.setOut(origOut);
+				System.setErr(origErr);
+			}
+			result.elapsed_sec = (System.nanoTime() - startNanos) / 1.0e9;
+			for (GarbageCollectorMXBean gcBean : gcBeans) {
+				result.gcTime_msec += Math.max(0, gcBean.getCollectionTime());
+				result.gcCount += Math.max(0, gcBean.getCollectionCount());
+			}
+			result.gcTime_msec -= gcTimeStart;
+			result.gcCount -= gcCountStart;
+			// Threads which ended during the run aren't counted
+			for (Map.Entry<Long,Long> entry : allocatedBytes(threadBean).entrySet()) {
+				result.allocated += entry.getValue() - allocStart.getOrDefault(entry.getKey(), 0L);
+			}
+
+			tailStream.flush();
+			result.bFailed |= tail.sawProblem();
+			String runName = (bWarmup ? "Warm-up " : "Run ") + (bWarmup ? run : (run - numWarmup));
+			if (result.bFailed) {
+				// The throughput would be computed over input the converter never got through
+				System.err.println(runName + ": FAILED after " + String.format("%.2f sec", result.elapsed_sec) + (bWarmup ? "" : "; not included in the results"));
+				if (!bVerbose) {
+					System.err.println("  the converter reported a problem; the end of its output:");
+					System.err.println(tail.getTail());
+				}
+			} else {
+				System.err.println(runName + ": " + format(result, inBytes, inRows));
+			}
+			deleteRecursively(tmpDir);
+			if ( !bWarmup && !result.bFailed ) {
+				results.add(result);
+			}
+		}
+		if (results.isEmpty()) {
+			System.err.println("Error: every measured run failed; no results to report");
+			return;
+		}
+		if (results.size() < numRuns) {
+			System.err.println("Warning: " + (numRuns - results.size()) + " of " + numRuns + " measured runs failed");
+		}
+
+		Result mean = new Result();
+		for (Result result : results) {
+			mean.elapsed_sec += result.elapsed_sec / results.size();
+			mean.gcTime_msec += result.gcTime_msec;
+			mean.gcCount += result.gcCount;
+			mean.allocated += result.allocated;
+		}
+		mean.gcTime_msec /= results.size();
+		mean.gcCount /= results.size();
+		mean.allocated /= results.size();
+		System.err.println("Mean of " + results.size() + " runs: " + format(mean, inBytes, inRows));
+
+		if (line.hasOption("csv")) {
+			File csvFile = new File(line.getOptionValue("csv"));
+			boolean bNewFile = !csvFile.exists() || (csvFile.length() == 0);
+			try (PrintWriter pw = new PrintWriter(new FileWriter(csvFile, true))) {
+				if (bNewFile) {
+					pw.println("start_time,converter,args,input_bytes,input_rows,runs,elapsed_sec,mb_per_sec,rows_per_sec,gc_msec,gc_count,alloc_bytes,alloc_mb_per_sec");
+				}
+				pw.println(System.currentTimeMillis() + "," + mainMethod.getDeclaringClass().getName() + ",\"" + String.join(" ", converterArgs).replace("\"", "\"\"") + "\"," +
+						inBytes + "," + inRows + "," + results.size() + "," + String.format("%.3f", mean.elapsed_sec) + "," +
+						String.format("%.2f,%.1f", inBytes / 1048576.0 / mean.elapsed_sec, inRows / mean.elapsed_sec) + "," +
+						mean.gcTime_msec + "," + mean.gcCount + "," + mean.allocated + "," + String.format("%.1f", mean.allocated / 1048576.0 / mean.elapsed_sec));
+			} catch (IOException ioe) {
+				System.err.println("Error: writing to " + csvFile + ": " + ioe);
+			}
+		}
+	}
+
+	private static String format(Result resultI, long inBytesI, long inRowsI) {
+		double sec = resultI.elapsed_sec;
+		return String.format("%.2f sec, %.1f MB/s, %.0f rows/s, GC %d msec (%d collections, %.1f%%), alloc %.1f MB (%.1f MB/s)",
+				sec, inBytesI / 1048576.0 / sec, inRowsI / sec, resultI.gcTime_msec, resultI.gcCount, 100.0 * resultI.gcTime_msec / 1000.0 / sec,
+				resultI.allocated / 1048576.0, resultI.allocated / 1048576.0 / sec);
+	}
+
+	//
+	// Bytes allocated so far by each live thread
+	//
+	private static Map<Long,Long> allocatedBytes(com.sun.management.ThreadMXBean threadBeanI) {
+		long[] ids = threadBeanI.getAllThreadIds();
+		long[] bytes = threadBeanI.getThreadAllocatedBytes(ids);
+		Map<Long,Long> result = new HashMap<>();
+		for (int i = 0; i < ids.length; ++i) {
+			if (bytes[i] >= 0) {
+				result.put(ids[i], bytes[i]);
+			}
+		}
+		return result;
+	}
+
+	private static long countLines(File fileI) throws IOException {
+		long lines = 0;
+		int last = '\n';
+		byte[] buf = new byte[1024 * 1024];
+		try (InputStream is = new BufferedInputStream(new FileInputStream(fileI))) {
+			int n;
+			while ((n = is.read(buf)) > 0) {
+				for (int i = 0; i < n; ++i) {
+					if (buf[i] == '\n') {
+						++lines;
+					}
+				}
+				last = buf[n - 1];
+			}
+		}
+		// A last line without a newline
+		return (last == '\n') ? lines : (lines + 1);
+	}
+
+	private static void deleteRecursively(File fileI) {
+		File[] children = fileI.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				deleteRecursively(child);
+			}
+		}
+		if (!fileI.delete()) {
+			System.err.println("Warning: couldn't delete " + fileI);
+		}
+	}
+
+	//
+	// Keeps the last OUTPUT_TAIL_SIZE bytes written to it (and passes everything on to the given
+	// stream, if any); also notes whether any line of the output mentions an error or exception,
+	// however long ago it was written
+	//
+	private static class TailOutputStream extends OutputStream {
+		private final byte[] ring = new byte[OUTPUT_TAIL_SIZE];
+		private long count = 0;
+		private final OutputStream passThrough;
+		// The current line (up to OUTPUT_TAIL_SIZE characters of it) and whether a problem was seen
+		private final StringBuilder currentLine = new StringBuilder();
+		private boolean bProblem = false;
+		TailOutputStream(OutputStream passThroughI) {
+			passThrough = passThroughI;
+		}
+		@Override
+		public synchronized void write(int bI) throws IOException {
+			take((byte)bI);
+			if (passThrough != null) {
+				passThrough.write(bI);
+			}
+		}
+		@Override
+		public synchronized void write(byte[] bI, int offI, int lenI) throws IOException {
+			for (int i = 0; i < lenI; ++i) {
+				take(bI[offI + i]);
+			}
+			if (passThrough != null) {
+				passThrough.write(bI, offI, lenI);
+			}
+		}
+		private void take(byte bI) {
+			ring[(int)(count++ % ring.length)] = bI;
+			if (bI == '\n') {
+				checkLine();
+			} else if (currentLine.length() < OUTPUT_TAIL_SIZE) {
+				currentLine.append((char)bI);
+			}
+		}
+		private void checkLine() {
+			if ( (currentLine.indexOf("Error") >= 0) || (currentLine.indexOf("Exception") >= 0) ) {
+				bProblem = true;
+			}
+			currentLine.setLength(0);
+		}
+		synchronized boolean sawProblem() {
+			checkLine();
+			return bProblem;
+		}
+		synchronized String getTail() {
+			int len = (int)Math.min(count, ring.length);
+			byte[] bytes = new byte[len];
+			for (int i = 0; i < len; ++i) {
+				bytes[i] = ring[(int)((count - len + i) % ring.length)];
+			}
+			return new String(bytes);
+		}
+	}
+
+}
@@ -0,0 +1,198 @@
+/*
+Copyright 2020 Erigo
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package erigo.arrowcommon;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.List;
+
+//
+// A Source which reads rows of delimited text: one row per line, with the fields in column order.
+// Fields are separated either by a delimiter character (e.g. ',' for CSV) or, in whitespace mode,
+// by runs of spaces and tabs (e.g. the PHM08 data). The line is never split into field strings:
+// the field boundaries are found in one pass and each column parses its field in place.
+//
+// A batch ends when it holds the maximum number of rows or, if a key column is given, when the
+// (integer) key changes; e.g. the PHM08 data is batched one engine unit per batch. Blank lines are
+// skipped, as are lines with the wrong number of fields or (with a key column) an unreadable key.
+//
+public class DelimitedTextSource implements Source {
+
+    // Delimiter value which selects whitespace mode
+    public static final char WHITESPACE = 0;
+
+    private final BufferedReader br;
+    private final List<ColumnBuilder.Spec> columns;
+    private final char delimiter;
+    private final int maxBatchRows;
+    private final int keyColumn;
+
+    // Start and end of each field in the current line; reused for every line
+    private final int[] fieldStart;
+    private final int[] fieldEnd;
+    private final long[] scratch = new long[1];
+
+    // First line of the next batch, read while finishing the current one (a change of key)
+    private String pendingLine = null;
+    private long batchKey = 0;
+
+    // Statistics
+    public long linesRead = 0;
+    public long linesSkipped = 0;
+
+    //
+    // filenameI:     the input file
+    // delimiterI:    field delimiter, or WHITESPACE
+    // headerLinesI:  number of lines (e.g. column headings) to skip at the start of the file
+    // columnsI:      the columns, in the order their fields appear in each line
+    // maxBatchRowsI: most rows per batch
+    // keyColumnI:    index of the integer column whose change ends a batch; -1 for none
+    //
+    public DelimitedTextSource(String filenameI, char delimiterI, int headerLinesI, List<ColumnBuilder.Spec> columnsI, int maxBatchRowsI, int keyColumnI) throws IOException {
+        if (maxBatchRowsI < 1) {
+            throw new IllegalArgumentException("DelimitedTextSource: the maximum batch size must be greater than 0");
+        }
+        if (keyColumnI >= columnsI.size()) {
+            throw new IllegalArgumentException("DelimitedTextSource: key column " + keyColumnI + " is out of range");
+        }
+        columns = columnsI;
+        delimiter = delimiterI;
+        maxBatchRows = maxBatchRowsI;
+        keyColumn = keyColumnI;
+        fieldStart = new int[columnsI.size()];
+        fieldEnd = new int[columnsI.size()];
+        br = new BufferedReader(new FileReader(filenameI), 1024 * 1024);
+        for (int i = 0; i < headerLinesI; ++i) {
+            if (br.readLine() == null) {
+                break;
+            }
+        }
+    }
+
+    public List<ColumnBuilder.Spec> getColumns() {
+        return columns;
+    }
+
+    public boolean readBatch(BatchBuilder builderI) throws IOException {
+        int numColumns = columns.size();
+        while (builderI.getRowCount() < maxBatchRows) {
+            String line;
+            if (pendingLine != null) {
+                line = pendingLine;
+                pendingLine = null;
+            } else {
+                line = br.readLine();
+                if (line == null) {
+                    break;
+                }
+                ++linesRead;
+            }
+            int numFields = (delimiter == WHITESPACE) ? splitWhitespace(line) : splitDelimited(line);
+            if (numFields == 0) {
+                // blank line
+                continue;
+            }
+            if (numFields != numColumns) {
+                System.err.println("DelimitedTextSource: got wrong number of entries: expected " + numColumns + ", got " + numFields);
+                ++linesSkipped;
+                continue;
+            }
+            if (keyColumn >= 0) {
+                int start = ColumnBuilder.skipLeadingSpace(line, fieldStart[keyColumn], fieldEnd[keyColumn]);
+                int end = ColumnBuilder.skipTrailingSpace(line, start, fieldEnd[keyColumn]);
+                if ( (start == end) || !ColumnBuilder.parseLong(line, start, end, scratch) ) {
+                    ++linesSkipped;
+                    continue;
+                }
+                if (builderI.getRowCount() == 0) {
+                    batchKey = scratch[0];
+                } else if (scratch[0] != batchKey) {
+                    // This line starts the next batch
+                    pendingLine = line;
+                    break;
+                }
+            }
+            int row = builderI.nextRow();
+            for (int i = 0; i < numColumns; ++i) {
+                builderI.getColumn(i).parse(line, fieldStart[i], fieldEnd[i], row);
+            }
+            builderI.endRow();
+        }
+        return (builderI.getRowCount() > 0);
+    }
+
+    //
+    // Key of the current batch (with a key column)
+    //
+    public long getBatchKey() {
+        return batchKey;
+    }
+
+    public void close() throws IOException {
+        br.close();
+    }
+
+    //
+    // Find the fields separated by the delimiter (surrounding whitespace of the line is ignored).
+    // Returns the number of fields, 0 for a blank line; the boundaries are only kept for as many
+    // fields as there are columns.
+    //
+    private int splitDelimited(String lineI) {
+        int start = ColumnBuilder.skipLeadingSpace(lineI, 0, lineI.length());
+        int end = ColumnBuilder.skipTrailingSpace(lineI, start, lineI.length());
+        if (start == end) {
+            return 0;
+        }
+        int numFields = 0;
+        int fieldBegin = start;
+        for (int i = start; i <= end; ++i) {
+            if ( (i == end) || (lineI.charAt(i) == delimiter) ) {
+                if (numFields < fieldStart.length) {
+                    fieldStart[numFields] = fieldBegin;
+                    fieldEnd[numFields] = i;
+                }
+                ++numFields;
+                fieldBegin = i + 1;
+            }
+        }
+        return numFields;
+    }
+
+    //
+    // Find the fields separated by runs of whitespace; returns the number of fields as above
+    //
+    private int splitWhitespace(String lineI) {
+        int len = lineI.length();
+        int numFields = 0;
+        int i = ColumnBuilder.skipLeadingSpace(lineI, 0, len);
+        while (i < len) {
+            int begin = i;
+            while ( (i < len) && (lineI.charAt(i) > ' ') ) {
+                ++i;
+            }
+            if (numFields < fieldStart.length) {
+                fieldStart[numFields] = begin;
+                fieldEnd[numFields] = i;
+            }
+            ++numFields;
+            i = ColumnBuilder.skipLeadingSpace(lineI, i, len);
+        }
+        return numFields;
+    }
+
+}
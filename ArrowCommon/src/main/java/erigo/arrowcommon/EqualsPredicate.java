@@ -0,0 +1,104 @@
+/*
+Copyright 2020 Erigo
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package erigo.arrowcommon;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.function.Function;
+
+import org.apache.arrow.memory.ArrowBuf;
+import org.apache.arrow.vector.FieldVector;
+import org.apache.arrow.vector.VarCharVector;
+import org.apache.arrow.vector.VectorSchemaRoot;
+
+//
+// Equality predicate on a string (VarChar) column.
+// Null entries never match.
+//
+public class EqualsPredicate extends Predicate {
+
+    public final String column;
+    public final String value;
+    private final byte[] valueBytes;
+
+    public EqualsPredicate(String columnI, String valueI) {
+        column = columnI;
+        value = valueI;
+        valueBytes = valueI.getBytes(StandardCharsets.UTF_8);
+    }
+
+    public void addColumns(Set<String> columnsI) {
+        columnsI.add(column);
+    }
+
+    public boolean mightMatch(Function<String,ColumnStats> statsLookupI) {
+        ColumnStats stats = statsLookupI.apply(column);
+        if ( (stats == null) || (stats.bNumeric) ) {
+            return true;
+        }
+        if (stats.allNull()) {
+            return false;
+        }
+        return (value.compareTo(stats.minStr) >= 0) && (value.compareTo(stats.maxStr) <= 0);
+    }
+
+    public void evaluate(VectorSchemaRoot rootI, long[] selectionI) {
+        FieldVector vec = rootI.getVector(column);
+        if (vec == null) {
+            throw new IllegalArgumentException("EqualsPredicate: column " + column + " was not loaded");
+        }
+        if (!(vec instanceof VarCharVector)) {
+            throw new IllegalArgumentException("EqualsPredicate: column " + column + " is not a string column");
+        }
+        int rowCount = rootI.getRowCount();
+        int numWords = numSelectionWords(rowCount);
+        ArrowBuf validity = vec.getValidityBuffer();
+        ArrowBuf offsets = vec.getOffsetBuffer();
+        ArrowBuf data = vec.getDataBuffer();
+        int len = valueBytes.length;
+        // Compare bytes in place; no String objects are created per row
+        for (int w = 0; w < numWords; ++w) {
+            int base = w << 6;
+            int n = Math.min(64, rowCount - base);
+            long bits = 0;
+            for (int j = 0; j < n; ++j) {
+                long idx = base + j;
+                int start = offsets.getInt(idx << 2);
+                int end = offsets.getInt((idx + 1) << 2);
+                if ((end - start) != len) {
+                    continue;
+                }
+                boolean bMatch = true;
+                for (int k = 0; k < len; ++k) {
+                    if (data.getByte(start + k) != valueBytes[k]) {
+                        bMatch = false;
+                        break;
+                    }
+                }
+                if (bMatch) {
+                    bits |= 1L << j;
+                }
+            }
+            selectionI[w] = bits & validityWord(validity, w);
+        }
+    }
+
+    public String toString() {
+        return column + " == \"" + value + "\"";
+    }
+
+}
@@ -0,0 +1,187 @@
+/*
+Copyright 2020 Erigo
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package erigo.arrowcommon;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+//
+// Hands each serialized batch to several sinks at once (e.g. Arrow files for the archive plus
+// Plasma or the shared memory ring for live consumers), so one ingest process can feed all of
+// them from a single serialization of the batch.
+//
+// Each sink has its own thread and a bounded queue of batches waiting for it. submit() never
+// blocks: if a sink has fallen so far behind that its queue is full, the oldest batch waiting
+// for that sink is dropped (and counted) to make room, so a slow or stalled sink costs only its
+// own output and never holds up the ingest or the other sinks. Since IpcBatch is immutable, the
+// sinks share the same bytes without copying or reference counting.
+//
+public class FanOut implements AutoCloseable {
+
+    private final List<SinkRunner> runners = new ArrayList<>();
+    private boolean bClosed = false;
+
+    //
+    // queueSizeI: most batches which may be waiting for any one sink
+    //
+    public FanOut(List<BatchSink> sinksI, int queueSizeI) {
+        if (queueSizeI < 1) {
+            throw new IllegalArgumentException("FanOut: queue size must be greater than 0");
+        }
+        for (BatchSink sink : sinksI) {
+            runners.add(new SinkRunner(sink, queueSizeI));
+        }
+        for (SinkRunner runner : runners) {
+            runner.thread.start();
+        }
+    }
+
+    //
+    // Queue the batch for every sink
+    //
+    public void submit(IpcBatch batchI) {
+        if (bClosed) {
+            throw new IllegalStateException("FanOut: closed");
+        }
+        for (SinkRunner runner : runners) {
+            runner.offer(batchI);
+        }
+    }
+
+    //
+    // Comma-separated list of the sink names
+    //
+    public String getSinkNames() {
+        StringBuilder sb = new StringBuilder();
+        for (SinkRunner runner : runners) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(runner.sink.getName());
+        }
+        return sb.toString();
+    }
+
+    //
+    // One line per sink: batches written, dropped and failed, and the current queue length; followed
+    // by the sink's own statistics, if it has any
+    //
+    public String getStats() {
+        StringBuilder sb = new StringBuilder();
+        for (SinkRunner runner : runners) {
+            sb.append(String.format("%-8s written %d (%d bytes), dropped %d, failed %d, queued %d%n",
+                                    runner.sink.getName(), runner.written, runner.bytes, runner.dropped, runner.failed, runner.queue.size()));
+            String sinkStats = runner.sink.getStats();
+            if (sinkStats != null) {
+                sb.append(String.format("%-8s %s%n", "", sinkStats));
+            }
+        }
+        return sb.toString();
+    }
+
+    //
+    // Let each sink finish the batches already queued for it, then close the sinks
+    //
+    public synchronized void close() {
+        if (bClosed) {
+            return;
+        }
+        bClosed = true;
+        for (SinkRunner runner : runners) {
+            runner.bStop = true;
+        }
+        for (SinkRunner runner : runners) {
+            try {
+                runner.thread.join();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    //
+    // A sink, its queue and the thread which feeds it
+    //
+    private static class SinkRunner implements Runnable {
+
+        final BatchSink sink;
+        final ArrayBlockingQueue<IpcBatch> queue;
+        final Thread thread;
+        volatile boolean bStop = false;
+
+        // Statistics; written by the sink thread (dropped by the submitting thread)
+        volatile long written = 0;
+        volatile long bytes = 0;
+        volatile long dropped = 0;
+        volatile long failed = 0;
+
+        SinkRunner(BatchSink sinkI, int queueSizeI) {
+            sink = sinkI;
+            queue = new ArrayBlockingQueue<>(queueSizeI);
+            thread = new Thread(this, "sink-" + sinkI.getName());
+            thread.setDaemon(true);
+        }
+
+        void offer(IpcBatch batchI) {
+            while (!queue.offer(batchI)) {
+                // Full; drop the oldest waiting batch
+                if (queue.poll() != null) {
+                    ++dropped;
+                    if ( (dropped == 1) || ((dropped % 100) == 0) ) {
+                        System.err.println("FanOut: sink \"" + sink.getName() + "\" is falling behind; " + dropped + " batches dropped so far");
+                    }
+                }
+            }
+        }
+
+        public void run() {
+            while (true) {
+                IpcBatch batch;
+                try {
+                    batch = queue.poll(100, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException ie) {
+                    break;
+                }
+                if (batch == null) {
+                    if (bStop) {
+                        break;
+                    }
+                    continue;
+                }
+                try {
+                    sink.write(batch);
+                    ++written;
+                    bytes += batch.fileLength();
+                } catch (Exception e) {
+                    ++failed;
+                    System.err.println("FanOut: sink \"" + sink.getName() + "\" failed to write batch " + batch.name + ":");
+                    System.err.println(e);
+                }
+            }
+            try {
+                sink.close();
+            } catch (Exception e) {
+                System.err.println("FanOut: caught exception closing sink \"" + sink.getName() + "\":");
+                System.err.println(e);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,88 @@
+/*
+Copyright 2020 Erigo
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package erigo.arrowcommon;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.vector.VectorSchemaRoot;
+
+//
+// The ingest loop shared by the input programs: a Source fills a BatchBuilder one batch at a
+// time and each finished batch is handed to a BatchHandler (which writes it to an Arrow file,
+// Parquet, Plasma, ...), after which the columns are reset for the next batch.
+//
+// The root is created up front, so writers which need it (e.g. ArrowFileWriter) can be set up
+// before run() is called; it holds each batch only while the handler runs.
+//
+public class IngestEngine implements AutoCloseable {
+
+    //
+    // Called with each finished batch; batchNumI counts from 1
+    //
+    public interface BatchHandler {
+        void handle(VectorSchemaRoot rootI, int batchNumI) throws IOException;
+    }
+
+    private final Source source;
+    private final BatchBuilder builder;
+
+    // Statistics
+    public int batchesRead = 0;
+    public long rowsRead = 0;
+
+    public IngestEngine(Source sourceI, BufferAllocator allocatorI, int initialCapacityI) {
+        source = sourceI;
+        builder = new BatchBuilder(sourceI.getColumns(), allocatorI, initialCapacityI);
+    }
+
+    public VectorSchemaRoot getRoot() {
+        return builder.getRoot();
+    }
+
+    //
+    // Read the whole source, handing each batch to the handler
+    //
+    public void run(BatchHandler handlerI) throws IOException {
+        while (true) {
+            builder.reset();
+            if (!source.readBatch(builder)) {
+                break;
+            }
+            if (builder.getRowCount() == 0) {
+                continue;
+            }
+            VectorSchemaRoot root = builder.finish();
+            ++batchesRead;
+            rowsRead += root.getRowCount();
+            handlerI.handle(root, batchesRead);
+        }
+    }
+
+    //
+    // Closes the source and frees the batch buffers
+    //
+    public void close() throws IOException {
+        try {
+            source.close();
+        } finally {
+            builder.close();
+        }
+    }
+
+}
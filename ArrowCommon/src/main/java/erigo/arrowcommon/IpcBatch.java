@@ -0,0 +1,163 @@
+/*
+Copyright 2020 Erigo
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package erigo.arrowcommon;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Collections;
+import java.util.Map;
+
+import org.apache.arrow.vector.VectorSchemaRoot;
+import org.apache.arrow.vector.ipc.ArrowFileWriter;
+
+//
+// One record batch, serialized once to Arrow IPC bytes which are then shared by every output.
+//
+// The batch is serialized in the Arrow file format, which is laid out as:
+//
+//     magic (8 bytes) | schema message | record batch message | end-of-stream marker | footer | magic
+//
+// The bytes between the leading magic and the footer are exactly an Arrow IPC stream holding the
+// one batch, so the same buffer serves as an Arrow file (file outputs), a one-batch stream (Plasma
+// objects, shared memory ring records) and the schema and batch messages of a continuous stream.
+// Each accessor returns a new read-only view, so several outputs can read the batch at once from
+// different threads. An IpcBatch is immutable.
+//
+public final class IpcBatch {
+
+    // Length of the "ARROW1" magic at the start of a file, padded to 8 bytes
+    private static final int MAGIC_SIZE = 8;
+
+    // Arrow's end-of-stream marker: continuation token followed by a 0 length
+    private static final int EOS_SIZE = 8;
+
+    private final byte[] data;
+    private final int fileLength;
+    private final int schemaStart;
+    private final int schemaEnd;
+    private final int batchEnd;
+
+    // File name used by file outputs and the 20-character object ID used by Plasma and the ring
+    public final String name;
+    public final String objectId;
+    public final int rowCount;
+
+    // The metadata stored in the file footer (e.g. ColumnStats); empty if there is none
+    public final Map<String,String> footerMetadata;
+
+    private IpcBatch(byte[] dataI, int fileLengthI, int schemaStartI, int schemaEndI, int batchEndI, String nameI, String objectIdI, int rowCountI, Map<String,String> footerMetadataI) {
+        data = dataI;
+        fileLength = fileLengthI;
+        schemaStart = schemaStartI;
+        schemaEnd = schemaEndI;
+        batchEnd = batchEndI;
+        name = nameI;
+        objectId = objectIdI;
+        rowCount = rowCountI;
+        footerMetadata = (footerMetadataI == null) ? Collections.emptyMap() : Collections.unmodifiableMap(footerMetadataI);
+    }
+
+    //
+    // Serialize the current contents of the given root (its row count must already be set).
+    // footerMetadataI (may be null) is stored in the file footer, e.g. ColumnStats for ArrowScanner;
+    // it is kept with the batch, so it must not be changed afterwards.
+    //
+    public static IpcBatch serialize(VectorSchemaRoot rootI, Map<String,String> footerMetadataI, String nameI, String objectIdI) throws IOException {
+        ExposedByteArrayOutputStream out = new ExposedByteArrayOutputStream();
+        int schemaEnd;
+        int batchEnd;
+        try (ArrowFileWriter writer = new ArrowFileWriter(rootI, null, Channels.newChannel(out), footerMetadataI)) {
+            writer.start();
+            schemaEnd = (int)writer.bytesWritten();
+            writer.writeBatch();
+            batchEnd = (int)writer.bytesWritten();
+            writer.end();
+        }
+        byte[] data = out.array();
+        // The file must have the end-of-stream marker right after the batch for the stream view to be valid
+        if ( (out.size() < batchEnd + EOS_SIZE) || (readIntLE(data, batchEnd) != -1) || (readIntLE(data, batchEnd + 4) != 0) ) {
+            throw new IOException("IpcBatch: unexpected Arrow file layout");
+        }
+        return new IpcBatch(data, out.size(), MAGIC_SIZE, schemaEnd, batchEnd, nameI, objectIdI, rootI.getRowCount(), footerMetadataI);
+    }
+
+    //
+    // The complete Arrow file
+    //
+    public ByteBuffer fileBytes() {
+        return view(0, fileLength);
+    }
+
+    public int fileLength() {
+        return fileLength;
+    }
+
+    //
+    // A complete Arrow stream holding this one batch: schema, batch and end-of-stream marker
+    //
+    public ByteBuffer streamBytes() {
+        return view(schemaStart, batchEnd + EOS_SIZE);
+    }
+
+    public int streamLength() {
+        return batchEnd + EOS_SIZE - schemaStart;
+    }
+
+    //
+    // The schema message; written once at the start of a continuous stream
+    //
+    public ByteBuffer schemaMessage() {
+        return view(schemaStart, schemaEnd);
+    }
+
+    //
+    // The record batch message; appended to a continuous stream after its schema message
+    //
+    public ByteBuffer batchMessage() {
+        return view(schemaEnd, batchEnd);
+    }
+
+    //
+    // The end-of-stream marker which finishes a continuous stream
+    //
+    public static ByteBuffer endOfStream() {
+        return ByteBuffer.wrap(new byte[] { -1, -1, -1, -1, 0, 0, 0, 0 }).asReadOnlyBuffer();
+    }
+
+    private ByteBuffer view(int startI, int endI) {
+        return ByteBuffer.wrap(data, startI, endI - startI).slice().asReadOnlyBuffer();
+    }
+
+    private static int readIntLE(byte[] bytesI, int offI) {
+        return (bytesI[offI] & 0xff) | ((bytesI[offI + 1] & 0xff) << 8) | ((bytesI[offI + 2] & 0xff) << 16) | (bytesI[offI + 3] << 24);
+    }
+
+    //
+    // Lets us keep the serialized bytes without the copy made by toByteArray()
+    //
+    private static class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+        ExposedByteArrayOutputStream() {
+            super(64 * 1024);
+        }
+        byte[] array() {
+            return buf;
+        }
+    }
+
+}
@@ -0,0 +1,511 @@
+/*
+Copyright 2020 Erigo
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+
+package erigo.arrowcommon;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.vector.FieldVector;
+import org.apache.arrow.vector.VectorSchemaRoot;
+import org.apache.arrow.vector.types.pojo.Schema;
+
+//
+// Writes the rows of each value of a key column (e.g. OBD2Arrow's VEHICLE_ID) to a file of their
+// own, so reading the data of one key is a single sequential file read instead of a scan of all
+// the data:
+//
+//     <folder>/<key column>=<value>.arrow     (Arrow file, with per-batch ColumnStats in the footer)
+//     <folder>/<key column>=<value>.arrows    (Arrow IPC stream, which ArrowStreamFollower can read
+//                                              while it is being written)
+//
+// Characters of the value other than letters, digits, '.', '-' and '_' are replaced by '_' in the
+// file name, and rows with a null key go to "<key column>=_null". When the writer is closed, a
+// "_partitions.tsv" file lists the key, file name, rows, batches and bytes of every file.
+//
+// write() copies each row of a batch into the vectors of its key's partition. A partition is
+// flushed as one record batch once it holds batchRows rows; a pool of writer threads writes the
+// flushed batches, each partition always going to the same thread so its batches stay in order.
+//
+// The buffered rows plus the flushed batches not yet written are kept under a memory cap (data
+// bytes, as reported by getBufferSizeFor()): if the buffered rows alone take up more than half of
+// the cap, the partition with the most data is flushed early; otherwise write() waits for the
+// writer threads to catch up.
+//
+// Arrow files can't be appended to once closed, so every partition's file stays open until the
+// writer is closed; the number of keys is limited by the number of open files allowed.
+//
+public class KeyPartitionedWriter implements AutoCloseable {
+
+    public static final String MANIFEST_NAME = "_partitions.tsv";
+
+    // Batches which may be waiting for each writer thread
+    private static final int QUEUE_SIZE = 8;
+
+    private final BufferAllocator allocator;
+    private final File dir;
+    private final String keyColumn;
+    private final int batchRows;
+    private final long memoryCap;
+    private final boolean bStream;
+    private final List<WriterThread> writers = new ArrayList<>();
+
+    // Partitions by key value (null keys under a null map key)
+    private final Map<String,Partition> partitions = new HashMap<>();
+    private final Set<String> fileNames = new HashSet<>();
+    // Partitions which received rows from the batch being routed
+    private final List<Partition> touched = new ArrayList<>();
+    private long bufferedBytes = 0;
+    private final AtomicLong inFlightBytes = new AtomicLong();
+    // First error from a writer thread; reported by the next call to write() or close()
+    private volatile IOException writerError = null;
+    private boolean bClosed = false;
+
+    // Statistics
+    public long rowsWritten = 0;
+    public long batchesWritten = 0;
+    public long capFlushes = 0;
+
+    //
+    // allocatorI:  allocator for the partitions' vectors
+    // dirI:        folder for the output files (created if needed)
+    // keyColumnI:  name of the column to partition on
+    // batchRowsI:  rows per record batch in the output files
+    // memoryCapI:  most bytes of buffered and not yet written rows
+    // numWritersI: number of writer threads
+    // bStreamI:    write Arrow IPC streams instead of Arrow files
+    //
+    public KeyPartitionedWriter(BufferAllocator allocatorI, String dirI, String keyColumnI, int batchRowsI, long memoryCapI, int numWritersI, boolean bStreamI) throws IOException {
+        if (batchRowsI < 1) {
+            throw new IllegalArgumentException("KeyPartitionedWriter: batch size must be greater than 0");
+        }
+        if (memoryCapI < 1) {
+            throw new IllegalArgumentException("KeyPartitionedWriter: memory cap must be greater than 0");
+        }
+        if (numWritersI < 1) {
+            throw new IllegalArgumentException("KeyPartitionedWriter: must have at least one writer thread");
+        }
+        allocator = allocatorI;
+        dir = new File(dirI);
+        keyColumn = keyColumnI;
+        batchRows = batchRowsI;
+        memoryCap = memoryCapI;
+        bStream = bStreamI;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("KeyPartitionedWriter: unable to create folder " + dir);
+        }
+        for (int i = 0; i < numWritersI; ++i) {
+            writers.add(new WriterThread(i));
+        }
+        for (WriterThread writer : writers) {
+            writer.thread.start();
+        }
+    }
+
+    public File getDir() {
+        return dir;
+    }
+
+    public int getNumPartitions() {
+        return partitions.size();
+    }
+
+    //
+    // Route the rows of the given batch to their partitions
+    //
+    public void write(VectorSchemaRoot rootI) throws IOException {
+        checkWriterError();
+        FieldVector keyVec = rootI.getVector(keyColumn);
+        if (keyVec == null) {
+            throw new IOException("KeyPartitionedWriter: no key column \"" + keyColumn + "\" in batch");
+        }
+        List<FieldVector> srcVecs = rootI.getFieldVectors();
+        int rowCount = rootI.getRowCount();
+        // Rows usually come in runs of the same key (e.g. one vehicle's trip), so the partition of
+        // the previous row is tried first
+        Partition partition = null;
+        Object prevKey = null;
+        for (int i = 0; i < rowCount; ++i) {
+            Object keyObj = keyVec.getObject(i);
+            if ( (partition == null) || !equalKeys(keyObj, prevKey) ) {
+                String key = (keyObj == null) ? null : keyObj.toString();
+                partition = partitions.get(key);
+                if (partition == null) {
+                    partition = new Partition(key, rootI.getSchema());
+                    partitions.put(key, partition);
+                }
+                prevKey = keyObj;
+            }
+            partition.add(srcVecs, i);
+            if (!partition.bTouched) {
+                partition.bTouched = true;
+                touched.add(partition);
+            }
+            if (partition.rows >= batchRows) {
+                flush(partition);
+            }
+        }
+        for (Partition p : touched) {
+            p.bTouched = false;
+            long size = p.getBufferSize();
+            bufferedBytes += size - p.bufferSize;
+            p.bufferSize = size;
+        }
+        touched.clear();
+        enforceMemoryCap();
+    }
+
+    //
+    // Flush the remaining rows, wait for the writer threads to write everything and finish the
+    // files, then write the manifest
+    //
+    public void close() throws IOException {
+        if (bClosed) {
+            return;
+        }
+        bClosed = true;
+        try {
+            for (Partition partition : partitions.values()) {
+                if (partition.rows > 0) {
+                    flush(partition);
+                }
+            }
+        } finally {
+            for (WriterThread writer : writers) {
+                writer.stop();
+            }
+            for (WriterThread writer : writers) {
+                try {
+                    writer.thread.join();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            for (Partition partition : partitions.values()) {
+                if (partition.root != null) {
+                    partition.root.close();
+                    partition.root = null;
+                }
+            }
+        }
+        checkWriterError();
+        writeManifest();
+    }
+
+    //
+    // Statistics of the writer threads, one line each
+    //
+    public String getStats() {
+        StringBuilder sb = new StringBuilder();
+        for (WriterThread writer : writers) {
+            sb.append(String.format("writer %d: %d files, %d batches, %d rows%n", writer.index, writer.outputs.size(), writer.batches, writer.rows));
+        }
+        return sb.toString();
+    }
+
+    private static boolean equalKeys(Object aI, Object bI) {
+        return (aI == null) ? (bI == null) : aI.equals(bI);
+    }
+
+    //
+    // Hand the buffered rows of the given partition to its writer thread; the partition starts
+    // a new set of vectors with its next row
+    //
+    private void flush(Partition partitionI) throws IOException {
+        VectorSchemaRoot root = partitionI.root;
+        root.setRowCount(partitionI.rows);
+        long size = partitionI.getBufferSize();
+        bufferedBytes -= partitionI.bufferSize;
+        partitionI.bufferSize = 0;
+        partitionI.root = null;
+        partitionI.rows = 0;
+        inFlightBytes.addAndGet(size);
+        writers.get(partitionI.writerIndex).submit(new Flush(partitionI, root, size));
+    }
+
+    //
+    // Keep the buffered and in-flight rows under the memory cap (see above)
+    //
+    private void enforceMemoryCap() throws IOException {
+        while (bufferedBytes + inFlightBytes.get() > memoryCap) {
+            checkWriterError();
+            if ( (bufferedBytes > 0) && ((bufferedBytes > memoryCap / 2) || (inFlightBytes.get() == 0)) ) {
+                Partition largest = null;
+                for (Partition partition : partitions.values()) {
+                    if ( (partition.rows > 0) && ((largest == null) || (partition.bufferSize > largest.bufferSize)) ) {
+                        largest = partition;
+                    }
+                }
+                flush(largest);
+                ++capFlushes;
+            } else if (inFlightBytes.get() > 0) {
+                synchronized (inFlightBytes) {
+                    try {
+                        inFlightBytes.wait(10);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("KeyPartitionedWriter: interrupted while waiting for the writers");
+                    }
+                }
+            } else {
+                break;
+            }
+        }
+    }
+
+    //
+    // Throw the writer threads' error, if there was one; a new exception each time (with the error
+    // as its cause), since close() may report it again while the first one is propagating
+    //
+    private void checkWriterError() throws IOException {
+        if (writerError != null) {
+            throw new IOException(writerError.getMessage(), writerError);
+        }
+    }
+
+    //
+    // File name for the given key, unique among the partitions
+    //
+    private String fileNameFor(String keyI) {
+        StringBuilder sb = new StringBuilder(keyColumn.length() + 16);
+        sb.append(keyColumn).append('=');
+        if (keyI == null) {
+            sb.append("_null");
+        } else {
+            for (int i = 0; i < keyI.length(); ++i) {
+                char c = keyI.charAt(i);
+                boolean bSafe = ( ((c >= 'a') && (c <= 'z')) || ((c >= 'A') && (c <= 'Z')) || ((c >= '0') && (c <= '9')) || (c == '.') || (c == '-') || (c == '_') );
+                sb.append(bSafe ? c : '_');
+            }
+        }
+        String base = sb.toString();
+        String name = base;
+        for (int n = 2; fileNames.contains(name); ++n) {
+            name = base + "_" + n;
+        }
+        fileNames.add(name);
+        return name + (bStream ? ".arrows" : ".arrow");
+    }
+
+    //
+    // List every partition file, in key order
+    //
+    private void writeManifest() throws IOException {
+        Map<Partition,ArrowPartFile> outputs = new TreeMap<>((a, b) -> a.fileName.compareTo(b.fileName));
+        for (WriterThread writer : writers) {
+            outputs.putAll(writer.outputs);
+        }
+        try (PrintWriter pw = new PrintWriter(new FileWriter(new File(dir, MANIFEST_NAME)))) {
+            pw.println(keyColumn + "\tfile\trows\tbatches\tbytes");
+            for (Map.Entry<Partition,ArrowPartFile> entry : outputs.entrySet()) {
+                Partition partition = entry.getKey();
+                ArrowPartFile output = entry.getValue();
+                String key = (partition.key == null) ? "" : partition.key;
+                pw.println(key + "\t" + partition.fileName + "\t" + output.numRows + "\t" + output.numBatches + "\t" + output.getFile().length());
+            }
+            if (pw.checkError()) {
+                throw new IOException("KeyPartitionedWriter: error writing " + new File(dir, MANIFEST_NAME));
+            }
+        }
+    }
+
+    //
+    // The rows of one key which haven't been flushed yet
+    //
+    private class Partition {
+
+        final String key;
+        final String fileName;
+        final Schema schema;
+        final int writerIndex;
+        VectorSchemaRoot root = null;
+        List<FieldVector> vecs = null;
+        int rows = 0;
+        // Data bytes of the buffered rows, as of the end of the last batch routed
+        long bufferSize = 0;
+        boolean bTouched = false;
+
+        Partition(String keyI, Schema schemaI) {
+            key = keyI;
+            schema = schemaI;
+            fileName = fileNameFor(keyI);
+            // New keys are spread over the writer threads in turn
+            writerIndex = partitions.size() % writers.size();
+        }
+
+        void add(List<FieldVector> srcVecsI, int rowI) {
+            if (root == null) {
+                root = VectorSchemaRoot.create(schema, allocator);
+                vecs = root.getFieldVectors();
+                for (FieldVector vec : vecs) {
+                    vec.setInitialCapacity(Math.min(batchRows, 1024));
+                    vec.allocateNew();
+                }
+            }
+            for (int c = 0; c < vecs.size(); ++c) {
+                vecs.get(c).copyFromSafe(rowI, rows, srcVecsI.get(c));
+            }
+            ++rows;
+        }
+
+        long getBufferSize() {
+            if (root == null) {
+                return 0;
+            }
+            long size = 0;
+            for (FieldVector vec : vecs) {
+                size += vec.getBufferSizeFor(rows);
+            }
+            return size;
+        }
+
+    }
+
+    //
+    // A batch handed to a writer thread; a null partition tells the thread to finish
+    //
+    private static class Flush {
+        final Partition partition;
+        final VectorSchemaRoot root;
+        final long size;
+        Flush(Partition partitionI, VectorSchemaRoot rootI, long sizeI) {
+            partition = partitionI;
+            root = rootI;
+            size = sizeI;
+        }
+    }
+
+    //
+    // One of the writer threads, with its queue of flushed batches and the files of its partitions
+    //
+    private class WriterThread implements Runnable {
+
+        final int index;
+        final Thread thread;
+        final ArrayBlockingQueue<Flush> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+        final Map<Partition,ArrowPartFile> outputs = new IdentityHashMap<>();
+
+        // Statistics
+        volatile long batches = 0;
+        volatile long rows = 0;
+
+        WriterThread(int indexI) {
+            index = indexI;
+            thread = new Thread(this, "partition-writer-" + indexI);
+            thread.setDaemon(true);
+        }
+
+        //
+        // Queue a batch, waiting for room in the queue
+        //
+        void submit(Flush flushI) throws IOException {
+            try {
+                queue.put(flushI);
+            } catch (InterruptedException ie) {
+                flushI.root.close();
+                Thread.currentThread().interrupt();
+                throw new IOException("KeyPartitionedWriter: interrupted while queuing a batch");
+            }
+        }
+
+        void stop() {
+            while (true) {
+                try {
+                    queue.put(new Flush(null, null, 0));
+                    return;
+                } catch (InterruptedException ie) {
+                    // The thread must be told to finish, or close() would wait for it forever
+                }
+            }
+        }
+
+        public void run() {
+            while (true) {
+                Flush flush;
+                try {
+                    flush = queue.take();
+                } catch (InterruptedException ie) {
+                    continue;
+                }
+                if (flush.partition == null) {
+                    break;
+                }
+                // Any failure (not just an IOException, e.g. an OutOfMemoryException from the allocator)
+                // is recorded and the thread keeps taking batches, so that submit() and close() never
+                // wait on a thread which is gone; after an error the remaining batches are only released
+                try {
+                    if (writerError == null) {
+                        ArrowPartFile output = outputs.get(flush.partition);
+                        if (output == null) {
+                            output = new ArrowPartFile(allocator, new File(dir, flush.partition.fileName), flush.partition.schema, bStream);
+                            outputs.put(flush.partition, output);
+                        }
+                        output.write(flush.root);
+                        ++batches;
+                        rows += flush.root.getRowCount();
+                    }
+                } catch (Throwable t) {
+                    setError(t);
+                } finally {
+                    try {
+                        flush.root.close();
+                    } catch (Throwable t) {
+                        setError(t);
+                    }
+                    inFlightBytes.addAndGet(-flush.size);
+                    synchronized (inFlightBytes) {
+                        inFlightBytes.notifyAll();
+                    }
+                }
+            }
+            for (ArrowPartFile output : outputs.values()) {
+                try {
+                    output.close();
+                } catch (Throwable t) {
+                    setError(t);
+                }
+            }
+            synchronized (KeyPartitionedWriter.this) {
+                rowsWritten += rows;
+                batchesWritten += batches;
+            }
+        }
+
+        private void setError(Throwable errorI) {
+            synchronized (KeyPartitionedWriter.this) {
+                if (writerError == null) {
+                    writerError = (errorI instanceof IOException) ? (IOException)errorI : new IOException("KeyPartitionedWriter: writer thread " + index + " failed: " + errorI, errorI);
+                }
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,82 @@
+/*
+Copyright 2020 Erigo
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package erigo.arrowcommon;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+
+import org.apache.arrow.vector.VectorSchemaRoot;
+
+//
+// Logical OR of one or more child predicates
+//
+public class OrPredicate extends Predicate {
+
+    public final List<Predicate> children;
+
+    public OrPredicate(Predicate... childrenI) {
+        this(Arrays.asList(childrenI));
+    }
+
+    public OrPredicate(List<Predicate> childrenI) {
+        if ( (childrenI == null) || childrenI.isEmpty() ) {
+            throw new IllegalArgumentException("OrPredicate: at least one child predicate is required");
+        }
+        children = childrenI;
+    }
+
+    public void addColumns(Set<String> columnsI) {
+        for (Predicate child : children) {
+            child.addColumns(columnsI);
+        }
+    }
+
+    public boolean mightMatch(Function<String,ColumnStats> statsLookupI) {
+        for (Predicate child : children) {
+            if (child.mightMatch(statsLookupI)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void evaluate(VectorSchemaRoot rootI, long[] selectionI) {
+        int numWords = numSelectionWords(rootI.getRowCount());
+        children.get(0).evaluate(rootI, selectionI);
+        long[] childSelection = new long[numWords];
+        for (int i = 1; i < children.size(); ++i) {
+            children.get(i).evaluate(rootI, childSelection);
+            for (int w = 0; w < numWords; ++w) {
+                selectionI[w] |= childSelection[w];
+            }
+        }
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder("(");
+        for (int i = 0; i < children.size(); ++i) {
+            if (i > 0) {
+                sb.append(" OR ");
+            }
+            sb.append(children.get(i));
+        }
+        return sb.append(")").toString();
+    }
+
+}
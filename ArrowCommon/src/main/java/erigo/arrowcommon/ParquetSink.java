@@ -0,0 +1,461 @@
+/*
+Copyright 2020 Erigo
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package erigo.arrowcommon;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.arrow.vector.BaseIntVector;
+import org.apache.arrow.vector.BitVector;
+import org.apache.arrow.vector.FieldVector;
+import org.apache.arrow.vector.Float4Vector;
+import org.apache.arrow.vector.Float8Vector;
+import org.apache.arrow.vector.TimeStampVector;
+import org.apache.arrow.vector.VarBinaryVector;
+import org.apache.arrow.vector.VarCharVector;
+import org.apache.arrow.vector.VectorSchemaRoot;
+import org.apache.arrow.vector.complex.FixedSizeListVector;
+import org.apache.arrow.vector.complex.ListVector;
+import org.apache.arrow.vector.types.TimeUnit;
+import org.apache.arrow.vector.types.pojo.ArrowType;
+import org.apache.arrow.vector.types.pojo.Field;
+import org.apache.arrow.vector.types.pojo.Schema;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.parquet.column.ParquetProperties;
+import org.apache.parquet.hadoop.ParquetFileWriter;
+import org.apache.parquet.hadoop.ParquetWriter;
+import org.apache.parquet.hadoop.api.WriteSupport;
+import org.apache.parquet.hadoop.metadata.CompressionCodecName;
+import org.apache.parquet.io.OutputFile;
+import org.apache.parquet.io.PositionOutputStream;
+import org.apache.parquet.io.api.Binary;
+import org.apache.parquet.io.api.RecordConsumer;
+import org.apache.parquet.schema.LogicalTypeAnnotation;
+import org.apache.parquet.schema.MessageType;
+import org.apache.parquet.schema.PrimitiveType.PrimitiveTypeName;
+import org.apache.parquet.schema.Type;
+import org.apache.parquet.schema.Types;
+
+//
+// Write record batches to a Parquet file, for long-term archival next to (or instead of) the
+// Arrow IPC output.
+//
+// The Arrow schema is mapped onto a flat Parquet schema (integers, floating point, booleans,
+// strings, binary, timestamps, and lists of these for block-valued CT channels). Rows are handed
+// to parquet-hadoop, which buffers them into row groups and writes each column chunk with
+// dictionary encoding (falling back to plain encoding for columns with too many distinct values),
+// RLE/bit-packed repetition and definition levels, per-page min/max/null-count statistics and the
+// chosen compression codec. Readers which filter on a column (Spark, pyarrow, DuckDB, ...) use
+// those statistics to skip row groups and pages.
+//
+// The file is written with a ".tmp" suffix and renamed when it is closed; a Parquet file can't be
+// read until its footer has been written.
+//
+public class ParquetSink implements AutoCloseable {
+
+    // Codecs which work without the Hadoop native libraries
+    public static final String SUPPORTED_CODECS = "UNCOMPRESSED, SNAPPY, GZIP";
+
+    public static final int DEFAULT_ROW_GROUP_SIZE = 128 * 1024 * 1024;
+
+    private final File tmpFile;
+    private final File finalFile;
+    private final ArrowWriteSupport writeSupport;
+    private final ParquetWriter<Integer> writer;
+
+    // Statistics
+    public long rowsWritten = 0;
+
+    //
+    // filenameI:     output file
+    // schemaI:       schema of the batches which will be written
+    // codecI:        compression codec name (see SUPPORTED_CODECS; case-insensitive)
+    // rowGroupSizeI: target row group size in bytes (uncompressed, buffered in memory before writing)
+    //
+    public ParquetSink(String filenameI, Schema schemaI, String codecI, int rowGroupSizeI) throws IOException {
+        CompressionCodecName codec;
+        try {
+            codec = CompressionCodecName.valueOf(codecI.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException iae) {
+            throw new IOException("ParquetSink: unknown compression codec \"" + codecI + "\"; use one of " + SUPPORTED_CODECS);
+        }
+        finalFile = new File(filenameI);
+        tmpFile = new File(filenameI + ".tmp");
+        writeSupport = new ArrowWriteSupport(schemaI);
+        writer = new Builder(new LocalOutputFile(tmpFile), writeSupport)
+                     .withConf(new Configuration(false))
+                     .withWriteMode(ParquetFileWriter.Mode.OVERWRITE)
+                     .withCompressionCodec(codec)
+                     .withRowGroupSize(rowGroupSizeI)
+                     .withDictionaryEncoding(true)
+                     .withWriterVersion(ParquetProperties.WriterVersion.PARQUET_1_0)
+                     .build();
+    }
+
+    //
+    // Parquet validity check for a schema, without writing anything; throws an IOException naming
+    // the first column whose type can't be stored
+    //
+    public static MessageType toParquetSchema(Schema schemaI) throws IOException {
+        List<Type> types = new ArrayList<>();
+        for (Field field : schemaI.getFields()) {
+            types.add(toParquetType(field));
+        }
+        return new MessageType("arrow_schema", types);
+    }
+
+    //
+    // Append the rows of the given batch; its schema must match the one given to the constructor
+    //
+    public void write(VectorSchemaRoot rootI) throws IOException {
+        writeSupport.bind(rootI);
+        int rowCount = rootI.getRowCount();
+        for (int i = 0; i < rowCount; ++i) {
+            writer.write(i);
+        }
+        rowsWritten += rowCount;
+    }
+
+    //
+    // Bytes written to the file so far plus the size of the row group being buffered
+    //
+    public long getDataSize() {
+        return writer.getDataSize();
+    }
+
+    public File getFile() {
+        return finalFile;
+    }
+
+    //
+    // Write the last row group and the footer, and give the file its final name
+    //
+    public void close() throws IOException {
+        writer.close();
+        Files.move(tmpFile.toPath(), finalFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    //
+    // Parquet type for one Arrow field; all columns are optional (nullable)
+    //
+    private static Type toParquetType(Field fieldI) throws IOException {
+        String name = fieldI.getName();
+        ArrowType type = fieldI.getType();
+        if ( (type instanceof ArrowType.FixedSizeList) || (type instanceof ArrowType.List) ) {
+            // Lists of primitives: the standard 3-level LIST structure
+            Type element = toParquetType(fieldI.getChildren().get(0));
+            if (!element.isPrimitive()) {
+                throw new IOException("ParquetSink: column \"" + name + "\": nested lists are not supported");
+            }
+            return Types.optionalList().element(element.asPrimitiveType().getPrimitiveTypeName(), Type.Repetition.OPTIONAL)
+                        .as(element.getLogicalTypeAnnotation()).named(name);
+        }
+        if (type instanceof ArrowType.Int) {
+            ArrowType.Int intType = (ArrowType.Int)type;
+            int bitWidth = intType.getBitWidth();
+            PrimitiveTypeName primitive = (bitWidth == 64) ? PrimitiveTypeName.INT64 : PrimitiveTypeName.INT32;
+            if ( intType.getIsSigned() && ((bitWidth == 32) || (bitWidth == 64)) ) {
+                return Types.optional(primitive).named(name);
+            }
+            return Types.optional(primitive).as(LogicalTypeAnnotation.intType(bitWidth, intType.getIsSigned())).named(name);
+        }
+        if (type instanceof ArrowType.FloatingPoint) {
+            switch (((ArrowType.FloatingPoint)type).getPrecision()) {
+                case SINGLE:
+                    return Types.optional(PrimitiveTypeName.FLOAT).named(name);
+                case DOUBLE:
+                    return Types.optional(PrimitiveTypeName.DOUBLE).named(name);
+                default:
+                    break;
+            }
+        } else if (type instanceof ArrowType.Bool) {
+            return Types.optional(PrimitiveTypeName.BOOLEAN).named(name);
+        } else if (type instanceof ArrowType.Utf8) {
+            return Types.optional(PrimitiveTypeName.BINARY).as(LogicalTypeAnnotation.stringType()).named(name);
+        } else if (type instanceof ArrowType.Binary) {
+            return Types.optional(PrimitiveTypeName.BINARY).named(name);
+        } else if (type instanceof ArrowType.Timestamp) {
+            ArrowType.Timestamp tsType = (ArrowType.Timestamp)type;
+            boolean bUtc = (tsType.getTimezone() != null);
+            LogicalTypeAnnotation.TimeUnit unit;
+            switch (tsType.getUnit()) {
+                case NANOSECOND:
+                    unit = LogicalTypeAnnotation.TimeUnit.NANOS;
+                    break;
+                case MICROSECOND:
+                    unit = LogicalTypeAnnotation.TimeUnit.MICROS;
+                    break;
+                default:
+                    // Parquet has no seconds unit; seconds are stored as milliseconds
+                    unit = LogicalTypeAnnotation.TimeUnit.MILLIS;
+                    break;
+            }
+            return Types.optional(PrimitiveTypeName.INT64).as(LogicalTypeAnnotation.timestampType(bUtc, unit)).named(name);
+        }
+        throw new IOException("ParquetSink: column \"" + name + "\" has unsupported type " + type);
+    }
+
+    //
+    // Builder which supplies our write support
+    //
+    private static class Builder extends ParquetWriter.Builder<Integer, Builder> {
+        private final ArrowWriteSupport writeSupport;
+        Builder(OutputFile fileI, ArrowWriteSupport writeSupportI) {
+            super(fileI);
+            writeSupport = writeSupportI;
+        }
+        protected Builder self() {
+            return this;
+        }
+        protected WriteSupport<Integer> getWriteSupport(Configuration confI) {
+            return writeSupport;
+        }
+    }
+
+    //
+    // Converts one row (given by its index in the currently bound batch) into Parquet records
+    //
+    private static class ArrowWriteSupport extends WriteSupport<Integer> {
+
+        private final MessageType parquetSchema;
+        private final String[] names;
+        private final ValueWriter[] writers;
+        private RecordConsumer consumer = null;
+
+        ArrowWriteSupport(Schema schemaI) throws IOException {
+            parquetSchema = toParquetSchema(schemaI);
+            List<Field> fields = schemaI.getFields();
+            names = new String[fields.size()];
+            writers = new ValueWriter[fields.size()];
+            for (int i = 0; i < names.length; ++i) {
+                names[i] = fields.get(i).getName();
+            }
+        }
+
+        //
+        // Point the column writers at the vectors of the given batch
+        //
+        void bind(VectorSchemaRoot rootI) throws IOException {
+            List<FieldVector> vectors = rootI.getFieldVectors();
+            if (vectors.size() != names.length) {
+                throw new IOException("ParquetSink: batch has " + vectors.size() + " columns, expected " + names.length);
+            }
+            for (int i = 0; i < names.length; ++i) {
+                writers[i] = createWriter(vectors.get(i));
+            }
+        }
+
+        public WriteContext init(Configuration confI) {
+            return new WriteContext(parquetSchema, new HashMap<>());
+        }
+
+        public void prepareForWrite(RecordConsumer consumerI) {
+            consumer = consumerI;
+        }
+
+        public void write(Integer rowI) {
+            int row = rowI;
+            consumer.startMessage();
+            for (int i = 0; i < writers.length; ++i) {
+                if (!writers[i].isNull(row)) {
+                    // Null values are simply left out
+                    consumer.startField(names[i], i);
+                    writers[i].write(consumer, row);
+                    consumer.endField(names[i], i);
+                }
+            }
+            consumer.endMessage();
+        }
+
+    }
+
+    //
+    // Writes values from one vector
+    //
+    private static abstract class ValueWriter {
+        final FieldVector vec;
+        ValueWriter(FieldVector vecI) {
+            vec = vecI;
+        }
+        boolean isNull(int indexI) {
+            return vec.isNull(indexI);
+        }
+        abstract void write(RecordConsumer consumerI, int indexI);
+    }
+
+    private static ValueWriter createWriter(FieldVector vecI) throws IOException {
+        if (vecI instanceof FixedSizeListVector) {
+            FixedSizeListVector listVec = (FixedSizeListVector)vecI;
+            int listSize = listVec.getListSize();
+            return new ListWriter(vecI, createWriter(listVec.getDataVector())) {
+                int start(int indexI) { return indexI * listSize; }
+                int end(int indexI) { return (indexI + 1) * listSize; }
+            };
+        } else if (vecI instanceof ListVector) {
+            ListVector listVec = (ListVector)vecI;
+            return new ListWriter(vecI, createWriter(listVec.getDataVector())) {
+                int start(int indexI) { return listVec.getElementStartIndex(indexI); }
+                int end(int indexI) { return listVec.getElementEndIndex(indexI); }
+            };
+        } else if (vecI instanceof TimeStampVector) {
+            TimeStampVector tsVec = (TimeStampVector)vecI;
+            boolean bSeconds = (((ArrowType.Timestamp)vecI.getField().getType()).getUnit() == TimeUnit.SECOND);
+            return new ValueWriter(vecI) {
+                void write(RecordConsumer consumerI, int indexI) {
+                    long value = tsVec.get(indexI);
+                    consumerI.addLong(bSeconds ? (value * 1000L) : value);
+                }
+            };
+        } else if (vecI instanceof BaseIntVector) {
+            BaseIntVector intVec = (BaseIntVector)vecI;
+            if (((ArrowType.Int)vecI.getField().getType()).getBitWidth() == 64) {
+                return new ValueWriter(vecI) {
+                    void write(RecordConsumer consumerI, int indexI) {
+                        consumerI.addLong(intVec.getValueAsLong(indexI));
+                    }
+                };
+            }
+            return new ValueWriter(vecI) {
+                void write(RecordConsumer consumerI, int indexI) {
+                    consumerI.addInteger((int)intVec.getValueAsLong(indexI));
+                }
+            };
+        } else if (vecI instanceof Float4Vector) {
+            Float4Vector floatVec = (Float4Vector)vecI;
+            return new ValueWriter(vecI) {
+                void write(RecordConsumer consumerI, int indexI) {
+                    consumerI.addFloat(floatVec.get(indexI));
+                }
+            };
+        } else if (vecI instanceof Float8Vector) {
+            Float8Vector doubleVec = (Float8Vector)vecI;
+            return new ValueWriter(vecI) {
+                void write(RecordConsumer consumerI, int indexI) {
+                    consumerI.addDouble(doubleVec.get(indexI));
+                }
+            };
+        } else if (vecI instanceof BitVector) {
+            BitVector bitVec = (BitVector)vecI;
+            return new ValueWriter(vecI) {
+                void write(RecordConsumer consumerI, int indexI) {
+                    consumerI.addBoolean(bitVec.get(indexI) != 0);
+                }
+            };
+        } else if (vecI instanceof VarCharVector) {
+            VarCharVector strVec = (VarCharVector)vecI;
+            return new ValueWriter(vecI) {
+                void write(RecordConsumer consumerI, int indexI) {
+                    consumerI.addBinary(Binary.fromConstantByteArray(strVec.get(indexI)));
+                }
+            };
+        } else if (vecI instanceof VarBinaryVector) {
+            VarBinaryVector binVec = (VarBinaryVector)vecI;
+            return new ValueWriter(vecI) {
+                void write(RecordConsumer consumerI, int indexI) {
+                    consumerI.addBinary(Binary.fromConstantByteArray(binVec.get(indexI)));
+                }
+            };
+        }
+        throw new IOException("ParquetSink: column \"" + vecI.getField().getName() + "\" has unsupported vector type " + vecI.getClass().getSimpleName());
+    }
+
+    //
+    // Writes a list as the LIST group: <list> { repeated group list { optional element } }
+    //
+    private static abstract class ListWriter extends ValueWriter {
+        final ValueWriter elementWriter;
+        ListWriter(FieldVector vecI, ValueWriter elementWriterI) {
+            super(vecI);
+            elementWriter = elementWriterI;
+        }
+        abstract int start(int indexI);
+        abstract int end(int indexI);
+        void write(RecordConsumer consumerI, int indexI) {
+            int start = start(indexI);
+            int end = end(indexI);
+            consumerI.startGroup();
+            if (end > start) {
+                consumerI.startField("list", 0);
+                for (int i = start; i < end; ++i) {
+                    consumerI.startGroup();
+                    if (!elementWriter.isNull(i)) {
+                        consumerI.startField("element", 0);
+                        elementWriter.write(consumerI, i);
+                        consumerI.endField("element", 0);
+                    }
+                    consumerI.endGroup();
+                }
+                consumerI.endField("list", 0);
+            }
+            consumerI.endGroup();
+        }
+    }
+
+    //
+    // Parquet output to a local file, without going through the Hadoop file system layer
+    //
+    private static class LocalOutputFile implements OutputFile {
+        private final File file;
+        LocalOutputFile(File fileI) {
+            file = fileI;
+        }
+        public PositionOutputStream create(long blockSizeHintI) throws IOException {
+            if (file.exists()) {
+                throw new IOException("ParquetSink: file " + file + " already exists");
+            }
+            return createOrOverwrite(blockSizeHintI);
+        }
+        public PositionOutputStream createOrOverwrite(long blockSizeHintI) throws IOException {
+            BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+            return new PositionOutputStream() {
+                private long pos = 0;
+                public long getPos() {
+                    return pos;
+                }
+                public void write(int bI) throws IOException {
+                    out.write(bI);
+                    ++pos;
+                }
+                public void write(byte[] bI, int offI, int lenI) throws IOException {
+                    out.write(bI, offI, lenI);
+                    pos += lenI;
+                }
+                public void flush() throws IOException {
+                    out.flush();
+                }
+                public void close() throws IOException {
+                    out.close();
+                }
+            };
+        }
+        public boolean supportsBlockSize() {
+            return false;
+        }
+        public long defaultBlockSize() {
+            return 0;
+        }
+    }
+
+}
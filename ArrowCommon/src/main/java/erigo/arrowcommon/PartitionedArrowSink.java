@@ -0,0 +1,54 @@
+/*
+Copyright 2020 Erigo
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package erigo.arrowcommon;
+
+import java.io.IOException;
+
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.vector.VectorSchemaRoot;
+
+//
+// Writes each batch into the time-partitioned layout of the given PartitionedArrowWriter, which
+// this sink then owns: it is closed (finishing the open part files) when the sink is closed.
+//
+public class PartitionedArrowSink extends RootBatchSink {
+
+    private final PartitionedArrowWriter writer;
+
+    public PartitionedArrowSink(BufferAllocator allocatorI, PartitionedArrowWriter writerI) {
+        super(allocatorI);
+        writer = writerI;
+    }
+
+    public String getName() {
+        return "out";
+    }
+
+    protected void writeRoot(VectorSchemaRoot rootI) throws IOException {
+        writer.write(rootI);
+    }
+
+    @Override
+    public String getStats() {
+        return String.format("%d part files finished, %d rows written under %s", writer.filesWritten, writer.rowsWritten, writer.getSourceDir());
+    }
+
+    public void close() throws IOException {
+        writer.close();
+    }
+
+}
@@ -0,0 +1,283 @@
+/*
+Copyright 2020 Erigo
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package erigo.arrowcommon;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.vector.FieldVector;
+import org.apache.arrow.vector.VectorSchemaRoot;
+
+//
+// Write record batches into a time-partitioned folder layout:
+//
+//     <root>/<source>/date=YYYY-MM-DD/hour=HH/part-NNNNN.arrow
+//
+// The partition (UTC date and hour) of each row comes from its event time, taken from a numeric
+// time column (e.g. ct_timestamp, in seconds, or the OBD TIMESTAMP column, in milliseconds). A
+// batch whose rows span several hours is split at the hour boundaries.
+//
+// Each partition has at most one open file at a time; it receives batches until it reaches the
+// roll size, at which point it is closed and the next part file is started. Files are written
+// with a ".tmp" suffix and renamed when they are closed, so readers which look for "*.arrow"
+// (e.g. ArrowScan) only ever see complete files. Each file carries per-batch ColumnStats in its
+// footer, the same as the unpartitioned output.
+//
+// When a file is closed, a line describing it (name, rows, batches, bytes and event time range)
+// is appended to the partition's "_manifest.tsv". A time-range query or a retention job can then
+// pick (or delete) whole date/hour folders, and use the manifests rather than listing and opening
+// every file. Each of the file's batches is also added to the source's TimeIndex,
+// "<root>/<source>/_time_index.tsv", which a reader can search for any time range.
+//
+public class PartitionedArrowWriter implements AutoCloseable {
+
+    public static final String MANIFEST_NAME = "_manifest.tsv";
+
+    private static final long MILLIS_PER_HOUR = 3600000L;
+
+    private final BufferAllocator allocator;
+    private final File sourceDir;
+    private final String timeColumn;
+    private final double timeToMillis;
+    private final long rollSize;
+    private final int maxOpenFiles;
+
+    // Open part files, keyed by hour (milliseconds since the epoch / 1 hour); in least recently written order
+    private final LinkedHashMap<Long,PartFile> openFiles = new LinkedHashMap<>(16, 0.75f, true);
+
+    // Batches of the completed files, for time-range lookups
+    private final TimeIndex.Writer timeIndex;
+
+    // Statistics
+    public long filesWritten = 0;
+    public long batchesWritten = 0;
+    public long rowsWritten = 0;
+
+    //
+    // rootDirI:      root of the output layout
+    // sourceNameI:   name of the source; the first level of folders under the root
+    // timeColumnI:   name of the numeric event time column
+    // timeToMillisI: factor which converts the time column to milliseconds since the epoch (e.g. 1000 for seconds)
+    // rollSizeI:     a part file is closed once it holds at least this many bytes
+    // maxOpenFilesI: most partitions with an open file at once; writing to another partition closes the
+    //                least recently written one (data arriving late for an hour goes into a new part file)
+    //
+    public PartitionedArrowWriter(BufferAllocator allocatorI, String rootDirI, String sourceNameI, String timeColumnI, double timeToMillisI, long rollSizeI, int maxOpenFilesI) throws IOException {
+        if (rollSizeI < 1) {
+            throw new IllegalArgumentException("PartitionedArrowWriter: roll size must be greater than 0");
+        }
+        if (maxOpenFilesI < 1) {
+            throw new IllegalArgumentException("PartitionedArrowWriter: must allow at least one open file");
+        }
+        allocator = allocatorI;
+        sourceDir = new File(rootDirI, sourceNameI);
+        timeColumn = timeColumnI;
+        timeToMillis = timeToMillisI;
+        rollSize = rollSizeI;
+        maxOpenFiles = maxOpenFilesI;
+        if (!sourceDir.isDirectory() && !sourceDir.mkdirs()) {
+            throw new IOException("PartitionedArrowWriter: unable to create folder " + sourceDir);
+        }
+        timeIndex = new TimeIndex.Writer(new File(sourceDir, TimeIndex.INDEX_NAME), timeColumn, true);
+    }
+
+    public File getSourceDir() {
+        return sourceDir;
+    }
+
+    //
+    // Write the rows of the given batch to their partitions
+    //
+    public void write(VectorSchemaRoot rootI) throws IOException {
+        FieldVector timeVec = rootI.getVector(timeColumn);
+        if (timeVec == null) {
+            throw new IOException("PartitionedArrowWriter: no time column \"" + timeColumn + "\" in batch");
+        }
+        int rowCount = rootI.getRowCount();
+        // Each run of consecutive rows in the same hour is written as one batch; rows with no time
+        // stay with the run they are in
+        int runStart = 0;
+        long runHour = Long.MIN_VALUE;
+        for (int i = 0; i < rowCount; ++i) {
+            if (timeVec.isNull(i)) {
+                continue;
+            }
+            long hour = Math.floorDiv(toMillis(timeVec, i), MILLIS_PER_HOUR);
+            if (runHour == Long.MIN_VALUE) {
+                runHour = hour;
+            } else if (hour != runHour) {
+                writeRun(rootI, runStart, i - runStart, runHour);
+                runStart = i;
+                runHour = hour;
+            }
+        }
+        if (runHour == Long.MIN_VALUE) {
+            if (rowCount > 0) {
+                System.err.println("PartitionedArrowWriter: batch has no event times; " + rowCount + " rows not written");
+            }
+            return;
+        }
+        writeRun(rootI, runStart, rowCount - runStart, runHour);
+    }
+
+    //
+    // Close all open part files
+    //
+    public void close() throws IOException {
+        IOException error = null;
+        for (PartFile partFile : openFiles.values()) {
+            try {
+                partFile.close();
+            } catch (IOException ioe) {
+                error = ioe;
+            }
+        }
+        openFiles.clear();
+        timeIndex.close();
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    //
+    // Write rows [startI, startI+lengthI) of the given root, which are all in the given hour
+    //
+    private void writeRun(VectorSchemaRoot rootI, int startI, int lengthI, long hourI) throws IOException {
+        PartFile partFile = openFiles.get(hourI);
+        if (partFile == null) {
+            if (openFiles.size() >= maxOpenFiles) {
+                Iterator<PartFile> iter = openFiles.values().iterator();
+                PartFile oldest = iter.next();
+                iter.remove();
+                oldest.close();
+            }
+            partFile = new PartFile(hourI, rootI);
+            openFiles.put(hourI, partFile);
+        }
+        if ( (startI == 0) && (lengthI == rootI.getRowCount()) ) {
+            partFile.write(rootI);
+        } else {
+            try (VectorSchemaRoot slice = rootI.slice(startI, lengthI)) {
+                partFile.write(slice);
+            }
+        }
+        if (partFile.file.bytesWritten() >= rollSize) {
+            openFiles.remove(hourI);
+            partFile.close();
+        }
+    }
+
+    private long toMillis(FieldVector vecI, int indexI) {
+        return (long)Math.floor(ColumnStats.numericValue(vecI, indexI) * timeToMillis);
+    }
+
+    //
+    // Folder for the given hour: <source>/date=YYYY-MM-DD/hour=HH
+    //
+    private File partitionDir(long hourI) {
+        ZonedDateTime dt = Instant.ofEpochMilli(hourI * MILLIS_PER_HOUR).atZone(ZoneOffset.UTC);
+        String dateStr = String.format("date=%04d-%02d-%02d", dt.getYear(), dt.getMonthValue(), dt.getDayOfMonth());
+        String hourStr = String.format("hour=%02d", dt.getHour());
+        return new File(new File(sourceDir, dateStr), hourStr);
+    }
+
+    //
+    // One part file being written
+    //
+    private class PartFile {
+
+        final File dir;
+        final ArrowPartFile file;
+        double minTime = Double.NaN;
+        double maxTime = Double.NaN;
+        // Name of the file relative to the source folder, with "/" separators, and its batches, for the time index
+        final String indexName;
+        final List<TimeIndex.Entry> indexEntries = new ArrayList<>();
+
+        PartFile(long hourI, VectorSchemaRoot templateI) throws IOException {
+            dir = partitionDir(hourI);
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("PartitionedArrowWriter: unable to create folder " + dir);
+            }
+            // Next unused part number in this partition (there may be files from an earlier run or from late data)
+            int partNum = 0;
+            File finalFile;
+            do {
+                ++partNum;
+                finalFile = new File(dir, String.format("part-%05d.arrow", partNum));
+            } while (finalFile.exists() || new File(dir, finalFile.getName() + ".tmp").exists());
+            indexName = sourceDir.toPath().relativize(finalFile.toPath()).toString().replace(File.separatorChar, '/');
+            file = new ArrowPartFile(allocator, finalFile, templateI.getSchema(), false);
+        }
+
+        //
+        // Append the given rows as one record batch and note their time range for the index
+        //
+        void write(VectorSchemaRoot rootI) throws IOException {
+            int batchIndex = file.numBatches;
+            long firstRow = file.numRows;
+            int rowCount = rootI.getRowCount();
+            ColumnStats timeStats = ColumnStats.compute(rootI.getVector(timeColumn), rowCount);
+            file.write(rootI);
+            double batchMin = Double.NaN;
+            double batchMax = Double.NaN;
+            if ( (timeStats != null) && !timeStats.allNull() ) {
+                batchMin = timeStats.min;
+                batchMax = timeStats.max;
+                minTime = Double.isNaN(minTime) ? batchMin : Math.min(minTime, batchMin);
+                maxTime = Double.isNaN(maxTime) ? batchMax : Math.max(maxTime, batchMax);
+            }
+            indexEntries.add(new TimeIndex.Entry(indexName, batchIndex, firstRow, rowCount, batchMin, batchMax));
+            ++batchesWritten;
+            rowsWritten += rowCount;
+        }
+
+        //
+        // Finish the file, give it its final name and add it to the partition manifest and the time index
+        //
+        void close() throws IOException {
+            file.close();
+            long numBytes = file.getFile().length();
+            ++filesWritten;
+            File manifest = new File(dir, MANIFEST_NAME);
+            boolean bNewManifest = !manifest.exists();
+            try (PrintWriter pw = new PrintWriter(new FileWriter(manifest, true))) {
+                if (bNewManifest) {
+                    pw.println("file\trows\tbatches\tbytes\tmin_" + timeColumn + "\tmax_" + timeColumn);
+                }
+                pw.println(file.getFile().getName() + "\t" + file.numRows + "\t" + file.numBatches + "\t" + numBytes + "\t" + TimeIndex.formatTime(minTime) + "\t" + TimeIndex.formatTime(maxTime));
+            }
+            // The batches are only added to the index once the file has its final name
+            for (TimeIndex.Entry entry : indexEntries) {
+                timeIndex.add(entry);
+            }
+        }
+
+    }
+
+}
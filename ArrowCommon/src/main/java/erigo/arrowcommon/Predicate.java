@@ -0,0 +1,89 @@
+/*
+Copyright 2020 Erigo
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package erigo.arrowcommon;
+
+import java.util.Set;
+import java.util.function.Function;
+
+import org.apache.arrow.memory.ArrowBuf;
+import org.apache.arrow.vector.VectorSchemaRoot;
+
+//
+// Base class for the simple predicate tree used by ArrowScanner.
+//
+// A predicate is used twice during a scan:
+// 1. mightMatch() is checked against the footer statistics of a batch; if it returns
+//    false, the batch is skipped without reading any of its data.
+// 2. evaluate() is run over the loaded columns of a batch and produces a selection
+//    bitmap: bit (i % 64) of word (i / 64) is set if row i satisfies the predicate.
+//
+public abstract class Predicate {
+
+    //
+    // Add the names of the columns this predicate reads to the given set
+    //
+    public abstract void addColumns(Set<String> columnsI);
+
+    //
+    // Could any row in a batch with the given column statistics satisfy this predicate?
+    // The lookup function returns null for columns which have no statistics; in that
+    // case the predicate must answer true.
+    //
+    public abstract boolean mightMatch(Function<String,ColumnStats> statsLookupI);
+
+    //
+    // Evaluate this predicate over every row in the given root, overwriting the
+    // first numSelectionWords(rowCount) words of selectionI.
+    //
+    public abstract void evaluate(VectorSchemaRoot rootI, long[] selectionI);
+
+    //
+    // Number of 64-bit words needed to hold a selection bitmap for the given row count
+    //
+    public static int numSelectionWords(int rowCountI) {
+        return (rowCountI + 63) >>> 6;
+    }
+
+    //
+    // Mask covering the valid bits of the given word for the given row count
+    //
+    static long tailMask(int wordIndexI, int rowCountI) {
+        int remaining = rowCountI - (wordIndexI << 6);
+        return (remaining >= 64) ? -1L : ((1L << remaining) - 1);
+    }
+
+    //
+    // Fetch 64 validity bits starting at row (wordIndexI * 64).
+    // An empty validity buffer means that no entries are null.
+    //
+    static long validityWord(ArrowBuf validityI, int wordIndexI) {
+        long capacity = validityI.capacity();
+        if (capacity == 0) {
+            return -1L;
+        }
+        long byteIndex = ((long)wordIndexI) << 3;
+        if (byteIndex + 8 <= capacity) {
+            return validityI.getLong(byteIndex);
+        }
+        long word = 0;
+        for (long i = byteIndex; i < capacity; ++i) {
+            word |= (validityI.getByte(i) & 0xFFL) << ((i - byteIndex) << 3);
+        }
+        return word;
+    }
+
+}
@@ -0,0 +1,149 @@
+/*
+Copyright 2020 Erigo
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package erigo.arrowcommon;
+
+import java.util.Set;
+import java.util.function.Function;
+
+import org.apache.arrow.memory.ArrowBuf;
+import org.apache.arrow.vector.BigIntVector;
+import org.apache.arrow.vector.FieldVector;
+import org.apache.arrow.vector.Float4Vector;
+import org.apache.arrow.vector.Float8Vector;
+import org.apache.arrow.vector.IntVector;
+import org.apache.arrow.vector.TimeStampVector;
+import org.apache.arrow.vector.VectorSchemaRoot;
+
+//
+// Range predicate on a numeric column: lo <= value <= hi.
+// Null entries never match.
+//
+// Use Double.NEGATIVE_INFINITY or Double.POSITIVE_INFINITY for an open-ended range.
+// Exclusive bounds are converted to inclusive bounds with Math.nextUp/nextDown so the
+// inner evaluation loops only need one kind of comparison.
+//
+public class RangePredicate extends Predicate {
+
+    public final String column;
+    public final double lo;
+    public final double hi;
+
+    public RangePredicate(String columnI, double loI, double hiI) {
+        this(columnI, loI, true, hiI, true);
+    }
+
+    public RangePredicate(String columnI, double loI, boolean bLoInclusiveI, double hiI, boolean bHiInclusiveI) {
+        column = columnI;
+        lo = bLoInclusiveI ? loI : Math.nextUp(loI);
+        hi = bHiInclusiveI ? hiI : Math.nextDown(hiI);
+    }
+
+    public void addColumns(Set<String> columnsI) {
+        columnsI.add(column);
+    }
+
+    public boolean mightMatch(Function<String,ColumnStats> statsLookupI) {
+        ColumnStats stats = statsLookupI.apply(column);
+        if ( (stats == null) || (!stats.bNumeric) ) {
+            return true;
+        }
+        if (stats.allNull()) {
+            return false;
+        }
+        return (stats.max >= lo) && (stats.min <= hi);
+    }
+
+    public void evaluate(VectorSchemaRoot rootI, long[] selectionI) {
+        FieldVector vec = rootI.getVector(column);
+        if (vec == null) {
+            throw new IllegalArgumentException("RangePredicate: column " + column + " was not loaded");
+        }
+        int rowCount = rootI.getRowCount();
+        int numWords = numSelectionWords(rowCount);
+        ArrowBuf validity = vec.getValidityBuffer();
+        // Fast paths read straight from the value buffer; anything else goes through
+        // the generic (slower) accessor.
+        if (vec instanceof Float4Vector) {
+            ArrowBuf data = vec.getDataBuffer();
+            for (int w = 0; w < numWords; ++w) {
+                int base = w << 6;
+                int n = Math.min(64, rowCount - base);
+                long bits = 0;
+                for (int j = 0; j < n; ++j) {
+                    double v = data.getFloat(((long)(base + j)) << 2);
+                    bits |= ((v >= lo) & (v <= hi) ? 1L : 0L) << j;
+                }
+                selectionI[w] = bits & validityWord(validity, w);
+            }
+        } else if (vec instanceof Float8Vector) {
+            ArrowBuf data = vec.getDataBuffer();
+            for (int w = 0; w < numWords; ++w) {
+                int base = w << 6;
+                int n = Math.min(64, rowCount - base);
+                long bits = 0;
+                for (int j = 0; j < n; ++j) {
+                    double v = data.getDouble(((long)(base + j)) << 3);
+                    bits |= ((v >= lo) & (v <= hi) ? 1L : 0L) << j;
+                }
+                selectionI[w] = bits & validityWord(validity, w);
+            }
+        } else if (vec instanceof IntVector) {
+            ArrowBuf data = vec.getDataBuffer();
+            for (int w = 0; w < numWords; ++w) {
+                int base = w << 6;
+                int n = Math.min(64, rowCount - base);
+                long bits = 0;
+                for (int j = 0; j < n; ++j) {
+                    int v = data.getInt(((long)(base + j)) << 2);
+                    bits |= ((v >= lo) & (v <= hi) ? 1L : 0L) << j;
+                }
+                selectionI[w] = bits & validityWord(validity, w);
+            }
+        } else if ( (vec instanceof BigIntVector) || (vec instanceof TimeStampVector) ) {
+            ArrowBuf data = vec.getDataBuffer();
+            for (int w = 0; w < numWords; ++w) {
+                int base = w << 6;
+                int n = Math.min(64, rowCount - base);
+                long bits = 0;
+                for (int j = 0; j < n; ++j) {
+                    long v = data.getLong(((long)(base + j)) << 3);
+                    bits |= ((v >= lo) & (v <= hi) ? 1L : 0L) << j;
+                }
+                selectionI[w] = bits & validityWord(validity, w);
+            }
+        } else {
+            for (int w = 0; w < numWords; ++w) {
+                int base = w << 6;
+                int n = Math.min(64, rowCount - base);
+                long bits = 0;
+                for (int j = 0; j < n; ++j) {
+                    if (vec.isNull(base + j)) {
+                        continue;
+                    }
+                    double v = ColumnStats.numericValue(vec, base + j);
+                    bits |= ((v >= lo) & (v <= hi) ? 1L : 0L) << j;
+                }
+                selectionI[w] = bits;
+            }
+        }
+    }
+
+    public String toString() {
+        return column + " in [" + lo + "," + hi + "]";
+    }
+
+}
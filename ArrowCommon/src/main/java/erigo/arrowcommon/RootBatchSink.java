@@ -0,0 +1,53 @@
+/*
+Copyright 2020 Erigo
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package erigo.arrowcommon;
+
+import java.io.IOException;
+
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.vector.VectorSchemaRoot;
+import org.apache.arrow.vector.ipc.ArrowStreamReader;
+
+//
+// Base class for sinks which write out the batch's rows rather than its serialized bytes (e.g. the
+// time-partitioned layout or Parquet). Each IpcBatch is read back into a VectorSchemaRoot from the
+// given allocator on the sink's own thread, so, as for the other sinks, the ingest thread only
+// pays for the one serialization.
+//
+public abstract class RootBatchSink implements BatchSink {
+
+    protected final BufferAllocator allocator;
+
+    protected RootBatchSink(BufferAllocator allocatorI) {
+        allocator = allocatorI;
+    }
+
+    public void write(IpcBatch batchI) throws IOException {
+        try (ArrowStreamReader reader = new ArrowStreamReader(new ShmRingReader.ByteBufferChannel(batchI.streamBytes()), allocator)) {
+            VectorSchemaRoot root = reader.getVectorSchemaRoot();
+            while (reader.loadNextBatch()) {
+                writeRoot(root);
+            }
+        }
+    }
+
+    //
+    // Write the rows of one batch; the root is only good until this returns
+    //
+    protected abstract void writeRoot(VectorSchemaRoot rootI) throws IOException;
+
+}
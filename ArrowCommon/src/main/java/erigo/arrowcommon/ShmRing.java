@@ -0,0 +1,91 @@
+/*
+Copyright 2020 Erigo
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package erigo.arrowcommon;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+//
+// Layout of the single-producer/multi-consumer shared memory ring used by ShmRingWriter
+// and ShmRingReader; this is the replacement for the Plasma object store.
+//
+// The ring is a memory-mapped file (normally under /dev/shm, so it never touches disk).
+// All values are stored in native byte order. The file holds a fixed size header followed
+// by the data region:
+//
+//     offset  size  contents
+//     0       8     MAGIC
+//     8       4     VERSION
+//     16      8     capacity of the data region, in bytes (a multiple of 8)
+//     24      8     epoch; set to a new value each time a writer (re)initializes the ring,
+//                   0 while it is being initialized
+//     32      8     write position: logical position just past the last committed record
+//     40      8     reclaim position: logical positions below this may have been overwritten
+//     48      8     sequence number of the next record
+//     56      8     1 once the writer has closed the ring
+//     128     ...   data region
+//
+// Positions are "logical": they increase forever and map to data region offset
+// (position % capacity). Each record starts on an 8-byte boundary:
+//
+//     0       4     record length (header + id + padding + payload + padding)
+//     4       4     record type (REC_MESSAGE or REC_WRAP)
+//     8       8     sequence number
+//     16      4     id length
+//     20      4     payload length
+//     24      ...   id bytes, padded to 8; then the payload (an Arrow IPC stream)
+//
+// A record never wraps around the end of the data region; when the next record doesn't fit,
+// the writer leaves a REC_WRAP marker (or, when there's less than a header's worth of room,
+// nothing at all) and continues at the start of the region.
+//
+// The writer never waits for readers. Before it overwrites any part of the data region it
+// advances the reclaim position; a reader checks the reclaim position after it has read a
+// record, and if the record's start is below it, the record may have been overwritten while
+// it was being read (the reader has been lapped). This is the same scheme as a seqlock.
+//
+class ShmRing {
+
+    static final long MAGIC = 0x41524f5753484d31L;  // "AROWSHM1"
+    static final int VERSION = 1;
+
+    static final int OFF_MAGIC = 0;
+    static final int OFF_VERSION = 8;
+    static final int OFF_CAPACITY = 16;
+    static final int OFF_EPOCH = 24;
+    static final int OFF_WRITE_POS = 32;
+    static final int OFF_RECLAIM_POS = 40;
+    static final int OFF_NEXT_SEQ = 48;
+    static final int OFF_CLOSED = 56;
+    static final int HEADER_SIZE = 128;
+
+    static final int REC_HEADER_SIZE = 24;
+    static final int REC_MESSAGE = 1;
+    static final int REC_WRAP = 2;
+
+    // Default data region size
+    static final long DEFAULT_CAPACITY = 64L * 1024L * 1024L;
+
+    // Atomic access to the long fields of the header and the data region
+    static final VarHandle LONG_HANDLE = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    static long align8(long valueI) {
+        return (valueI + 7L) & ~7L;
+    }
+
+}
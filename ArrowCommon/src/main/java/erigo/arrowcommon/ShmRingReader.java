@@ -0,0 +1,317 @@
+/*
+Copyright 2020 Erigo
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package erigo.arrowcommon;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.vector.ipc.ArrowStreamReader;
+
+//
+// Consumer side of the shared memory ring (see ShmRing for the layout). Any number of
+// readers, in any number of processes, may follow the same ring; each keeps its own cursor
+// and none of them can hold up the writer.
+//
+// poll() returns the next record as a Message whose payload is a read-only view of the
+// mapped region (no copy). Message.openStream() reads its record batches into Arrow buffers of
+// their own (a copy); Message.openZeroCopyStream() reads them in place. Because the writer may overwrite a record once the reader has
+// fallen a full ring behind, check Message.isValid() after you are done with the payload
+// (or anything derived from it without a copy); if it returns false, discard what was read.
+// A reader which has been lapped resynchronizes to the newest data; the number of records
+// it missed is counted in messagesLost.
+//
+public class ShmRingReader implements AutoCloseable {
+
+    private final String path;
+    private RandomAccessFile raf = null;
+    private MappedByteBuffer map = null;
+    private ByteBuffer data = null;
+    private long capacity = 0;
+    private long epoch = 0;
+
+    // Logical position of the next record to read
+    private long readPos = 0;
+    // Sequence number we expect the next record to have; -1 if unknown
+    private long expectedSeq = 0;
+
+    // Statistics
+    public long messagesRead = 0;
+    public long messagesLost = 0;
+    public long overruns = 0;
+
+    //
+    // Open the ring at the given path; by default the reader starts with the oldest record
+    // still held in the ring. Call seekToEnd() to only see new records.
+    //
+    public ShmRingReader(String pathI) throws IOException {
+        path = pathI;
+        if (!remap()) {
+            throw new IOException("ShmRingReader: " + pathI + " is not an initialized shared memory ring");
+        }
+    }
+
+    //
+    // (Re)map the ring file and position the cursor at the oldest record; returns false if the
+    // ring isn't ready yet
+    //
+    private boolean remap() throws IOException {
+        if (raf != null) {
+            raf.close();
+        }
+        raf = new RandomAccessFile(path, "r");
+        if (raf.length() < ShmRing.HEADER_SIZE) {
+            return false;
+        }
+        MappedByteBuffer header = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, ShmRing.HEADER_SIZE);
+        header.order(ByteOrder.nativeOrder());
+        if ( (header.getLong(ShmRing.OFF_MAGIC) != ShmRing.MAGIC) || (header.getInt(ShmRing.OFF_VERSION) != ShmRing.VERSION) ) {
+            return false;
+        }
+        long cap = header.getLong(ShmRing.OFF_CAPACITY);
+        if (raf.length() < (ShmRing.HEADER_SIZE + cap)) {
+            return false;
+        }
+        map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, ShmRing.HEADER_SIZE + cap);
+        map.order(ByteOrder.nativeOrder());
+        data = map.duplicate().position(ShmRing.HEADER_SIZE).slice().order(ByteOrder.nativeOrder());
+        capacity = cap;
+        epoch = (long)ShmRing.LONG_HANDLE.getAcquire(map, ShmRing.OFF_EPOCH);
+        if (epoch == 0) {
+            return false;
+        }
+        // If nothing has been overwritten yet, start with the first record; otherwise record
+        // boundaries in the older data aren't known, so start with the next new record
+        long writePos = (long)ShmRing.LONG_HANDLE.getAcquire(map, ShmRing.OFF_WRITE_POS);
+        long reclaimPos = (long)ShmRing.LONG_HANDLE.getAcquire(map, ShmRing.OFF_RECLAIM_POS);
+        readPos = (reclaimPos == 0) ? 0 : writePos;
+        expectedSeq = (readPos == 0) ? 0 : -1;
+        return true;
+    }
+
+    //
+    // Skip all records currently in the ring
+    //
+    public void seekToEnd() {
+        readPos = (long)ShmRing.LONG_HANDLE.getAcquire(map, ShmRing.OFF_WRITE_POS);
+        expectedSeq = -1;
+    }
+
+    //
+    // Has the writer closed the ring and have all of its records been read?
+    //
+    public boolean isFinished() {
+        long closed = (long)ShmRing.LONG_HANDLE.getAcquire(map, ShmRing.OFF_CLOSED);
+        long writePos = (long)ShmRing.LONG_HANDLE.getAcquire(map, ShmRing.OFF_WRITE_POS);
+        return (closed != 0) && (readPos >= writePos);
+    }
+
+    //
+    // Return the next record, or null if there is no new record
+    //
+    public Message poll() throws IOException {
+        while (true) {
+            long curEpoch = (long)ShmRing.LONG_HANDLE.getAcquire(map, ShmRing.OFF_EPOCH);
+            if (curEpoch != epoch) {
+                // A new writer has taken over the ring
+                if ( (curEpoch == 0) || !remap() ) {
+                    return null;
+                }
+            }
+            long writePos = (long)ShmRing.LONG_HANDLE.getAcquire(map, ShmRing.OFF_WRITE_POS);
+            if (readPos >= writePos) {
+                return null;
+            }
+            if (isOverrun(readPos)) {
+                resync(writePos);
+                continue;
+            }
+            int off = (int)(readPos % capacity);
+            if ((capacity - off) < ShmRing.REC_HEADER_SIZE) {
+                // Implicit wrap: no room for a record header at the end of the region
+                readPos += capacity - off;
+                continue;
+            }
+            int recLen = data.getInt(off);
+            int recType = data.getInt(off + 4);
+            long seq = data.getLong(off + 8);
+            int idLen = data.getInt(off + 16);
+            int payloadLen = data.getInt(off + 20);
+            // Make sure the header we just read wasn't being overwritten
+            if (isOverrun(readPos)) {
+                resync(writePos);
+                continue;
+            }
+            if (recType == ShmRing.REC_WRAP) {
+                readPos += capacity - off;
+                continue;
+            }
+            int payloadOffset = (int)ShmRing.align8(ShmRing.REC_HEADER_SIZE + idLen);
+            if ( (recType != ShmRing.REC_MESSAGE) || (recLen < payloadOffset) || ((off + (long)recLen) > capacity) || (idLen < 0) || (payloadLen < 0) || ((payloadOffset + (long)payloadLen) > recLen) ) {
+                throw new IOException("ShmRingReader: corrupt record at position " + readPos);
+            }
+            if ( (expectedSeq >= 0) && (seq > expectedSeq) ) {
+                messagesLost += seq - expectedSeq;
+            }
+            byte[] id = new byte[idLen];
+            ByteBuffer idBuf = data.duplicate();
+            idBuf.position(off + ShmRing.REC_HEADER_SIZE);
+            idBuf.get(id);
+            ByteBuffer payload = data.duplicate();
+            payload.position(off + payloadOffset).limit(off + payloadOffset + payloadLen);
+            Message msg = new Message(readPos, seq, id, payload.slice().asReadOnlyBuffer());
+            if (!msg.isValid()) {
+                resync(writePos);
+                continue;
+            }
+            readPos += recLen;
+            expectedSeq = seq + 1;
+            ++messagesRead;
+            return msg;
+        }
+    }
+
+    //
+    // Wait up to timeoutMillisI for the next record; returns null on timeout or once the writer
+    // has closed the ring and everything has been read
+    //
+    public Message poll(long timeoutMillisI) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillisI;
+        while (true) {
+            Message msg = poll();
+            if (msg != null) {
+                return msg;
+            }
+            if ( isFinished() || (System.currentTimeMillis() >= deadline) ) {
+                return null;
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    //
+    // Has the writer reclaimed (and so possibly overwritten) the given position?
+    //
+    private boolean isOverrun(long posI) {
+        VarHandle.loadLoadFence();
+        long reclaimPos = (long)ShmRing.LONG_HANDLE.getAcquire(map, ShmRing.OFF_RECLAIM_POS);
+        return reclaimPos > posI;
+    }
+
+    //
+    // We have been lapped by the writer; skip ahead to the newest data
+    //
+    private void resync(long writePosI) {
+        ++overruns;
+        System.err.println("ShmRingReader: reader fell behind the writer on " + path + "; skipping ahead to the newest data");
+        // Leave expectedSeq alone so the records we skip are counted in messagesLost
+        readPos = writePosI;
+    }
+
+    public void close() throws IOException {
+        if (raf != null) {
+            raf.close();
+        }
+    }
+
+    //
+    // One record read from the ring; the payload is a view of the shared memory, not a copy
+    //
+    public class Message {
+
+        public final long seq;
+        public final byte[] id;
+        public final ByteBuffer payload;
+        private final long position;
+
+        Message(long positionI, long seqI, byte[] idI, ByteBuffer payloadI) {
+            position = positionI;
+            seq = seqI;
+            id = idI;
+            payload = payloadI;
+        }
+
+        //
+        // Returns false if the writer may have overwritten this record; check this after using the payload
+        //
+        public boolean isValid() {
+            return !isOverrun(position);
+        }
+
+        //
+        // Open the payload as an Arrow IPC stream. Batches read this way are copied into Arrow
+        // buffers from the given allocator; call isValid() after loading a batch to be sure it
+        // wasn't overwritten part way through.
+        //
+        public ArrowStreamReader openStream(BufferAllocator allocatorI) {
+            return new ArrowStreamReader(new ByteBufferChannel(payload.duplicate()), allocatorI);
+        }
+
+        //
+        // Open the payload as an Arrow IPC stream without copying it: the vectors of each batch
+        // point straight into the shared memory (see ZeroCopyStreamReader). They are only good as
+        // long as the writer hasn't overwritten the record, so check isValid() after using them,
+        // and copy (e.g. with a TransferPair into memory from an allocator) anything to be kept
+        // longer than the record can be expected to stay in the ring.
+        //
+        public ZeroCopyStreamReader openZeroCopyStream(BufferAllocator allocatorI) {
+            return new ZeroCopyStreamReader(payload.duplicate(), null, allocatorI);
+        }
+
+    }
+
+    //
+    // ReadableByteChannel over a ByteBuffer
+    //
+    static class ByteBufferChannel implements ReadableByteChannel {
+
+        private final ByteBuffer buf;
+        private boolean bOpen = true;
+
+        ByteBufferChannel(ByteBuffer bufI) {
+            buf = bufI;
+        }
+
+        public int read(ByteBuffer dstI) {
+            if (!buf.hasRemaining()) {
+                return -1;
+            }
+            int len = Math.min(dstI.remaining(), buf.remaining());
+            ByteBuffer src = buf.duplicate();
+            src.limit(src.position() + len);
+            dstI.put(src);
+            buf.position(buf.position() + len);
+            return len;
+        }
+
+        public boolean isOpen() {
+            return bOpen;
+        }
+
+        public void close() {
+            bOpen = false;
+        }
+
+    }
+
+}
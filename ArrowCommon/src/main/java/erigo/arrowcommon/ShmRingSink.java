@@ -0,0 +1,51 @@
+/*
+Copyright 2020 Erigo
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package erigo.arrowcommon;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+//
+// Writes each batch (as a one-batch Arrow stream) to the shared memory ring as one record,
+// with the batch's object ID as the record ID. Several sinks (e.g. one per column group) may
+// share a ring; they take turns.
+//
+public class ShmRingSink implements BatchSink {
+
+    private final ShmRingWriter writer;
+
+    public ShmRingSink(ShmRingWriter writerI) {
+        writer = writerI;
+    }
+
+    public String getName() {
+        return "shm";
+    }
+
+    public void write(IpcBatch batchI) throws IOException {
+        synchronized (writer) {
+            writer.put(batchI.objectId.getBytes(StandardCharsets.UTF_8), batchI.streamBytes());
+        }
+    }
+
+    //
+    // The ring is owned by whoever created it (it may be shared), so it isn't closed here
+    //
+    public void close() {
+    }
+
+}
@@ -0,0 +1,324 @@
+/*
+Copyright 2020 Erigo
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package erigo.arrowcommon;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import org.apache.arrow.vector.VectorSchemaRoot;
+import org.apache.arrow.vector.ipc.ArrowStreamWriter;
+
+//
+// Producer side of the shared memory ring (see ShmRing for the layout); an alternative
+// to writing Arrow record batches to a Plasma object store which needs no native library
+// and no store process.
+//
+// Arrow IPC data is serialized straight into the mapped region: begin() returns a Message,
+// which is a WritableByteChannel that an ArrowStreamWriter can write into, and commit()
+// publishes it to readers. There is no intermediate byte array as there is with Plasma's
+// put().
+//
+// Only one writer may use a ring at a time. The writer never blocks on readers; a reader
+// which falls more than one ring's worth of data behind is detected by the reader itself.
+//
+public class ShmRingWriter implements AutoCloseable {
+
+    private final String path;
+    private final RandomAccessFile raf;
+    private final MappedByteBuffer map;
+    private final ByteBuffer data;
+    private final long capacity;
+    private final long maxRecordSize;
+
+    // Logical position where the next record will start
+    private long writePos = 0;
+    // Logical position up to which the data region has been reclaimed (cached copy of the header field)
+    private long reclaimPos = 0;
+    private long nextSeq = 0;
+    private Message current = null;
+
+    // Statistics
+    public long messagesWritten = 0;
+    public long bytesWritten = 0;
+
+    // How far ahead of the write cursor to reclaim space; reclaiming in chunks keeps the number
+    // of fenced header updates down while serializing many small IPC buffers
+    private static final long RECLAIM_CHUNK = 64L * 1024L;
+
+    //
+    // Create (or take over) the ring at the given path with a data region of capacityI bytes
+    //
+    public ShmRingWriter(String pathI, long capacityI) throws IOException {
+        long capacity8 = ShmRing.align8(capacityI);
+        if ( (capacity8 < 4096) || (capacity8 > (Integer.MAX_VALUE - ShmRing.HEADER_SIZE)) ) {
+            throw new IllegalArgumentException("ShmRingWriter: capacity must be between 4096 bytes and 2 GB");
+        }
+        path = pathI;
+        capacity = capacity8;
+        // A record must fit in half of the ring; this guarantees a record which has to be moved to
+        // the start of the data region never overlaps its own earlier bytes (see relocate())
+        maxRecordSize = capacity / 2;
+        raf = new RandomAccessFile(pathI, "rw");
+        raf.setLength(ShmRing.HEADER_SIZE + capacity);
+        map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, ShmRing.HEADER_SIZE + capacity);
+        map.order(ByteOrder.nativeOrder());
+        data = map.duplicate().position(ShmRing.HEADER_SIZE).slice().order(ByteOrder.nativeOrder());
+
+        // Initialize the header; epoch 0 tells readers the ring is not ready
+        ShmRing.LONG_HANDLE.setVolatile(map, ShmRing.OFF_EPOCH, 0L);
+        map.putLong(ShmRing.OFF_MAGIC, ShmRing.MAGIC);
+        map.putInt(ShmRing.OFF_VERSION, ShmRing.VERSION);
+        map.putLong(ShmRing.OFF_CAPACITY, capacity);
+        ShmRing.LONG_HANDLE.setVolatile(map, ShmRing.OFF_WRITE_POS, 0L);
+        ShmRing.LONG_HANDLE.setVolatile(map, ShmRing.OFF_RECLAIM_POS, 0L);
+        ShmRing.LONG_HANDLE.setVolatile(map, ShmRing.OFF_NEXT_SEQ, 0L);
+        ShmRing.LONG_HANDLE.setVolatile(map, ShmRing.OFF_CLOSED, 0L);
+        long epoch = System.currentTimeMillis() ^ System.nanoTime();
+        if (epoch == 0) {
+            epoch = 1;
+        }
+        ShmRing.LONG_HANDLE.setVolatile(map, ShmRing.OFF_EPOCH, epoch);
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    //
+    // Start a new record with the given ID (the equivalent of a Plasma object ID; may be null).
+    // Write the record's contents to the returned channel, then call commit().
+    //
+    public Message begin(byte[] idI) throws IOException {
+        if (current != null) {
+            throw new IOException("ShmRingWriter: the previous message has not been committed");
+        }
+        byte[] id = (idI == null) ? new byte[0] : idI;
+        current = new Message(id);
+        return current;
+    }
+
+    //
+    // Write the given bytes as one record; the counterpart of PlasmaClient.put()
+    //
+    public void put(byte[] idI, byte[] bytesI) throws IOException {
+        put(idI, ByteBuffer.wrap(bytesI));
+    }
+
+    //
+    // Write the remaining bytes of the given buffer as one record
+    //
+    public void put(byte[] idI, ByteBuffer bytesI) throws IOException {
+        Message msg = begin(idI);
+        try {
+            msg.write(bytesI);
+        } catch (IOException ioe) {
+            msg.abort();
+            throw ioe;
+        }
+        msg.commit();
+    }
+
+    //
+    // Serialize the current contents of the given root (one record batch, as an Arrow IPC
+    // stream) directly into the ring as one record. The root must already have its row count set.
+    //
+    public void writeBatch(byte[] idI, VectorSchemaRoot rootI) throws IOException {
+        Message msg = begin(idI);
+        try (ArrowStreamWriter writer = new ArrowStreamWriter(rootI, null, msg)) {
+            writer.start();
+            writer.writeBatch();
+            writer.end();
+        } catch (IOException ioe) {
+            msg.abort();
+            throw ioe;
+        }
+        msg.commit();
+    }
+
+    //
+    // Make sure no reader can be reading logical positions below the given position
+    // (i.e., the data region bytes holding positions [endPosI - capacity, endPosI) may be written)
+    //
+    private void reclaim(long endPosI) {
+        long needed = endPosI - capacity;
+        if (needed <= reclaimPos) {
+            return;
+        }
+        reclaimPos = Math.min(needed + RECLAIM_CHUNK, writePos);
+        reclaimPos = Math.max(reclaimPos, needed);
+        ShmRing.LONG_HANDLE.setOpaque(map, ShmRing.OFF_RECLAIM_POS, reclaimPos);
+        // The new reclaim position must be visible before any of the data writes which follow
+        VarHandle.storeStoreFence();
+    }
+
+    //
+    // Mark the ring as closed; readers see this once they have consumed all records
+    //
+    public void close() throws IOException {
+        if (current != null) {
+            current.abort();
+        }
+        ShmRing.LONG_HANDLE.setRelease(map, ShmRing.OFF_CLOSED, 1L);
+        raf.close();
+    }
+
+    //
+    // One record being written to the ring
+    //
+    public class Message implements WritableByteChannel {
+
+        private final byte[] id;
+        // Logical position of the record start
+        private long start;
+        // Offset of the payload from the record start
+        private final int payloadOffset;
+        private long payloadLen = 0;
+        // Logical position of the first record start we tried, if the record had to be moved
+        private long wrapPos = -1;
+        private boolean bOpen = true;
+
+        Message(byte[] idI) throws IOException {
+            id = idI;
+            payloadOffset = (int)ShmRing.align8(ShmRing.REC_HEADER_SIZE + id.length);
+            if (payloadOffset > maxRecordSize) {
+                throw new IOException("ShmRingWriter: record ID is too long");
+            }
+            start = writePos;
+            // Records don't wrap; move to the start of the region if not even the header and ID fit here
+            if (((start % capacity) + payloadOffset) > capacity) {
+                wrapPos = start;
+                start = nextLap(start);
+            }
+            reclaim(start + payloadOffset);
+        }
+
+        public boolean isOpen() {
+            return bOpen;
+        }
+
+        public int write(ByteBuffer srcI) throws IOException {
+            if (!bOpen) {
+                throw new ClosedChannelException();
+            }
+            int len = srcI.remaining();
+            long newLen = payloadLen + len;
+            if ((payloadOffset + newLen) > maxRecordSize) {
+                throw new IOException("ShmRingWriter: message is larger than half the ring (" + capacity + " bytes)");
+            }
+            if (((start % capacity) + payloadOffset + newLen) > capacity) {
+                relocate();
+            }
+            long end = start + payloadOffset + newLen;
+            reclaim(end);
+            ByteBuffer dst = data.duplicate();
+            dst.position((int)((start % capacity) + payloadOffset + payloadLen));
+            dst.put(srcI);
+            payloadLen = newLen;
+            return len;
+        }
+
+        //
+        // The record doesn't fit before the end of the data region: move what has been written
+        // so far to the start of the region and continue there
+        //
+        private void relocate() {
+            long newStart = nextLap(start);
+            long written = payloadOffset + payloadLen;
+            reclaim(newStart + written);
+            int srcOff = (int)(start % capacity);
+            ByteBuffer src = data.duplicate();
+            src.position(srcOff + payloadOffset).limit(srcOff + (int)written);
+            ByteBuffer dst = data.duplicate();
+            dst.position(payloadOffset);
+            dst.put(src);
+            if (wrapPos < 0) {
+                wrapPos = start;
+            }
+            start = newStart;
+        }
+
+        //
+        // Publish the record to readers
+        //
+        public void commit() throws IOException {
+            if (!bOpen) {
+                throw new ClosedChannelException();
+            }
+            bOpen = false;
+            current = null;
+            long recLen = ShmRing.align8(payloadOffset + payloadLen);
+            reclaim(start + recLen);
+            if (wrapPos >= 0) {
+                int wrapOff = (int)(wrapPos % capacity);
+                if ((capacity - wrapOff) >= ShmRing.REC_HEADER_SIZE) {
+                    data.putInt(wrapOff, (int)(capacity - wrapOff));
+                    data.putInt(wrapOff + 4, ShmRing.REC_WRAP);
+                }
+            }
+            int off = (int)(start % capacity);
+            data.putInt(off, (int)recLen);
+            data.putInt(off + 4, ShmRing.REC_MESSAGE);
+            data.putLong(off + 8, nextSeq);
+            data.putInt(off + 16, id.length);
+            data.putInt(off + 20, (int)payloadLen);
+            if (id.length > 0) {
+                ByteBuffer dst = data.duplicate();
+                dst.position(off + ShmRing.REC_HEADER_SIZE);
+                dst.put(id);
+            }
+            ++nextSeq;
+            writePos = start + recLen;
+            ShmRing.LONG_HANDLE.setRelease(map, ShmRing.OFF_NEXT_SEQ, nextSeq);
+            // Publishing the write position makes the record (and everything before it) visible
+            ShmRing.LONG_HANDLE.setRelease(map, ShmRing.OFF_WRITE_POS, writePos);
+            ++messagesWritten;
+            bytesWritten += payloadLen;
+        }
+
+        //
+        // Discard the record; nothing is published
+        //
+        public void abort() {
+            bOpen = false;
+            current = null;
+        }
+
+        //
+        // The channel is closed by commit() or abort(); closing it here (e.g. by the ArrowStreamWriter
+        // which wrote into it) doesn't publish anything
+        //
+        public void close() {
+        }
+
+        private long nextLap(long posI) {
+            return ((posI / capacity) + 1) * capacity;
+        }
+
+    }
+
+}
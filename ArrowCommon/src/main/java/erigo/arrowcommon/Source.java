@@ -0,0 +1,43 @@
+/*
+Copyright 2020 Erigo
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package erigo.arrowcommon;
+
+import java.io.IOException;
+import java.util.List;
+
+//
+// An input to the ingest engine (a delimited text file, a PHM08 file, a CT source, ...).
+//
+// The source declares its columns up front, then fills one batch at a time; it decides where
+// each batch ends (a row count, a change of key, a flush interval, ...).
+//
+public interface Source extends AutoCloseable {
+
+    //
+    // The columns this source produces, in order
+    //
+    List<ColumnBuilder.Spec> getColumns();
+
+    //
+    // Add the rows of the next batch to the (empty) builder; returns false, having added no rows,
+    // once the input is exhausted
+    //
+    boolean readBatch(BatchBuilder builderI) throws IOException;
+
+    void close() throws IOException;
+
+}
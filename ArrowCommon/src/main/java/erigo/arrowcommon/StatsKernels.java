@@ -0,0 +1,379 @@
+/*
+Copyright 2020 Erigo
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+
+package erigo.arrowcommon;
+
+import org.apache.arrow.memory.util.MemoryUtil;
+import org.apache.arrow.vector.BaseFixedWidthVector;
+import org.apache.arrow.vector.BigIntVector;
+import org.apache.arrow.vector.FieldVector;
+import org.apache.arrow.vector.Float4Vector;
+import org.apache.arrow.vector.Float8Vector;
+import org.apache.arrow.vector.IntVector;
+import org.apache.arrow.vector.TimeStampVector;
+
+//
+// Column statistics kernels: min, max, sum, sum of squares, null count and sentinel count of a
+// Float4, Float8, Int, BigInt or timestamp column, in one pass over the column's memory.
+//
+// Going through get(i) costs a bounds check and a validity bit lookup per value. Instead, the
+// kernels read the validity bitmap a 64-bit word (64 rows) at a time and the values straight from
+// the data buffer: a word with every row valid takes a tight loop over 64 values (unrolled by 4,
+// with independent accumulators, so the adds and compares don't wait on each other), a word with
+// no valid rows is just counted as 64 nulls, and a mixed word takes the same loop for each of its
+// bytes which is all valid and only visits the rows of the other bytes one set bit at a time. With
+// few nulls, the cost is close to that of a plain array loop.
+//
+// The min, max and sums include every non-null value, sentinels too (so min/max are safe to use
+// for skipping batches); sentinelCount counts the values equal to the sentinel (by default -999,
+// the "no reading" value of the PHM08 and OBD data) so a quality check can tell how many there were.
+// NaN values are counted but don't affect min and max. Since the sums are accumulated in 4 lanes,
+// they can differ from a sequential sum in the last bits.
+//
+public final class StatsKernels {
+
+    // Default sentinel value
+    public static final double SENTINEL = -999.0;
+
+    private StatsKernels() {}
+
+    //
+    // Statistics of one column
+    //
+    public static final class Summary {
+        public long count = 0;              // number of non-null values
+        public long nullCount = 0;
+        public long sentinelCount = 0;
+        public double min = Double.NaN;     // NaN if there are no (non-NaN) values
+        public double max = Double.NaN;
+        public double sum = 0.0;
+        public double sumSq = 0.0;
+
+        public double mean() {
+            return (count == 0) ? Double.NaN : (sum / count);
+        }
+
+        // Population variance
+        public double variance() {
+            if (count == 0) {
+                return Double.NaN;
+            }
+            double mean = sum / count;
+            return Math.max(0.0, (sumSq / count) - (mean * mean));
+        }
+    }
+
+    //
+    // Can the given vector be summarized?
+    //
+    public static boolean isSupported(FieldVector vecI) {
+        return (vecI instanceof Float4Vector) || (vecI instanceof Float8Vector) || (vecI instanceof IntVector) ||
+               (vecI instanceof BigIntVector) || (vecI instanceof TimeStampVector);
+    }
+
+    public static Summary summarize(FieldVector vecI, int rowCountI) {
+        return summarize(vecI, rowCountI, SENTINEL);
+    }
+
+    //
+    // Statistics over the first rowCountI rows of the given vector (which must be supported)
+    //
+    public static Summary summarize(FieldVector vecI, int rowCountI, double sentinelI) {
+        if (!isSupported(vecI)) {
+            throw new IllegalArgumentException("StatsKernels: unsupported vector type for column " + vecI.getField().getName());
+        }
+        if ( (rowCountI < 0) || (rowCountI > vecI.getValueCapacity()) ) {
+            throw new IndexOutOfBoundsException("StatsKernels: row count " + rowCountI + " is out of range for column " + vecI.getField().getName());
+        }
+        BaseFixedWidthVector vec = (BaseFixedWidthVector)vecI;
+        Summary summary = new Summary();
+        if (rowCountI == 0) {
+            return summary;
+        }
+        long validityAddr = vec.getValidityBuffer().memoryAddress();
+        long dataAddr = vec.getDataBuffer().memoryAddress();
+        Accumulator acc;
+        if (vecI instanceof Float4Vector) {
+            acc = new Float4Accumulator(dataAddr, (float)sentinelI);
+        } else if (vecI instanceof Float8Vector) {
+            acc = new Float8Accumulator(dataAddr, sentinelI);
+        } else if (vecI instanceof IntVector) {
+            acc = new IntAccumulator(dataAddr, sentinelI);
+        } else {
+            acc = new LongAccumulator(dataAddr, sentinelI);
+        }
+
+        // Whole 64-row words of the validity bitmap
+        int numWords = rowCountI >>> 6;
+        for (int w = 0; w < numWords; ++w) {
+            long word = MemoryUtil.UNSAFE.getLong(validityAddr + ((long)w << 3));
+            int base = w << 6;
+            if (word == -1L) {
+                acc.addRange(base, base + 64);
+            } else if (word == 0L) {
+                summary.nullCount += 64;
+            } else {
+                // Mixed: 8 rows at a time, so a stray null only slows down its own byte
+                summary.nullCount += 64 - Long.bitCount(word);
+                for (int b = 0; b < 64; b += 8) {
+                    int bits = (int)(word >>> b) & 0xff;
+                    if (bits == 0xff) {
+                        acc.addRange(base + b, base + b + 8);
+                    } else {
+                        while (bits != 0) {
+                            acc.add(base + b + Integer.numberOfTrailingZeros(bits));
+                            bits &= bits - 1;
+                        }
+                    }
+                }
+            }
+        }
+        // The remaining rows, a bit at a time
+        for (int i = numWords << 6; i < rowCountI; ++i) {
+            int bits = MemoryUtil.UNSAFE.getByte(validityAddr + (i >>> 3));
+            if ((bits & (1 << (i & 7))) != 0) {
+                acc.add(i);
+            } else {
+                ++summary.nullCount;
+            }
+        }
+        acc.finish(summary);
+        return summary;
+    }
+
+    //
+    // Per-type accumulators. Each keeps 4 lanes of min/max/sum/sum of squares, which addRange()
+    // fills in turn; add() adds a single row to lane 0.
+    //
+    private static abstract class Accumulator {
+        final long dataAddr;
+        final double[] min = {Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY};
+        final double[] max = {Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY};
+        final double[] sum = new double[4];
+        final double[] sumSq = new double[4];
+        long count = 0;
+        long sentinels = 0;
+
+        Accumulator(long dataAddrI) {
+            dataAddr = dataAddrI;
+        }
+
+        abstract void add(int rowI);
+
+        // Rows [startI, endI); (endI - startI) is a multiple of 4
+        abstract void addRange(int startI, int endI);
+
+        void finish(Summary summaryI) {
+            double mn = Math.min(Math.min(min[0], min[1]), Math.min(min[2], min[3]));
+            double mx = Math.max(Math.max(max[0], max[1]), Math.max(max[2], max[3]));
+            summaryI.count = count;
+            summaryI.sentinelCount = sentinels;
+            summaryI.min = (mn <= mx) ? mn : Double.NaN;
+            summaryI.max = (mn <= mx) ? mx : Double.NaN;
+            summaryI.sum = (sum[0] + sum[1]) + (sum[2] + sum[3]);
+            summaryI.sumSq = (sumSq[0] + sumSq[1]) + (sumSq[2] + sumSq[3]);
+        }
+    }
+
+    private static final class Float4Accumulator extends Accumulator {
+        private final float sentinel;
+        Float4Accumulator(long dataAddrI, float sentinelI) {
+            super(dataAddrI);
+            sentinel = sentinelI;
+        }
+        void add(int rowI) {
+            double v = MemoryUtil.UNSAFE.getFloat(dataAddr + ((long)rowI << 2));
+            if (v < min[0]) min[0] = v;
+            if (v > max[0]) max[0] = v;
+            sum[0] += v;
+            sumSq[0] += v * v;
+            if (v == sentinel) ++sentinels;
+            ++count;
+        }
+        void addRange(int startI, int endI) {
+            double mn0 = min[0], mn1 = min[1], mn2 = min[2], mn3 = min[3];
+            double mx0 = max[0], mx1 = max[1], mx2 = max[2], mx3 = max[3];
+            double s0 = sum[0], s1 = sum[1], s2 = sum[2], s3 = sum[3];
+            double q0 = sumSq[0], q1 = sumSq[1], q2 = sumSq[2], q3 = sumSq[3];
+            long sent = 0;
+            long addr = dataAddr + ((long)startI << 2);
+            long end = dataAddr + ((long)endI << 2);
+            for (; addr < end; addr += 16) {
+                float f0 = MemoryUtil.UNSAFE.getFloat(addr);
+                float f1 = MemoryUtil.UNSAFE.getFloat(addr + 4);
+                float f2 = MemoryUtil.UNSAFE.getFloat(addr + 8);
+                float f3 = MemoryUtil.UNSAFE.getFloat(addr + 12);
+                double v0 = f0, v1 = f1, v2 = f2, v3 = f3;
+                if (v0 < mn0) mn0 = v0;
+                if (v1 < mn1) mn1 = v1;
+                if (v2 < mn2) mn2 = v2;
+                if (v3 < mn3) mn3 = v3;
+                if (v0 > mx0) mx0 = v0;
+                if (v1 > mx1) mx1 = v1;
+                if (v2 > mx2) mx2 = v2;
+                if (v3 > mx3) mx3 = v3;
+                s0 += v0; s1 += v1; s2 += v2; s3 += v3;
+                q0 += v0 * v0; q1 += v1 * v1; q2 += v2 * v2; q3 += v3 * v3;
+                sent += ((f0 == sentinel) ? 1 : 0) + ((f1 == sentinel) ? 1 : 0) + ((f2 == sentinel) ? 1 : 0) + ((f3 == sentinel) ? 1 : 0);
+            }
+            min[0] = mn0; min[1] = mn1; min[2] = mn2; min[3] = mn3;
+            max[0] = mx0; max[1] = mx1; max[2] = mx2; max[3] = mx3;
+            sum[0] = s0; sum[1] = s1; sum[2] = s2; sum[3] = s3;
+            sumSq[0] = q0; sumSq[1] = q1; sumSq[2] = q2; sumSq[3] = q3;
+            sentinels += sent;
+            count += endI - startI;
+        }
+    }
+
+    private static final class Float8Accumulator extends Accumulator {
+        private final double sentinel;
+        Float8Accumulator(long dataAddrI, double sentinelI) {
+            super(dataAddrI);
+            sentinel = sentinelI;
+        }
+        void add(int rowI) {
+            double v = MemoryUtil.UNSAFE.getDouble(dataAddr + ((long)rowI << 3));
+            if (v < min[0]) min[0] = v;
+            if (v > max[0]) max[0] = v;
+            sum[0] += v;
+            sumSq[0] += v * v;
+            if (v == sentinel) ++sentinels;
+            ++count;
+        }
+        void addRange(int startI, int endI) {
+            double mn0 = min[0], mn1 = min[1], mn2 = min[2], mn3 = min[3];
+            double mx0 = max[0], mx1 = max[1], mx2 = max[2], mx3 = max[3];
+            double s0 = sum[0], s1 = sum[1], s2 = sum[2], s3 = sum[3];
+            double q0 = sumSq[0], q1 = sumSq[1], q2 = sumSq[2], q3 = sumSq[3];
+            long sent = 0;
+            long addr = dataAddr + ((long)startI << 3);
+            long end = dataAddr + ((long)endI << 3);
+            for (; addr < end; addr += 32) {
+                double v0 = MemoryUtil.UNSAFE.getDouble(addr);
+                double v1 = MemoryUtil.UNSAFE.getDouble(addr + 8);
+                double v2 = MemoryUtil.UNSAFE.getDouble(addr + 16);
+                double v3 = MemoryUtil.UNSAFE.getDouble(addr + 24);
+                if (v0 < mn0) mn0 = v0;
+                if (v1 < mn1) mn1 = v1;
+                if (v2 < mn2) mn2 = v2;
+                if (v3 < mn3) mn3 = v3;
+                if (v0 > mx0) mx0 = v0;
+                if (v1 > mx1) mx1 = v1;
+                if (v2 > mx2) mx2 = v2;
+                if (v3 > mx3) mx3 = v3;
+                s0 += v0; s1 += v1; s2 += v2; s3 += v3;
+                q0 += v0 * v0; q1 += v1 * v1; q2 += v2 * v2; q3 += v3 * v3;
+                sent += ((v0 == sentinel) ? 1 : 0) + ((v1 == sentinel) ? 1 : 0) + ((v2 == sentinel) ? 1 : 0) + ((v3 == sentinel) ? 1 : 0);
+            }
+            min[0] = mn0; min[1] = mn1; min[2] = mn2; min[3] = mn3;
+            max[0] = mx0; max[1] = mx1; max[2] = mx2; max[3] = mx3;
+            sum[0] = s0; sum[1] = s1; sum[2] = s2; sum[3] = s3;
+            sumSq[0] = q0; sumSq[1] = q1; sumSq[2] = q2; sumSq[3] = q3;
+            sentinels += sent;
+            count += endI - startI;
+        }
+    }
+
+    //
+    // Integer columns keep their min and max as longs, so they stay exact
+    //
+    private static abstract class IntegerAccumulator extends Accumulator {
+        final long sentinel;
+        final boolean bSentinel;
+        long mn = Long.MAX_VALUE;
+        long mx = Long.MIN_VALUE;
+        IntegerAccumulator(long dataAddrI, double sentinelI) {
+            super(dataAddrI);
+            sentinel = (long)sentinelI;
+            // A sentinel which isn't a whole number never matches
+            bSentinel = (sentinel == sentinelI);
+        }
+        abstract long value(long addrI);
+        abstract int shift();
+        void add(int rowI) {
+            long v = value(dataAddr + ((long)rowI << shift()));
+            if (v < mn) mn = v;
+            if (v > mx) mx = v;
+            double d = v;
+            sum[0] += d;
+            sumSq[0] += d * d;
+            if (bSentinel && (v == sentinel)) ++sentinels;
+            ++count;
+        }
+        void addRange(int startI, int endI) {
+            long mn0 = mn, mx0 = mx;
+            double s0 = sum[0], s1 = sum[1], s2 = sum[2], s3 = sum[3];
+            double q0 = sumSq[0], q1 = sumSq[1], q2 = sumSq[2], q3 = sumSq[3];
+            long sent = 0;
+            int shift = shift();
+            long addr = dataAddr + ((long)startI << shift);
+            long end = dataAddr + ((long)endI << shift);
+            long step = 1L << shift;
+            for (; addr < end; addr += 4 * step) {
+                long v0 = value(addr);
+                long v1 = value(addr + step);
+                long v2 = value(addr + 2 * step);
+                long v3 = value(addr + 3 * step);
+                mn0 = Math.min(mn0, Math.min(Math.min(v0, v1), Math.min(v2, v3)));
+                mx0 = Math.max(mx0, Math.max(Math.max(v0, v1), Math.max(v2, v3)));
+                double d0 = v0, d1 = v1, d2 = v2, d3 = v3;
+                s0 += d0; s1 += d1; s2 += d2; s3 += d3;
+                q0 += d0 * d0; q1 += d1 * d1; q2 += d2 * d2; q3 += d3 * d3;
+                sent += ((v0 == sentinel) ? 1 : 0) + ((v1 == sentinel) ? 1 : 0) + ((v2 == sentinel) ? 1 : 0) + ((v3 == sentinel) ? 1 : 0);
+            }
+            mn = mn0;
+            mx = mx0;
+            sum[0] = s0; sum[1] = s1; sum[2] = s2; sum[3] = s3;
+            sumSq[0] = q0; sumSq[1] = q1; sumSq[2] = q2; sumSq[3] = q3;
+            if (bSentinel) {
+                sentinels += sent;
+            }
+            count += endI - startI;
+        }
+        @Override
+        void finish(Summary summaryI) {
+            super.finish(summaryI);
+            summaryI.min = (count == 0) ? Double.NaN : mn;
+            summaryI.max = (count == 0) ? Double.NaN : mx;
+        }
+    }
+
+    private static final class IntAccumulator extends IntegerAccumulator {
+        IntAccumulator(long dataAddrI, double sentinelI) {
+            super(dataAddrI, sentinelI);
+        }
+        long value(long addrI) {
+            return MemoryUtil.UNSAFE.getInt(addrI);
+        }
+        int shift() {
+            return 2;
+        }
+    }
+
+    private static final class LongAccumulator extends IntegerAccumulator {
+        LongAccumulator(long dataAddrI, double sentinelI) {
+            super(dataAddrI, sentinelI);
+        }
+        long value(long addrI) {
+            return MemoryUtil.UNSAFE.getLong(addrI);
+        }
+        int shift() {
+            return 3;
+        }
+    }
+
+}
@@ -0,0 +1,272 @@
+/*
+Copyright 2020 Erigo
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package erigo.arrowcommon;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.vector.BaseIntVector;
+import org.apache.arrow.vector.BigIntVector;
+import org.apache.arrow.vector.FieldVector;
+import org.apache.arrow.vector.Float8Vector;
+import org.apache.arrow.vector.FloatingPointVector;
+import org.apache.arrow.vector.VectorSchemaRoot;
+
+//
+// Incremental time-bucket rollups: min, max, mean, last and count of every numeric column
+// over fixed-size time buckets (e.g. 1 sec, 1 min and 1 hour), computed from the record
+// batches as they are ingested.
+//
+// Call addBatch() with each batch (rows in time order). A bucket is complete once a row
+// from a later bucket has been seen; completed buckets are held until takeCompleted() turns
+// them into a record batch for that resolution:
+//
+//     bucket_start       start of the bucket (same units as the time column)
+//     <col>_min, <col>_max, <col>_mean, <col>_last     Float8; null if the bucket had no values
+//     <col>_count        BigInt; number of non-null values in the bucket
+//
+// Null entries are skipped. Only columns which are integer or floating point vectors are
+// rolled up; the time column itself is not.
+//
+public class TimeBucketRollup {
+
+    private final BufferAllocator allocator;
+    private final String timeColumn;
+    private final double[] resolutions;
+    private final List<String> columns = new ArrayList<>();
+    private final Accumulator[] accumulators;
+
+    //
+    // timeColumnI names the (numeric) time column; resolutionsI are the bucket sizes, in the
+    // time column's units. The numeric columns to roll up are taken from the first batch.
+    //
+    public TimeBucketRollup(BufferAllocator allocatorI, String timeColumnI, double[] resolutionsI) {
+        for (double res : resolutionsI) {
+            if (!(res > 0)) {
+                throw new IllegalArgumentException("TimeBucketRollup: bucket sizes must be greater than 0");
+            }
+        }
+        allocator = allocatorI;
+        timeColumn = timeColumnI;
+        resolutions = resolutionsI.clone();
+        accumulators = new Accumulator[resolutions.length];
+    }
+
+    public int getNumResolutions() {
+        return resolutions.length;
+    }
+
+    public double getResolution(int resIdxI) {
+        return resolutions[resIdxI];
+    }
+
+    //
+    // Update the rollups with the rows of the given batch
+    //
+    public void addBatch(VectorSchemaRoot rootI) {
+        FieldVector timeVec = rootI.getVector(timeColumn);
+        if (timeVec == null) {
+            throw new IllegalArgumentException("TimeBucketRollup: no time column \"" + timeColumn + "\" in batch");
+        }
+        if (accumulators[0] == null) {
+            for (FieldVector vec : rootI.getFieldVectors()) {
+                String name = vec.getField().getName();
+                if ( !name.equals(timeColumn) && ((vec instanceof FloatingPointVector) || (vec instanceof BaseIntVector)) ) {
+                    columns.add(name);
+                }
+            }
+            for (int r = 0; r < resolutions.length; ++r) {
+                accumulators[r] = new Accumulator(resolutions[r], columns.size());
+            }
+        }
+        int rowCount = rootI.getRowCount();
+        FieldVector[] colVecs = new FieldVector[columns.size()];
+        for (int c = 0; c < colVecs.length; ++c) {
+            colVecs[c] = rootI.getVector(columns.get(c));
+        }
+        for (int i = 0; i < rowCount; ++i) {
+            if (timeVec.isNull(i)) {
+                continue;
+            }
+            double t = ColumnStats.numericValue(timeVec, i);
+            for (Accumulator acc : accumulators) {
+                acc.startRow(t);
+            }
+            for (int c = 0; c < colVecs.length; ++c) {
+                FieldVector vec = colVecs[c];
+                if ( (vec == null) || vec.isNull(i) ) {
+                    continue;
+                }
+                double val = ColumnStats.numericValue(vec, i);
+                for (Accumulator acc : accumulators) {
+                    acc.add(c, val);
+                }
+            }
+        }
+    }
+
+    //
+    // Number of completed buckets waiting at the given resolution
+    //
+    public int numCompleted(int resIdxI) {
+        return (accumulators[resIdxI] == null) ? 0 : accumulators[resIdxI].completed.size();
+    }
+
+    //
+    // Close the buckets which are still open (e.g. at the end of the input) so they are
+    // returned by takeCompleted()
+    //
+    public void closeOpenBuckets() {
+        for (Accumulator acc : accumulators) {
+            if (acc != null) {
+                acc.closeBucket();
+            }
+        }
+    }
+
+    //
+    // Return the completed buckets at the given resolution as a record batch (null if there are none)
+    // and forget them. The caller must close the returned root.
+    //
+    public VectorSchemaRoot takeCompleted(int resIdxI) {
+        Accumulator acc = accumulators[resIdxI];
+        if ( (acc == null) || acc.completed.isEmpty() ) {
+            return null;
+        }
+        List<Bucket> buckets = acc.completed;
+        acc.completed = new ArrayList<>();
+        int numRows = buckets.size();
+        List<FieldVector> vectors = new ArrayList<>();
+        Float8Vector startVec = new Float8Vector("bucket_start", allocator);
+        startVec.allocateNew(numRows);
+        for (int i = 0; i < numRows; ++i) {
+            startVec.set(i, buckets.get(i).start);
+        }
+        vectors.add(startVec);
+        for (int c = 0; c < columns.size(); ++c) {
+            String col = columns.get(c);
+            Float8Vector minVec = new Float8Vector(col + "_min", allocator);
+            Float8Vector maxVec = new Float8Vector(col + "_max", allocator);
+            Float8Vector meanVec = new Float8Vector(col + "_mean", allocator);
+            Float8Vector lastVec = new Float8Vector(col + "_last", allocator);
+            BigIntVector countVec = new BigIntVector(col + "_count", allocator);
+            minVec.allocateNew(numRows);
+            maxVec.allocateNew(numRows);
+            meanVec.allocateNew(numRows);
+            lastVec.allocateNew(numRows);
+            countVec.allocateNew(numRows);
+            for (int i = 0; i < numRows; ++i) {
+                Bucket b = buckets.get(i);
+                countVec.set(i, b.count[c]);
+                if (b.count[c] == 0) {
+                    minVec.setNull(i);
+                    maxVec.setNull(i);
+                    meanVec.setNull(i);
+                    lastVec.setNull(i);
+                } else {
+                    minVec.set(i, b.min[c]);
+                    maxVec.set(i, b.max[c]);
+                    meanVec.set(i, b.sum[c] / b.count[c]);
+                    lastVec.set(i, b.last[c]);
+                }
+            }
+            vectors.add(minVec);
+            vectors.add(maxVec);
+            vectors.add(meanVec);
+            vectors.add(lastVec);
+            vectors.add(countVec);
+        }
+        VectorSchemaRoot root = new VectorSchemaRoot(vectors);
+        root.setRowCount(numRows);
+        return root;
+    }
+
+    //
+    // Aggregates of one bucket
+    //
+    private static class Bucket {
+        final double start;
+        final double[] min;
+        final double[] max;
+        final double[] sum;
+        final double[] last;
+        final long[] count;
+        Bucket(double startI, int numColumnsI) {
+            start = startI;
+            min = new double[numColumnsI];
+            max = new double[numColumnsI];
+            sum = new double[numColumnsI];
+            last = new double[numColumnsI];
+            count = new long[numColumnsI];
+        }
+    }
+
+    //
+    // The open bucket and the completed buckets at one resolution
+    //
+    private static class Accumulator {
+        final double resolution;
+        final int numColumns;
+        Bucket open = null;
+        List<Bucket> completed = new ArrayList<>();
+
+        Accumulator(double resolutionI, int numColumnsI) {
+            resolution = resolutionI;
+            numColumns = numColumnsI;
+        }
+
+        void startRow(double timeI) {
+            double start = Math.floor(timeI / resolution) * resolution;
+            if ( (open != null) && (start == open.start) ) {
+                return;
+            }
+            if ( (open != null) && (start < open.start) ) {
+                // Out of order row; fold it into the open bucket rather than reopen a closed one
+                return;
+            }
+            closeBucket();
+            open = new Bucket(start, numColumns);
+        }
+
+        void add(int colI, double valI) {
+            long n = open.count[colI];
+            if (n == 0) {
+                open.min[colI] = valI;
+                open.max[colI] = valI;
+            } else {
+                if (valI < open.min[colI]) {
+                    open.min[colI] = valI;
+                }
+                if (valI > open.max[colI]) {
+                    open.max[colI] = valI;
+                }
+            }
+            open.sum[colI] += valI;
+            open.last[colI] = valI;
+            open.count[colI] = n + 1;
+        }
+
+        void closeBucket() {
+            if (open != null) {
+                completed.add(open);
+                open = null;
+            }
+        }
+    }
+
+}
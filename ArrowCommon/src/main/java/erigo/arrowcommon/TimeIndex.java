@@ -0,0 +1,244 @@
+/*
+Copyright 2020 Erigo
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package erigo.arrowcommon;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+//
+// Sidecar index which maps event time ranges to the files, record batches and rows holding them,
+// so a reader can go straight to a time range in a large archive instead of opening every file.
+//
+// The index is a tab-separated text file with a header line and one line per record batch:
+//
+//     file    batch    first_row    rows    min_<time column>    max_<time column>
+//
+// "file" is relative to the folder holding the index, "batch" is the index of the record batch
+// within the file and "first_row" the file row number of its first row. The min and max times are
+// in the time column's own units (e.g. seconds for a Float8 ct_timestamp, milliseconds or
+// microseconds for an Arrow timestamp); they are empty for a batch with no times.
+//
+// Lines are appended as batches are written, so the index is usually in time order. When it is
+// (each batch starts at or after the end of the one before), lookup() binary-searches it;
+// otherwise, e.g. for data which isn't sorted by time, it checks every line. Either way only the
+// batches whose time range overlaps the query are returned.
+//
+public class TimeIndex {
+
+    // Name of the index in the folder of a time-partitioned layout
+    public static final String INDEX_NAME = "_time_index.tsv";
+
+    // Suffix of the index written next to a single output file or series of batch files
+    public static final String INDEX_SUFFIX = "_time_index.tsv";
+
+    //
+    // One record batch
+    //
+    public static class Entry {
+        public final String file;
+        public final int batch;
+        public final long firstRow;
+        public final int rows;
+        public final double min;
+        public final double max;
+        public Entry(String fileI, int batchI, long firstRowI, int rowsI, double minI, double maxI) {
+            file = fileI;
+            batch = batchI;
+            firstRow = firstRowI;
+            rows = rowsI;
+            min = minI;
+            max = maxI;
+        }
+    }
+
+    private final File dir;
+    public final String timeColumn;
+    private final List<Entry> entries;
+    // Entries with times, in file order; timed.get(i).min >= timed.get(i-1).max if bInOrder
+    private final List<Entry> timed = new ArrayList<>();
+    private final boolean bInOrder;
+
+    private TimeIndex(File dirI, String timeColumnI, List<Entry> entriesI) {
+        dir = dirI;
+        timeColumn = timeColumnI;
+        entries = entriesI;
+        boolean bOrdered = true;
+        for (Entry entry : entriesI) {
+            if (Double.isNaN(entry.min)) {
+                continue;
+            }
+            if ( !timed.isEmpty() && (entry.min < timed.get(timed.size() - 1).max) ) {
+                bOrdered = false;
+            }
+            timed.add(entry);
+        }
+        bInOrder = bOrdered;
+    }
+
+    //
+    // Read the given index file
+    //
+    public static TimeIndex read(File fileI) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        String timeColumn;
+        try (BufferedReader reader = new BufferedReader(new FileReader(fileI))) {
+            String header = reader.readLine();
+            String[] headerFields = (header == null) ? new String[0] : header.split("\t");
+            if ( (headerFields.length != 6) || !headerFields[4].startsWith("min_") ) {
+                throw new IOException("TimeIndex: " + fileI + " is not a time index");
+            }
+            timeColumn = headerFields[4].substring(4);
+            String line;
+            int lineNum = 1;
+            while ((line = reader.readLine()) != null) {
+                ++lineNum;
+                if (line.isEmpty()) {
+                    continue;
+                }
+                String[] fields = line.split("\t", -1);
+                try {
+                    if (fields.length != 6) {
+                        throw new NumberFormatException();
+                    }
+                    double min = fields[4].isEmpty() ? Double.NaN : Double.parseDouble(fields[4]);
+                    double max = fields[5].isEmpty() ? Double.NaN : Double.parseDouble(fields[5]);
+                    entries.add(new Entry(fields[0], Integer.parseInt(fields[1]), Long.parseLong(fields[2]), Integer.parseInt(fields[3]), min, max));
+                } catch (NumberFormatException nfe) {
+                    throw new IOException("TimeIndex: bad entry at line " + lineNum + " of " + fileI);
+                }
+            }
+        }
+        File dir = fileI.getAbsoluteFile().getParentFile();
+        return new TimeIndex(dir, timeColumn, entries);
+    }
+
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    public boolean isInOrder() {
+        return bInOrder;
+    }
+
+    //
+    // The file named by the given entry
+    //
+    public File getFile(Entry entryI) {
+        return new File(dir, entryI.file);
+    }
+
+    //
+    // Entries for the batches with times in [loI, hiI], in index order
+    //
+    public List<Entry> lookup(double loI, double hiI) {
+        List<Entry> result = new ArrayList<>();
+        if (bInOrder) {
+            // First batch which ends at or after loI; from there on, batches start in time order
+            int low = 0;
+            int high = timed.size();
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (timed.get(mid).max < loI) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            for (int i = low; (i < timed.size()) && (timed.get(i).min <= hiI); ++i) {
+                result.add(timed.get(i));
+            }
+        } else {
+            for (Entry entry : timed) {
+                if ( (entry.max >= loI) && (entry.min <= hiI) ) {
+                    result.add(entry);
+                }
+            }
+        }
+        return result;
+    }
+
+    //
+    // Writes entries to an index file
+    //
+    public static class Writer implements AutoCloseable {
+
+        private final File file;
+        private final PrintWriter pw;
+
+        //
+        // bAppendI: add to an existing index (e.g. for a layout whose earlier files are kept) rather
+        //           than start a new one (for outputs whose files are overwritten)
+        //
+        public Writer(File fileI, String timeColumnI, boolean bAppendI) throws IOException {
+            file = fileI;
+            boolean bNewFile = !bAppendI || !fileI.exists() || (fileI.length() == 0);
+            pw = new PrintWriter(new FileWriter(fileI, bAppendI));
+            if (bNewFile) {
+                pw.println("file\tbatch\tfirst_row\trows\tmin_" + timeColumnI + "\tmax_" + timeColumnI);
+                pw.flush();
+            }
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        //
+        // Add one batch; minI and maxI are NaN if the batch has no times. Each line is written out
+        // at once, so readers see the batches which have been written so far.
+        //
+        public void add(String fileI, int batchI, long firstRowI, int rowsI, double minI, double maxI) throws IOException {
+            add(new Entry(fileI, batchI, firstRowI, rowsI, minI, maxI));
+        }
+
+        public synchronized void add(Entry entryI) throws IOException {
+            pw.println(entryI.file + "\t" + entryI.batch + "\t" + entryI.firstRow + "\t" + entryI.rows + "\t" + formatTime(entryI.min) + "\t" + formatTime(entryI.max));
+            pw.flush();
+            if (pw.checkError()) {
+                throw new IOException("TimeIndex: error writing to " + file);
+            }
+        }
+
+        public synchronized void close() {
+            pw.close();
+        }
+
+    }
+
+    //
+    // Times are written without an exponent (e.g. 1600000002.13, not 1.60000000213E9), using the
+    // fewest digits which read back as the same double; NaN is written as an empty field
+    //
+    static String formatTime(double timeI) {
+        if (Double.isNaN(timeI)) {
+            return "";
+        }
+        if (Double.isInfinite(timeI)) {
+            return Double.toString(timeI);
+        }
+        return BigDecimal.valueOf(timeI).stripTrailingZeros().toPlainString();
+    }
+
+}
@@ -0,0 +1,164 @@
+/*
+Copyright 2020 Erigo
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+
+package erigo.arrowcommon;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.apache.arrow.flatbuf.MessageHeader;
+import org.apache.arrow.memory.ArrowBuf;
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.memory.ForeignAllocationManager;
+import org.apache.arrow.vector.ipc.ArrowReader;
+import org.apache.arrow.vector.ipc.message.ArrowDictionaryBatch;
+import org.apache.arrow.vector.ipc.message.ArrowRecordBatch;
+import org.apache.arrow.vector.ipc.message.MessageMetadataResult;
+import org.apache.arrow.vector.ipc.message.MessageSerializer;
+import org.apache.arrow.vector.types.pojo.Schema;
+
+//
+// Reads an Arrow IPC stream which is already in memory (e.g. a sealed Plasma object) without
+// copying it: the vectors of each record batch point straight into the given direct ByteBuffer.
+//
+// This is used like ArrowStreamReader (getVectorSchemaRoot(), then loadNextBatch() until it
+// returns false), but ArrowStreamReader reads each message body into a buffer from its
+// allocator; here the stream is parsed in place and each body is a slice of an ArrowBuf wrapping
+// the whole ByteBuffer (see ForeignAllocationManager). The only Arrow memory allocated is for the
+// validity bitmaps of columns with no nulls, which the stream doesn't carry.
+//
+// The given release action (e.g. releasing the Plasma object) runs once the reader is closed and
+// nothing else still uses the memory; vectors transferred out of the root keep it alive until
+// they are closed too.
+//
+public class ZeroCopyStreamReader extends ArrowReader {
+
+    private final ArrowBuf streamBuf;
+    private final ByteBuffer stream;
+    private boolean bSourceClosed = false;
+
+    //
+    // bufferI:        direct ByteBuffer holding the stream (from its position to its limit)
+    // releaseActionI: run when the memory is no longer used; may be null
+    //
+    public ZeroCopyStreamReader(ByteBuffer bufferI, Runnable releaseActionI, BufferAllocator allocatorI) {
+        super(allocatorI);
+        streamBuf = ForeignAllocationManager.wrap(allocatorI, bufferI, releaseActionI);
+        // Our own view, so the caller's position and limit aren't disturbed; offsets are relative to it
+        stream = bufferI.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    //
+    // Bytes of the stream parsed so far
+    //
+    @Override
+    public long bytesRead() {
+        return stream.position();
+    }
+
+    @Override
+    protected Schema readSchema() throws IOException {
+        MessageMetadataResult result = readMessage();
+        if (result == null) {
+            throw new IOException("ZeroCopyStreamReader: unexpected end of stream before the schema");
+        }
+        if (result.headerType() != MessageHeader.Schema) {
+            throw new IOException("ZeroCopyStreamReader: expected a Schema message but the header type was " + result.headerType());
+        }
+        return MessageSerializer.deserializeSchema(result);
+    }
+
+    @Override
+    public boolean loadNextBatch() throws IOException {
+        prepareLoadNextBatch();
+        MessageMetadataResult result = readMessage();
+        // Dictionary batches may come before any record batch
+        while ( (result != null) && (result.headerType() == MessageHeader.DictionaryBatch) ) {
+            ArrowDictionaryBatch dictionaryBatch = MessageSerializer.deserializeDictionaryBatch(result, readBody(result));
+            loadDictionary(dictionaryBatch);
+            result = readMessage();
+        }
+        if (result == null) {
+            // End of the stream
+            return false;
+        }
+        if (result.headerType() != MessageHeader.RecordBatch) {
+            throw new IOException("ZeroCopyStreamReader: expected a RecordBatch message but the header type was " + result.headerType());
+        }
+        ArrowRecordBatch batch = MessageSerializer.deserializeRecordBatch(result, readBody(result));
+        loadRecordBatch(batch);
+        return true;
+    }
+
+    //
+    // Give up our reference to the stream memory; the release action runs once the vectors have
+    // released theirs too
+    //
+    @Override
+    protected void closeReadSource() {
+        if (!bSourceClosed) {
+            bSourceClosed = true;
+            streamBuf.getReferenceManager().release();
+        }
+    }
+
+    //
+    // Metadata of the next message (a flatbuffer read in place), or null at the end of the stream.
+    // Each message is: an optional continuation token (0xFFFFFFFF), the metadata length (int32), the
+    // metadata, then the message body.
+    //
+    private MessageMetadataResult readMessage() throws IOException {
+        if (stream.remaining() < 4) {
+            return null;
+        }
+        int metadataLength = stream.getInt();
+        if (metadataLength == MessageSerializer.IPC_CONTINUATION_TOKEN) {
+            if (stream.remaining() < 4) {
+                return null;
+            }
+            metadataLength = stream.getInt();
+        }
+        if (metadataLength == 0) {
+            // End of stream marker
+            return null;
+        }
+        if ( (metadataLength < 0) || (metadataLength > stream.remaining()) ) {
+            throw new IOException("ZeroCopyStreamReader: message at offset " + (stream.position() - 4) + " is larger than the rest of the stream");
+        }
+        ByteBuffer metadata = stream.slice().order(ByteOrder.LITTLE_ENDIAN);
+        metadata.limit(metadataLength);
+        stream.position(stream.position() + metadataLength);
+        return MessageMetadataResult.create(metadata, metadataLength);
+    }
+
+    //
+    // The body of the given message, as a slice of the stream buffer. Deserializing the message
+    // releases the body once its buffers have been taken, so the slice carries a reference of its own.
+    //
+    private ArrowBuf readBody(MessageMetadataResult resultI) throws IOException {
+        long bodyLength = resultI.getMessageBodyLength();
+        if ( (bodyLength < 0) || (bodyLength > stream.remaining()) ) {
+            throw new IOException("ZeroCopyStreamReader: message body at offset " + stream.position() + " is larger than the rest of the stream");
+        }
+        ArrowBuf body = streamBuf.slice(stream.position(), bodyLength);
+        body.getReferenceManager().retain();
+        stream.position(stream.position() + (int)bodyLength);
+        return body;
+    }
+
+}
@@ -0,0 +1,91 @@
+/*
+Copyright 2020 Erigo
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+
+package org.apache.arrow.memory;
+
+import java.nio.ByteBuffer;
+
+import org.apache.arrow.memory.util.MemoryUtil;
+
+//
+// An AllocationManager for memory which Arrow didn't allocate, e.g. a sealed Plasma object or a
+// mapped file: wrap() returns an ArrowBuf over the memory of a direct ByteBuffer, without copying
+// it. The ArrowBuf and its slices are reference counted like any other; when the last of them is
+// released, the given release action runs (e.g. PlasmaClient.release()) instead of memory being
+// freed. The memory is counted against the allocator (so leaks show up as for other buffers),
+// but it isn't subject to the allocator's limit.
+//
+// The ByteBuffer must stay valid until the release action has run; since Arrow reads and writes
+// the memory through its address, a read-only ByteBuffer is wrapped the same way (don't write to
+// the returned ArrowBuf in that case).
+//
+// This class is in the org.apache.arrow.memory package for the same reason as
+// PooledAllocationManager: in Arrow 1.0.1, an AllocationManager must be constructed with a
+// BaseAllocator, and buffers can only be created from one inside this package.
+//
+public final class ForeignAllocationManager extends AllocationManager {
+
+    private final long address;
+    private final long size;
+    private final Runnable releaseAction;
+    // Keeps the ByteBuffer (and so the memory behind it) reachable while the ArrowBuf is in use
+    private final ByteBuffer byteBuffer;
+
+    private ForeignAllocationManager(BaseAllocator accountingAllocatorI, ByteBuffer bufferI, Runnable releaseActionI) {
+        super(accountingAllocatorI);
+        byteBuffer = bufferI;
+        address = MemoryUtil.getByteBufferAddress(bufferI) + bufferI.position();
+        size = bufferI.remaining();
+        releaseAction = releaseActionI;
+    }
+
+    //
+    // An ArrowBuf over the remaining bytes of the given direct ByteBuffer, owned by the given
+    // allocator. releaseActionI (may be null) runs once the ArrowBuf and every buffer sliced or
+    // transferred from it have been released.
+    //
+    public static ArrowBuf wrap(BufferAllocator allocatorI, ByteBuffer bufferI, Runnable releaseActionI) {
+        if (!bufferI.isDirect()) {
+            throw new IllegalArgumentException("ForeignAllocationManager: only direct ByteBuffers can be wrapped");
+        }
+        if (!(allocatorI instanceof BaseAllocator)) {
+            throw new IllegalArgumentException("ForeignAllocationManager: unsupported allocator type " + allocatorI.getClass().getName());
+        }
+        BaseAllocator allocator = (BaseAllocator)allocatorI;
+        ForeignAllocationManager manager = new ForeignAllocationManager(allocator, bufferI, releaseActionI);
+        // Account for the memory, as the allocator does for the buffers it allocates; it is given
+        // back when the ledger is released
+        allocator.forceAllocate(manager.size);
+        BufferLedger ledger = manager.associate(allocator);
+        return ledger.newArrowBuf(manager.size, null);
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    protected long memoryAddress() {
+        return address;
+    }
+
+    protected void release0() {
+        if (releaseAction != null) {
+            releaseAction.run();
+        }
+    }
+
+}
@@ -0,0 +1,189 @@
+/*
+Copyright 2020 Erigo
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package org.apache.arrow.memory;
+
+import org.apache.arrow.memory.util.MemoryUtil;
+
+//
+// An AllocationManager whose memory comes from, and goes back to, a size-classed pool.
+//
+// Memory is allocated in power-of-2 size classes. When the last ArrowBuf using a block is
+// released, the block is kept in its class's free list (up to a limit on the total retained
+// memory) instead of being freed, and the next allocation of that class reuses it. Steady-state
+// ingest (resetting, reallocating and slicing vectors batch after batch) then stops going to the
+// system allocator. As with Arrow's other allocation managers, new memory isn't zeroed; vectors
+// zero the buffers they allocate themselves.
+//
+// This class is in the org.apache.arrow.memory package because, in Arrow 1.0.1, an
+// AllocationManager must be constructed with a BaseAllocator, which is package-private.
+//
+// Usage:
+//
+//     RootAllocator allocator = PooledAllocationManager.newRootAllocator(Long.MAX_VALUE);
+//
+public final class PooledAllocationManager extends AllocationManager {
+
+    // Smallest and largest pooled size classes; larger blocks are allocated and freed directly
+    private static final int MIN_CLASS = 6;     // 64 bytes
+    private static final int MAX_CLASS = 26;    // 64 MB
+
+    public static final long DEFAULT_MAX_RETAINED = 256L * 1024L * 1024L;
+
+    private final Pool pool;
+    private final long size;
+    private final int sizeClass;
+    private final long address;
+
+    private PooledAllocationManager(BaseAllocator accountingAllocatorI, Pool poolI, long sizeI) {
+        super(accountingAllocatorI);
+        pool = poolI;
+        size = sizeI;
+        sizeClass = sizeClassOf(sizeI);
+        address = pool.take(sizeClass, sizeI);
+    }
+
+    //
+    // A RootAllocator whose buffers come from a new pool (retaining at most DEFAULT_MAX_RETAINED bytes)
+    //
+    public static RootAllocator newRootAllocator(long limitI) {
+        return newRootAllocator(limitI, new Pool(DEFAULT_MAX_RETAINED));
+    }
+
+    public static RootAllocator newRootAllocator(long limitI, Pool poolI) {
+        return new RootAllocator(BaseAllocator.configBuilder().maxAllocation(limitI).allocationManagerFactory(poolI).build());
+    }
+
+    //
+    // The size accounted by the allocator is the size asked for, not the size of the pooled block
+    //
+    public long getSize() {
+        return size;
+    }
+
+    protected long memoryAddress() {
+        return address;
+    }
+
+    protected void release0() {
+        pool.give(sizeClass, address, size);
+    }
+
+    //
+    // Size class of a block holding sizeI bytes: log2 of the block size, or -1 if it isn't pooled
+    //
+    private static int sizeClassOf(long sizeI) {
+        int sizeClass = Math.max(MIN_CLASS, 64 - Long.numberOfLeadingZeros(sizeI - 1));
+        return (sizeClass <= MAX_CLASS) ? sizeClass : -1;
+    }
+
+    //
+    // The free lists; one Pool is shared by an allocator and all of its child allocators
+    //
+    public static final class Pool implements AllocationManager.Factory {
+
+        private final long maxRetained;
+        private final long[][] freeLists = new long[MAX_CLASS + 1][];
+        private final int[] freeCounts = new int[MAX_CLASS + 1];
+        private long retainedBytes = 0;
+
+        // Statistics
+        public long hits = 0;
+        public long misses = 0;
+        public long freed = 0;
+
+        //
+        // maxRetainedI: most memory (bytes) kept in the free lists; blocks released beyond this are freed
+        //
+        public Pool(long maxRetainedI) {
+            maxRetained = maxRetainedI;
+            for (int i = MIN_CLASS; i <= MAX_CLASS; ++i) {
+                freeLists[i] = new long[8];
+            }
+        }
+
+        public AllocationManager create(BaseAllocator accountingAllocatorI, long sizeI) {
+            return new PooledAllocationManager(accountingAllocatorI, this, sizeI);
+        }
+
+        public ArrowBuf empty() {
+            return UnsafeAllocationManager.FACTORY.empty();
+        }
+
+        public synchronized long getRetainedBytes() {
+            return retainedBytes;
+        }
+
+        //
+        // Free all of the retained blocks (e.g. once the allocator is closed)
+        //
+        public synchronized void trim() {
+            for (int i = MIN_CLASS; i <= MAX_CLASS; ++i) {
+                for (int j = 0; j < freeCounts[i]; ++j) {
+                    MemoryUtil.UNSAFE.freeMemory(freeLists[i][j]);
+                }
+                freeCounts[i] = 0;
+            }
+            retainedBytes = 0;
+        }
+
+        public synchronized String toString() {
+            return "PooledAllocationManager.Pool: " + hits + " reused, " + misses + " allocated, " + freed + " freed, " + retainedBytes + " bytes retained";
+        }
+
+        private long take(int sizeClassI, long sizeI) {
+            if (sizeClassI >= 0) {
+                synchronized (this) {
+                    if (freeCounts[sizeClassI] > 0) {
+                        ++hits;
+                        retainedBytes -= 1L << sizeClassI;
+                        return freeLists[sizeClassI][--freeCounts[sizeClassI]];
+                    }
+                    ++misses;
+                }
+                return MemoryUtil.UNSAFE.allocateMemory(1L << sizeClassI);
+            }
+            synchronized (this) {
+                ++misses;
+            }
+            return MemoryUtil.UNSAFE.allocateMemory(sizeI);
+        }
+
+        private void give(int sizeClassI, long addressI, long sizeI) {
+            if (sizeClassI >= 0) {
+                synchronized (this) {
+                    long blockSize = 1L << sizeClassI;
+                    if (retainedBytes + blockSize <= maxRetained) {
+                        if (freeCounts[sizeClassI] == freeLists[sizeClassI].length) {
+                            long[] bigger = new long[freeLists[sizeClassI].length * 2];
+                            System.arraycopy(freeLists[sizeClassI], 0, bigger, 0, freeCounts[sizeClassI]);
+                            freeLists[sizeClassI] = bigger;
+                        }
+                        freeLists[sizeClassI][freeCounts[sizeClassI]++] = addressI;
+                        retainedBytes += blockSize;
+                        return;
+                    }
+                }
+            }
+            synchronized (this) {
+                ++freed;
+            }
+            MemoryUtil.UNSAFE.freeMemory(addressI);
+        }
+
+    }
+
+}
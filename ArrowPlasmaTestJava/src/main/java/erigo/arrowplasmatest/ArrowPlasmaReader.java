@@ -0,0 +1,117 @@
+/*
+Copyright 2020 Erigo
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+
+/*
+
+ArrowPlasmaReader
+
+Reads the Arrow record batches which ArrowPlasmaTest writes to a Plasma in-memory
+object store (which must be running at "/tmp/plasma") and prints them; this is the
+Java counterpart of read_from_arrow_plasma.py.
+
+The batches aren't copied out of the store: the vectors point straight into the
+sealed Plasma object (see ZeroCopyStreamReader in ArrowCommon), and the object is
+released back to the store once the reader and its batches are closed.
+
+Usage: ArrowPlasmaReader [<object ID, as 40 hex digits>]
+The default object ID is the one ArrowPlasmaTest writes the record batches to (20 bytes of 0x02).
+
+*/
+
+package erigo.arrowplasmatest;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import erigo.arrowcommon.ZeroCopyStreamReader;
+
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.memory.RootAllocator;
+import org.apache.arrow.plasma.PlasmaClient;
+import org.apache.arrow.vector.VectorSchemaRoot;
+
+public class ArrowPlasmaReader {
+
+	public static void main(String[] arg) {
+		byte[] id = new byte[20];
+		Arrays.fill(id, (byte) 2);
+		if (arg.length > 0) {
+			id = parseID(arg[0]);
+			if (id == null) {
+				System.err.println("Error: the object ID must be 40 hex digits");
+				return;
+			}
+		}
+
+		System.loadLibrary("plasma_java");
+		PlasmaClient client = new PlasmaClient("/tmp/plasma", "", 0);
+		BufferAllocator allocator = new RootAllocator(Long.MAX_VALUE);
+		try (ZeroCopyStreamReader reader = open(client, id, 1000, allocator)) {
+			if (reader == null) {
+				System.err.println("Error: object not found in Plasma");
+				return;
+			}
+			VectorSchemaRoot root = reader.getVectorSchemaRoot();
+			System.err.println("schema: " + root.getSchema());
+			int batchNum = 0;
+			while (reader.loadNextBatch()) {
+				System.err.println("\nrecord batch " + batchNum + " (" + root.getRowCount() + " rows):");
+				System.err.print(root.contentToTSVString());
+				++batchNum;
+			}
+			System.err.println("\nread " + batchNum + " record batches (" + reader.bytesRead() + " bytes) in place");
+		} catch (IOException ioe) {
+			System.err.println(ioe);
+		}
+		allocator.close();
+	}
+
+	//
+	// Get the given sealed object from Plasma and open a reader on its memory, without copying it.
+	// The object is released back to Plasma once the reader, and any vectors taken from it, are closed.
+	// Returns null if the object isn't available within timeoutMsI milliseconds.
+	//
+	public static ZeroCopyStreamReader open(PlasmaClient clientI, byte[] idI, int timeoutMsI, BufferAllocator allocatorI) {
+		ByteBuffer buf = clientI.getObjAsByteBuffer(idI, timeoutMsI, false);
+		if (buf == null) {
+			return null;
+		}
+		byte[] id = idI.clone();
+		return new ZeroCopyStreamReader(buf, () -> clientI.release(id), allocatorI);
+	}
+
+	//
+	// Object ID from a string of 40 hex digits; null if the string isn't valid
+	//
+	private static byte[] parseID(String idStrI) {
+		if (idStrI.length() != 40) {
+			return null;
+		}
+		byte[] id = new byte[20];
+		for (int i = 0; i < 20; ++i) {
+			int hi = Character.digit(idStrI.charAt(2 * i), 16);
+			int lo = Character.digit(idStrI.charAt(2 * i + 1), 16);
+			if ( (hi < 0) || (lo < 0) ) {
+				return null;
+			}
+			id[i] = (byte)((hi << 4) | lo);
+		}
+		return id;
+	}
+
+} //end class ArrowPlasmaReader
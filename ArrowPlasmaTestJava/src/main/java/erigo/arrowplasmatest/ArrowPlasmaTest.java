@@ -21,6 +21,9 @@ ArrowPlasmaTest
 Simple Java program which writes Arrow record batches to a Plasma in-memory
 object store (which must be running at "/tmp/plasma").
 
+If a shared memory ring file is given on the command line (e.g. /dev/shm/arrowtest),
+the same objects are written to that ring buffer instead of Plasma.
+
 John Wilson, Erigo Technologies
 
 Simple Java Arrow test using Plasma in-memory object store
@@ -38,6 +41,8 @@ import java.nio.channels.Channels;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
 
+import erigo.arrowcommon.ShmRingWriter;
+
 import org.apache.arrow.memory.*;
 import org.apache.arrow.plasma.PlasmaClient;
 import org.apache.arrow.vector.*;
@@ -58,15 +63,34 @@ public class ArrowPlasmaTest {
 		// Number of samples in each channel per batch
 		int batchSize = 10;
 
-		// Write out some bytes to Plasma
-		System.loadLibrary("plasma_java");
-		PlasmaClient client = new PlasmaClient("/tmp/plasma", "", 0);
+		// Write to a shared memory ring instead of Plasma?
+		ShmRingWriter shmWriter = null;
+		ShmRingWriter.Message shmMsg = null;
+		PlasmaClient client = null;
 		byte[] id = new byte[20];
 		Arrays.fill(id, (byte) 1);
 		byte[] value = new byte[20];
 		Arrays.fill(value, (byte) 97);
-		client.put(id, value, null);
-		//client.seal(id);
+		byte[] nextID = new byte[20];
+		Arrays.fill(nextID, (byte) 2);
+		if (arg.length > 0) {
+			// Write out some bytes to the ring; the record batches which follow are
+			// serialized straight into a second ring record
+			try {
+				shmWriter = new ShmRingWriter(arg[0], 16L * 1024L * 1024L);
+				shmWriter.put(id, value);
+				shmMsg = shmWriter.begin(nextID);
+			} catch (IOException ioe) {
+				System.err.println(ioe);
+				return;
+			}
+		} else {
+			// Write out some bytes to Plasma
+			System.loadLibrary("plasma_java");
+			client = new PlasmaClient("/tmp/plasma", "", 0);
+			client.put(id, value, null);
+			//client.seal(id);
+		}
 
 		// Write a record batch to Plasma
 		RootAllocator allocator = new RootAllocator(Long.MAX_VALUE);
@@ -87,7 +111,7 @@ public class ArrowPlasmaTest {
 		VectorSchemaRoot root = new VectorSchemaRoot(fields, vectors);
 
 		ByteArrayOutputStream out = new ByteArrayOutputStream();
-		ArrowStreamWriter writer = new ArrowStreamWriter(root, /*DictionaryProvider=*/null, Channels.newChannel(out));
+		ArrowStreamWriter writer = new ArrowStreamWriter(root, /*DictionaryProvider=*/null, (shmMsg != null) ? shmMsg : Channels.newChannel(out));
 		try {
 			writer.start();
 			root.setRowCount(batchSize);
@@ -113,11 +137,21 @@ public class ArrowPlasmaTest {
 				System.err.println(ioe);
 			}
 		}
+		if (shmMsg != null) {
+			// Finish the stream and publish it in the ring
+			try {
+				writer.end();
+				shmMsg.commit();
+				System.err.println("the record batches were written to shared memory ring " + arg[0] + " (" + shmWriter.bytesWritten + " bytes)");
+				shmWriter.close();
+			} catch (IOException ioe) {
+				System.err.println(ioe);
+			}
+			return;
+		}
 		//
 		// Write out to Plasma
 		//
-		byte[] nextID = new byte[20];
-		Arrays.fill(nextID, (byte) 2);
 		byte[] recordAsBytes = out.toByteArray();
 		System.err.println("the record batch contains " + recordAsBytes.length + " bytes");
 		// We could create a buffer in Plasma and then write into that buffer;
@@ -18,9 +18,10 @@ limitations under the License.
 
 CT2Arrow
 
-Read data from a CT source and write it as record batches to either an Arrow output file or to a
-Plasma in-memory object store. Each Arrow output file or Plasma object will contain one
-record batch.
+Read data from a CT source and write it as record batches to any combination of Arrow output
+files, a Plasma in-memory object store, a shared memory ring and a continuous Arrow stream. Each
+batch is serialized once and the same bytes are handed to every output, each on its own thread.
+Each Arrow output file or Plasma object will contain one record batch.
 
 Channels for PHM08 data:
 {"unit.i32","time.i32","op1.f32","op2.f32","op3.f32","sensor01.f32","sensor02.f32","sensor03.f32","sensor04.f32","sensor05.f32","sensor06.f32","sensor07.f32","sensor08.f32","sensor09.f32","sensor10.f32","sensor11.f32","sensor12.f32","sensor13.f32","sensor14.f32","sensor15.f32","sensor16.f32","sensor17.f32","sensor18.f32","sensor19.f32","sensor20.f32","sensor21.f32"}
@@ -43,24 +44,42 @@ https://github.com/animeshtrivedi/ArrowExample/blob/master/src/main/java/com/git
 
 package erigo.ct2arrow;
 
-import java.io.ByteArrayOutputStream;
-import java.io.FileNotFoundException;
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.channels.Channels;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import cycronix.ctlib.CTdata;
 import cycronix.ctlib.CTmap;
 import cycronix.ctlib.CTreader;
 
+import erigo.arrowcommon.ArrowFileSink;
+import erigo.arrowcommon.ArrowStreamSink;
+import erigo.arrowcommon.BatchSink;
+import erigo.arrowcommon.ColumnStats;
+import erigo.arrowcommon.FanOut;
+import erigo.arrowcommon.IpcBatch;
+import erigo.arrowcommon.PartitionedArrowSink;
+import erigo.arrowcommon.PartitionedArrowWriter;
+import erigo.arrowcommon.ParquetSink;
+import erigo.arrowcommon.ShmRingSink;
+import erigo.arrowcommon.ShmRingWriter;
+import erigo.arrowcommon.TimeBucketRollup;
+import erigo.arrowcommon.TimeIndex;
+
 import org.apache.arrow.vector.ipc.ArrowFileWriter;
 import org.apache.commons.cli.*;
 
 import org.apache.arrow.memory.*;
 import org.apache.arrow.plasma.PlasmaClient;
 import org.apache.arrow.vector.*;
-import org.apache.arrow.vector.ipc.ArrowStreamWriter;
 import org.apache.arrow.vector.types.pojo.*;
 
 public class CT2Arrow {
@@ -68,6 +87,32 @@ public class CT2Arrow {
 	// Data types
 	public enum DataType {INT_DATA, FLOAT_DATA, DOUBLE_DATA, STRING_DATA}
 
+	//
+	// Hooks for running CT2Arrow inside another program, e.g. the CT2ArrowLoadTest harness
+	//
+	public interface Monitor {
+		// Called once the buffer allocator has been created
+		default void started(BufferAllocator allocatorI) {}
+		// Called after each batch (with key channels, each key's batch) has been handed to the outputs;
+		// the times are the CT times (sec) of its first and last rows and flushNanosI is how long the
+		// flush took
+		void batchFlushed(int numRowsI, double firstTimeI, double lastTimeI, long flushNanosI);
+		// Polled by the main loop; once this returns true, CT2Arrow writes out the rows it holds, closes
+		// its outputs and returns
+		boolean isStopRequested();
+	}
+
+	// Hooks (null when run from the command line)
+	private final Monitor monitor;
+
+	// Have the outputs been closed?
+	private boolean bOutputsClosed = false;
+
+	// Set by the shutdown hook; the main loop then stops as it does for Monitor.isStopRequested(),
+	// and ingestDone is counted down once it has written out the rows it held
+	private volatile boolean bShutdown = false;
+	private final CountDownLatch ingestDone = new CountDownLatch(1);
+
 	// Map containing all of the DataContainer objects
 	LinkedHashMap<String,DataContainer> hashMap = new LinkedHashMap<>();
 
@@ -76,33 +121,121 @@ public class CT2Arrow {
 	// Time (msec) between flushing data to Arrow file or Plasma
 	int flushPeriod_msec = 60000;
 
-	// How much data to request when determining the next timestamp.
-	// Good to keep this value smaller when walking through an existing CT source
-	// and larger when reading live data.
+	// Also flush once a batch holds this many rows (0 = flush on time and trigger only). Together with
+	// a short flush period this gives small, frequent batches for low-latency consumers of "-stream";
+	// the flush period bounds how long a row waits, the row limit bounds the batch size.
+	int maxBatchRows = 0;
+
+	// How long (msec) to sleep between checks for new data; shortened for flush periods under 200 msec
+	int pollPeriod_msec = 100;
+
+	// The most data to request at once when determining the next timestamp; the next timestamp
+	// cursor adapts its request window to the data rate but never looks further ahead than this.
 	double next_timestamp_dur_sec = 1000000.0;
 
 	// Run in debug mode?
 	boolean bDebug = false;
 
-	// Write data to Plasma? If this is false, write to Arrow file.
+	// Write data to Plasma?
 	boolean bPlasma = false;
 
+	// What to do when the Plasma store is full, and how many times to try each batch before giving up on it
+	PlasmaSink.FullPolicy plasmaFullPolicy = PlasmaSink.FullPolicy.EVICT;
+	int plasmaRetries = 8;
+
+	// Write one Arrow file per batch to the current folder? This is the default when no other output is given.
+	boolean bArrowFiles = false;
+
+	// Continuous Arrow stream (file or named pipe) to write the batches to (null if not used); with
+	// column groups, each group gets its own stream at <path>_g<group>
+	String streamPath = null;
+
+	// Most batches which may wait for any one output before that output starts dropping batches
+	int sinkQueueSize = 16;
+
+	// Shared memory ring to write data to (null if not used)
+	String shmPath = null;
+	long shmSize_MB = 64;
+	ShmRingWriter shmWriter = null;
+
 	// How many record batches we have written out?
 	int batchNum = 0;
 
+	// Root folder of the CloudTurbine data; the source is a folder under this
+	String ct_rootFolder = "CTdata";
+
 	// Input source name
-	// This is a command-line argument. Leave off the "CTdata" root folder.
+	// This is a command-line argument. Leave off the root folder.
 	String ct_sourceName = null;
 
 	String[] ct_chanNames = null;
 	String[] arrow_chanNames = null;
 	DataType[] chanDataTypes = null;
+	// For channels which carry a block of samples at each timestamp: the number of samples per block
+	// (0 = variable); -1 for ordinary single-value channels
+	int[] chanListSizes = null;
 
 	// Create a separate container to hold CT timestamps
-	DoubleDataContainer ct_timestamp_dc = null;
+	TimestampDataContainer ct_timestamp_dc = null;
+
+	// Store ct_timestamp as an Arrow timestamp (microseconds, UTC) rather than as a double in seconds?
+	boolean bNativeTime = false;
 
 	String triggerChan = null;
 
+	// Key-partitioned batching (null = all rows go into one shared batch): rows are routed by the
+	// values of these channels into per-key batches, each flushed on its own row count ("-rows"),
+	// size and age ("-f") limits
+	String[] keyChans = null;
+	long maxKeyBytes = 0;
+	KeyPartitioner keyPartitioner = null;
+
+	// Fetch channels concurrently using this many threads (0 = use a single multi-channel CTmap request)
+	int numFetchThreads = 0;
+	ParallelFetcher fetcher = null;
+
+	// Hold rows until all channels' data has arrived or the lateness watermark (seconds) has passed
+	// (null = look for each row's data twice, with a short wait, and store null for what is missing)
+	ReorderBuffer reorderBuffer = null;
+	double lateness_sec = -1;
+	int reorderSize = 1000;
+	// Wall clock time (msec) of the last look for the channels the reorder buffer is missing
+	long lastRefetchTime = 0;
+
+	// Align channels with different sample rates (null = require a sample at each timestamp on every channel)
+	ChannelAligner.AlignMode alignMode = null;
+	double alignTolerance_sec = 1.0;
+	ChannelAligner.FillPolicy alignFill = ChannelAligner.FillPolicy.NULL;
+	ChannelAligner aligner = null;
+
+	// Column groups; each has its own root and output (a single group unless the channels are split up)
+	// Channel i belongs to group chanGroups[i]
+	int[] chanGroups = null;
+	ColumnGroup[] groups = null;
+	// Writes the groups of a batch, and the batches of keys which are due at the same time, in
+	// parallel (null if there is only one group and no key partitioning)
+	ExecutorService groupWriter = null;
+
+	// Optional Arrow Flight server which makes flushed batches available to local consumers;
+	// with column groups, group g is served at flightPort+g
+	int flightPort = -1;
+	int flightHistorySize = 100;
+
+	// Root folder of the time-partitioned output layout (null = write each batch to its own file in the
+	// current folder) and the size at which partition files are rolled over
+	String outRootDir = null;
+	long rollSize_MB = 128;
+
+	// Optional Parquet output, written alongside the Arrow output (null = no Parquet files); the
+	// files are rolled over at the same size as partition files
+	String parquetDir = null;
+	String parquetCodec = "SNAPPY";
+
+	// Optional time-bucket rollups of the numeric channels (null = no rollups); one output file
+	// series per bucket size (and column group)
+	String[] rollupNames = null;
+	double[] rollupSizes_sec = null;
+
 	//
 	// Main function
 	//
@@ -120,6 +253,15 @@ public class CT2Arrow {
 	// Everything happens in this method
 	//
 	public CT2Arrow(String[] argsI) throws Exception {
+		this(argsI, null);
+	}
+
+	//
+	// Run with the given hooks (see Monitor); returns once stopped
+	//
+	public CT2Arrow(String[] argsI, Monitor monitorI) throws Exception {
+
+		monitor = monitorI;
 
 		//
 		// Argument processing using Apache Commons CLI
@@ -128,11 +270,37 @@ public class CT2Arrow {
 		Options options = new Options();
 		options.addOption("h", "help", false, "Print this message.");
 		options.addOption(Option.builder("s").argName("source name").hasArg().desc("Name of the CloudTurbine source to read data from; this source name can be up to 13 characters long.").build());
-		options.addOption(Option.builder("chans").argName("channel name(s)").hasArg().desc("Comma-separated list of channel names; supported channel name suffixes and their associated data types: .txt (string), .i32 (32-bit integer), .f32 (32-bit floating point), .f64 (64-bit floating point).").build());
+		options.addOption(Option.builder("ctroot").argName("folder").hasArg().desc("Root folder of the CloudTurbine data, which holds the source folder; default = \"" + ct_rootFolder + "\".").build());
+		options.addOption(Option.builder("chans").argName("channel name(s)").hasArg().desc("Comma-separated list of channel names; supported channel name suffixes and their associated data types: .txt (string), .i32 (32-bit integer), .f32 (32-bit floating point), .f64 (64-bit floating point). For a .i32, .f32 or .f64 channel which carries a block of samples at each timestamp, add \"[N]\" (e.g. vib.f32[1024]) to store each block as a fixed size list of N samples, or \"[]\" to store blocks of varying length as a list. To split a wide source into column groups, separate the groups with semicolons (e.g. \"a.f32,b.f32;c.f32,d.f32\"); each group is written as its own record batches (which all include ct_timestamp), in parallel.").build());
+		options.addOption(Option.builder("gs").argName("group size").hasArg().desc("Split the channels into column groups of (at most) this many channels, in the order given by \"-chans\"; an alternative to separating the groups with semicolons.").build());
 		options.addOption(Option.builder("f").argName("flush time").hasArg().desc("Flush interval (msec); specifies amount of time between flushing data to Arrow file or Plasma object; must be an integer greater than or equal to 0; default = " + Integer.toString(flushPeriod_msec) + ".").build());
-		options.addOption(Option.builder("t").argName("trigger channel").hasArg().desc("Data will be flushed to Arrow file or Plasma object when the value of this CloudTurbine input channel changes. Periodic flush is still used as a secondary flushig mechanism. The specified channel must be one of the CloudTurbine input channels and it must have a \".i32\" extension.").build());
-		options.addOption(Option.builder("d").argName("next timestamp duration").hasArg().desc("How much data (in seconds) to request when determining the next timestamp. Good to keep this value smaller when walking through an existing CT source and larger when reading live data; default = " + Double.toString(next_timestamp_dur_sec)).build());
-		options.addOption("p", "plasma", false, "Write data to a Plasma object store; without this option (i.e. by default) output is written to Arrow file.");
+		options.addOption(Option.builder("rows").argName("num rows").hasArg().desc("Also flush data once a batch holds this many rows; by default, data is only flushed on the flush interval (and trigger channel). For low-latency streaming, combine a short flush interval (e.g. \"-f 100\") with \"-stream\". With \"-key\", applies to each key's batch.").build());
+		options.addOption(Option.builder("t").argName("trigger channel").hasArg().desc("Data will be flushed to Arrow file or Plasma object when the value of this CloudTurbine input channel changes. Periodic flush is still used as a secondary flushig mechanism. The specified channel must be one of the CloudTurbine input channels and it must have a \".i32\" extension. See also \"-key\".").build());
+		options.addOption(Option.builder("key").argName("key channel(s)").hasArg().desc("Comma-separated list of key channels (any single-value channels from \"-chans\", including .txt channels); rows are collected into a separate batch for each key (each combination of key channel values), so batches stay large and hold one key even when keys interleave. Each key's batch is flushed once its oldest row is older than the flush interval (\"-f\"), or it holds \"-rows\" rows or \"-kbytes\" of data; batches of keys which are due together are written in parallel. The batches of different keys overlap in time, so ct_timestamp is then not marked as sorted. Can't be used with \"-t\".").build());
+		options.addOption(Option.builder("kbytes").argName("size (KB)").hasArg().desc("With \"-key\", also flush a key's batch once its data reaches this size, in KB.").build());
+		options.addOption(Option.builder("d").argName("next timestamp duration").hasArg().desc("The most data (in seconds) to request at once when determining the next timestamp; the timestamps are read a window at a time, with the window size adapting to the data rate up to this limit; default = " + Double.toString(next_timestamp_dur_sec)).build());
+		options.addOption(Option.builder("pf").argName("num threads").hasArg().desc("Fetch the CloudTurbine channels in parallel, making individual requests on each channel using up to this many concurrent requests; useful for sources with many channels. By default, all channels are fetched with one multi-channel request.").build());
+		options.addOption(Option.builder("align").argName("asof|nearest").hasArg().desc("Align channels with different sample rates to the timestamps of the first channel (or trigger channel): \"asof\" uses each channel's latest sample at or before the timestamp, \"nearest\" uses the closest sample. By default, every channel must have a sample at each timestamp.").build());
+		options.addOption(Option.builder("late").argName("lateness (sec)").hasArg().desc("Hold each row in a reorder buffer until every channel has data at its timestamp, or until the timing channel is this many seconds past the row (or the row has waited this long); missing data is looked for again, without holding up new rows, and rows are written in timestamp order with null for any channel still missing. For sources whose channels can arrive late, e.g. when transmitted via Syncthing. Not used with \"-align\".").build());
+		options.addOption(Option.builder("rb").argName("num rows").hasArg().desc("With \"-late\", most rows the reorder buffer holds; beyond that, the oldest row is written as it is; default = " + Integer.toString(reorderSize) + ".").build());
+		options.addOption(Option.builder("tol").argName("tolerance").hasArg().desc("With \"-align\", how far (in seconds) a sample may be from the timestamp and still be used; default = " + Double.toString(alignTolerance_sec) + ".").build());
+		options.addOption(Option.builder("fill").argName("last|interp|null").hasArg().desc("With \"-align\", what to store when no sample is within tolerance: \"last\" (the latest earlier sample), \"interp\" (linear interpolation; the earlier sample for string channels) or \"null\"; default = null.").build());
+		options.addOption("p", "plasma", false, "Write data to a Plasma object store. The \"-p\", \"-shm\", \"-stream\" and \"-file\" outputs may be combined; each batch is serialized once and written to all of them in parallel. Without any of these options (or \"-out\"), output is written to Arrow files.");
+		options.addOption(Option.builder("pfull").argName("evict|block").hasArg().desc("With \"-p\", what to do when the Plasma store is full: \"evict\" deletes this program's oldest objects from the store to make room, \"block\" waits (with exponential backoff) for space; meanwhile new batches wait in the output queue (see \"-sq\"); default = " + plasmaFullPolicy.name().toLowerCase() + ".").build());
+		options.addOption(Option.builder("pretry").argName("num retries").hasArg().desc("With \"-p\", how many times to retry a batch while the Plasma store is full before giving up on it (batches given up on are counted in the statistics printed at exit); default = " + Integer.toString(plasmaRetries) + ".").build());
+		options.addOption("file", "arrowfile", false, "Write one Arrow file per batch to the current folder; this is the default when no other output is given. The time range of each file is listed in <source>" + TimeIndex.INDEX_SUFFIX + " (<source>_g<group>" + TimeIndex.INDEX_SUFFIX + " with column groups), which ArrowScan's \"-tindex\" option uses to find a time range.");
+		options.addOption("nativetime", false, "Store ct_timestamp as an Arrow timestamp (microseconds since the epoch, UTC) instead of a double (seconds since the epoch); rollup bucket_start values are then also in microseconds.");
+		options.addOption(Option.builder("stream").argName("path").hasArg().desc("Write the batches as one continuous Arrow IPC stream to the given file or named pipe, to standard output (\"-\") or to a TCP consumer listening at \"tcp:<host>:<port>\". With column groups, group g is written to <path>_g<g> (or port+g); standard output only supports one group.").build());
+		options.addOption(Option.builder("sq").argName("num batches").hasArg().desc("Most batches which may be waiting for any one output; an output which falls further behind drops its oldest waiting batches rather than holding up the others; default = " + Integer.toString(sinkQueueSize) + ".").build());
+		options.addOption(Option.builder("flight").argName("port").hasArg().desc("Also serve flushed record batches from an Arrow Flight server on localhost at the given port. DoGet tickets: \"live\" (new batches as they are flushed), \"history[:t0[:t1]]\" (recent batches overlapping the given CT time range) or \"follow[:t0]\" (history from t0 on, then live). With column groups, group g is served at port+g.").build());
+		options.addOption(Option.builder("fh").argName("num batches").hasArg().desc("Number of recent record batches the Arrow Flight server keeps in memory to serve history requests; default = " + Integer.toString(flightHistorySize) + ".").build());
+		options.addOption(Option.builder("out").argName("root folder").hasArg().desc("Write Arrow files into a time-partitioned layout under the given folder, <root>/<source>/date=YYYY-MM-DD/hour=HH/part-N.arrow, based on ct_timestamp, instead of one file per batch in the current folder; each partition has a _manifest.tsv listing its files.").build());
+		options.addOption(Option.builder("roll").argName("size (MB)").hasArg().desc("With \"-out\" or \"-parquet\", start a new part file or Parquet file once the current one reaches this size, in MB; default = " + Long.toString(rollSize_MB) + ".").build());
+		options.addOption(Option.builder("parquet").argName("folder").hasArg().desc("Also write the record batches to Parquet files in the given folder (in addition to the Arrow files, Plasma objects or ring records), named <source>_p<num>.parquet (<source>_g<group>_p<num>.parquet with column groups); columns are dictionary encoded with page statistics.").build());
+		options.addOption(Option.builder("pcodec").argName("codec").hasArg().desc("With \"-parquet\", the compression codec: " + ParquetSink.SUPPORTED_CODECS + "; default = " + parquetCodec + ".").build());
+		options.addOption(Option.builder("shm").argName("ring file").hasArg().desc("Write data to a shared memory ring buffer at the given path (e.g. /dev/shm/ct2arrow); needs no Plasma store or native library.").build());
+		options.addOption(Option.builder("shmsize").argName("size (MB)").hasArg().desc("Size of the shared memory ring buffer, in MB; default = " + Long.toString(shmSize_MB) + ".").build());
+		options.addOption(Option.builder("rollup").argName("bucket sizes").hasArg().desc("Comma-separated list of bucket sizes in seconds (e.g. 1,60,3600); for each size, maintain the min, max, mean, last value and count of every numeric channel over time buckets of that size as data is ingested and write completed buckets to Arrow files named <source>_rollup<size>s_b<num>.arrow (<source>_g<group>_rollup<size>s_b<num>.arrow with column groups).").build());
 		options.addOption("x", "debug", false, "Debug mode.");
 
 		// 2. Parse command line options
@@ -160,18 +328,93 @@ public class CT2Arrow {
 		if (ct_sourceName.length() > 13) {
 			throw new Exception("CT source name is too long; must be 13 characters at most");
 		}
+		ct_rootFolder = line.getOptionValue("ctroot",ct_rootFolder);
 
 		if (!line.hasOption("chans")) {
 			System.err.println("Error: you must specify a comma-separated list of channel names");
 			return;
 		}
 		String chanNameL = line.getOptionValue("chans");
-		ct_chanNames = chanNameL.split(",");
+		// Column groups are separated by semicolons
+		String[] groupChanL = chanNameL.split(";");
+		ArrayList<String> chanList = new ArrayList<>();
+		ArrayList<Integer> groupList = new ArrayList<>();
+		for (int g = 0; g < groupChanL.length; ++g) {
+			if (groupChanL[g].trim().isEmpty()) {
+				System.err.println("Error: empty column group in the \"-chans\" list");
+				return;
+			}
+			for (String chan : groupChanL[g].split(",")) {
+				chanList.add(chan);
+				groupList.add(g);
+			}
+		}
+		ct_chanNames = chanList.toArray(new String[0]);
+		chanGroups = new int[ct_chanNames.length];
+		int numGroups = groupChanL.length;
+		if (line.hasOption("gs")) {
+			if (numGroups > 1) {
+				System.err.println("Error: specify column groups either with semicolons in the \"-chans\" list or with \"-gs\", not both");
+				return;
+			}
+			int groupSize = 0;
+			try {
+				groupSize = Integer.parseInt(line.getOptionValue("gs"));
+			} catch (NumberFormatException nfe) {
+				groupSize = 0;
+			}
+			if (groupSize < 1) {
+				System.err.println("Error: the column group size must be an integer greater than 0");
+				return;
+			}
+			for (int i = 0; i < ct_chanNames.length; ++i) {
+				chanGroups[i] = i / groupSize;
+			}
+			numGroups = (ct_chanNames.length + groupSize - 1) / groupSize;
+		} else {
+			for (int i = 0; i < ct_chanNames.length; ++i) {
+				chanGroups[i] = groupList.get(i);
+			}
+		}
+		if (numGroups > 100) {
+			System.err.println("Error: there can be at most 100 column groups");
+			return;
+		}
+		if ( (numGroups > 1) && (ct_sourceName.length() > 10) ) {
+			// Plasma object IDs need room for the group index
+			System.err.println("Error: with column groups, the CT source name must be 10 characters at most");
+			return;
+		}
+		groups = new ColumnGroup[numGroups];
+		for (int g = 0; g < numGroups; ++g) {
+			groups[g] = new ColumnGroup( (numGroups > 1) ? g : -1 );
+		}
 		// Generate arrow_chanNames and chanDataTypes from ct_chanNames
 		arrow_chanNames = new String[ct_chanNames.length];
 		chanDataTypes = new DataType[ct_chanNames.length];
+		chanListSizes = new int[ct_chanNames.length];
 		// Make sure that the channel names use one of the accepted suffix: .txt, .i32, .f32, .f64
 		for(int i=0; i<ct_chanNames.length; ++i) {
+			// Strip off an optional list specification, "[N]" or "[]"
+			chanListSizes[i] = -1;
+			int bracketIdx = ct_chanNames[i].lastIndexOf('[');
+			if ( (bracketIdx > 0) && ct_chanNames[i].endsWith("]") ) {
+				String sizeStr = ct_chanNames[i].substring(bracketIdx + 1, ct_chanNames[i].length() - 1).trim();
+				try {
+					chanListSizes[i] = sizeStr.isEmpty() ? 0 : Integer.parseInt(sizeStr);
+				} catch (NumberFormatException nfe) {
+					chanListSizes[i] = -1;
+				}
+				if ( (chanListSizes[i] < 0) || (sizeStr.equals("0")) ) {
+					System.err.println("Error: illegal list size specified in the \"-chans\" list: " + ct_chanNames[i]);
+					return;
+				}
+				ct_chanNames[i] = ct_chanNames[i].substring(0, bracketIdx);
+				if (ct_chanNames[i].endsWith(".txt")) {
+					System.err.println("Error: string (.txt) channels can't be stored as lists: " + ct_chanNames[i]);
+					return;
+				}
+			}
 			int dotIdx = ct_chanNames[i].lastIndexOf('.');
 			if ( (dotIdx < 0) || ( (dotIdx > -1) && (!ct_chanNames[i].endsWith(".txt")) && (!ct_chanNames[i].endsWith(".i32")) && (!ct_chanNames[i].endsWith(".f32")) && (!ct_chanNames[i].endsWith(".f64")) ) ) {
 				System.err.println("Error: illegal channel name specified in the \"-chans\" list: " + ct_chanNames[i]);
@@ -202,17 +445,53 @@ public class CT2Arrow {
 			// Also, as a temporary limitation, this must be a ".i32" channel
 			boolean bValidChan = false;
 			for (int i = 0; i < ct_chanNames.length; ++i) {
-				if ( (triggerChan.equals(ct_chanNames[i])) && (triggerChan.endsWith(".i32")) ) {
+				if ( (triggerChan.equals(ct_chanNames[i])) && (triggerChan.endsWith(".i32")) && (chanListSizes[i] < 0) ) {
 					bValidChan = true;
 					break;
 				}
 			}
 			if (!bValidChan) {
-				System.err.println("Error: the trigger channel must be one of the CloudTurbine input channels and it must have a \".i32\" extension.");
+				System.err.println("Error: the trigger channel must be one of the CloudTurbine input channels and it must be a single-value channel with a \".i32\" extension.");
 				return;
 			}
 		}
 
+		if (line.hasOption("key")) {
+			if (triggerChan != null) {
+				System.err.println("Error: specify only one of the \"-t\" and \"-key\" options");
+				return;
+			}
+			keyChans = line.getOptionValue("key").split(",");
+			for (int k = 0; k < keyChans.length; ++k) {
+				keyChans[k] = keyChans[k].trim();
+				boolean bValidChan = false;
+				for (int i = 0; i < ct_chanNames.length; ++i) {
+					if ( keyChans[k].equals(ct_chanNames[i]) && (chanListSizes[i] < 0) ) {
+						bValidChan = true;
+						break;
+					}
+				}
+				if (!bValidChan) {
+					System.err.println("Error: key channel " + keyChans[k] + " must be one of the single-value channels in the \"-chans\" list");
+					return;
+				}
+			}
+			if (line.hasOption("kbytes")) {
+				try {
+					maxKeyBytes = Long.parseLong(line.getOptionValue("kbytes")) * 1024L;
+				} catch (NumberFormatException nfe) {
+					maxKeyBytes = 0;
+				}
+				if (maxKeyBytes < 1) {
+					System.err.println("Error: the key batch size must be an integer greater than 0 (KB)");
+					return;
+				}
+			}
+		} else if (line.hasOption("kbytes")) {
+			System.err.println("Error: the \"-kbytes\" option is only used along with \"-key\"");
+			return;
+		}
+
 		try {
 			flushPeriod_msec = Integer.parseInt(line.getOptionValue("f", "" + flushPeriod_msec));
 		} catch (NumberFormatException nfe) {
@@ -223,6 +502,19 @@ public class CT2Arrow {
 			System.err.println("Error: the flush period must be an integer greater than or equal to 0");
 			return;
 		}
+		pollPeriod_msec = Math.min(100, Math.max(10, flushPeriod_msec / 2));
+
+		if (line.hasOption("rows")) {
+			try {
+				maxBatchRows = Integer.parseInt(line.getOptionValue("rows"));
+			} catch (NumberFormatException nfe) {
+				maxBatchRows = 0;
+			}
+			if (maxBatchRows < 1) {
+				System.err.println("Error: the number of rows per batch must be an integer greater than 0");
+				return;
+			}
+		}
 
 		try {
 			next_timestamp_dur_sec = Double.parseDouble(line.getOptionValue("d", "" + next_timestamp_dur_sec));
@@ -235,11 +527,224 @@ public class CT2Arrow {
 			return;
 		}
 
+		if (line.hasOption("pf")) {
+			try {
+				numFetchThreads = Integer.parseInt(line.getOptionValue("pf"));
+			} catch (NumberFormatException nfe) {
+				numFetchThreads = 0;
+			}
+			if (numFetchThreads < 1) {
+				System.err.println("Error: the number of parallel fetch threads must be an integer greater than 0");
+				return;
+			}
+		}
+
+		if (line.hasOption("align")) {
+			String alignStr = line.getOptionValue("align");
+			if (alignStr.equalsIgnoreCase("asof")) {
+				alignMode = ChannelAligner.AlignMode.ASOF;
+			} else if (alignStr.equalsIgnoreCase("nearest")) {
+				alignMode = ChannelAligner.AlignMode.NEAREST;
+			} else {
+				System.err.println("Error: the alignment mode must be \"asof\" or \"nearest\"");
+				return;
+			}
+			try {
+				alignTolerance_sec = Double.parseDouble(line.getOptionValue("tol", "" + alignTolerance_sec));
+			} catch (NumberFormatException nfe) {
+				alignTolerance_sec = -1;
+			}
+			if (alignTolerance_sec < 0) {
+				System.err.println("Error: the alignment tolerance must be a number greater than or equal to 0");
+				return;
+			}
+			String fillStr = line.getOptionValue("fill", "null");
+			if (fillStr.equalsIgnoreCase("last")) {
+				alignFill = ChannelAligner.FillPolicy.LAST;
+			} else if (fillStr.equalsIgnoreCase("interp")) {
+				alignFill = ChannelAligner.FillPolicy.INTERP;
+			} else if (fillStr.equalsIgnoreCase("null")) {
+				alignFill = ChannelAligner.FillPolicy.NULL;
+			} else {
+				System.err.println("Error: the fill policy must be \"last\", \"interp\" or \"null\"");
+				return;
+			}
+		} else if ( line.hasOption("tol") || line.hasOption("fill") ) {
+			System.err.println("Error: the \"-tol\" and \"-fill\" options are only used along with \"-align\"");
+			return;
+		}
+
+		if (line.hasOption("late")) {
+			if (alignMode != null) {
+				System.err.println("Error: the \"-late\" option can't be used with \"-align\"");
+				return;
+			}
+			try {
+				lateness_sec = Double.parseDouble(line.getOptionValue("late"));
+			} catch (NumberFormatException nfe) {
+				lateness_sec = -1;
+			}
+			if (!(lateness_sec >= 0)) {
+				System.err.println("Error: the lateness must be a number greater than or equal to 0");
+				return;
+			}
+			try {
+				reorderSize = Integer.parseInt(line.getOptionValue("rb", "" + reorderSize));
+			} catch (NumberFormatException nfe) {
+				reorderSize = 0;
+			}
+			if (reorderSize < 1) {
+				System.err.println("Error: the reorder buffer size must be an integer greater than 0");
+				return;
+			}
+		} else if (line.hasOption("rb")) {
+			System.err.println("Error: the \"-rb\" option is only used along with \"-late\"");
+			return;
+		}
+
 		bPlasma = line.hasOption("plasma");
+		if (bPlasma) {
+			String pfull = line.getOptionValue("pfull", plasmaFullPolicy.name()).toUpperCase();
+			try {
+				plasmaFullPolicy = PlasmaSink.FullPolicy.valueOf(pfull);
+			} catch (IllegalArgumentException iae) {
+				System.err.println("Error: the \"-pfull\" option must be \"evict\" or \"block\"");
+				return;
+			}
+			try {
+				plasmaRetries = Integer.parseInt(line.getOptionValue("pretry", "" + plasmaRetries));
+			} catch (NumberFormatException nfe) {
+				plasmaRetries = -1;
+			}
+			if (plasmaRetries < 0) {
+				System.err.println("Error: the number of Plasma retries must be an integer greater than or equal to 0");
+				return;
+			}
+		} else if ( line.hasOption("pfull") || line.hasOption("pretry") ) {
+			System.err.println("Error: the \"-pfull\" and \"-pretry\" options are only used along with \"-p\"");
+			return;
+		}
+
+		if (line.hasOption("shm")) {
+			shmPath = line.getOptionValue("shm");
+			try {
+				shmSize_MB = Long.parseLong(line.getOptionValue("shmsize", "" + shmSize_MB));
+			} catch (NumberFormatException nfe) {
+				shmSize_MB = 0;
+			}
+			if ( (shmSize_MB < 1) || (shmSize_MB > 2000) ) {
+				System.err.println("Error: the shared memory ring size must be an integer between 1 and 2000 (MB)");
+				return;
+			}
+		}
+
+		if (line.hasOption("flight")) {
+			try {
+				flightPort = Integer.parseInt(line.getOptionValue("flight"));
+			} catch (NumberFormatException nfe) {
+				flightPort = -1;
+			}
+			if ( (flightPort < 1) || ((flightPort + groups.length - 1) > 65535) ) {
+				System.err.println("Error: the Arrow Flight port must be an integer between 1 and 65535");
+				return;
+			}
+			try {
+				flightHistorySize = Integer.parseInt(line.getOptionValue("fh", "" + flightHistorySize));
+			} catch (NumberFormatException nfe) {
+				flightHistorySize = 0;
+			}
+			if (flightHistorySize < 1) {
+				System.err.println("Error: the Arrow Flight history size must be an integer greater than 0");
+				return;
+			}
+		}
+
+		streamPath = line.getOptionValue("stream");
+		if ( (streamPath != null) && streamPath.equals(ArrowStreamSink.STDOUT) ) {
+			if (groups.length > 1) {
+				System.err.println("Error: only one column group can be streamed to standard output");
+				return;
+			}
+			// Standard output now carries the Arrow stream; send anything else printed there to stderr
+			System.setOut(System.err);
+		}
+
+		if (line.hasOption("out")) {
+			if (line.hasOption("file")) {
+				System.err.println("Error: specify only one of the \"-file\" and \"-out\" options");
+				return;
+			}
+			outRootDir = line.getOptionValue("out");
+		}
+		bArrowFiles = line.hasOption("file") || ( !bPlasma && (shmPath == null) && (streamPath == null) && (outRootDir == null) );
+
+		try {
+			sinkQueueSize = Integer.parseInt(line.getOptionValue("sq", "" + sinkQueueSize));
+		} catch (NumberFormatException nfe) {
+			sinkQueueSize = 0;
+		}
+		if (sinkQueueSize < 1) {
+			System.err.println("Error: the output queue size must be an integer greater than 0");
+			return;
+		}
+
+		if (line.hasOption("parquet")) {
+			parquetDir = line.getOptionValue("parquet");
+			parquetCodec = line.getOptionValue("pcodec", parquetCodec).toUpperCase();
+			if (!Arrays.asList(ParquetSink.SUPPORTED_CODECS.split(", ")).contains(parquetCodec)) {
+				System.err.println("Error: the Parquet codec must be one of " + ParquetSink.SUPPORTED_CODECS);
+				return;
+			}
+			File dir = new File(parquetDir);
+			if (!dir.isDirectory() && !dir.mkdirs()) {
+				System.err.println("Error: unable to create Parquet output folder " + parquetDir);
+				return;
+			}
+		} else if (line.hasOption("pcodec")) {
+			System.err.println("Error: the \"-pcodec\" option is only used along with \"-parquet\"");
+			return;
+		}
+
+		if ( (outRootDir != null) || (parquetDir != null) ) {
+			try {
+				rollSize_MB = Long.parseLong(line.getOptionValue("roll", "" + rollSize_MB));
+			} catch (NumberFormatException nfe) {
+				rollSize_MB = 0;
+			}
+			if (rollSize_MB < 1) {
+				System.err.println("Error: the roll size must be an integer greater than 0 (MB)");
+				return;
+			}
+		} else if (line.hasOption("roll")) {
+			System.err.println("Error: the \"-roll\" option is only used along with \"-out\" or \"-parquet\"");
+			return;
+		}
+
+		if (line.hasOption("rollup")) {
+			rollupNames = line.getOptionValue("rollup").split(",");
+			rollupSizes_sec = new double[rollupNames.length];
+			for (int i = 0; i < rollupNames.length; ++i) {
+				rollupNames[i] = rollupNames[i].trim();
+				try {
+					rollupSizes_sec[i] = Double.parseDouble(rollupNames[i]);
+				} catch (NumberFormatException nfe) {
+					rollupSizes_sec[i] = -1;
+				}
+				if (!(rollupSizes_sec[i] > 0)) {
+					System.err.println("Error: rollup bucket sizes must be numbers greater than 0");
+					return;
+				}
+			}
+		}
+
+		bNativeTime = line.hasOption("nativetime");
 
 		bDebug = line.hasOption("debug");
 
-		ctr = new CTreader("CTdata");
+		ctr = new CTreader(ct_rootFolder);
+		if (numFetchThreads > 0) {
+			fetcher = new ParallelFetcher(ct_rootFolder, numFetchThreads);
+		}
 
 		// Setup Arrow-related variables
 		PlasmaClient plasmaClient = null;
@@ -247,14 +752,29 @@ public class CT2Arrow {
 			System.loadLibrary("plasma_java");
 			plasmaClient = new PlasmaClient("/tmp/plasma", "", 0);
 		}
-		RootAllocator allocator = new RootAllocator(Long.MAX_VALUE);
-		ArrayList<Field> fields = new ArrayList<>();
-		ArrayList<FieldVector> vectors = new ArrayList<>();
-		// Create a separate container to hold CT timestamps
-		ct_timestamp_dc = new DoubleDataContainer("ct_timestamp", "ct_timestamp", allocator);
-		fields.add(ct_timestamp_dc.field);
-		vectors.add(ct_timestamp_dc.fieldVec);
+		if (shmPath != null) {
+			shmWriter = new ShmRingWriter(shmPath, shmSize_MB * 1024L * 1024L);
+			System.err.println("Writing record batches to shared memory ring " + shmPath);
+		}
+		// Buffers come from a size-classed pool, so the per-flush reallocation and slicing reuse memory
+		// rather than going back to the system allocator
+		RootAllocator allocator = PooledAllocationManager.newRootAllocator(Long.MAX_VALUE);
+		if (monitor != null) {
+			monitor.started(allocator);
+		}
+		// Create a separate container to hold CT timestamps; with "-key", each batch holds the rows of
+		// one key, so the batches overlap in time and ct_timestamp can't be marked as sorted
+		ct_timestamp_dc = new TimestampDataContainer("ct_timestamp", allocator, bNativeTime, keyChans == null);
+		// The rollups and the partitioned layout work in the units of ct_timestamp
+		double timeUnitsPerSecond = ct_timestamp_dc.getUnitsPerSecond();
 		for (int i = 0; i < arrow_chanNames.length; ++i) {
+			if (chanListSizes[i] >= 0) {
+				// Block-valued channel; chanDataTypes[i] is the element type
+				ListDataContainer list_dc = new ListDataContainer(arrow_chanNames[i], ct_chanNames[i], chanDataTypes[i], chanListSizes[i], allocator);
+				hashMap.put(arrow_chanNames[i], list_dc);
+				groups[chanGroups[i]].containers.add(list_dc);
+				continue;
+			}
 			switch (chanDataTypes[i]) {
 				case INT_DATA:
 					IntDataContainer int_dc = new IntDataContainer(arrow_chanNames[i], ct_chanNames[i], allocator);
@@ -273,12 +793,126 @@ public class CT2Arrow {
 					hashMap.put(arrow_chanNames[i], str_dc);
 					break;
 			}
-			DataContainer dc = hashMap.get(arrow_chanNames[i]);
-			fields.add(dc.field);
-			vectors.add(dc.fieldVec);
+			groups[chanGroups[i]].containers.add(hashMap.get(arrow_chanNames[i]));
+		}
+		// Every group's root includes ct_timestamp, so the groups can be re-joined
+		for (ColumnGroup group : groups) {
+			group.createRoot(ct_timestamp_dc);
+			if (rollupSizes_sec != null) {
+				double[] rollupSizes = new double[rollupSizes_sec.length];
+				for (int i = 0; i < rollupSizes.length; ++i) {
+					rollupSizes[i] = rollupSizes_sec[i] * timeUnitsPerSecond;
+				}
+				group.rollup = new TimeBucketRollup(allocator, "ct_timestamp", rollupSizes);
+				group.rollupFileNum = new int[rollupSizes_sec.length];
+			}
+			// Outputs which take the serialized batch; the time-partitioned and Parquet outputs read it
+			// back into a root on their own threads, so no output is written on the ingest thread
+			List<BatchSink> sinks = new ArrayList<>();
+			if (outRootDir != null) {
+				// Rows are partitioned by ct_timestamp (seconds, or microseconds with "-nativetime")
+				long rollSize = rollSize_MB * 1024L * 1024L;
+				double timeToMillis = 1000.0 / timeUnitsPerSecond;
+				sinks.add(new PartitionedArrowSink(allocator, new PartitionedArrowWriter(allocator, outRootDir, group.getPartitionName(ct_sourceName), "ct_timestamp", timeToMillis, rollSize, 2)));
+				if (rollupSizes_sec != null) {
+					group.rollupPartitionWriters = new PartitionedArrowWriter[rollupSizes_sec.length];
+					for (int i = 0; i < rollupSizes_sec.length; ++i) {
+						String name = group.getPartitionName(ct_sourceName) + "_rollup" + rollupNames[i] + "s";
+						group.rollupPartitionWriters[i] = new PartitionedArrowWriter(allocator, outRootDir, name, "bucket_start", timeToMillis, rollSize, 2);
+					}
+				}
+			}
+			if (parquetDir != null) {
+				sinks.add(new RollingParquetSink(allocator, group, parquetDir, ct_sourceName, parquetCodec, rollSize_MB * 1024L * 1024L));
+			}
+			if (bArrowFiles) {
+				// The files are overwritten from batch 1 on, so the index is started afresh
+				TimeIndex.Writer timeIndex = new TimeIndex.Writer(new File(group.getIndexFilename(ct_sourceName)), "ct_timestamp", false);
+				sinks.add(new ArrowFileSink(".", timeIndex, "ct_timestamp"));
+			}
+			if (plasmaClient != null) {
+				sinks.add(new PlasmaSink(plasmaClient, plasmaFullPolicy, plasmaRetries));
+			}
+			if (shmWriter != null) {
+				sinks.add(new ShmRingSink(shmWriter));
+			}
+			if (streamPath != null) {
+				sinks.add(new ArrowStreamSink(group.getStreamPath(streamPath)));
+			}
+			if (flightPort > 0) {
+				int port = flightPort + Math.max(group.groupIdx, 0);
+				sinks.add(new FlightPublisher(allocator, port, flightHistorySize, "ct_timestamp", timeUnitsPerSecond));
+			}
+			if (!sinks.isEmpty()) {
+				group.fanOut = new FanOut(sinks, sinkQueueSize);
+			}
+		}
+		// When the process is stopped, have the main loop write out the rows it holds (including any
+		// in the reorder buffer), then let the outputs finish the batches queued for them; closing the
+		// outputs finishes the partition and Parquet files (which stay open between flushes)
+		Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown));
+		if (groups[0].fanOut != null) {
+			System.err.println("Writing record batches to: " + groups[0].fanOut.getSinkNames());
+		}
+		if (outRootDir != null) {
+			System.err.println("Writing Arrow files to time-partitioned folders under " + outRootDir);
+		}
+		if (parquetDir != null) {
+			System.err.println("Also writing Parquet files (" + parquetCodec + ") to " + parquetDir);
+		}
+		if (keyChans != null) {
+			// Rows are staged in the groups' roots and then copied to the batch of their key
+			VectorSchemaRoot[] groupRoots = new VectorSchemaRoot[groups.length];
+			for (int g = 0; g < groups.length; ++g) {
+				groupRoots[g] = groups[g].root;
+			}
+			FieldVector[] keyVecs = new FieldVector[keyChans.length];
+			for (int k = 0; k < keyChans.length; ++k) {
+				keyVecs[k] = hashMap.get(arrow_chanNames[Arrays.asList(ct_chanNames).indexOf(keyChans[k])]).fieldVec;
+			}
+			keyPartitioner = new KeyPartitioner(allocator, groupRoots, keyVecs);
+			System.err.println("Batching rows by key: " + String.join(",", keyChans));
+		}
+		if ( (groups.length > 1) || (keyPartitioner != null) ) {
+			AtomicInteger threadCount = new AtomicInteger(0);
+			int numThreads = Runtime.getRuntime().availableProcessors();
+			if (keyPartitioner == null) {
+				numThreads = Math.min(groups.length, numThreads);
+			}
+			groupWriter = Executors.newFixedThreadPool(numThreads, r -> {
+				Thread t = new Thread(r, "arrow-write-" + threadCount.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			});
+			if (groups.length > 1) {
+				System.err.println("Writing " + groups.length + " column groups");
+			}
 		}
-		VectorSchemaRoot root = new VectorSchemaRoot(fields, vectors);
 
+		if (alignMode != null) {
+			DataContainer[] containers = new DataContainer[arrow_chanNames.length];
+			for (int i = 0; i < arrow_chanNames.length; ++i) {
+				containers[i] = hashMap.get(arrow_chanNames[i]);
+			}
+			aligner = new ChannelAligner(ctr, ct_sourceName, ct_chanNames, containers, alignMode, alignTolerance_sec, alignFill, next_timestamp_dur_sec);
+		}
+		if (lateness_sec >= 0) {
+			reorderBuffer = new ReorderBuffer(lateness_sec, reorderSize);
+			System.err.println("Holding rows for late channel data for up to " + lateness_sec + " sec");
+		}
+
+		try {
+			ingest();
+		} finally {
+			// Lets the shutdown hook know that the rows we held have been written out
+			ingestDone.countDown();
+		}
+	}
+
+	//
+	// Read the CT source until we are stopped, writing out batches as we go
+	//
+	private void ingest() throws Exception {
 		//
 		// Fetch data from CloudTurbine source and write it to Arrow file or Plasma
 		//
@@ -288,14 +922,22 @@ public class CT2Arrow {
 		// 2. Request data for all channels at this timestamp
 		// 3. Add received data to the data vectors in the DataContainer objects
 		// 4. In a sleepy loop:
-		//     a. Flush data if "flushPeriod_msec" has passed
-		//     b. Check for updated data: Request data from either the first channel or (if it is being used) the
-		//        trigger channel at time (latest_timestamp+0.0001) and large duration
+		//     a. Flush data if "flushPeriod_msec" has passed or the batch holds "maxBatchRows" rows
+		//     b. Check for updated data: get the next timestamp after latest_timestamp from the cursor over either
+		//        the first channel or (if it is being used) the trigger channel (see NextTimestampCursor)
 		//     c. If we got updated data:
 		//         i.  Save the new timestamp ("nextTimestamp")
 		//         ii. If we are using a trigger channel and the value of the trigger channel has changed, flush data
 		// 5. Go back to step 2
 		//
+		// With a reorder buffer ("-late"), step 2 only queues the row in the buffer; rows are moved to the
+		// data vectors, in timestamp order, once they are complete or the watermark has passed them, and
+		// each pass through the sleepy loop looks again for the channels which are still missing.
+		//
+		// With key channels ("-key"), each row is moved from the vectors in the DataContainer objects to
+		// the batch of its key as soon as it has been added (see KeyPartitioner), and step 4a flushes
+		// each key's batch on its own schedule.
+		//
 		int recordsInBatch = 0;
 		int triggerChanValue = -1 * Integer.MAX_VALUE;
 		String timeRequestChanName = ct_chanNames[0];
@@ -303,6 +945,11 @@ public class CT2Arrow {
 			timeRequestChanName = triggerChan;
 		}
 		CTdata oldestData = getDatapoint(timeRequestChanName, "oldest");
+		if (oldestData == null) {
+			// Stopped before there was any data
+			closeOutputs();
+			return;
+		}
 		double[] times = oldestData.getTime();
 		double nextTimestamp = times[0];
 		if (triggerChan != null) {
@@ -310,108 +957,86 @@ public class CT2Arrow {
 			int[] data = oldestData.getDataAsInt32();
 			triggerChanValue = data[0];
 		}
+		// Cursor which hands out the successive timestamps (and trigger values) of the timing channel
+		NextTimestampCursor timestampCursor = new NextTimestampCursor(ctr, ct_sourceName, timeRequestChanName, (triggerChan != null), 1.0, next_timestamp_dur_sec);
 		long batchStartTime = System.currentTimeMillis();
-		while (true) {
+		// A key which has had no rows for this long has its vectors released
+		long keyIdle_msec = Math.max(60000L, 10L * flushPeriod_msec);
+		while (!isStopRequested()) {
 			System.err.println("Next CT timestamp = " + nextTimestamp);
-			// Create request CTmap
-			CTmap requestMap = new CTmap();
-			for (int i = 0; i < ct_chanNames.length; ++i) {
-				requestMap.add(ct_chanNames[i]);
+			if (aligner != null) {
+				// Align each channel's samples to this timestamp
+				ct_timestamp_dc.addDataToVector(recordsInBatch, nextTimestamp);
+				aligner.addRow(nextTimestamp, recordsInBatch);
+				++recordsInBatch;
+			} else if (reorderBuffer != null) {
+				// No retries here; whatever is missing is looked for again while we wait for new data
+				reorderBuffer.add(nextTimestamp, fetchData(nextTimestamp), System.currentTimeMillis());
+				recordsInBatch = addReadyRows(recordsInBatch);
+			} else {
+				CTdata[] chanData = fetchDataWithRetry(nextTimestamp);
+				addDataToVectors(chanData, recordsInBatch, nextTimestamp);
+				++recordsInBatch;
 			}
-			// OPTION 1: absolute, zero-duration request; problem is that this can invoke the "at-or-before" logic
-			// CTmap dataMap = ctr.getDataMap(requestMap, ct_sourceName, nextTimestamp, 0.0, "absolute");
-			// if (dataMap == null) {
-			// 	throw new Exception("ERROR: got null CTmap from our data request");
-			// }
-			//
-			// OPTION 2: Make a non-zero duration request (over a small interval around nextTimestamp) to avoid "at or before" data fetching.
-			CTmap dataMap = ctr.getDataMap(requestMap, ct_sourceName, nextTimestamp - 0.0002, 0.0004, "absolute");
-			//
-			// OPTION 3: To update cache on all channels, use a large duration
-			// CTmap dataMap = ctr.getDataMap(requestMap, ct_sourceName, nextTimestamp-0.0002, next_timestamp_dur_sec, "after");
-			//
-			// OPTION 4: make individual requests on each channel rather than use multi-chanel CTmap request
-			// for (int i = 0; i < ct_chanNames.length; ++i) {
-			// 	chanData[i] = ctr.getData(ct_sourceName, ct_chanNames[i], nextTimestamp - 0.0002, next_timestamp_dur_sec, "absolute");
-			// }
-			//
-			// We've noticed occasional issues (when processing the weather data transmitted via Syncthing)
-			// where the CTdata object for channels doesn't contain data at nextTimestamp
-			boolean bMissingData = false;
-			for (int loopIdx = 0; loopIdx < 2; ++loopIdx) {
-				for (int i = 0; i < ct_chanNames.length; ++i) {
-					if (!dataMap.checkName(ct_chanNames[i])) {
-						System.err.println("missing chan = " + ct_chanNames[i]);
-						bMissingData = true;
-						break;
-					} else {
-						CTdata ctData = dataMap.get(ct_chanNames[i]);
-						if (ctData == null) {
-							System.err.println("ctData is null for channel " + ct_chanNames[i]);
-							bMissingData = true;
-							break;
-						} else {
-							double[] timestamps = ctData.getTime();
-							if (timestamps == null) {
-								System.err.println("timestamps == null for chanel " + ct_chanNames[i]);
-								bMissingData = true;
-								break;
-							} else if (timestamps.length == 0) {
-								System.err.println("no timestamps for chanel " + ct_chanNames[i]);
-								bMissingData = true;
-								break;
-							} else if (Math.abs(timestamps[0] - nextTimestamp) > 0.0001) {
-								System.err.println("timestamp for chanel " + ct_chanNames[i] + " is off from nextTimestamp by " + (timestamps[0] - nextTimestamp));
-								bMissingData = true;
-								break;
-							}
-						}
-					}
-				}
-				if (!bMissingData) {
-					// We're good, got all data
-					break;
-				} else {
-					// Try again
-					Thread.sleep(100);
-					ctr.clearFileListCache();
-				}
+			if ( (keyPartitioner != null) && (recordsInBatch > 0) ) {
+				routeStagedRows(recordsInBatch);
+				recordsInBatch = 0;
 			}
-			addDataToVectors(dataMap, recordsInBatch, nextTimestamp);
-			++recordsInBatch;
 			//
 			// Do the following in a sleepy loop:
-			// 1. Flush data if "flushPeriod_msec" has passed
+			// 1. Flush data if "flushPeriod_msec" has passed or the batch holds "maxBatchRows" rows
 			// 2. Check for updated data
 			// 3. If we got updated data:
 			//     a. Save the new timestamp ("nextTimestamp")
 			//     b. If we are using a trigger channel and the value of the trigger channel has changed, then flush data
 			//
 			int loopCount = 0;
-			while (true) {
+			while (!isStopRequested()) {
+				if ( (reorderBuffer != null) && !reorderBuffer.isEmpty() ) {
+					refetchMissing();
+					recordsInBatch = addReadyRows(recordsInBatch);
+					if ( (keyPartitioner != null) && (recordsInBatch > 0) ) {
+						routeStagedRows(recordsInBatch);
+						recordsInBatch = 0;
+					}
+				}
+				if (keyPartitioner != null) {
+					// Flush the batches of the keys whose oldest row has waited for the flush period
+					long currentTime = System.currentTimeMillis();
+					List<KeyPartitioner.Partition> expired = keyPartitioner.getExpired(currentTime, flushPeriod_msec);
+					if (!expired.isEmpty()) {
+						if (bDebug) {
+							System.err.println("\nFlush period has expired for " + expired.size() + " key(s)  ==>  Flush data");
+						}
+						flushKeys(currentTime, expired);
+					}
+					int numReleased = keyPartitioner.removeIdle(currentTime, keyIdle_msec);
+					if (bDebug && (numReleased > 0)) {
+						System.err.println("Released " + numReleased + " idle key(s); " + keyPartitioner.size() + " key(s) remain");
+					}
+				}
 				if (recordsInBatch > 0) {
 					// We have some data to write to Arrow file or Plasma; see if the time has arrived to do that
 					long currentTime = System.currentTimeMillis();
-					if ((currentTime - batchStartTime) > flushPeriod_msec) {
+					boolean bBatchFull = (maxBatchRows > 0) && (recordsInBatch >= maxBatchRows);
+					if ( bBatchFull || ((currentTime - batchStartTime) > flushPeriod_msec) ) {
 						if (bDebug) {
-							System.err.println("\nFlush period has expired  ==>  Flush data");
+							System.err.println(bBatchFull ? "\nBatch is full  ==>  Flush data" : "\nFlush period has expired  ==>  Flush data");
 						}
-						flushData(currentTime, plasmaClient, root, recordsInBatch);
+						flushData(currentTime, recordsInBatch);
 						recordsInBatch = 0;
 						batchStartTime = currentTime;
 					}
 				}
 				// See if new data is available
-				CTdata ctData = getNewData(timeRequestChanName, nextTimestamp);
-				if (ctData != null) {
-					times = ctData.getTime();
-					nextTimestamp = times[0];
+				if (timestampCursor.advance(nextTimestamp)) {
+					nextTimestamp = timestampCursor.getTime();
 					if (triggerChan != null) {
 						// See if the trigger channel value has changed
-						int[] data = ctData.getDataAsInt32();
-						if (Math.abs(triggerChanValue - data[0]) != 0) {
+						int triggerValue = timestampCursor.getValue();
+						if (Math.abs(triggerChanValue - triggerValue) != 0) {
 							// We got an updated trigger channel value; if there is data that has been stored, flush it
-							triggerChanValue = data[0];
+							triggerChanValue = triggerValue;
 							if (bDebug) {
 								System.err.print("\nNew value on trigger channel \"" + triggerChan + "\": " + triggerChanValue);
 								if (recordsInBatch > 0) {
@@ -422,7 +1047,7 @@ public class CT2Arrow {
 							}
 							if (recordsInBatch > 0) {
 								long currentTime = System.currentTimeMillis();
-								flushData(currentTime, plasmaClient, root, recordsInBatch);
+								flushData(currentTime, recordsInBatch);
 								recordsInBatch = 0;
 								batchStartTime = currentTime;
 							}
@@ -431,10 +1056,96 @@ public class CT2Arrow {
 					break;
 				}
 				++loopCount;
-				if ( (loopCount % 30) == 0 ) {
+				if ( (loopCount % (3000 / pollPeriod_msec)) == 0 ) {
 					System.err.println("Waiting for next timestamp...");
 				}
-				Thread.sleep(100);
+				Thread.sleep(pollPeriod_msec);
+			}
+		}
+		// Stopped: write out the rows we hold, including those still waiting in the reorder buffer for
+		// late channel data (with null for whatever is still missing), and close the outputs
+		if (reorderBuffer != null) {
+			reorderBuffer.drain();
+			while (true) {
+				recordsInBatch = addReadyRows(recordsInBatch);
+				if ( (keyPartitioner != null) && (recordsInBatch > 0) ) {
+					routeStagedRows(recordsInBatch);
+					recordsInBatch = 0;
+				}
+				if (reorderBuffer.isEmpty()) {
+					break;
+				}
+				// The batch is full
+				flushData(System.currentTimeMillis(), recordsInBatch);
+				recordsInBatch = 0;
+			}
+		}
+		if (recordsInBatch > 0) {
+			flushData(System.currentTimeMillis(), recordsInBatch);
+		}
+		if (keyPartitioner != null) {
+			long currentTime = System.currentTimeMillis();
+			// Every key which holds rows
+			List<KeyPartitioner.Partition> remaining = keyPartitioner.getExpired(currentTime, -1);
+			if (!remaining.isEmpty()) {
+				flushKeys(currentTime, remaining);
+			}
+		}
+		closeOutputs();
+	}
+
+	private boolean isStopRequested() {
+		return bShutdown || ((monitor != null) && monitor.isStopRequested());
+	}
+
+	//
+	// Shutdown hook: stop the main loop and wait (up to 10 sec) for it to write out the rows it
+	// holds and close the outputs; close them here if it doesn't finish in time
+	//
+	private void shutdown() {
+		bShutdown = true;
+		try {
+			if (!ingestDone.await(10, TimeUnit.SECONDS)) {
+				System.err.println("Timed out waiting for the rows held to be written out");
+			}
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+		closeOutputs();
+	}
+
+	//
+	// Write out the open rollup buckets, let the outputs finish the batches queued for them and finish
+	// the partition and Parquet files; called when we are stopped and at shutdown (only the first call
+	// does anything)
+	//
+	private synchronized void closeOutputs() {
+		if (bOutputsClosed) {
+			return;
+		}
+		bOutputsClosed = true;
+		for (ColumnGroup group : groups) {
+			if (group.rollup != null) {
+				// Write out the bucket still open at each resolution, which would otherwise be lost
+				try {
+					group.rollup.closeOpenBuckets();
+					writeRollups(group);
+				} catch (IOException ioe) {
+					System.err.println("Caught exception writing rollups:");
+					System.err.println(ioe);
+				}
+			}
+			group.closeFanOut();
+			group.closePartitionWriters();
+		}
+		if (reorderBuffer != null) {
+			System.err.println(reorderBuffer.getStats());
+		}
+		if (shmWriter != null) {
+			try {
+				shmWriter.close();
+			} catch (IOException ioe) {
+				System.err.println(ioe);
 			}
 		}
 	}
@@ -443,7 +1154,7 @@ public class CT2Arrow {
 	// Get either the oldest or newest datapoint for the given channel.
 	// Do this in a sleepy loop until we receive data.
 	//
-	// The given referenceI must either be "oldest" or "newest".
+	// The given referenceI must either be "oldest" or "newest". Returns null if we are stopped first.
 	//
 	private CTdata getDatapoint(String chanNameI, String referenceI) throws Exception {
 		if ( (!referenceI.equals("oldest")) && (!referenceI.equals("newest")) ) {
@@ -460,6 +1171,9 @@ public class CT2Arrow {
 				}
 				return data;
 			}
+			if (isStopRequested()) {
+				return null;
+			}
 			++loopCtr;
 			if ( (loopCtr % 10) == 0) {
 				System.err.println("Waiting for " + referenceI + " data");
@@ -469,18 +1183,146 @@ public class CT2Arrow {
 	}
 
 	//
-	// Get the new data that comes *after* the given timestamp for the given channel.
+	// Fetch data for all channels at the given timestamp, retrying once if any channel is missing data
 	//
-	private CTdata getNewData(String chanNameI, double timebaseI) throws Exception {
-		CTdata data = ctr.getData(ct_sourceName, chanNameI, timebaseI+0.0001, next_timestamp_dur_sec, "absolute");
-		if ( (data != null) && (data.size() > 0) ) {
-			double[] dt = data.getTime();
-			// Make sure time has advanced
-			if (dt[0] > timebaseI) {
-				return data;
+	private CTdata[] fetchDataWithRetry(double timestampI) throws Exception {
+		CTdata[] chanData = fetchData(timestampI);
+		// We've noticed occasional issues (when processing the weather data transmitted via Syncthing)
+		// where the CTdata object for channels doesn't contain data at timestampI
+		for (int loopIdx = 0; loopIdx < 2; ++loopIdx) {
+			boolean bMissingData = false;
+			for (int i = 0; i < ct_chanNames.length; ++i) {
+				CTdata ctData = chanData[i];
+				if (ctData == null) {
+					System.err.println("missing chan = " + ct_chanNames[i]);
+					bMissingData = true;
+					break;
+				} else {
+					double[] timestamps = ctData.getTime();
+					if (timestamps == null) {
+						System.err.println("timestamps == null for chanel " + ct_chanNames[i]);
+						bMissingData = true;
+						break;
+					} else if (timestamps.length == 0) {
+						System.err.println("no timestamps for chanel " + ct_chanNames[i]);
+						bMissingData = true;
+						break;
+					} else if (Math.abs(timestamps[0] - timestampI) > 0.0001) {
+						System.err.println("timestamp for chanel " + ct_chanNames[i] + " is off from the requested timestamp by " + (timestamps[0] - timestampI));
+						bMissingData = true;
+						break;
+					}
+				}
+			}
+			if (!bMissingData) {
+				// We're good, got all data
+				break;
+			} else {
+				// Try again
+				Thread.sleep(100);
+				ctr.clearFileListCache();
+				if (fetcher != null) {
+					fetcher.clearFileListCache();
+				}
+				chanData = fetchData(timestampI);
 			}
 		}
-		return null;
+		return chanData;
+	}
+
+	//
+	// Fetch data for all channels at the given timestamp; the returned array is parallel to ct_chanNames
+	// and contains null for any channel which didn't return data
+	//
+	private CTdata[] fetchData(double timestampI) throws Exception {
+		return fetchData(ct_chanNames, timestampI);
+	}
+
+	//
+	// Fetch data for the given channels at the given timestamp
+	//
+	private CTdata[] fetchData(String[] chanNamesI, double timestampI) throws Exception {
+		// OPTION 1: absolute, zero-duration request; problem is that this can invoke the "at-or-before" logic
+		// CTmap dataMap = ctr.getDataMap(requestMap, ct_sourceName, timestampI, 0.0, "absolute");
+		//
+		// OPTION 2: Make a non-zero duration request (over a small interval around timestampI) to avoid "at or before" data fetching.
+		double startTime = timestampI - 0.0002;
+		double duration = 0.0004;
+		//
+		// OPTION 3: To update cache on all channels, use a large duration
+		// CTmap dataMap = ctr.getDataMap(requestMap, ct_sourceName, timestampI-0.0002, next_timestamp_dur_sec, "after");
+		//
+		// OPTION 4: make individual requests on each channel rather than use multi-chanel CTmap request;
+		// this is what we do when parallel fetch is enabled (the "-pf" option), several channels at a time
+		return fetchData(chanNamesI, startTime, duration);
+	}
+
+	//
+	// Fetch data for the given channels over the given time range
+	//
+	private CTdata[] fetchData(String[] chanNamesI, double startTimeI, double durationI) throws Exception {
+		if (fetcher != null) {
+			return fetcher.fetch(ct_sourceName, chanNamesI, startTimeI, durationI, "absolute");
+		}
+		CTmap requestMap = new CTmap();
+		for (int i = 0; i < chanNamesI.length; ++i) {
+			requestMap.add(chanNamesI[i]);
+		}
+		CTmap dataMap = ctr.getDataMap(requestMap, ct_sourceName, startTimeI, durationI, "absolute");
+		CTdata[] chanData = new CTdata[chanNamesI.length];
+		for (int i = 0; i < chanNamesI.length; ++i) {
+			if ( (dataMap != null) && dataMap.checkName(chanNamesI[i]) ) {
+				chanData[i] = dataMap.get(chanNamesI[i]);
+			}
+		}
+		return chanData;
+	}
+
+	//
+	// Look again for the channels which rows in the reorder buffer are still missing: one request, for
+	// just those channels, over the time span of those rows, at most every 100 msec. Unlike
+	// fetchDataWithRetry(), this doesn't wait or clear the file list caches.
+	//
+	private void refetchMissing() throws Exception {
+		long currentTime = System.currentTimeMillis();
+		if ( !reorderBuffer.hasMissing() || ((currentTime - lastRefetchTime) < 100) ) {
+			return;
+		}
+		lastRefetchTime = currentTime;
+		boolean[] bMissing = reorderBuffer.getMissingChannels(ct_chanNames.length);
+		List<Integer> chanIdx = new ArrayList<>();
+		for (int i = 0; i < bMissing.length; ++i) {
+			if (bMissing[i]) {
+				chanIdx.add(i);
+			}
+		}
+		String[] chanNames = new String[chanIdx.size()];
+		for (int k = 0; k < chanNames.length; ++k) {
+			chanNames[k] = ct_chanNames[chanIdx.get(k)];
+		}
+		double[] span = reorderBuffer.getMissingSpan();
+		CTdata[] chanData = fetchData(chanNames, span[0] - 0.0002, (span[1] - span[0]) + 0.0004);
+		for (int k = 0; k < chanNames.length; ++k) {
+			reorderBuffer.fill(chanIdx.get(k), chanData[k]);
+		}
+	}
+
+	//
+	// Move the rows which the reorder buffer is ready to give up (see ReorderBuffer.poll()) to the data
+	// vectors, stopping early if the batch fills up (with key partitioning, "-rows" applies to each key's
+	// batch instead); returns the new number of rows in the batch
+	//
+	private int addReadyRows(int recordsInBatchI) {
+		long currentTime = System.currentTimeMillis();
+		while ( (maxBatchRows == 0) || (keyPartitioner != null) || (recordsInBatchI < maxBatchRows) ) {
+			ReorderBuffer.Row row = reorderBuffer.poll(currentTime);
+			if (row == null) {
+				break;
+			}
+			addDataToVectors(row.chanData, recordsInBatchI, row.time);
+			++recordsInBatchI;
+		}
+		return recordsInBatchI;
 	}
 
 	//
@@ -521,105 +1363,227 @@ public class CT2Arrow {
 	}
 
 	//
+	// Write out the stored rows: each column group becomes one record batch, and with several groups
+	// the batches are written in parallel. All groups of a flush get the same batch number.
 	//
-	//
-	private void flushData(long currentTimeI, PlasmaClient plasmaClientI, VectorSchemaRoot rootI, int recordsInBatchI) {
-		try {
-			if (bPlasma) {
-				System.err.println("FLUSH DATA TO PLASMA AT TIME " + currentTimeI);
-				writeToPlasma(plasmaClientI, rootI, recordsInBatchI);
-			} else {
-				System.err.println("FLUSH DATA TO ARROW FILE AT TIME " + currentTimeI);
-				writeToArrowFile(rootI, recordsInBatchI);
-			}
-		} catch (Exception e) {
-			System.err.println("Caught exception writing data to Arrow:");
-			System.err.println(e);
-		}
-		// Reset vectors
-		ct_timestamp_dc.reset();
+	private void flushData(long currentTimeI, int recordsInBatchI) {
+		System.err.println("FLUSH DATA AT TIME " + currentTimeI);
+		// Set the value counts up front; the ct_timestamp vector is shared by all of the groups' roots
+		ct_timestamp_dc.setValueCount(recordsInBatchI);
 		for (int i = 0; i < arrow_chanNames.length; ++i) {
 			DataContainer dc = hashMap.get(arrow_chanNames[i]);
-			dc.reset();
+			dc.setValueCount(recordsInBatchI);
+		}
+		for (ColumnGroup group : groups) {
+			group.root.setRowCount(recordsInBatchI);
+		}
+		int flushBatchNum = ++batchNum;
+		long startNanos = System.nanoTime();
+		List<Runnable> tasks = new ArrayList<>(groups.length);
+		for (ColumnGroup group : groups) {
+			tasks.add(() -> writeGroup(group, group.root, flushBatchNum, recordsInBatchI, null));
 		}
+		writeAll(tasks);
+		if (monitor != null) {
+			monitor.batchFlushed(recordsInBatchI, ct_timestamp_dc.getTime(0), ct_timestamp_dc.getTime(recordsInBatchI - 1), System.nanoTime() - startNanos);
+		}
+		resetVectors();
 	}
 
 	//
-	// Write data to an Arrow file
-	// Each output file will contain one record batch
+	// Move the staged rows (the rows in the DataContainer vectors) to the batches of their keys, then
+	// flush any key's batch which has reached the row or size limit. The rollups cover all keys, so
+	// they are updated here, from the staged rows (which are in time order), rather than per key.
 	//
-	private void writeToArrowFile(VectorSchemaRoot rootI, int recordsInBatchI) throws FileNotFoundException,IOException {
-
-		ct_timestamp_dc.setValueCount(recordsInBatchI);
-		for (int i = 0; i < arrow_chanNames.length; ++i) {
-			DataContainer dc = hashMap.get(arrow_chanNames[i]);
-			dc.setValueCount(recordsInBatchI);
+	private void routeStagedRows(int recordsInBatchI) {
+		for (ColumnGroup group : groups) {
+			group.root.setRowCount(recordsInBatchI);
 		}
-
-		++batchNum;
-
-		// Create the filename
-		String filename = String.format("%s_b%05d.arrow",ct_sourceName,batchNum);
-		System.err.println("Batch " + batchNum + ", contains " + recordsInBatchI + " records; written to file " + filename);
-
-		// This is a try-with-resource block
-		try (FileOutputStream fos = new FileOutputStream(filename);
-			 ArrowFileWriter fileWriter = new ArrowFileWriter(rootI, null, Channels.newChannel(fos)))
-		{
-			fileWriter.start();
-			rootI.setRowCount(recordsInBatchI);
-			fileWriter.writeBatch();
-			fileWriter.end();
-		} catch (IOException ioe) {
-			System.err.println(ioe);
+		long currentTime = System.currentTimeMillis();
+		List<KeyPartitioner.Partition> full = new ArrayList<>();
+		for (int i = 0; i < recordsInBatchI; ++i) {
+			KeyPartitioner.Partition partition = keyPartitioner.route(i, currentTime);
+			boolean bFull = ( (maxBatchRows > 0) && (partition.getRowCount() >= maxBatchRows) ) ||
+							( (maxKeyBytes > 0) && (partition.getBufferSize() >= maxKeyBytes) );
+			if (bFull && !full.contains(partition)) {
+				full.add(partition);
+			}
+		}
+		for (ColumnGroup group : groups) {
+			if (group.rollup != null) {
+				try {
+					group.rollup.addBatch(group.root);
+				} catch (Exception e) {
+					System.err.println("Caught exception updating rollups:");
+					System.err.println(e);
+				}
+			}
+		}
+		resetVectors();
+		if (!full.isEmpty()) {
+			if (bDebug) {
+				System.err.println("\nBatch for key " + full.get(0).label + " is full  ==>  Flush data");
+			}
+			flushKeys(currentTime, full);
 		}
+	}
 
-	} // end writeToArrowFile()
+	//
+	// Write out the batches of the given keys. Each key's batch gets its own batch number (shared by
+	// its column groups), and the groups of all of the keys are written in parallel.
+	//
+	private void flushKeys(long currentTimeI, List<KeyPartitioner.Partition> partitionsI) {
+		System.err.println("FLUSH " + partitionsI.size() + " KEY BATCH(ES) AT TIME " + currentTimeI);
+		long startNanos = System.nanoTime();
+		List<Runnable> tasks = new ArrayList<>();
+		for (KeyPartitioner.Partition partition : partitionsI) {
+			partition.setRowCount();
+			int keyBatchNum = ++batchNum;
+			int rows = partition.getRowCount();
+			for (int g = 0; g < groups.length; ++g) {
+				ColumnGroup group = groups[g];
+				VectorSchemaRoot root = partition.roots[g];
+				tasks.add(() -> writeGroup(group, root, keyBatchNum, rows, partition.label));
+			}
+		}
+		writeAll(tasks);
+		long flushNanos = System.nanoTime() - startNanos;
+		for (KeyPartitioner.Partition partition : partitionsI) {
+			if (monitor != null) {
+				// The keys' batches are written together, so each one took as long as the whole flush
+				FieldVector timeVec = partition.roots[0].getVector(ct_timestamp_dc.arrow_chanName);
+				monitor.batchFlushed(partition.getRowCount(), ct_timestamp_dc.getTime(timeVec, 0), ct_timestamp_dc.getTime(timeVec, partition.getRowCount() - 1), flushNanos);
+			}
+			partition.clear();
+		}
+		// Write out the rollup buckets completed so far
+		for (ColumnGroup group : groups) {
+			if (group.rollup != null) {
+				try {
+					writeRollups(group);
+				} catch (Exception e) {
+					System.err.println("Caught exception writing rollups:");
+					System.err.println(e);
+				}
+			}
+		}
+	}
 
 	//
-	// Write data to Arrow and then Plasma
-	// Each Plasma object will contain one record batch
+	// Run the given writes, in parallel if there is more than one; returns once all are done, since
+	// the vectors being written can't be reset until then
 	//
-	private void writeToPlasma(PlasmaClient clientI, VectorSchemaRoot rootI, int recordsInBatchI) {
+	private void writeAll(List<Runnable> tasksI) {
+		if ( (groupWriter == null) || (tasksI.size() == 1) ) {
+			for (Runnable task : tasksI) {
+				task.run();
+			}
+			return;
+		}
+		List<Future<?>> futures = new ArrayList<>(tasksI.size());
+		for (Runnable task : tasksI) {
+			futures.add(groupWriter.submit(task));
+		}
+		for (Future<?> future : futures) {
+			try {
+				future.get();
+			} catch (Exception e) {
+				System.err.println("Caught exception writing column group:");
+				System.err.println(e);
+			}
+		}
+	}
 
-		ct_timestamp_dc.setValueCount(recordsInBatchI);
+	//
+	// Reset the DataContainer vectors for the next rows
+	//
+	private void resetVectors() {
+		ct_timestamp_dc.reset();
 		for (int i = 0; i < arrow_chanNames.length; ++i) {
 			DataContainer dc = hashMap.get(arrow_chanNames[i]);
-			dc.setValueCount(recordsInBatchI);
+			dc.reset();
 		}
+	}
 
-		// This is a try-with-resource block
-		try (ByteArrayOutputStream out = new ByteArrayOutputStream();
-			 ArrowStreamWriter writer = new ArrowStreamWriter(rootI, /*DictionaryProvider=*/null, Channels.newChannel(out)))
-		{
-			// Create the Arrow record batch in memory
-			writer.start();
-
-			++batchNum;
-
-			// Create the Plasma object ID
-			// See answer from "leo" at https://stackoverflow.com/questions/388461/how-can-i-pad-a-string-in-java
-			String idStr = String.format("%-13s_b%05d",ct_sourceName,batchNum).replace(' ', '*');
-			byte[] nextID = idStr.getBytes("UTF8");
-			System.err.println("Batch " + batchNum + ", contains " + recordsInBatchI + " records; written to Plasma object " + idStr);
+	//
+	// Write one column group's record batch (the group's own root, or the root of a key's batch, in
+	// which case keyLabelI names the key) to its outputs
+	//
+	private void writeGroup(ColumnGroup groupI, VectorSchemaRoot rootI, int batchNumI, int recordsInBatchI, String keyLabelI) {
+		String batchDesc = "Batch " + batchNumI + ((keyLabelI == null) ? "" : " (" + keyLabelI + ")");
+		// Serialize the batch once and queue it for each output; the outputs write it on their own threads
+		if (groupI.fanOut != null) {
+			try {
+				// Per-column statistics in the file footer let ArrowScanner skip files which can't
+				// match a query without reading any of the batch data; the Flight server only needs
+				// the time range of the batch
+				Map<String,String> footerMetadata = null;
+				if (bArrowFiles) {
+					footerMetadata = new HashMap<>();
+					ColumnStats.addToMetadata(footerMetadata, 0, rootI);
+				} else if (flightPort > 0) {
+					footerMetadata = new HashMap<>();
+					ColumnStats.compute(rootI.getVector(ct_timestamp_dc.arrow_chanName), recordsInBatchI).addToMetadata(footerMetadata, 0);
+				}
+				IpcBatch batch = IpcBatch.serialize(rootI, footerMetadata, groupI.getFilename(ct_sourceName,batchNumI), groupI.getObjectId(ct_sourceName,batchNumI));
+				System.err.println(batchDesc + ", contains " + recordsInBatchI + " records; " + batch.name + " (" + batch.fileLength() + " bytes) queued for " + groupI.fanOut.getSinkNames());
+				groupI.fanOut.submit(batch);
+			} catch (Exception e) {
+				System.err.println("Caught exception writing data to Arrow:");
+				System.err.println(e);
+			}
+		}
+		// Update the rollups and write out any buckets this batch completed (with key partitioning, the
+		// rollups are kept up to date from the rows as they arrive instead; see routeStagedRows())
+		if ( (groupI.rollup != null) && (keyPartitioner == null) ) {
+			try {
+				groupI.rollup.addBatch(rootI);
+				writeRollups(groupI);
+			} catch (Exception e) {
+				System.err.println("Caught exception writing rollups:");
+				System.err.println(e);
+			}
+		}
+	}
 
-			rootI.setRowCount(recordsInBatchI);
-			writer.writeBatch();
-			writer.end();
+	//
+	// Write the completed rollup buckets to Arrow files; one file per bucket size, holding all the
+	// buckets completed since the last flush. A bucket which is still open stays in memory until
+	// a row past its end arrives.
+	//
+	private void writeRollups(ColumnGroup groupI) throws IOException {
 
-			// Write the Arrow record batch to Plasma
-			byte[] recordAsBytes = out.toByteArray();
-			System.err.println("  - the record batch contains " + recordAsBytes.length + " bytes");
-			// We could create a buffer in Plasma and then write into that buffer;
-			// but the following call to client.put will do this
-			// ByteBuffer plasmaBuf = clientI.create(nextID,recordAsBytes.length,null);
-			clientI.put(nextID,recordAsBytes,null);
-			// The client.put call above automatically seals the object in Plasma, don't do it again
-			// client.seal(nextID);
-		} catch (IOException ioe) {
-			System.err.println(ioe);
+		TimeBucketRollup rollup = groupI.rollup;
+		for (int i = 0; i < rollup.getNumResolutions(); ++i) {
+			VectorSchemaRoot rollupRoot = rollup.takeCompleted(i);
+			if (rollupRoot == null) {
+				continue;
+			}
+			if (groupI.rollupPartitionWriters != null) {
+				System.err.println("Rollup (" + rollupNames[i] + " sec buckets): " + rollupRoot.getRowCount() + " buckets written under " + groupI.rollupPartitionWriters[i].getSourceDir());
+				try (VectorSchemaRoot r = rollupRoot) {
+					synchronized (groupI) {
+						groupI.rollupPartitionWriters[i].write(r);
+					}
+				}
+				continue;
+			}
+			++groupI.rollupFileNum[i];
+			String filename = groupI.getRollupFilename(ct_sourceName,rollupNames[i],groupI.rollupFileNum[i]);
+			System.err.println("Rollup (" + rollupNames[i] + " sec buckets): " + rollupRoot.getRowCount() + " buckets written to file " + filename);
+			// As for the raw batches, footer statistics let ArrowScanner prune by bucket_start
+			Map<String,String> footerMetadata = new HashMap<>();
+			ColumnStats.addToMetadata(footerMetadata, 0, rollupRoot);
+			try (VectorSchemaRoot r = rollupRoot;
+				 FileOutputStream fos = new FileOutputStream(filename);
+				 ArrowFileWriter fileWriter = new ArrowFileWriter(r, null, Channels.newChannel(fos), footerMetadata))
+			{
+				fileWriter.start();
+				fileWriter.writeBatch();
+				fileWriter.end();
+			}
 		}
 
-	} // end writeToPlasma()
+	} // end writeRollups()
 
 } //end class CT2Arrow
@@ -0,0 +1,311 @@
+/*
+Copyright 2020 Erigo
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+
+/*
+
+CT2ArrowLoadTest
+
+End-to-end load test: grow a synthetic CT source live with CTSourceGenerator while CT2Arrow (run in
+this JVM) ingests it, then report
+
+    rows/s          rows written by CT2Arrow per second of the run
+    flush latency   time taken to hand each batch to the outputs (mean, p50, p99, max)
+    ingest lag      at each flush, how far (wall clock minus CT time) the batch's newest and oldest
+                    rows are behind
+    peak memory     peak Java heap use and peak Arrow buffer allocation
+
+The test runs for "-dur" seconds of data and then gives CT2Arrow up to "-drain" seconds to write the
+rest before stopping it. The generator options (e.g. "-gen \"-n 50 -types f32,i32 -rate 100\"") and
+CT2Arrow options (e.g. "-args \"-f 500 -stream /dev/null\"") are passed through; the source and
+channel names are filled in. Note that CT2Arrow writes to Arrow files in the current folder unless
+another output is given. With "-csv", one line of results per run is appended to the given file, to
+track regressions over time.
+
+Since the generator runs in the same JVM, its (small) heap use is included in the peak heap.
+
+ */
+
+package erigo.ct2arrow;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.commons.cli.*;
+
+public class CT2ArrowLoadTest implements CT2Arrow.Monitor {
+
+	// Flush statistics, one entry per batch
+	private final List<Double> flushLatency_msec = new ArrayList<>();
+	private final List<Double> newestLag_msec = new ArrayList<>();
+	private final List<Double> oldestLag_msec = new ArrayList<>();
+	private long numRows = 0;
+	private long lastFlushMillis = 0;
+
+	private volatile BufferAllocator allocator = null;
+	private volatile boolean bStopRequested = false;
+
+	//
+	// Main function
+	//
+	public static void main(String[] argsI) {
+		try {
+			new CT2ArrowLoadTest().runTest(argsI);
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.err.println(e);
+		}
+		// Stop any output threads CT2Arrow leaves running
+		System.exit(0);
+	}
+
+	private void runTest(String[] argsI) throws Exception {
+
+		//
+		// Argument processing using Apache Commons CLI
+		//
+		// 1. Setup command line options
+		Options options = new Options();
+		options.addOption("h", "help", false, "Print this message.");
+		options.addOption(Option.builder("s").argName("source name").hasArg().desc("Name of the synthetic CT source, written under CTdata in the current folder; default = loadtest.").build());
+		options.addOption(Option.builder("dur").argName("duration").hasArg().desc("Seconds of data to generate; default = 60.").build());
+		options.addOption(Option.builder("drain").argName("duration").hasArg().desc("Once all the data has been generated, most seconds to wait for CT2Arrow to write it; default = 10.").build());
+		options.addOption(Option.builder("gen").argName("options").hasArg().desc("Options for CTSourceGenerator (e.g. \"-n 50 -types f32,i32 -rate 100\"); \"-s\", \"-dur\" and \"-live\" are added.").build());
+		options.addOption(Option.builder("args").argName("options").hasArg().desc("Options for CT2Arrow (e.g. \"-f 500 -stream /dev/null\"); \"-s\" and \"-chans\" are added.").build());
+		options.addOption(Option.builder("csv").argName("file").hasArg().desc("Append the results to this CSV file (with a header line if the file is new).").build());
+
+		// 2. Parse command line options
+		CommandLineParser parser = new DefaultParser();
+		CommandLine line = null;
+		try {	line = parser.parse( options, argsI );	}
+		catch( ParseException exp ) {	// oops, something went wrong
+			System.err.println( "Command line argument parsing failed: " + exp.getMessage() );
+			return;
+		}
+
+		// 3. Retrieve the command line values
+		if (line.hasOption("help")) {			// Display help message and quit
+			HelpFormatter formatter = new HelpFormatter();
+			formatter.setWidth(120);
+			formatter.printHelp( "CT2ArrowLoadTest", options );
+			return;
+		}
+
+		String sourceName = line.getOptionValue("s", "loadtest");
+		double duration_sec = 0.0;
+		double drain_sec = -1.0;
+		try {
+			duration_sec = Double.parseDouble(line.getOptionValue("dur", "60"));
+			drain_sec = Double.parseDouble(line.getOptionValue("drain", "10"));
+		} catch (NumberFormatException nfe) {
+			duration_sec = 0.0;
+		}
+		if ( !(duration_sec > 0.0) || !(drain_sec >= 0.0) ) {
+			System.err.println("Error: the duration must be a number greater than 0 and the drain time a number at least 0");
+			return;
+		}
+		String genOptions = line.getOptionValue("gen", "");
+		String ct2arrowOptions = line.getOptionValue("args", "");
+
+		File sourceFolder = new File("CTdata", sourceName);
+		if (sourceFolder.exists()) {
+			System.err.println("Error: " + sourceFolder + " already exists; remove it or choose another source name");
+			return;
+		}
+
+		List<String> genArgs = splitOptions(genOptions);
+		genArgs.addAll(List.of("-s", sourceName, "-dur", Double.toString(duration_sec), "-live"));
+		CTSourceGenerator generator = CTSourceGenerator.fromArgs(genArgs.toArray(new String[0]));
+		if (generator == null) {
+			return;
+		}
+		List<String> ct2arrowArgs = splitOptions(ct2arrowOptions);
+		ct2arrowArgs.addAll(List.of("-s", sourceName, "-chans", String.join(",", generator.getChannelNames())));
+
+		// Measure the peak heap use from here on
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				pool.resetPeakUsage();
+			}
+		}
+
+		long startMillis = System.currentTimeMillis();
+		Thread genThread = new Thread(generator, "ct-generator");
+		genThread.start();
+		Thread ct2arrowThread = new Thread(() -> {
+			try {
+				new CT2Arrow(ct2arrowArgs.toArray(new String[0]), this);
+			} catch (Exception e) {
+				e.printStackTrace();
+				System.err.println(e);
+			}
+		}, "ct2arrow");
+		ct2arrowThread.start();
+
+		genThread.join();
+		long numGenerated = generator.getNumSamples();
+		// Wait for CT2Arrow to write the rest of the data
+		long drainEndMillis = System.currentTimeMillis() + (long)(drain_sec * 1000.0);
+		while ( ct2arrowThread.isAlive() && (getNumRows() < numGenerated) && (System.currentTimeMillis() < drainEndMillis) ) {
+			Thread.sleep(100);
+		}
+		bStopRequested = true;
+		ct2arrowThread.join();
+
+		long peakHeap = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if ( (pool.getType() == MemoryType.HEAP) && (pool.getPeakUsage() != null) ) {
+				peakHeap += pool.getPeakUsage().getUsed();
+			}
+		}
+		long peakArrow = (allocator == null) ? 0 : allocator.getPeakMemoryAllocation();
+
+		synchronized (this) {
+			double run_sec = (((lastFlushMillis > 0) ? lastFlushMillis : System.currentTimeMillis()) - startMillis) / 1000.0;
+			double rowsPerSec = numRows / run_sec;
+			double[] latency = stats(flushLatency_msec);
+			double[] newestLag = stats(newestLag_msec);
+			double[] oldestLag = stats(oldestLag_msec);
+
+			System.err.println();
+			System.err.println("=== CT2Arrow load test: " + generator.getChannelNames().length + " channels at " + generator.getRate() + " Hz for " + duration_sec + " sec");
+			System.err.println("Rows:              " + numRows + " written of " + numGenerated + " generated, in " + flushLatency_msec.size() + " batches");
+			System.err.println(String.format("Throughput:        %.1f rows/s", rowsPerSec));
+			System.err.println("Flush latency:     " + format(latency) + " msec");
+			System.err.println("Ingest lag newest: " + format(newestLag) + " msec");
+			System.err.println("Ingest lag oldest: " + format(oldestLag) + " msec");
+			System.err.println(String.format("Peak memory:       heap %.1f MB, Arrow %.1f MB", peakHeap / 1048576.0, peakArrow / 1048576.0));
+
+			if (line.hasOption("csv")) {
+				File csvFile = new File(line.getOptionValue("csv"));
+				boolean bNewFile = !csvFile.exists() || (csvFile.length() == 0);
+				try (PrintWriter pw = new PrintWriter(new FileWriter(csvFile, true))) {
+					if (bNewFile) {
+						pw.println("start_time,channels,rate_hz,duration_sec,ct2arrow_args,rows_generated,rows_written,batches,rows_per_sec," +
+								"flush_mean_ms,flush_p50_ms,flush_p99_ms,flush_max_ms," +
+								"lag_newest_mean_ms,lag_newest_p50_ms,lag_newest_p99_ms,lag_newest_max_ms," +
+								"lag_oldest_mean_ms,lag_oldest_p50_ms,lag_oldest_p99_ms,lag_oldest_max_ms," +
+								"peak_heap_bytes,peak_arrow_bytes");
+					}
+					pw.println(startMillis + "," + generator.getChannelNames().length + "," + generator.getRate() + "," + duration_sec + ",\"" + ct2arrowOptions.replace("\"", "\"\"") + "\"," +
+							numGenerated + "," + numRows + "," + flushLatency_msec.size() + "," + String.format("%.1f", rowsPerSec) + "," +
+							csv(latency) + "," + csv(newestLag) + "," + csv(oldestLag) + "," + peakHeap + "," + peakArrow);
+				} catch (IOException ioe) {
+					System.err.println("Error: writing to " + csvFile + ": " + ioe);
+				}
+			}
+		}
+	}
+
+	//
+	// CT2Arrow.Monitor
+	//
+	@Override
+	public void started(BufferAllocator allocatorI) {
+		allocator = allocatorI;
+	}
+
+	@Override
+	public synchronized void batchFlushed(int numRowsI, double firstTimeI, double lastTimeI, long flushNanosI) {
+		long now = System.currentTimeMillis();
+		numRows += numRowsI;
+		lastFlushMillis = now;
+		flushLatency_msec.add(flushNanosI / 1.0e6);
+		newestLag_msec.add(now - lastTimeI * 1000.0);
+		oldestLag_msec.add(now - firstTimeI * 1000.0);
+	}
+
+	@Override
+	public boolean isStopRequested() {
+		return bStopRequested;
+	}
+
+	private synchronized long getNumRows() {
+		return numRows;
+	}
+
+	//
+	// Split an options string at white space (double quotes group words)
+	//
+	private static List<String> splitOptions(String optionsI) {
+		List<String> args = new ArrayList<>();
+		StringBuilder sb = null;
+		boolean bQuoted = false;
+		for (char c : optionsI.toCharArray()) {
+			if (c == '"') {
+				bQuoted = !bQuoted;
+				if (sb == null) {
+					sb = new StringBuilder();
+				}
+			} else if (Character.isWhitespace(c) && !bQuoted) {
+				if (sb != null) {
+					args.add(sb.toString());
+					sb = null;
+				}
+			} else {
+				if (sb == null) {
+					sb = new StringBuilder();
+				}
+				sb.append(c);
+			}
+		}
+		if (sb != null) {
+			args.add(sb.toString());
+		}
+		return args;
+	}
+
+	//
+	// Mean, p50, p99 and max of the given values (all NaN if there are none)
+	//
+	private static double[] stats(List<Double> valuesI) {
+		if (valuesI.isEmpty()) {
+			return new double[] {Double.NaN, Double.NaN, Double.NaN, Double.NaN};
+		}
+		double[] values = new double[valuesI.size()];
+		double sum = 0.0;
+		for (int i = 0; i < values.length; ++i) {
+			values[i] = valuesI.get(i);
+			sum += values[i];
+		}
+		Arrays.sort(values);
+		return new double[] {sum / values.length, percentile(values, 50), percentile(values, 99), values[values.length - 1]};
+	}
+
+	// Nearest-rank percentile of the sorted values
+	private static double percentile(double[] sortedI, int pctI) {
+		int rank = (int)Math.ceil(pctI / 100.0 * sortedI.length);
+		return sortedI[Math.max(rank, 1) - 1];
+	}
+
+	private static String format(double[] statsI) {
+		return String.format("mean %.1f, p50 %.1f, p99 %.1f, max %.1f", statsI[0], statsI[1], statsI[2], statsI[3]);
+	}
+
+	private static String csv(double[] statsI) {
+		return String.format("%.3f,%.3f,%.3f,%.3f", statsI[0], statsI[1], statsI[2], statsI[3]);
+	}
+
+}
@@ -0,0 +1,401 @@
+/*
+Copyright 2020 Erigo
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+
+/*
+
+CTSourceGenerator
+
+Write a synthetic CloudTurbine source to local disk, so CT2Arrow can be run (and benchmarked)
+reproducibly without a real CTdata/<source> tree.
+
+The source has "-n" channels named c000.<type>, c001.<type>, ..., with the types taken in turn from
+"-types". Samples are written at "-rate" Hz; each timestamp can be jittered by up to a fraction of
+the sample period and the source can have regular gaps with no data. Values are deterministic for a
+given "-seed":
+    .i32  sample counter
+    .f32  sine wave (a different frequency for each channel) plus noise
+    .f64  same as .f32
+    .txt  "s<sample counter>"
+
+By default, "-dur" seconds of data starting at "-t0" are written as fast as possible. With "-live",
+the samples are timestamped with the wall clock and written at the sample rate, so the source grows
+live the way a real one does (each block of samples appears once it is flushed, every "-block"
+seconds).
+
+ */
+
+package erigo.ct2arrow;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import cycronix.ctlib.CTwriter;
+
+import org.apache.commons.cli.*;
+
+public class CTSourceGenerator implements Runnable {
+
+	// Supported channel types
+	private static final String[] TYPES = {"i32", "f32", "f64", "txt"};
+
+	// CT root folder and source name
+	private String rootFolder = "CTdata";
+	private String sourceName = null;
+
+	// Channel names
+	private String[] chanNames = null;
+
+	// Sample rate (Hz)
+	private double rate = 10.0;
+
+	// Timestamp jitter, as a fraction of the sample period (0 <= jitter < 1)
+	private double jitter = 0.0;
+
+	// Every gapEvery_sec seconds, there is a gap of gapLength_sec seconds with no data (0 = no gaps)
+	private double gapEvery_sec = 0.0;
+	private double gapLength_sec = 0.0;
+
+	// Total duration (sec)
+	private double duration_sec = 60.0;
+
+	// Start time (sec since epoch) when not live; defaults to the current time
+	private double t0 = 0.0;
+
+	// Timestamp with the wall clock and write at the sample rate
+	private boolean bLive = false;
+
+	// Samples are flushed to disk in blocks of this many seconds
+	private double block_sec = 1.0;
+
+	// Seed for the jitter and noise
+	private long seed = 1;
+
+	private boolean bDebug = false;
+
+	// Number of samples written to each channel so far
+	private volatile long numSamples = 0;
+
+	// Set by stop()
+	private volatile boolean bStopRequested = false;
+
+	//
+	// Main function
+	//
+	public static void main(String[] argsI) {
+		try {
+			CTSourceGenerator generator = fromArgs(argsI);
+			if (generator != null) {
+				generator.run();
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.err.println(e);
+		}
+	}
+
+	private CTSourceGenerator() {}
+
+	//
+	// Create a generator from the given command line arguments; returns null (after printing a
+	// message) if they aren't valid or help was requested
+	//
+	public static CTSourceGenerator fromArgs(String[] argsI) {
+
+		CTSourceGenerator gen = new CTSourceGenerator();
+
+		//
+		// Argument processing using Apache Commons CLI
+		//
+		// 1. Setup command line options
+		Options options = new Options();
+		options.addOption("h", "help", false, "Print this message.");
+		options.addOption(Option.builder("s").argName("source name").hasArg().desc("Name of the CloudTurbine source to write.").build());
+		options.addOption(Option.builder("root").argName("folder").hasArg().desc("CloudTurbine root folder; the source is written to <root>/<source>; default = " + gen.rootFolder + ".").build());
+		options.addOption(Option.builder("n").argName("num channels").hasArg().desc("Number of channels, named c000.<type>, c001.<type>, ...; default = 10.").build());
+		options.addOption(Option.builder("types").argName("types").hasArg().desc("Comma-separated list of channel types (i32, f32, f64, txt), assigned to the channels in turn; default = f32.").build());
+		options.addOption(Option.builder("rate").argName("sample rate").hasArg().desc("Sample rate of every channel, in Hz; default = " + Double.toString(gen.rate) + ".").build());
+		options.addOption(Option.builder("jitter").argName("fraction").hasArg().desc("Move each timestamp by a random amount of up to +/- half this fraction of the sample period (0 <= fraction < 1); default = 0.").build());
+		options.addOption(Option.builder("gaps").argName("every:length").hasArg().desc("Leave a gap of <length> seconds with no data every <every> seconds (e.g. 30:2); default = no gaps.").build());
+		options.addOption(Option.builder("dur").argName("duration").hasArg().desc("Total duration of the data, in seconds; default = " + Double.toString(gen.duration_sec) + ".").build());
+		options.addOption(Option.builder("t0").argName("start time").hasArg().desc("Time of the first sample (seconds since the epoch) when not \"-live\"; default = the current time.").build());
+		options.addOption("live", false, "Grow the source live: timestamp the samples with the wall clock and write them at the sample rate (rather than as fast as possible).");
+		options.addOption(Option.builder("block").argName("block duration").hasArg().desc("Flush the samples to disk in blocks of this many seconds; default = " + Double.toString(gen.block_sec) + ".").build());
+		options.addOption(Option.builder("seed").argName("seed").hasArg().desc("Seed for the timestamp jitter and the noise on .f32/.f64 channels; default = " + Long.toString(gen.seed) + ".").build());
+		options.addOption("x", "debug", false, "Debug mode.");
+
+		// 2. Parse command line options
+		CommandLineParser parser = new DefaultParser();
+		CommandLine line = null;
+		try {	line = parser.parse( options, argsI );	}
+		catch( ParseException exp ) {	// oops, something went wrong
+			System.err.println( "Command line argument parsing failed: " + exp.getMessage() );
+			return null;
+		}
+
+		// 3. Retrieve the command line values
+		if (line.hasOption("help")) {			// Display help message and quit
+			HelpFormatter formatter = new HelpFormatter();
+			formatter.setWidth(120);
+			formatter.printHelp( "CTSourceGenerator", options );
+			return null;
+		}
+
+		if (!line.hasOption("s")) {
+			System.err.println("Error: you must specify a CloudTurbine source name");
+			return null;
+		}
+		gen.sourceName = line.getOptionValue("s");
+		gen.rootFolder = line.getOptionValue("root", gen.rootFolder);
+
+		int numChans = 0;
+		try {
+			numChans = Integer.parseInt(line.getOptionValue("n", "10"));
+		} catch (NumberFormatException nfe) {
+			numChans = 0;
+		}
+		if (numChans < 1) {
+			System.err.println("Error: the number of channels must be an integer greater than 0");
+			return null;
+		}
+		String[] types = line.getOptionValue("types", "f32").split(",");
+		for (int i = 0; i < types.length; ++i) {
+			types[i] = types[i].trim();
+			if (!List.of(TYPES).contains(types[i])) {
+				System.err.println("Error: unsupported channel type \"" + types[i] + "\"; must be one of " + String.join(", ", TYPES));
+				return null;
+			}
+		}
+		gen.chanNames = new String[numChans];
+		for (int i = 0; i < numChans; ++i) {
+			gen.chanNames[i] = String.format("c%03d.%s", i, types[i % types.length]);
+		}
+
+		try {
+			gen.rate = Double.parseDouble(line.getOptionValue("rate", Double.toString(gen.rate)));
+		} catch (NumberFormatException nfe) {
+			gen.rate = 0.0;
+		}
+		if (!(gen.rate > 0.0)) {
+			System.err.println("Error: the sample rate must be a number greater than 0");
+			return null;
+		}
+
+		try {
+			gen.jitter = Double.parseDouble(line.getOptionValue("jitter", "0"));
+		} catch (NumberFormatException nfe) {
+			gen.jitter = -1.0;
+		}
+		if ( !(gen.jitter >= 0.0) || (gen.jitter >= 1.0) ) {
+			System.err.println("Error: the jitter must be a number at least 0 and less than 1");
+			return null;
+		}
+
+		if (line.hasOption("gaps")) {
+			String[] gapParts = line.getOptionValue("gaps").split(":");
+			try {
+				if (gapParts.length != 2) {
+					throw new NumberFormatException();
+				}
+				gen.gapEvery_sec = Double.parseDouble(gapParts[0]);
+				gen.gapLength_sec = Double.parseDouble(gapParts[1]);
+			} catch (NumberFormatException nfe) {
+				gen.gapEvery_sec = 0.0;
+			}
+			if ( !(gen.gapEvery_sec > 0.0) || !(gen.gapLength_sec > 0.0) || (gen.gapLength_sec >= gen.gapEvery_sec) ) {
+				System.err.println("Error: the gaps must be given as <every>:<length>, in seconds, with 0 < length < every");
+				return null;
+			}
+		}
+
+		try {
+			gen.duration_sec = Double.parseDouble(line.getOptionValue("dur", Double.toString(gen.duration_sec)));
+		} catch (NumberFormatException nfe) {
+			gen.duration_sec = 0.0;
+		}
+		if (!(gen.duration_sec > 0.0)) {
+			System.err.println("Error: the duration must be a number greater than 0");
+			return null;
+		}
+
+		gen.bLive = line.hasOption("live");
+		if (line.hasOption("t0")) {
+			if (gen.bLive) {
+				System.err.println("Error: \"-t0\" can't be used with \"-live\"");
+				return null;
+			}
+			try {
+				gen.t0 = Double.parseDouble(line.getOptionValue("t0"));
+			} catch (NumberFormatException nfe) {
+				gen.t0 = 0.0;
+			}
+			if (!(gen.t0 > 0.0)) {
+				System.err.println("Error: the start time must be a number of seconds since the epoch");
+				return null;
+			}
+		}
+
+		try {
+			gen.block_sec = Double.parseDouble(line.getOptionValue("block", Double.toString(gen.block_sec)));
+		} catch (NumberFormatException nfe) {
+			gen.block_sec = 0.0;
+		}
+		if (!(gen.block_sec > 0.0)) {
+			System.err.println("Error: the block duration must be a number greater than 0");
+			return null;
+		}
+
+		try {
+			gen.seed = Long.parseLong(line.getOptionValue("seed", Long.toString(gen.seed)));
+		} catch (NumberFormatException nfe) {
+			System.err.println("Error: the seed must be an integer");
+			return null;
+		}
+
+		gen.bDebug = line.hasOption("x");
+
+		return gen;
+	}
+
+	public String getSourceName() {
+		return sourceName;
+	}
+
+	//
+	// Names of the channels, in order
+	//
+	public String[] getChannelNames() {
+		return chanNames.clone();
+	}
+
+	public double getRate() {
+		return rate;
+	}
+
+	public double getDuration() {
+		return duration_sec;
+	}
+
+	//
+	// Number of samples written to each channel so far
+	//
+	public long getNumSamples() {
+		return numSamples;
+	}
+
+	//
+	// Ask run() to flush what it has written and return
+	//
+	public void stop() {
+		bStopRequested = true;
+	}
+
+	//
+	// Write the source
+	//
+	@Override
+	public void run() {
+		try {
+			generate();
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.err.println("Error: writing CT source " + sourceName + ": " + e);
+		}
+	}
+
+	private void generate() throws Exception {
+		File sourceFolder = new File(rootFolder, sourceName);
+		CTwriter ctw = new CTwriter(sourceFolder.getPath());
+		// Pack each channel's samples in a block into one zipped file, as a CT source usually does
+		ctw.setBlockMode(true, true);
+
+		Random random = new Random(seed);
+		double period_sec = 1.0 / rate;
+		long startMillis = System.currentTimeMillis();
+		double startTime = bLive ? (startMillis / 1000.0) : ((t0 > 0.0) ? t0 : (startMillis / 1000.0));
+		long totalSamples = (long)Math.ceil(duration_sec * rate);
+
+		System.err.println("Writing " + chanNames.length + " channels at " + rate + " Hz for " + duration_sec + " sec to " + sourceFolder + (bLive ? " (live)" : ""));
+
+		double blockStartTime = -1.0;
+		long numBlocks = 0;
+		for (long i = 0; (i < totalSamples) && !bStopRequested; ++i) {
+			// Nominal time of this sample, relative to the start
+			double offset_sec = i * period_sec;
+			if ( (gapEvery_sec > 0.0) && ((offset_sec % gapEvery_sec) >= (gapEvery_sec - gapLength_sec)) ) {
+				// In a gap; skip this sample
+				continue;
+			}
+			double sampleTime = startTime + offset_sec;
+			if (jitter > 0.0) {
+				sampleTime += (random.nextDouble() - 0.5) * jitter * period_sec;
+			}
+
+			if (bLive) {
+				// Wait until the sample is due
+				long sleep_msec = (long)(sampleTime * 1000.0) - System.currentTimeMillis();
+				if (sleep_msec > 0) {
+					Thread.sleep(sleep_msec);
+				}
+			}
+
+			if (blockStartTime < 0.0) {
+				blockStartTime = sampleTime;
+			} else if ((sampleTime - blockStartTime) >= block_sec) {
+				ctw.flush();
+				++numBlocks;
+				if (bDebug) {
+					System.err.println("Flushed block " + numBlocks + " (" + numSamples + " samples per channel)");
+				}
+				blockStartTime = sampleTime;
+			}
+
+			ctw.setTime(sampleTime);
+			for (int c = 0; c < chanNames.length; ++c) {
+				ctw.putData(chanNames[c], sampleValue(chanNames[c], c, i, offset_sec, random));
+			}
+			++numSamples;
+		}
+		ctw.flush();
+		ctw.close();
+
+		double elapsed_sec = (System.currentTimeMillis() - startMillis) / 1000.0;
+		System.err.println("Wrote " + numSamples + " samples per channel (" + (numSamples * chanNames.length) + " values) in " + elapsed_sec + " sec");
+	}
+
+	//
+	// Value of the given channel for sample sampleIdxI, which is offsetI seconds from the start
+	//
+	private static Object sampleValue(String chanNameI, int chanIdxI, long sampleIdxI, double offsetI, Random randomI) {
+		String type = chanNameI.substring(chanNameI.lastIndexOf('.') + 1);
+		switch (type) {
+			case "i32":
+				return Integer.valueOf((int)sampleIdxI);
+			case "txt":
+				return "s" + sampleIdxI;
+			default:
+				// Each channel has its own frequency (0.1, 0.2, ... Hz)
+				double value = Math.sin(2.0 * Math.PI * 0.1 * (chanIdxI + 1) * offsetI) + 0.1 * randomI.nextGaussian();
+				if (type.equals("f32")) {
+					return Float.valueOf((float)value);
+				}
+				return Double.valueOf(value);
+		}
+	}
+
+}
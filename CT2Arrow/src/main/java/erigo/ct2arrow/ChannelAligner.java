@@ -0,0 +1,236 @@
+/*
+Copyright 2020 Erigo
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package erigo.ct2arrow;
+
+import cycronix.ctlib.CTdata;
+import cycronix.ctlib.CTreader;
+
+//
+// Align channels which have different sample rates to the row timestamps (the timestamps of
+// the first channel or trigger channel).
+//
+// Without alignment, every channel must have a sample within 0.0001 sec of each row timestamp;
+// for a source which mixes, say, 1 Hz and 100 Hz channels, most cells of the slower channels
+// end up null. With alignment, each channel contributes:
+//
+//     ASOF      the latest sample at or before the row timestamp
+//     NEAREST   the sample closest to the row timestamp, before or after
+//
+// as long as that sample is within the given tolerance of the row timestamp. If there is no
+// such sample, the fill policy decides what is stored:
+//
+//     LAST      the latest sample at or before the row timestamp, however old
+//     INTERP    linear interpolation between the samples on either side of the row timestamp
+//               (strings store the earlier sample); LAST if there is no later sample yet
+//     NULL      an Arrow null (the cell's validity bit is cleared), as for missing data
+//
+// The row timestamps only increase, so this is a streaming merge: each channel keeps a window
+// of its sorted sample times and a cursor into it, and for each row every channel's cursor only
+// moves forward. Windows are read from CT a block at a time (sized to the channel's own sample
+// rate, as in NextTimestampCursor), so there is no per-row data request and no retry loop.
+//
+public class ChannelAligner {
+
+    public enum AlignMode {ASOF, NEAREST}
+
+    public enum FillPolicy {LAST, INTERP, NULL}
+
+    // Samples within this much of a row timestamp count as being at that timestamp
+    static final double TIME_EPSILON = 0.0001;
+
+    private final CTreader ctr;
+    private final String sourceName;
+    private final AlignMode mode;
+    private final double tolerance;
+    private final FillPolicy fill;
+    private final ChannelStream[] streams;
+
+    // Statistics
+    public long numMatched = 0;
+    public long numFilled = 0;
+    public long numNull = 0;
+
+    //
+    // containersI must be in the same order as ct_chanNamesI
+    //
+    public ChannelAligner(CTreader ctrI, String sourceNameI, String[] ct_chanNamesI, DataContainer[] containersI, AlignMode modeI, double toleranceI, FillPolicy fillI, double maxDurationI) {
+        ctr = ctrI;
+        sourceName = sourceNameI;
+        mode = modeI;
+        tolerance = toleranceI;
+        fill = fillI;
+        streams = new ChannelStream[ct_chanNamesI.length];
+        for (int i = 0; i < ct_chanNamesI.length; ++i) {
+            streams[i] = new ChannelStream(ct_chanNamesI[i], containersI[i], maxDurationI);
+        }
+    }
+
+    //
+    // Add one row at the given timestamp to the containers' vectors
+    //
+    public void addRow(double timestampI, int vec_indexI) throws Exception {
+        boolean bNeedNext = (mode == AlignMode.NEAREST) || (fill == FillPolicy.INTERP);
+        for (ChannelStream stream : streams) {
+            stream.advanceTo(timestampI, bNeedNext);
+            stream.store(timestampI, vec_indexI);
+        }
+    }
+
+    //
+    // One channel's samples, read a window at a time
+    //
+    private class ChannelStream {
+
+        final String chanName;
+        final DataContainer dc;
+        final double maxDuration;
+        double duration = 1.0;
+
+        // Current window: sample times, decoded values and the number of samples at or before the row timestamp
+        double[] times = new double[0];
+        Object values = null;
+        int pos = 0;
+
+        // Latest sample before the current window (its window's arrays and index); prevValues is null if none
+        double prevTime = 0;
+        Object prevValues = null;
+        int prevIdx = 0;
+
+        // Everything up to this time has been read; -Inf until the first read
+        double fetchedUpTo = Double.NEGATIVE_INFINITY;
+        // Time of the last sample read
+        double lastTime = Double.NEGATIVE_INFINITY;
+
+        ChannelStream(String chanNameI, DataContainer dcI, double maxDurationI) {
+            chanName = chanNameI;
+            dc = dcI;
+            maxDuration = maxDurationI;
+        }
+
+        //
+        // Move the cursor past all samples at or before timestampI, reading more of the channel as needed.
+        // If bNeedNextI is set, also try to make sure the sample after timestampI is in the window.
+        //
+        void advanceTo(double timestampI, boolean bNeedNextI) throws Exception {
+            double limit = timestampI + TIME_EPSILON;
+            if (fetchedUpTo == Double.NEGATIVE_INFINITY) {
+                // First row: start reading a little before it, so an as-of sample can be found
+                double lookBack = Double.isInfinite(tolerance) ? duration : Math.max(tolerance, TIME_EPSILON);
+                fetchedUpTo = timestampI - lookBack;
+            }
+            boolean bLookedAhead = false;
+            while (true) {
+                // The merge step: this cursor only ever moves forward
+                while ( (pos < times.length) && (times[pos] <= limit) ) {
+                    ++pos;
+                }
+                if (pos < times.length) {
+                    return;
+                }
+                if (fetchedUpTo < limit) {
+                    // There may be more samples at or before this row
+                    read(limit);
+                } else if (bNeedNextI && !bLookedAhead) {
+                    // Try once to read the sample after this row
+                    bLookedAhead = true;
+                    read(limit);
+                } else {
+                    return;
+                }
+            }
+        }
+
+        //
+        // Read the next window of the channel; we only consider data up to limitI as final (more
+        // data past the row timestamp may still arrive on a live source)
+        //
+        void read(double limitI) throws Exception {
+            double start = fetchedUpTo;
+            double dur = duration;
+            CTdata data = ctr.getData(sourceName, chanName, start, dur, "absolute");
+            double[] newTimes = ( (data != null) && (data.size() > 0) ) ? data.getTime() : null;
+            int numPoints = (newTimes == null) ? 0 : newTimes.length;
+            // Adapt the window to the channel's sample rate
+            if (numPoints > (2 * NextTimestampCursor.TARGET_POINTS)) {
+                duration = Math.max(duration / 2.0, NextTimestampCursor.MIN_DURATION);
+            } else if (numPoints < (NextTimestampCursor.TARGET_POINTS / 2)) {
+                duration = Math.min(duration * 2.0, maxDuration);
+            }
+            // Skip samples we already have (the window boundaries overlap)
+            int first = 0;
+            while ( (first < numPoints) && (newTimes[first] <= lastTime) ) {
+                ++first;
+            }
+            if (first < numPoints) {
+                // Remember the latest sample of the old window, then switch to the new one
+                if (times.length > 0) {
+                    prevTime = times[times.length - 1];
+                    prevValues = values;
+                    prevIdx = times.length - 1;
+                }
+                values = dc.decode(data);
+                times = newTimes;
+                pos = first;
+                lastTime = newTimes[numPoints - 1];
+                // All samples before "first" are older than what we already have; treat them as consumed
+            }
+            fetchedUpTo = Math.max(fetchedUpTo, Math.max(lastTime, Math.min(start + dur, limitI)));
+        }
+
+        //
+        // Store this channel's value for the row at timestampI
+        //
+        void store(double timestampI, int vec_indexI) {
+            // Sample at or before the row: window index pos-1, or the saved sample from the previous window
+            boolean bHavePrev = (pos > 0) || (prevValues != null);
+            double tPrev = (pos > 0) ? times[pos - 1] : prevTime;
+            Object vPrev = (pos > 0) ? values : prevValues;
+            int iPrev = (pos > 0) ? (pos - 1) : prevIdx;
+            // Sample after the row, if we have read it
+            boolean bHaveNext = (pos < times.length);
+            double tNext = bHaveNext ? times[pos] : 0;
+
+            double dPrev = bHavePrev ? Math.max(timestampI - tPrev, 0.0) : Double.POSITIVE_INFINITY;
+            double dNext = bHaveNext ? (tNext - timestampI) : Double.POSITIVE_INFINITY;
+            double tol = tolerance + TIME_EPSILON;
+            if ( bHavePrev && (dPrev <= tol) && ((mode == AlignMode.ASOF) || (dPrev <= dNext)) ) {
+                dc.addValueToVector(vPrev, iPrev, vec_indexI);
+                ++numMatched;
+                return;
+            }
+            if ( (mode == AlignMode.NEAREST) && bHaveNext && (dNext <= tol) ) {
+                dc.addValueToVector(values, pos, vec_indexI);
+                ++numMatched;
+                return;
+            }
+            // No sample within tolerance; apply the fill policy
+            if ( (fill == FillPolicy.INTERP) && bHavePrev && bHaveNext ) {
+                double frac = (timestampI - tPrev) / (tNext - tPrev);
+                dc.addInterpolatedValueToVector(vPrev, iPrev, values, pos, frac, vec_indexI);
+                ++numFilled;
+            } else if ( (fill != FillPolicy.NULL) && bHavePrev ) {
+                dc.addValueToVector(vPrev, iPrev, vec_indexI);
+                ++numFilled;
+            } else {
+                dc.addNullToVector(vec_indexI);
+                ++numNull;
+            }
+        }
+
+    }
+
+}
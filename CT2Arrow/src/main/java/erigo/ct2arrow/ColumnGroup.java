@@ -0,0 +1,180 @@
+/*
+Copyright 2020 Erigo
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package erigo.ct2arrow;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import erigo.arrowcommon.ArrowStreamSink;
+import erigo.arrowcommon.FanOut;
+import erigo.arrowcommon.PartitionedArrowWriter;
+import erigo.arrowcommon.TimeBucketRollup;
+import erigo.arrowcommon.TimeIndex;
+import org.apache.arrow.vector.FieldVector;
+import org.apache.arrow.vector.VectorSchemaRoot;
+import org.apache.arrow.vector.types.pojo.Field;
+
+//
+// A set of channels which is written out as its own record batch stream.
+//
+// A very wide source can be split into several column groups; each group has its own
+// VectorSchemaRoot and its own output (Arrow files, Plasma objects, ring records, Flight server),
+// so the groups can be serialized in parallel and a consumer only needs to read the groups
+// with the channels it wants. Every group's root starts with the same ct_timestamp vector, and
+// the groups of one flush share a batch number, so rows can be re-joined across groups on
+// (batch number, ct_timestamp).
+//
+// When the channels aren't split up, there is one group with index -1 and the output names are
+// the same as they have always been.
+//
+public class ColumnGroup {
+
+    public final int groupIdx;
+    public final List<DataContainer> containers = new ArrayList<>();
+    public VectorSchemaRoot root = null;
+
+    // Outputs which are handed each serialized batch, including the time-partitioned layout, Parquet
+    // and the Flight server (null if there are none, e.g. only rollups)
+    public FanOut fanOut = null;
+
+    // Per-group rollups (null if not used)
+    public TimeBucketRollup rollup = null;
+    public int[] rollupFileNum = null;
+
+    // Writers of the rollups' time-partitioned output layout (null if rollup files are written to the
+    // current folder); the batches themselves go to the layout through the FanOut
+    public PartitionedArrowWriter[] rollupPartitionWriters = null;
+
+    public ColumnGroup(int groupIdxI) {
+        groupIdx = groupIdxI;
+    }
+
+    //
+    // Create this group's root from the shared timestamp container and the group's channel containers
+    //
+    public void createRoot(DataContainer timestampDcI) {
+        List<Field> fields = new ArrayList<>();
+        List<FieldVector> vectors = new ArrayList<>();
+        fields.add(timestampDcI.field);
+        vectors.add(timestampDcI.fieldVec);
+        for (DataContainer dc : containers) {
+            fields.add(dc.field);
+            vectors.add(dc.fieldVec);
+        }
+        root = new VectorSchemaRoot(fields, vectors);
+    }
+
+    //
+    // Arrow file name for the given batch
+    //
+    public String getFilename(String sourceNameI, int batchNumI) {
+        if (groupIdx < 0) {
+            return String.format("%s_b%05d.arrow", sourceNameI, batchNumI);
+        }
+        return String.format("%s_g%02d_b%05d.arrow", sourceNameI, groupIdx, batchNumI);
+    }
+
+    //
+    // Arrow file name for a file of rollup buckets
+    //
+    public String getRollupFilename(String sourceNameI, String bucketSizeI, int fileNumI) {
+        if (groupIdx < 0) {
+            return String.format("%s_rollup%ss_b%05d.arrow", sourceNameI, bucketSizeI, fileNumI);
+        }
+        return String.format("%s_g%02d_rollup%ss_b%05d.arrow", sourceNameI, groupIdx, bucketSizeI, fileNumI);
+    }
+
+    //
+    // Parquet file name for the given file number
+    //
+    public String getParquetFilename(String sourceNameI, int fileNumI) {
+        if (groupIdx < 0) {
+            return String.format("%s_p%05d.parquet", sourceNameI, fileNumI);
+        }
+        return String.format("%s_g%02d_p%05d.parquet", sourceNameI, groupIdx, fileNumI);
+    }
+
+    //
+    // Name of the time index of this group's Arrow files
+    //
+    public String getIndexFilename(String sourceNameI) {
+        if (groupIdx < 0) {
+            return sourceNameI + TimeIndex.INDEX_SUFFIX;
+        }
+        return String.format("%s_g%02d%s", sourceNameI, groupIdx, TimeIndex.INDEX_SUFFIX);
+    }
+
+    //
+    // Target of this group's continuous Arrow stream (see ArrowStreamSink)
+    //
+    public String getStreamPath(String pathI) throws IOException {
+        if (groupIdx < 0) {
+            return pathI;
+        }
+        return ArrowStreamSink.indexedTarget(pathI, groupIdx);
+    }
+
+    //
+    // Name of this group's folder in the time-partitioned output layout
+    //
+    public String getPartitionName(String sourceNameI) {
+        if (groupIdx < 0) {
+            return sourceNameI;
+        }
+        return String.format("%s_g%02d", sourceNameI, groupIdx);
+    }
+
+    //
+    // Let the outputs write the batches queued for them and close them; called at shutdown
+    //
+    public void closeFanOut() {
+        if (fanOut != null) {
+            fanOut.close();
+            System.err.print(fanOut.getStats());
+        }
+    }
+
+    //
+    // Close this group's partitioned rollup files; called at shutdown
+    //
+    public synchronized void closePartitionWriters() {
+        try {
+            if (rollupPartitionWriters != null) {
+                for (PartitionedArrowWriter writer : rollupPartitionWriters) {
+                    writer.close();
+                }
+            }
+        } catch (Exception e) {
+            System.err.println("Caught exception closing partitioned output files:");
+            System.err.println(e);
+        }
+    }
+
+    //
+    // 20-character Plasma object ID (also used for shared memory ring records) for the given batch;
+    // with column groups the source name is limited to 10 characters to make room for the group index
+    //
+    public String getObjectId(String sourceNameI, int batchNumI) {
+        // See answer from "leo" at https://stackoverflow.com/questions/388461/how-can-i-pad-a-string-in-java
+        if (groupIdx < 0) {
+            return String.format("%-13s_b%05d", sourceNameI, batchNumI).replace(' ', '*');
+        }
+        return String.format("%-10s_g%02db%05d", sourceNameI, groupIdx, batchNumI).replace(' ', '*');
+    }
+
+}
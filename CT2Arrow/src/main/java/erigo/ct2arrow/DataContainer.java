@@ -47,4 +47,37 @@ public abstract class DataContainer {
 
     public abstract void addDataToVector(CTdata ctDataI,int vec_indexI,double timestampI);
 
+    //
+    // The following are used when aligning channels with different sample rates (see ChannelAligner),
+    // where the datapoint to store is picked by its index rather than by searching for a timestamp.
+    //
+
+    // Decode the data in the given CTdata into the array type used by this container
+    public abstract Object decode(CTdata ctDataI);
+
+    // Store datapoint data_indexI of the given decoded data in our vector
+    public abstract void addValueToVector(Object dataI,int data_indexI,int vec_indexI);
+
+    // Store the linear interpolation between two datapoints (fracI = 0 gives data0I[idx0I]); non-numeric
+    // containers store the first datapoint
+    public abstract void addInterpolatedValueToVector(Object data0I,int idx0I,Object data1I,int idx1I,double fracI,int vec_indexI);
+
+    // Store null in our vector
+    public abstract void addNullToVector(int vec_indexI);
+
+    //
+    // Index of the datapoint in the given times whose time matches the given timestamp; -1 (and a
+    // message) if there is none
+    //
+    protected int findDataIndex(double[] timesI, double timestampI) {
+        for (int i = 0; i<timesI.length; ++i) {
+            if ( Math.abs(timesI[i] - timestampI) < 0.0001 ) {
+                // We've got a match!
+                return i;
+            }
+        }
+        System.err.println("Channel " + arrow_chanName + ": didn't find timestamp " + timestampI + " in the given CTdata structure; store null");
+        return -1;
+    }
+
 }
@@ -17,27 +17,30 @@ limitations under the License.
 package erigo.ct2arrow;
 
 import cycronix.ctlib.CTdata;
+import erigo.arrowcommon.ColumnBuilder;
 import org.apache.arrow.memory.RootAllocator;
 import org.apache.arrow.vector.Float8Vector;
 
 public class DoubleDataContainer extends DataContainer {
 
     public Float8Vector vec;
+    private final ColumnBuilder col;
 
     public DoubleDataContainer(String arrow_chanNameI, String ct_chanNameI, RootAllocator allocatorI) throws Exception {
         super(arrow_chanNameI, ct_chanNameI, CT2Arrow.DataType.DOUBLE_DATA);
-        vec = new Float8Vector(arrow_chanName,allocatorI);
-        vec.allocateNew(100);
+        // Values are stored through the shared column-building core
+        col = ColumnBuilder.create(new ColumnBuilder.Spec(arrow_chanName, ColumnBuilder.Type.FLOAT64), allocatorI, 100);
+        vec = (Float8Vector)col.getVector();
         fieldVec = vec;
         field = vec.getField();
     }
 
     public void reset() {
-        vec.reset();
+        col.reset();
     }
 
     public void setValueCount(int recordsInBatchI) {
-        vec.setValueCount(recordsInBatchI);
+        col.setValueCount(recordsInBatchI);
     }
 
     //
@@ -48,25 +51,17 @@ public class DoubleDataContainer extends DataContainer {
     //
     public void addDataToVector(CTdata ctDataI,int vec_indexI,double timestampI) {
         if (ctDataI == null) {
-            vec.setSafe(vec_indexI, 0, -999);
+            col.setNull(vec_indexI);
             return;
         }
         double[] times = ctDataI.getTime();
         double[] data = ctDataI.getDataAsFloat64();
-        int data_index = -1;
-        for (int i = 0; i<times.length; ++i) {
-            if ( Math.abs(times[i] - timestampI) < 0.0001 ) {
-                // We've got a match!
-                data_index = i;
-                break;
-            }
-        }
+        int data_index = findDataIndex(times, timestampI);
         if (data_index == -1) {
             // Store null at this index in the vector
-            System.err.println("Channel " + arrow_chanName + ": didn't find timestamp " + timestampI + " in the given CTdata structure; store null");
-            vec.setSafe(vec_indexI, 0, -999);
+            col.setNull(vec_indexI);
         } else {
-            vec.setSafe(vec_indexI, data[data_index]);
+            col.setDouble(vec_indexI, data[data_index]);
         }
     }
 
@@ -74,7 +69,25 @@ public class DoubleDataContainer extends DataContainer {
     // Add a single datapoint to our vector.
     //
     public void addDataToVector(int vec_indexI, double valueI) {
-        vec.setSafe(vec_indexI, valueI);
+        col.setDouble(vec_indexI, valueI);
+    }
+
+    public Object decode(CTdata ctDataI) {
+        return ctDataI.getDataAsFloat64();
+    }
+
+    public void addValueToVector(Object dataI,int data_indexI,int vec_indexI) {
+        col.setDouble(vec_indexI, ((double[])dataI)[data_indexI]);
+    }
+
+    public void addInterpolatedValueToVector(Object data0I,int idx0I,Object data1I,int idx1I,double fracI,int vec_indexI) {
+        double v0 = ((double[])data0I)[idx0I];
+        double v1 = ((double[])data1I)[idx1I];
+        col.setDouble(vec_indexI, v0 + fracI * (v1 - v0));
+    }
+
+    public void addNullToVector(int vec_indexI) {
+        col.setNull(vec_indexI);
     }
 
 }
@@ -0,0 +1,377 @@
+/*
+Copyright 2020 Erigo
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package erigo.ct2arrow;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import erigo.arrowcommon.BatchSink;
+import erigo.arrowcommon.ColumnStats;
+import erigo.arrowcommon.IpcBatch;
+import org.apache.arrow.flight.CallStatus;
+import org.apache.arrow.flight.Criteria;
+import org.apache.arrow.flight.FlightDescriptor;
+import org.apache.arrow.flight.FlightEndpoint;
+import org.apache.arrow.flight.FlightInfo;
+import org.apache.arrow.flight.FlightServer;
+import org.apache.arrow.flight.Location;
+import org.apache.arrow.flight.NoOpFlightProducer;
+import org.apache.arrow.flight.Ticket;
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.vector.VectorLoader;
+import org.apache.arrow.vector.VectorSchemaRoot;
+import org.apache.arrow.vector.VectorUnloader;
+import org.apache.arrow.vector.ipc.ArrowStreamReader;
+import org.apache.arrow.vector.ipc.message.ArrowRecordBatch;
+import org.apache.arrow.vector.types.pojo.Schema;
+
+//
+// Embedded Arrow Flight server which makes the record batches flushed by CT2Arrow available
+// to consumers on localhost.
+//
+// Consumers call DoGet with one of the following tickets:
+//
+//     live                   stream each new batch as soon as it is flushed, until the consumer cancels
+//     history                all batches currently held in the in-memory history ring
+//     history:<t0>:<t1>      batches in the history ring whose CT time range overlaps [t0,t1];
+//                            either bound may be left empty
+//     follow:<t0>            batches in the history ring from time t0 on, followed by live batches
+//
+// The publisher is one of the sinks of a FanOut, so it is handed each batch already serialized, on
+// its own thread. Each batch is kept in that form (the IpcBatch's one-batch Arrow IPC stream, the
+// same bytes which are written to Plasma), so the history ring costs no more memory than the data
+// itself; the batch's time range is taken from the ColumnStats of the time column in its footer
+// metadata.
+// A consumer which doesn't keep up doesn't slow down ingest: each live subscriber has a bounded
+// queue and the oldest queued batch is dropped when it overflows.
+//
+public class FlightPublisher extends NoOpFlightProducer implements BatchSink {
+
+    // One flushed batch
+    static class PublishedBatch {
+        final long seq;
+        final double startTime;
+        final double endTime;
+        final int numRecords;
+        final byte[] ipcBytes;
+        PublishedBatch(long seqI, double startTimeI, double endTimeI, int numRecordsI, byte[] ipcBytesI) {
+            seq = seqI;
+            startTime = startTimeI;
+            endTime = endTimeI;
+            numRecords = numRecordsI;
+            ipcBytes = ipcBytesI;
+        }
+    }
+
+    // A consumer of live batches
+    static class Subscriber {
+        final BlockingQueue<PublishedBatch> queue;
+        long numDropped = 0;
+        Subscriber(int queueSizeI) {
+            queue = new ArrayBlockingQueue<>(queueSizeI);
+        }
+    }
+
+    // Size of each live subscriber's queue
+    static final int SUBSCRIBER_QUEUE_SIZE = 64;
+
+    private final BufferAllocator allocator;
+    private final FlightServer server;
+    private final Location location;
+    private final int historySize;
+    private final String timeColumn;
+    private final double timeUnitsPerSecond;
+    private final ArrayDeque<PublishedBatch> history = new ArrayDeque<>();
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+    private Schema schema = null;
+    private long nextSeq = 0;
+    private volatile boolean bClosed = false;
+
+    //
+    // Start the Flight server on localhost at the given port; historySizeI is the number
+    // of most recent batches to keep in memory. Batch time ranges are taken from the statistics
+    // of timeColumnI, converted to seconds with timeUnitsPerSecondI.
+    //
+    public FlightPublisher(BufferAllocator allocatorI, int portI, int historySizeI, String timeColumnI, double timeUnitsPerSecondI) throws IOException {
+        if (historySizeI < 1) {
+            throw new IllegalArgumentException("FlightPublisher: history size must be at least 1");
+        }
+        allocator = allocatorI.newChildAllocator("flight", 0, Long.MAX_VALUE);
+        historySize = historySizeI;
+        timeColumn = timeColumnI;
+        timeUnitsPerSecond = timeUnitsPerSecondI;
+        // Bind to the loopback interface only; this endpoint is not meant to be reachable off-host
+        location = Location.forGrpcInsecure("localhost", portI);
+        server = FlightServer.builder(allocator, location, this).build();
+        server.start();
+        System.err.println("Arrow Flight server listening at " + location.getUri());
+    }
+
+    public String getName() {
+        return "flight";
+    }
+
+    //
+    // Publish a flushed batch; its one-batch stream bytes are kept, and the schema is read from
+    // them for the flight listing if it isn't known yet
+    //
+    public void write(IpcBatch batchI) throws IOException {
+        ByteBuffer streamBytes = batchI.streamBytes();
+        byte[] ipcBytes = new byte[streamBytes.remaining()];
+        streamBytes.get(ipcBytes);
+        Schema batchSchema;
+        synchronized (history) {
+            batchSchema = schema;
+        }
+        if (batchSchema == null) {
+            try (ArrowStreamReader reader = new ArrowStreamReader(new ByteArrayInputStream(ipcBytes), allocator)) {
+                batchSchema = reader.getVectorSchemaRoot().getSchema();
+            }
+        }
+        ColumnStats timeStats = ColumnStats.fromMetadata(batchI.footerMetadata, 0, timeColumn, true);
+        boolean bTimes = (timeStats != null) && !timeStats.allNull();
+        double startTime = bTimes ? timeStats.min / timeUnitsPerSecond : Double.NaN;
+        double endTime = bTimes ? timeStats.max / timeUnitsPerSecond : Double.NaN;
+        publish(batchSchema, ipcBytes, batchI.rowCount, startTime, endTime);
+    }
+
+    //
+    // Publish a batch which has already been serialized as an Arrow IPC stream
+    //
+    public void publish(Schema schemaI, byte[] ipcBytesI, int numRecordsI, double startTimeI, double endTimeI) {
+        PublishedBatch batch;
+        synchronized (history) {
+            schema = schemaI;
+            batch = new PublishedBatch(nextSeq++, startTimeI, endTimeI, numRecordsI, ipcBytesI);
+            history.addLast(batch);
+            while (history.size() > historySize) {
+                history.removeFirst();
+            }
+        }
+        for (Subscriber sub : subscribers) {
+            offer(sub, batch);
+        }
+    }
+
+    //
+    // Queue a batch for a subscriber; if its queue is full, drop the oldest batch rather than block
+    //
+    private static void offer(Subscriber subI, PublishedBatch batchI) {
+        while (!subI.queue.offer(batchI)) {
+            if (subI.queue.poll() != null) {
+                ++subI.numDropped;
+            }
+        }
+    }
+
+    @Override
+    public void getStream(CallContext contextI, Ticket ticketI, ServerStreamListener listenerI) {
+        String ticketStr = new String(ticketI.getBytes(), StandardCharsets.UTF_8).trim();
+        String[] parts = ticketStr.split(":", -1);
+        double t0 = Double.NEGATIVE_INFINITY;
+        double t1 = Double.POSITIVE_INFINITY;
+        try {
+            if ( (parts.length > 1) && !parts[1].isEmpty() ) {
+                t0 = Double.parseDouble(parts[1]);
+            }
+            if ( (parts.length > 2) && !parts[2].isEmpty() ) {
+                t1 = Double.parseDouble(parts[2]);
+            }
+        } catch (NumberFormatException nfe) {
+            listenerI.error(CallStatus.INVALID_ARGUMENT.withDescription("Illegal time in ticket: " + ticketStr).toRuntimeException());
+            return;
+        }
+        boolean bHistory;
+        boolean bLive;
+        switch (parts[0]) {
+            case "live":
+                bHistory = false;
+                bLive = true;
+                break;
+            case "history":
+                bHistory = true;
+                bLive = false;
+                break;
+            case "follow":
+                bHistory = true;
+                bLive = true;
+                break;
+            default:
+                listenerI.error(CallStatus.INVALID_ARGUMENT.withDescription("Unknown ticket: " + ticketStr + "; use live, history[:t0[:t1]] or follow[:t0]").toRuntimeException());
+                return;
+        }
+
+        // Register for live data before taking the history snapshot so no batch falls in between;
+        // duplicates are filtered out by sequence number below.
+        Subscriber sub = null;
+        if (bLive) {
+            sub = new Subscriber(SUBSCRIBER_QUEUE_SIZE);
+            subscribers.add(sub);
+        }
+        List<PublishedBatch> snapshot;
+        Schema streamSchema;
+        synchronized (history) {
+            snapshot = bHistory ? new ArrayList<>(history) : new ArrayList<>();
+            streamSchema = schema;
+        }
+        try {
+            VectorSchemaRoot streamRoot = null;
+            long lastSeq = -1;
+            try {
+                for (PublishedBatch batch : snapshot) {
+                    if ( (batch.endTime < t0) || (batch.startTime > t1) ) {
+                        continue;
+                    }
+                    streamRoot = sendBatch(batch, streamRoot, listenerI);
+                    lastSeq = batch.seq;
+                }
+                if (!bLive) {
+                    if (streamRoot == null) {
+                        // No data in range; still send the schema (if we know it) so the consumer sees a valid, empty stream
+                        if (streamSchema != null) {
+                            streamRoot = VectorSchemaRoot.create(streamSchema, allocator);
+                            listenerI.start(streamRoot);
+                        }
+                    }
+                    listenerI.completed();
+                    return;
+                }
+                while ( !bClosed && !listenerI.isCancelled() ) {
+                    PublishedBatch batch = sub.queue.poll(500, TimeUnit.MILLISECONDS);
+                    if ( (batch == null) || (batch.seq <= lastSeq) || (batch.endTime < t0) ) {
+                        continue;
+                    }
+                    streamRoot = sendBatch(batch, streamRoot, listenerI);
+                    lastSeq = batch.seq;
+                }
+                listenerI.completed();
+            } finally {
+                if (streamRoot != null) {
+                    streamRoot.close();
+                }
+            }
+        } catch (Exception e) {
+            listenerI.error(CallStatus.INTERNAL.withDescription("Error streaming CT2Arrow batches: " + e).withCause(e).toRuntimeException());
+        } finally {
+            if (sub != null) {
+                subscribers.remove(sub);
+                if (sub.numDropped > 0) {
+                    System.err.println("Flight subscriber disconnected; " + sub.numDropped + " batches were dropped because it fell behind");
+                }
+            }
+        }
+    }
+
+    //
+    // Decode one published batch into the stream root and send it to the consumer.
+    // The stream root is created (and the stream started) on the first call.
+    //
+    private VectorSchemaRoot sendBatch(PublishedBatch batchI, VectorSchemaRoot streamRootI, ServerStreamListener listenerI) throws IOException, InterruptedException {
+        VectorSchemaRoot streamRoot = streamRootI;
+        try (ArrowStreamReader reader = new ArrowStreamReader(new ByteArrayInputStream(batchI.ipcBytes), allocator)) {
+            if (!reader.loadNextBatch()) {
+                return streamRoot;
+            }
+            VectorSchemaRoot readRoot = reader.getVectorSchemaRoot();
+            if (streamRoot == null) {
+                streamRoot = VectorSchemaRoot.create(readRoot.getSchema(), allocator);
+                listenerI.start(streamRoot);
+            }
+            try (ArrowRecordBatch recordBatch = new VectorUnloader(readRoot).getRecordBatch()) {
+                new VectorLoader(streamRoot).load(recordBatch);
+            }
+        }
+        // Simple flow control: don't pile up messages in the transport for a slow consumer
+        while ( !listenerI.isReady() && !listenerI.isCancelled() && !bClosed ) {
+            Thread.sleep(10);
+        }
+        listenerI.putNext();
+        return streamRoot;
+    }
+
+    //
+    // The one flight this server offers; the listing is empty until the first batch has been
+    // flushed, since its schema isn't known before then
+    //
+    @Override
+    public void listFlights(CallContext contextI, Criteria criteriaI, StreamListener<FlightInfo> listenerI) {
+        FlightInfo info = makeFlightInfo(null);
+        if (info != null) {
+            listenerI.onNext(info);
+        }
+        listenerI.onCompleted();
+    }
+
+    @Override
+    public FlightInfo getFlightInfo(CallContext contextI, FlightDescriptor descriptorI) {
+        FlightInfo info = makeFlightInfo(descriptorI);
+        if (info == null) {
+            throw CallStatus.NOT_FOUND.withDescription("No data has been flushed yet").toRuntimeException();
+        }
+        return info;
+    }
+
+    //
+    // Description of the batches currently held; null if no batch has been flushed yet
+    //
+    private FlightInfo makeFlightInfo(FlightDescriptor descriptorI) {
+        Schema infoSchema;
+        long numRecords = 0;
+        long numBytes = 0;
+        synchronized (history) {
+            infoSchema = schema;
+            for (PublishedBatch batch : history) {
+                numRecords += batch.numRecords;
+                numBytes += batch.ipcBytes.length;
+            }
+        }
+        if (infoSchema == null) {
+            return null;
+        }
+        List<FlightEndpoint> endpoints = Arrays.asList(
+                new FlightEndpoint(new Ticket("live".getBytes(StandardCharsets.UTF_8)), location),
+                new FlightEndpoint(new Ticket("history".getBytes(StandardCharsets.UTF_8)), location));
+        FlightDescriptor descriptor = (descriptorI != null) ? descriptorI : FlightDescriptor.path("ct2arrow");
+        return new FlightInfo(infoSchema, descriptor, endpoints, numBytes, numRecords);
+    }
+
+    //
+    // Stop the server; live consumers are ended and in-progress calls get a few seconds to finish
+    //
+    public void close() {
+        bClosed = true;
+        server.shutdown();
+        try {
+            server.awaitTermination(5, TimeUnit.SECONDS);
+            server.close();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        allocator.close();
+    }
+
+}
@@ -17,27 +17,30 @@ limitations under the License.
 package erigo.ct2arrow;
 
 import cycronix.ctlib.CTdata;
+import erigo.arrowcommon.ColumnBuilder;
 import org.apache.arrow.memory.RootAllocator;
 import org.apache.arrow.vector.Float4Vector;
 
 public class FloatDataContainer extends DataContainer {
 
     public Float4Vector vec;
+    private final ColumnBuilder col;
 
     public FloatDataContainer(String arrow_chanNameI, String ct_chanNameI, RootAllocator allocatorI) throws Exception {
         super(arrow_chanNameI, ct_chanNameI, CT2Arrow.DataType.FLOAT_DATA);
-        vec = new Float4Vector(arrow_chanName,allocatorI);
-        vec.allocateNew(100);
+        // Values are stored through the shared column-building core
+        col = ColumnBuilder.create(new ColumnBuilder.Spec(arrow_chanName, ColumnBuilder.Type.FLOAT32), allocatorI, 100);
+        vec = (Float4Vector)col.getVector();
         fieldVec = vec;
         field = vec.getField();
     }
 
     public void reset() {
-        vec.reset();
+        col.reset();
     }
 
     public void setValueCount(int recordsInBatchI) {
-        vec.setValueCount(recordsInBatchI);
+        col.setValueCount(recordsInBatchI);
     }
 
     //
@@ -48,22 +51,14 @@ public class FloatDataContainer extends DataContainer {
     //
     public void addDataToVector(CTdata ctDataI,int vec_indexI,double timestampI) {
         if (ctDataI == null) {
-            vec.setSafe(vec_indexI, 0, -999);
+            col.setNull(vec_indexI);
             return;
         }
         double[] times = ctDataI.getTime();
         float[] data = ctDataI.getDataAsFloat32();
-        int data_index = -1;
-        for (int i = 0; i<times.length; ++i) {
-            if ( Math.abs(times[i] - timestampI) < 0.0001 ) {
-                // We've got a match!
-                data_index = i;
-                break;
-            }
-        }
+        int data_index = findDataIndex(times, timestampI);
         if (data_index == -1) {
             // Store null at this index in the vector
-            System.err.println("Channel " + arrow_chanName + ": didn't find timestamp " + timestampI + " in the given CTdata structure; store null");
             // if (times.length == 0) {
             //     System.err.println("\tThere were no times for this channel in CTdata");
             // } else {
@@ -72,14 +67,32 @@ public class FloatDataContainer extends DataContainer {
             //         System.err.println("\t" + times[i] + ", delta = " + Math.abs(times[i] - timestampI));
             //     }
             // }
-            vec.setSafe(vec_indexI, 0, -999);
+            col.setNull(vec_indexI);
         } else {
             // TEMPORARY DEBUG
             // if (arrow_chanName.equals("sensor21")) {
             //     System.err.println("sensor21[" + vec_indexI + "]: " + timestampI + "," + data[data_index]);
             // }
-            vec.setSafe(vec_indexI, data[data_index]);
+            col.setDouble(vec_indexI, data[data_index]);
         }
     }
 
+    public Object decode(CTdata ctDataI) {
+        return ctDataI.getDataAsFloat32();
+    }
+
+    public void addValueToVector(Object dataI,int data_indexI,int vec_indexI) {
+        col.setDouble(vec_indexI, ((float[])dataI)[data_indexI]);
+    }
+
+    public void addInterpolatedValueToVector(Object data0I,int idx0I,Object data1I,int idx1I,double fracI,int vec_indexI) {
+        double v0 = ((float[])data0I)[idx0I];
+        double v1 = ((float[])data1I)[idx1I];
+        col.setDouble(vec_indexI, (float)(v0 + fracI * (v1 - v0)));
+    }
+
+    public void addNullToVector(int vec_indexI) {
+        col.setNull(vec_indexI);
+    }
+
 }
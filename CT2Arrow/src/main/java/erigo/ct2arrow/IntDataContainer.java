@@ -17,27 +17,30 @@ limitations under the License.
 package erigo.ct2arrow;
 
 import cycronix.ctlib.CTdata;
+import erigo.arrowcommon.ColumnBuilder;
 import org.apache.arrow.memory.RootAllocator;
 import org.apache.arrow.vector.IntVector;
 
 public class IntDataContainer extends DataContainer {
 
     public IntVector vec;
+    private final ColumnBuilder col;
 
     public IntDataContainer(String arrow_chanNameI, String ct_chanNameI, RootAllocator allocatorI) throws Exception {
         super(arrow_chanNameI, ct_chanNameI, CT2Arrow.DataType.INT_DATA);
-        vec = new IntVector(arrow_chanName,allocatorI);
-        vec.allocateNew(100);
+        // Values are stored through the shared column-building core
+        col = ColumnBuilder.create(new ColumnBuilder.Spec(arrow_chanName, ColumnBuilder.Type.INT32), allocatorI, 100);
+        vec = (IntVector)col.getVector();
         fieldVec = vec;
         field = vec.getField();
     }
 
     public void reset() {
-        vec.reset();
+        col.reset();
     }
 
     public void setValueCount(int recordsInBatchI) {
-        vec.setValueCount(recordsInBatchI);
+        col.setValueCount(recordsInBatchI);
     }
 
     //
@@ -48,30 +51,40 @@ public class IntDataContainer extends DataContainer {
     //
     public void addDataToVector(CTdata ctDataI,int vec_indexI,double timestampI) {
         if (ctDataI == null) {
-            vec.setSafe(vec_indexI, 0, -999);
+            col.setNull(vec_indexI);
             return;
         }
         double[] times = ctDataI.getTime();
         int[] data = ctDataI.getDataAsInt32();
-        int data_index = -1;
-        for (int i = 0; i<times.length; ++i) {
-            if ( Math.abs(times[i] - timestampI) < 0.0001 ) {
-                // We've got a match!
-                data_index = i;
-                break;
-            }
-        }
+        int data_index = findDataIndex(times, timestampI);
         if (data_index == -1) {
             // Store null at this index in the vector
-            System.err.println("Channel " + arrow_chanName + ": didn't find timestamp " + timestampI + " in the given CTdata structure; store null");
-            vec.setSafe(vec_indexI, 0, -999);
+            col.setNull(vec_indexI);
         } else {
             // TEMPORARY DEBUG
             // if (arrow_chanName.equals("time")) {
             //     System.err.println("  Data on time channel: time[" + vec_indexI + "]: " + timestampI + "," + data[data_index]);
             // }
-            vec.setSafe(vec_indexI, data[data_index]);
+            col.setLong(vec_indexI, data[data_index]);
         }
     }
 
+    public Object decode(CTdata ctDataI) {
+        return ctDataI.getDataAsInt32();
+    }
+
+    public void addValueToVector(Object dataI,int data_indexI,int vec_indexI) {
+        col.setLong(vec_indexI, ((int[])dataI)[data_indexI]);
+    }
+
+    public void addInterpolatedValueToVector(Object data0I,int idx0I,Object data1I,int idx1I,double fracI,int vec_indexI) {
+        double v0 = ((int[])data0I)[idx0I];
+        double v1 = ((int[])data1I)[idx1I];
+        col.setLong(vec_indexI, (int)Math.round(v0 + fracI * (v1 - v0)));
+    }
+
+    public void addNullToVector(int vec_indexI) {
+        col.setNull(vec_indexI);
+    }
+
 }
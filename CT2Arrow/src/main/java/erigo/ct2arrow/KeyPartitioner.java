@@ -0,0 +1,408 @@
+/*
+Copyright 2020 Erigo
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+
+package erigo.ct2arrow;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.arrow.memory.ArrowBuf;
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.vector.BaseFixedWidthVector;
+import org.apache.arrow.vector.BaseVariableWidthVector;
+import org.apache.arrow.vector.FieldVector;
+import org.apache.arrow.vector.Float4Vector;
+import org.apache.arrow.vector.Float8Vector;
+import org.apache.arrow.vector.IntVector;
+import org.apache.arrow.vector.VectorSchemaRoot;
+import org.apache.arrow.vector.types.pojo.Field;
+
+//
+// Key-partitioned batching: routes each row to a batch of its own key.
+//
+// Rows are first stored in the column groups' roots as usual (the "staged" rows); route() then
+// copies a staged row into the vectors of the partition for its key, the value(s) of one or more
+// key channels. Each partition has one root per column group (sharing one ct_timestamp vector, as
+// the groups' own roots do), so a partition is written exactly like an ordinary batch. When keys
+// interleave (e.g. the units of a fleet all reporting at once), each key still collects a large
+// batch rather than the shared batch being flushed at every change of key.
+//
+// The partitions are kept in an open-addressing hash map keyed by a long:
+//   - for a single .i32 or .f32 key channel, the key is the value itself (its bits), so keys are
+//     looked up without any allocation or comparison beyond the long
+//   - otherwise (.f64 or .txt key channels, or several key channels) the key is a 64-bit hash of
+//     the encoded key values; the encoded values are kept with the partition and compared as well,
+//     so keys with the same hash are told apart
+//
+public class KeyPartitioner {
+
+    // Key of rows whose (single, 32-bit) key channel is null; outside the range of 32-bit values
+    private static final long NULL_KEY = 1L << 32;
+
+    //
+    // The rows of one key
+    //
+    public static class Partition {
+
+        // "<chan>=<value>[,<chan>=<value>...]"
+        public final String label;
+        private final long key;
+        // Encoded key values; null when the key is the value itself
+        private final byte[] keyBytes;
+        // One root per column group; vecs[g][0] is the shared ct_timestamp vector
+        public final VectorSchemaRoot[] roots;
+        private final FieldVector[][] vecs;
+        private int rows = 0;
+        // Wall clock time (msec) when the oldest buffered row and the latest row arrived
+        private long firstRowTime = 0;
+        private long lastRowTime = 0;
+
+        private Partition(long keyI, byte[] keyBytesI, String labelI, FieldVector[][] vecsI) {
+            key = keyI;
+            keyBytes = keyBytesI;
+            label = labelI;
+            vecs = vecsI;
+            roots = new VectorSchemaRoot[vecsI.length];
+            for (int g = 0; g < vecsI.length; ++g) {
+                List<Field> fields = new ArrayList<>();
+                for (FieldVector vec : vecsI[g]) {
+                    fields.add(vec.getField());
+                }
+                roots[g] = new VectorSchemaRoot(fields, Arrays.asList(vecsI[g]));
+            }
+        }
+
+        public int getRowCount() {
+            return rows;
+        }
+
+        public long getFirstRowTime() {
+            return firstRowTime;
+        }
+
+        //
+        // Bytes taken up by the buffered rows
+        //
+        public long getBufferSize() {
+            long size = 0;
+            for (int g = 0; g < vecs.length; ++g) {
+                for (int i = (g == 0) ? 0 : 1; i < vecs[g].length; ++i) {
+                    size += vecs[g][i].getBufferSizeFor(rows);
+                }
+            }
+            return size;
+        }
+
+        //
+        // Set the row count of every root; call before writing the roots
+        //
+        public void setRowCount() {
+            for (VectorSchemaRoot root : roots) {
+                root.setRowCount(rows);
+            }
+        }
+
+        //
+        // Start a new batch. Every row of the next batch is copied over in full (validity bit
+        // included), so the fixed and variable width vectors only have their counts reset rather
+        // than having their buffers zero-filled; list vectors are reset in full.
+        //
+        public void clear() {
+            for (int g = 0; g < vecs.length; ++g) {
+                for (int i = (g == 0) ? 0 : 1; i < vecs[g].length; ++i) {
+                    FieldVector vec = vecs[g][i];
+                    if ( (vec instanceof BaseFixedWidthVector) || (vec instanceof BaseVariableWidthVector) ) {
+                        vec.setValueCount(0);
+                    } else {
+                        vec.reset();
+                    }
+                }
+            }
+            rows = 0;
+        }
+
+        private boolean matches(byte[] bytesI, int lengthI) {
+            return (keyBytes == null) || Arrays.equals(keyBytes, 0, keyBytes.length, bytesI, 0, lengthI);
+        }
+
+        private void close() {
+            for (VectorSchemaRoot root : roots) {
+                root.close();
+            }
+        }
+
+    }
+
+    private final BufferAllocator allocator;
+    // Staged vectors of each column group, in root order; srcVecs[g][0] is ct_timestamp
+    private final FieldVector[][] srcVecs;
+    private final FieldVector[] keyVecs;
+    private final boolean bExact;
+
+    // Encoded key values of the row being routed (hashed keys only)
+    private byte[] scratch = new byte[64];
+    private int scratchLen = 0;
+
+    // Open-addressing (linear probing) map from key to partition; a null slot is empty
+    private long[] keys = new long[16];
+    private Partition[] slots = new Partition[16];
+    private int shift = 64 - 4;
+    private int numPartitions = 0;
+
+    //
+    // groupRootsI: the roots the rows are staged in, one per column group
+    // keyVecsI:    the staged vectors of the key channels (IntVector, Float4Vector, Float8Vector or VarCharVector)
+    //
+    public KeyPartitioner(BufferAllocator allocatorI, VectorSchemaRoot[] groupRootsI, FieldVector[] keyVecsI) {
+        for (FieldVector vec : keyVecsI) {
+            if ( !(vec instanceof IntVector) && !(vec instanceof Float4Vector) && !(vec instanceof Float8Vector) && !(vec instanceof BaseVariableWidthVector) ) {
+                throw new IllegalArgumentException("KeyPartitioner: unsupported key channel type for " + vec.getField().getName());
+            }
+        }
+        allocator = allocatorI;
+        srcVecs = new FieldVector[groupRootsI.length][];
+        for (int g = 0; g < groupRootsI.length; ++g) {
+            srcVecs[g] = groupRootsI[g].getFieldVectors().toArray(new FieldVector[0]);
+        }
+        keyVecs = keyVecsI.clone();
+        bExact = (keyVecs.length == 1) && ( (keyVecs[0] instanceof IntVector) || (keyVecs[0] instanceof Float4Vector) );
+    }
+
+    //
+    // Copy staged row rowI to the partition of its key (creating the partition if this is a new key);
+    // the staged vectors must have their value count set. nowI is the current wall clock time (msec).
+    //
+    public Partition route(int rowI, long nowI) {
+        long key = computeKey(rowI);
+        Partition partition = find(key);
+        if (partition == null) {
+            partition = newPartition(key, rowI);
+            insert(partition);
+        }
+        int dst = partition.rows;
+        for (int g = 0; g < srcVecs.length; ++g) {
+            for (int i = (g == 0) ? 0 : 1; i < srcVecs[g].length; ++i) {
+                partition.vecs[g][i].copyFromSafe(rowI, dst, srcVecs[g][i]);
+            }
+        }
+        if (dst == 0) {
+            partition.firstRowTime = nowI;
+        }
+        partition.lastRowTime = nowI;
+        ++partition.rows;
+        return partition;
+    }
+
+    //
+    // Partitions holding rows, the oldest of which arrived more than maxAgeI msec ago
+    //
+    public List<Partition> getExpired(long nowI, long maxAgeI) {
+        List<Partition> expired = new ArrayList<>();
+        for (Partition partition : slots) {
+            if ( (partition != null) && (partition.rows > 0) && ((nowI - partition.firstRowTime) > maxAgeI) ) {
+                expired.add(partition);
+            }
+        }
+        return expired;
+    }
+
+    //
+    // Release the partitions which have had no rows for more than idleI msec (e.g. units which have
+    // gone offline); returns how many were released
+    //
+    public int removeIdle(long nowI, long idleI) {
+        List<Partition> idle = new ArrayList<>();
+        for (Partition partition : slots) {
+            if ( (partition != null) && (partition.rows == 0) && ((nowI - partition.lastRowTime) > idleI) ) {
+                idle.add(partition);
+            }
+        }
+        for (Partition partition : idle) {
+            remove(partition);
+            partition.close();
+        }
+        return idle.size();
+    }
+
+    public int size() {
+        return numPartitions;
+    }
+
+    public void close() {
+        for (int i = 0; i < slots.length; ++i) {
+            if (slots[i] != null) {
+                slots[i].close();
+                slots[i] = null;
+            }
+        }
+        numPartitions = 0;
+    }
+
+    //
+    // Key of the given staged row; for hashed keys, the encoded key values are left in scratch
+    //
+    private long computeKey(int rowI) {
+        if (bExact) {
+            FieldVector vec = keyVecs[0];
+            if (vec.isNull(rowI)) {
+                return NULL_KEY;
+            }
+            if (vec instanceof IntVector) {
+                return ((IntVector)vec).get(rowI) & 0xffffffffL;
+            }
+            return Float.floatToIntBits(((Float4Vector)vec).get(rowI)) & 0xffffffffL;
+        }
+        scratchLen = 0;
+        for (FieldVector vec : keyVecs) {
+            if (vec.isNull(rowI)) {
+                putByte((byte)0);
+                continue;
+            }
+            putByte((byte)1);
+            if (vec instanceof IntVector) {
+                putLong(((IntVector)vec).get(rowI), 4);
+            } else if (vec instanceof Float4Vector) {
+                putLong(Float.floatToIntBits(((Float4Vector)vec).get(rowI)), 4);
+            } else if (vec instanceof Float8Vector) {
+                putLong(Double.doubleToLongBits(((Float8Vector)vec).get(rowI)), 8);
+            } else {
+                // Copy the string's bytes straight from the data buffer
+                BaseVariableWidthVector strVec = (BaseVariableWidthVector)vec;
+                int start = strVec.getStartOffset(rowI);
+                int length = strVec.getStartOffset(rowI + 1) - start;
+                putLong(length, 4);
+                ensureScratch(length);
+                strVec.getDataBuffer().getBytes(start, scratch, scratchLen, length);
+                scratchLen += length;
+            }
+        }
+        // 64-bit FNV-1a
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < scratchLen; ++i) {
+            hash = (hash ^ (scratch[i] & 0xff)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private void ensureScratch(int extraI) {
+        if (scratchLen + extraI > scratch.length) {
+            scratch = Arrays.copyOf(scratch, Math.max(2 * scratch.length, scratchLen + extraI));
+        }
+    }
+
+    private void putByte(byte valueI) {
+        ensureScratch(1);
+        scratch[scratchLen++] = valueI;
+    }
+
+    private void putLong(long valueI, int numBytesI) {
+        ensureScratch(numBytesI);
+        for (int i = 0; i < numBytesI; ++i) {
+            scratch[scratchLen++] = (byte)(valueI >>> (8 * i));
+        }
+    }
+
+    private Partition newPartition(long keyI, int rowI) {
+        StringBuilder label = new StringBuilder();
+        for (FieldVector vec : keyVecs) {
+            if (label.length() > 0) {
+                label.append(',');
+            }
+            label.append(vec.getField().getName()).append('=').append(vec.getObject(rowI));
+        }
+        FieldVector[][] vecs = new FieldVector[srcVecs.length][];
+        FieldVector timeVec = srcVecs[0][0].getField().createVector(allocator);
+        for (int g = 0; g < srcVecs.length; ++g) {
+            vecs[g] = new FieldVector[srcVecs[g].length];
+            vecs[g][0] = timeVec;
+            for (int i = 1; i < srcVecs[g].length; ++i) {
+                vecs[g][i] = srcVecs[g][i].getField().createVector(allocator);
+            }
+        }
+        byte[] keyBytes = bExact ? null : Arrays.copyOf(scratch, scratchLen);
+        return new Partition(keyI, keyBytes, label.toString(), vecs);
+    }
+
+    //
+    // Home slot of the given key (Fibonacci hashing spreads consecutive keys, e.g. unit numbers)
+    //
+    private int home(long keyI) {
+        return (int)((keyI * 0x9E3779B97F4A7C15L) >>> shift);
+    }
+
+    private Partition find(long keyI) {
+        int mask = slots.length - 1;
+        for (int i = home(keyI); slots[i] != null; i = (i + 1) & mask) {
+            if ( (keys[i] == keyI) && slots[i].matches(scratch, scratchLen) ) {
+                return slots[i];
+            }
+        }
+        return null;
+    }
+
+    private void insert(Partition partitionI) {
+        if (4 * (numPartitions + 1) > 3 * slots.length) {
+            long[] oldKeys = keys;
+            Partition[] oldSlots = slots;
+            keys = new long[2 * oldSlots.length];
+            slots = new Partition[2 * oldSlots.length];
+            --shift;
+            for (int i = 0; i < oldSlots.length; ++i) {
+                if (oldSlots[i] != null) {
+                    put(oldKeys[i], oldSlots[i]);
+                }
+            }
+        }
+        put(partitionI.key, partitionI);
+        ++numPartitions;
+    }
+
+    private void put(long keyI, Partition partitionI) {
+        int mask = slots.length - 1;
+        int i = home(keyI);
+        while (slots[i] != null) {
+            i = (i + 1) & mask;
+        }
+        keys[i] = keyI;
+        slots[i] = partitionI;
+    }
+
+    //
+    // Remove the given partition, shifting later entries of its probe run back so that no
+    // lookup stops early at the emptied slot
+    //
+    private void remove(Partition partitionI) {
+        int mask = slots.length - 1;
+        int hole = home(partitionI.key);
+        while (slots[hole] != partitionI) {
+            hole = (hole + 1) & mask;
+        }
+        slots[hole] = null;
+        for (int j = (hole + 1) & mask; slots[j] != null; j = (j + 1) & mask) {
+            // The entry at j may fill the hole if the hole lies between its home slot and j
+            if ( ((j - home(keys[j])) & mask) >= ((j - hole) & mask) ) {
+                keys[hole] = keys[j];
+                slots[hole] = slots[j];
+                slots[j] = null;
+                hole = j;
+            }
+        }
+        --numPartitions;
+    }
+
+}
@@ -0,0 +1,222 @@
+/*
+Copyright 2020 Erigo
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package erigo.ct2arrow;
+
+import java.nio.ByteOrder;
+
+import cycronix.ctlib.CTdata;
+import erigo.arrowcommon.ColumnBuilder;
+import org.apache.arrow.memory.ArrowBuf;
+import org.apache.arrow.memory.RootAllocator;
+import org.apache.arrow.vector.BaseFixedWidthVector;
+import org.apache.arrow.vector.BitVectorHelper;
+import org.apache.arrow.vector.complex.BaseListVector;
+import org.apache.arrow.vector.complex.FixedSizeListVector;
+import org.apache.arrow.vector.complex.ListVector;
+import org.apache.arrow.vector.types.FloatingPointPrecision;
+import org.apache.arrow.vector.types.pojo.ArrowType;
+import org.apache.arrow.vector.types.pojo.FieldType;
+
+//
+// Container for a channel which carries a block of samples at each timestamp (e.g. vibration
+// or audio data). Each timestamp's block is stored as one row of a list vector:
+//
+//     listSize > 0:  FixedSizeListVector; every block must hold exactly listSize samples
+//                    (any other block is stored as null)
+//     listSize = 0:  ListVector; blocks may be of any length
+//
+// The CT data for each timestamp is the raw (little-endian) binary block, which is the same
+// layout Arrow uses for the element vector, so each block is stored with one bulk copy into the
+// element vector's data buffer rather than one set() call per sample.
+//
+public class ListDataContainer extends DataContainer {
+
+    public final int listSize;
+    public final CT2Arrow.DataType elementType;
+    private final int elementWidth;
+    private final FixedSizeListVector fixedVec;
+    private final ListVector varVec;
+    private final BaseFixedWidthVector elementVec;
+    // One more than the highest row and element stored since the last reset
+    private int rowsUsed = 0;
+    private int elementsUsed = 0;
+
+    public ListDataContainer(String arrow_chanNameI, String ct_chanNameI, CT2Arrow.DataType elementTypeI, int listSizeI, RootAllocator allocatorI) throws Exception {
+        super(arrow_chanNameI, ct_chanNameI, elementTypeI);
+        if (ByteOrder.nativeOrder() != ByteOrder.LITTLE_ENDIAN) {
+            throw new Exception("ListDataContainer: list channels are only supported on little-endian platforms");
+        }
+        ArrowType arrowType;
+        switch (elementTypeI) {
+            case INT_DATA:
+                arrowType = new ArrowType.Int(32, true);
+                elementWidth = 4;
+                break;
+            case FLOAT_DATA:
+                arrowType = new ArrowType.FloatingPoint(FloatingPointPrecision.SINGLE);
+                elementWidth = 4;
+                break;
+            case DOUBLE_DATA:
+                arrowType = new ArrowType.FloatingPoint(FloatingPointPrecision.DOUBLE);
+                elementWidth = 8;
+                break;
+            default:
+                throw new Exception("ListDataContainer: list channels must have a .i32, .f32 or .f64 element type");
+        }
+        if (listSizeI < 0) {
+            throw new Exception("ListDataContainer: illegal list size " + listSizeI);
+        }
+        listSize = listSizeI;
+        elementType = elementTypeI;
+        BaseListVector listVec;
+        if (listSize > 0) {
+            fixedVec = FixedSizeListVector.empty(arrow_chanName, listSize, allocatorI);
+            elementVec = (BaseFixedWidthVector)fixedVec.addOrGetVector(FieldType.nullable(arrowType)).getVector();
+            varVec = null;
+            fixedVec.allocateNew();
+            listVec = fixedVec;
+        } else {
+            varVec = ListVector.empty(arrow_chanName, allocatorI);
+            elementVec = (BaseFixedWidthVector)varVec.addOrGetVector(FieldType.nullable(arrowType)).getVector();
+            fixedVec = null;
+            varVec.allocateNew();
+            listVec = varVec;
+        }
+        fieldVec = listVec;
+        field = listVec.getField();
+    }
+
+    //
+    // Only the validity bits of the rows and elements used since the last reset are cleared; the
+    // element data is overwritten by the next batch (and the list offsets are rewritten as blocks
+    // are stored)
+    //
+    public void reset() {
+        ColumnBuilder.clearValidity((fixedVec != null) ? fixedVec.getValidityBuffer() : varVec.getValidityBuffer(), rowsUsed);
+        ColumnBuilder.clearValidity(elementVec.getValidityBuffer(), elementsUsed);
+        fieldVec.setValueCount(0);
+        if (varVec != null) {
+            varVec.setLastSet(-1);
+        }
+        rowsUsed = 0;
+        elementsUsed = 0;
+    }
+
+    public void setValueCount(int recordsInBatchI) {
+        fieldVec.setValueCount(recordsInBatchI);
+    }
+
+    //
+    // Add a single block to our vector.
+    // Look through the given CTdata for a datapoint whose time matches the given timestamp.
+    // If a matching timestamp is found, add that block to our vector. Otherwise, add
+    // null to the vector at this index.
+    //
+    public void addDataToVector(CTdata ctDataI,int vec_indexI,double timestampI) {
+        if (ctDataI == null) {
+            addNullToVector(vec_indexI);
+            return;
+        }
+        double[] times = ctDataI.getTime();
+        byte[][] data = ctDataI.getData();
+        int data_index = findDataIndex(times, timestampI);
+        if (data_index == -1) {
+            addNullToVector(vec_indexI);
+        } else {
+            addBlock(data[data_index], vec_indexI);
+        }
+    }
+
+    public Object decode(CTdata ctDataI) {
+        return ctDataI.getData();
+    }
+
+    public void addValueToVector(Object dataI,int data_indexI,int vec_indexI) {
+        addBlock(((byte[][])dataI)[data_indexI], vec_indexI);
+    }
+
+    public void addInterpolatedValueToVector(Object data0I,int idx0I,Object data1I,int idx1I,double fracI,int vec_indexI) {
+        // Blocks aren't interpolated; use the earlier block
+        addValueToVector(data0I, idx0I, vec_indexI);
+    }
+
+    public void addNullToVector(int vec_indexI) {
+        rowsUsed = Math.max(rowsUsed, vec_indexI + 1);
+        if (fixedVec != null) {
+            // The element slots of a null row must still exist
+            ensureElementCapacity((vec_indexI + 1) * listSize);
+            fixedVec.setNull(vec_indexI);
+        } else {
+            varVec.startNewValue(vec_indexI);
+            varVec.endValue(vec_indexI, 0);
+            BitVectorHelper.unsetBit(varVec.getValidityBuffer(), vec_indexI);
+        }
+    }
+
+    //
+    // Store one block of samples as the list at row vec_indexI
+    //
+    private void addBlock(byte[] blockI, int vec_indexI) {
+        int numElements = blockI.length / elementWidth;
+        if ( (fixedVec != null) && (numElements != listSize) ) {
+            System.err.println("Channel " + arrow_chanName + ": block has " + numElements + " samples, expected " + listSize + "; store null");
+            addNullToVector(vec_indexI);
+            return;
+        }
+        int startElement;
+        if (fixedVec != null) {
+            startElement = vec_indexI * listSize;
+            ensureElementCapacity(startElement + numElements);
+            fixedVec.setNotNull(vec_indexI);
+        } else {
+            startElement = varVec.startNewValue(vec_indexI);
+            ensureElementCapacity(startElement + numElements);
+            varVec.endValue(vec_indexI, numElements);
+        }
+        rowsUsed = Math.max(rowsUsed, vec_indexI + 1);
+        elementsUsed = Math.max(elementsUsed, startElement + numElements);
+        // Bulk copy the samples and mark them all valid
+        elementVec.getDataBuffer().setBytes((long)startElement * elementWidth, blockI, 0, (long)numElements * elementWidth);
+        setValidityRange(elementVec.getValidityBuffer(), startElement, numElements);
+    }
+
+    private void ensureElementCapacity(int numElementsI) {
+        while (elementVec.getValueCapacity() < numElementsI) {
+            elementVec.reAlloc();
+        }
+    }
+
+    //
+    // Set validity bits [startI, startI+countI); whole bytes are set at once
+    //
+    private static void setValidityRange(ArrowBuf validityI, int startI, int countI) {
+        int i = startI;
+        int end = startI + countI;
+        while ( (i < end) && ((i & 7) != 0) ) {
+            BitVectorHelper.setBit(validityI, i++);
+        }
+        if ((end - i) >= 8) {
+            int numBytes = (end - i) >> 3;
+            validityI.setOne(i >> 3, numBytes);
+            i += numBytes << 3;
+        }
+        while (i < end) {
+            BitVectorHelper.setBit(validityI, i++);
+        }
+    }
+
+}
@@ -0,0 +1,134 @@
+/*
+Copyright 2020 Erigo
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package erigo.ct2arrow;
+
+import cycronix.ctlib.CTdata;
+import cycronix.ctlib.CTreader;
+
+//
+// Walk through the timestamps of the timing channel (the first channel or the trigger channel)
+// without re-reading data for every row.
+//
+// Finding the next timestamp used to mean requesting next_timestamp_dur_sec (by default a
+// million seconds) of data after the current time and keeping only the first timestamp. This
+// cursor instead reads a window of the timing channel once, keeps its times (and, for a trigger
+// channel, its values) and hands them out one at a time; only when the window is used up is
+// the next window read, starting just after the last timestamp we have.
+//
+// The window duration adapts to the channel's sample rate so that each read returns roughly
+// TARGET_POINTS samples: it doubles when a read comes back sparse (or empty, e.g. across a gap
+// in the data) and halves when it comes back too full. It never exceeds maxDurationI. Because
+// each refill starts after the last cached timestamp, new data (e.g. new CT folders on a live
+// source) is picked up incrementally.
+//
+public class NextTimestampCursor {
+
+    // Aim for about this many samples per window read
+    static final int TARGET_POINTS = 1000;
+
+    // Smallest window we will request
+    static final double MIN_DURATION = 0.001;
+
+    private final CTreader ctr;
+    private final String sourceName;
+    private final String chanName;
+    private final boolean bReadValues;
+    private final double maxDuration;
+    private double duration;
+
+    // The current window
+    private double[] times = new double[0];
+    private int[] values = null;
+    private int idx = 0;
+
+    // Statistics
+    public long numReads = 0;
+    public long numTimestamps = 0;
+
+    //
+    // bReadValuesI: also keep the channel's values (as 32-bit integers); set this for a trigger channel
+    //
+    public NextTimestampCursor(CTreader ctrI, String sourceNameI, String chanNameI, boolean bReadValuesI, double initialDurationI, double maxDurationI) {
+        ctr = ctrI;
+        sourceName = sourceNameI;
+        chanName = chanNameI;
+        bReadValues = bReadValuesI;
+        maxDuration = Math.max(maxDurationI, MIN_DURATION);
+        duration = Math.min(Math.max(initialDurationI, MIN_DURATION), maxDuration);
+    }
+
+    //
+    // Move to the first timestamp after afterTimeI; returns false if there is no such data yet.
+    // On success, getTime() (and getValue()) return the new position.
+    //
+    public boolean advance(double afterTimeI) throws Exception {
+        // Usually this is just the next entry in the cached window
+        while (idx < times.length) {
+            if (times[idx] > afterTimeI) {
+                ++numTimestamps;
+                return true;
+            }
+            ++idx;
+        }
+        // Window is used up; read the next one
+        while (true) {
+            CTdata data = ctr.getData(sourceName, chanName, afterTimeI + 0.0001, duration, "absolute");
+            ++numReads;
+            double[] newTimes = ( (data != null) && (data.size() > 0) ) ? data.getTime() : null;
+            int numPoints = (newTimes == null) ? 0 : newTimes.length;
+            // Adapt the window to the sample rate
+            if (numPoints > (2 * TARGET_POINTS)) {
+                duration = Math.max(duration / 2.0, MIN_DURATION);
+            } else if (numPoints < (TARGET_POINTS / 2)) {
+                duration = Math.min(duration * 2.0, maxDuration);
+            }
+            if (numPoints > 0) {
+                times = newTimes;
+                values = bReadValues ? data.getDataAsInt32() : null;
+                idx = 0;
+                // Skip anything at or before afterTimeI (make sure time has advanced)
+                while ( (idx < times.length) && (times[idx] <= afterTimeI) ) {
+                    ++idx;
+                }
+                if (idx < times.length) {
+                    ++numTimestamps;
+                    return true;
+                }
+            }
+            if ( (numPoints > 0) || (duration >= maxDuration) ) {
+                // Either the data we got isn't new or we've already looked as far ahead as allowed
+                return false;
+            }
+            // Nothing in this window; it has been widened, look again
+        }
+    }
+
+    //
+    // Timestamp at the current position
+    //
+    public double getTime() {
+        return times[idx];
+    }
+
+    //
+    // Value at the current position; only available if bReadValuesI was set
+    //
+    public int getValue() {
+        return values[idx];
+    }
+
+}
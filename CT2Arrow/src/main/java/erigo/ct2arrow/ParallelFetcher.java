@@ -0,0 +1,122 @@
+/*
+Copyright 2020 Erigo
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package erigo.ct2arrow;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import cycronix.ctlib.CTdata;
+import cycronix.ctlib.CTreader;
+
+//
+// Fetch data for many CT channels concurrently.
+//
+// Reading channels one after another (a multi-channel CTmap request or one CTreader.getData
+// call per channel) makes fetch latency grow linearly with the number of channels. This class
+// issues the per-channel getData calls on a fixed-size pool of threads, so at most numThreads
+// requests are in flight at once, and joins the results.
+//
+// CTreader keeps file list caches and isn't documented as thread-safe, so each pool thread
+// gets its own CTreader. clearFileListCache() is applied to every thread's reader before that
+// thread's next request.
+//
+public class ParallelFetcher implements AutoCloseable {
+
+    private final String rootFolder;
+    private final int numThreads;
+    private final ExecutorService executor;
+
+    // Per-thread CTreader and the cache generation it was last cleared at
+    private final ThreadLocal<CTreader> threadReader;
+    private final ThreadLocal<int[]> threadCacheGen = ThreadLocal.withInitial(() -> new int[] { 0 });
+    private final AtomicInteger cacheGen = new AtomicInteger(0);
+
+    //
+    // rootFolderI is the CT root folder (as given to the CTreader constructor)
+    //
+    public ParallelFetcher(String rootFolderI, int numThreadsI) {
+        if (numThreadsI < 1) {
+            throw new IllegalArgumentException("ParallelFetcher: number of threads must be at least 1");
+        }
+        rootFolder = rootFolderI;
+        numThreads = numThreadsI;
+        threadReader = ThreadLocal.withInitial(() -> new CTreader(rootFolder));
+        AtomicInteger threadCount = new AtomicInteger(0);
+        executor = Executors.newFixedThreadPool(numThreadsI, r -> {
+            Thread t = new Thread(r, "ct-fetch-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public int getNumThreads() {
+        return numThreads;
+    }
+
+    //
+    // Fetch the given channels over the same time range; the returned array is parallel to
+    // chanNamesI. An entry is null if no data was returned for that channel.
+    //
+    public CTdata[] fetch(String sourceNameI, String[] chanNamesI, double timeI, double durationI, String modeI) throws Exception {
+        List<Future<CTdata>> futures = new ArrayList<>(chanNamesI.length);
+        for (String chanName : chanNamesI) {
+            futures.add(executor.submit(() -> getReader().getData(sourceNameI, chanName, timeI, durationI, modeI)));
+        }
+        CTdata[] chanData = new CTdata[chanNamesI.length];
+        for (int i = 0; i < chanNamesI.length; ++i) {
+            try {
+                chanData[i] = futures.get(i).get();
+            } catch (ExecutionException ee) {
+                // Don't leave the other requests running for a result nobody will look at
+                for (Future<CTdata> future : futures) {
+                    future.cancel(true);
+                }
+                Throwable cause = ee.getCause();
+                throw new Exception("ParallelFetcher: error fetching channel " + chanNamesI[i] + ": " + cause, cause);
+            }
+        }
+        return chanData;
+    }
+
+    //
+    // Clear the file list cache of all the per-thread readers
+    //
+    public void clearFileListCache() {
+        cacheGen.incrementAndGet();
+    }
+
+    private CTreader getReader() {
+        CTreader reader = threadReader.get();
+        int[] gen = threadCacheGen.get();
+        int currentGen = cacheGen.get();
+        if (gen[0] != currentGen) {
+            reader.clearFileListCache();
+            gen[0] = currentGen;
+        }
+        return reader;
+    }
+
+    public void close() {
+        executor.shutdownNow();
+    }
+
+}
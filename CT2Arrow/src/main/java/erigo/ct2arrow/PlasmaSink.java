@@ -0,0 +1,179 @@
+/*
+Copyright 2020 Erigo
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package erigo.ct2arrow;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+
+import erigo.arrowcommon.BatchSink;
+import erigo.arrowcommon.IpcBatch;
+import org.apache.arrow.plasma.PlasmaClient;
+import org.apache.arrow.plasma.exceptions.DuplicateObjectException;
+import org.apache.arrow.plasma.exceptions.PlasmaOutOfMemoryException;
+
+//
+// Writes each batch (as a one-batch Arrow stream) to the Plasma object store as one object,
+// with the batch's object ID. The object is created at its final size and the serialized bytes
+// are copied straight into it. Several sinks (one per column group) may share a client; they
+// take turns.
+//
+// The store normally makes room by evicting unused objects itself; it reports that it is full
+// when the objects it holds are still in use (e.g. by readers which haven't released them). What
+// the sink then does is set by its FullPolicy:
+//
+//     EVICT: delete this sink's own oldest objects (enough to make room for the batch), then wait
+//            and try again as for BLOCK
+//     BLOCK: wait and try again, with exponential backoff
+//
+// Either way, a batch is given up on after maxRetries attempts, and write() throws so the FanOut
+// counts it as failed. While the sink waits, new batches collect in its bounded FanOut queue,
+// which drops (and counts) its oldest batches if the wait goes on too long. Nothing is lost
+// silently: the full-store events, retries, evictions and batches given up on are all counted.
+//
+public class PlasmaSink implements BatchSink {
+
+    public enum FullPolicy { EVICT, BLOCK }
+
+    // Backoff between attempts while the store is full
+    private static final long MIN_BACKOFF_MSEC = 10;
+    private static final long MAX_BACKOFF_MSEC = 1000;
+
+    // Most objects remembered as candidates for eviction; older ones have most likely been
+    // evicted by the store already
+    private static final int MAX_TRACKED_OBJECTS = 10000;
+
+    private final PlasmaClient client;
+    private final FullPolicy fullPolicy;
+    private final int maxRetries;
+
+    // The objects this sink has written, oldest first
+    private final ArrayDeque<OwnObject> ownObjects = new ArrayDeque<>();
+
+    // Statistics
+    public long storeFullEvents = 0;
+    public long retries = 0;
+    public long objectsEvicted = 0;
+    public long bytesEvicted = 0;
+    public long batchesGivenUp = 0;
+
+    public PlasmaSink(PlasmaClient clientI, FullPolicy fullPolicyI, int maxRetriesI) {
+        if (maxRetriesI < 0) {
+            throw new IllegalArgumentException("PlasmaSink: the number of retries must not be negative");
+        }
+        client = clientI;
+        fullPolicy = fullPolicyI;
+        maxRetries = maxRetriesI;
+    }
+
+    public String getName() {
+        return "plasma";
+    }
+
+    public void write(IpcBatch batchI) throws IOException {
+        byte[] id = batchI.objectId.getBytes(StandardCharsets.UTF_8);
+        int size = batchI.streamLength();
+        long backoff = MIN_BACKOFF_MSEC;
+        for (int attempt = 0; ; ++attempt) {
+            try {
+                synchronized (client) {
+                    ByteBuffer objBuf = client.create(id, size, null);
+                    objBuf.put(batchI.streamBytes());
+                    client.seal(id);
+                    client.release(id);
+                }
+                remember(id, size);
+                return;
+            } catch (PlasmaOutOfMemoryException oom) {
+                ++storeFullEvents;
+                if (attempt >= maxRetries) {
+                    ++batchesGivenUp;
+                    throw new IOException("PlasmaSink: the store is full; gave up on object " + batchI.objectId + " (" + size + " bytes) after " + (attempt + 1) + " attempts");
+                }
+                if (storeFullEvents == 1) {
+                    System.err.println("PlasmaSink: the Plasma store is full; " + ((fullPolicy == FullPolicy.EVICT) ? "evicting our oldest objects" : "waiting for space"));
+                }
+                ++retries;
+                if (fullPolicy == FullPolicy.EVICT) {
+                    evictOldest(size);
+                }
+                // Back off even after an eviction: objects which readers still have mapped stay in the
+                // store until they are released, so deleting them may not have freed any space yet
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("PlasmaSink: interrupted while waiting for space for object " + batchI.objectId);
+                }
+                backoff = Math.min(backoff * 2, MAX_BACKOFF_MSEC);
+            } catch (DuplicateObjectException doe) {
+                throw new IOException("PlasmaSink: object " + batchI.objectId + " already exists in the store");
+            } catch (Exception e) {
+                throw new IOException("PlasmaSink: unable to write object " + batchI.objectId + ": " + e, e);
+            }
+        }
+    }
+
+    public String getStats() {
+        return String.format("plasma store full %d times, %d retries, %d objects (%d bytes) evicted, %d batches given up on",
+                             storeFullEvents, retries, objectsEvicted, bytesEvicted, batchesGivenUp);
+    }
+
+    public void close() {
+    }
+
+    private void remember(byte[] idI, int sizeI) {
+        if (ownObjects.size() >= MAX_TRACKED_OBJECTS) {
+            ownObjects.removeFirst();
+        }
+        ownObjects.addLast(new OwnObject(idI, sizeI));
+    }
+
+    //
+    // Delete our oldest objects still in the store, until at least bytesI bytes have been deleted
+    // or there are none left to delete
+    //
+    private void evictOldest(long bytesI) {
+        long deleted = 0;
+        int numDeleted = 0;
+        while ( (deleted < bytesI) && !ownObjects.isEmpty() ) {
+            OwnObject obj = ownObjects.removeFirst();
+            synchronized (client) {
+                if (!client.contains(obj.id)) {
+                    // already evicted by the store
+                    continue;
+                }
+                client.delete(obj.id);
+            }
+            deleted += obj.size;
+            ++numDeleted;
+        }
+        objectsEvicted += numDeleted;
+        bytesEvicted += deleted;
+    }
+
+    private static class OwnObject {
+        final byte[] id;
+        final int size;
+        OwnObject(byte[] idI, int sizeI) {
+            id = idI;
+            size = sizeI;
+        }
+    }
+
+}
@@ -0,0 +1,235 @@
+/*
+Copyright 2020 Erigo
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+
+package erigo.ct2arrow;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import cycronix.ctlib.CTdata;
+
+//
+// Bounded reorder buffer for rows whose channel data arrives late or out of order (e.g. a source
+// transmitted via Syncthing, where a channel's data at a timestamp may show up after the timing
+// channel's).
+//
+// Each row (a timestamp on the timing channel) is added with whatever channel data was found at
+// that time; channels without data at the row's timestamp are "missing". fill() supplies data
+// found on a later look, and a row is complete once no channel is missing. poll() hands out rows
+// in timestamp order, so ct_timestamp stays sorted even when a later row completes first: the
+// oldest row is handed out as soon as it is complete, or, with its missing channels stored as
+// null, once the lateness watermark has passed it. The watermark passes a row when either
+//   - the newest timestamp added is more than latenessI seconds past the row's timestamp, or
+//   - the row has waited latenessI seconds of wall clock time (so a row isn't held forever when
+//     the source stops)
+// The buffer holds at most maxRowsI rows; beyond that the oldest row is handed out as it is.
+// When ingest stops, drain() makes poll() hand out every row still held, whatever the watermark.
+//
+public class ReorderBuffer {
+
+    //
+    // One row; chanData[i] is null while channel i is missing
+    //
+    public static class Row {
+        public final double time;
+        public final CTdata[] chanData;
+        private final long arrivalTime;
+        private int numMissing = 0;
+
+        private Row(double timeI, CTdata[] chanDataI, long arrivalTimeI) {
+            time = timeI;
+            chanData = chanDataI;
+            arrivalTime = arrivalTimeI;
+        }
+    }
+
+    private final TreeMap<Double,Row> rows = new TreeMap<>();
+    private final double lateness;
+    private final long lateness_msec;
+    private final int maxRows;
+    private double newestTime = -Double.MAX_VALUE;
+    private int numRowsMissing = 0;
+    private boolean bDraining = false;
+
+    // Statistics
+    private long numOnTime = 0;
+    private long numLate = 0;
+    private long numIncomplete = 0;
+    private long numMissingValues = 0;
+
+    public ReorderBuffer(double latenessI, int maxRowsI) {
+        if ( !(latenessI >= 0) || (maxRowsI < 1) ) {
+            throw new IllegalArgumentException("ReorderBuffer: lateness must be at least 0 and the size at least 1");
+        }
+        lateness = latenessI;
+        lateness_msec = Math.round(latenessI * 1000.0);
+        maxRows = maxRowsI;
+    }
+
+    //
+    // Add the row at the given timestamp. chanDataI holds each channel's data (null if none was
+    // returned); data which doesn't include the timestamp counts as missing.
+    //
+    public void add(double timeI, CTdata[] chanDataI, long nowI) {
+        Row row = new Row(timeI, chanDataI.clone(), nowI);
+        for (int i = 0; i < row.chanData.length; ++i) {
+            if (!hasTime(row.chanData[i], timeI)) {
+                row.chanData[i] = null;
+                ++row.numMissing;
+            }
+        }
+        Row old = rows.put(timeI, row);
+        if ( (old != null) && (old.numMissing > 0) ) {
+            --numRowsMissing;
+        }
+        if (row.numMissing > 0) {
+            ++numRowsMissing;
+        } else {
+            ++numOnTime;
+        }
+        newestTime = Math.max(newestTime, timeI);
+    }
+
+    public boolean isEmpty() {
+        return rows.isEmpty();
+    }
+
+    public int size() {
+        return rows.size();
+    }
+
+    //
+    // Is any row still missing a channel?
+    //
+    public boolean hasMissing() {
+        return numRowsMissing > 0;
+    }
+
+    //
+    // Which channels are missing from at least one row; the array is parallel to chanData
+    //
+    public boolean[] getMissingChannels(int numChansI) {
+        boolean[] bMissing = new boolean[numChansI];
+        for (Row row : rows.values()) {
+            if (row.numMissing == 0) {
+                continue;
+            }
+            for (int i = 0; i < numChansI; ++i) {
+                if (row.chanData[i] == null) {
+                    bMissing[i] = true;
+                }
+            }
+        }
+        return bMissing;
+    }
+
+    //
+    // Timestamps of the first and last rows which are missing a channel; {NaN, NaN} if there are none
+    //
+    public double[] getMissingSpan() {
+        double first = Double.NaN;
+        double last = Double.NaN;
+        for (Row row : rows.values()) {
+            if (row.numMissing > 0) {
+                if (Double.isNaN(first)) {
+                    first = row.time;
+                }
+                last = row.time;
+            }
+        }
+        return new double[] { first, last };
+    }
+
+    //
+    // Supply data for channel chanI; each row which is missing that channel and whose timestamp
+    // is in the data takes it
+    //
+    public void fill(int chanI, CTdata dataI) {
+        if ( (dataI == null) || (dataI.size() == 0) ) {
+            return;
+        }
+        for (Row row : rows.values()) {
+            if ( (row.numMissing > 0) && (row.chanData[chanI] == null) && hasTime(dataI, row.time) ) {
+                row.chanData[chanI] = dataI;
+                if (--row.numMissing == 0) {
+                    --numRowsMissing;
+                    ++numLate;
+                }
+            }
+        }
+    }
+
+    //
+    // Release all of the rows held: from now on, poll() hands out every row, with any channels
+    // still missing stored as null, regardless of the watermark
+    //
+    public void drain() {
+        bDraining = true;
+    }
+
+    //
+    // Remove and return the oldest row if it is complete or the watermark has passed it (or the buffer
+    // is over its size, or is being drained); null otherwise
+    //
+    public Row poll(long nowI) {
+        Map.Entry<Double,Row> first = rows.firstEntry();
+        if (first == null) {
+            return null;
+        }
+        Row row = first.getValue();
+        if (row.numMissing > 0) {
+            boolean bPassed = ( (newestTime - row.time) > lateness ) || ( (nowI - row.arrivalTime) >= lateness_msec ) || (rows.size() > maxRows) || bDraining;
+            if (!bPassed) {
+                return null;
+            }
+            --numRowsMissing;
+            ++numIncomplete;
+            numMissingValues += row.numMissing;
+        }
+        rows.pollFirstEntry();
+        return row;
+    }
+
+    //
+    // One line: rows complete when added, completed late, handed out incomplete (and how many values
+    // were stored as null), and rows still in the buffer
+    //
+    public String getStats() {
+        return String.format("reorder buffer: %d rows complete on arrival, %d completed late, %d incomplete at the watermark (%d missing values), %d buffered",
+                             numOnTime, numLate, numIncomplete, numMissingValues, rows.size());
+    }
+
+    //
+    // Does the given data include a sample at the given timestamp?
+    //
+    static boolean hasTime(CTdata dataI, double timeI) {
+        if (dataI == null) {
+            return false;
+        }
+        double[] times = dataI.getTime();
+        if (times == null) {
+            return false;
+        }
+        for (double t : times) {
+            if (Math.abs(t - timeI) < 0.0001) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,81 @@
+/*
+Copyright 2020 Erigo
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package erigo.ct2arrow;
+
+import java.io.File;
+import java.io.IOException;
+
+import erigo.arrowcommon.ParquetSink;
+import erigo.arrowcommon.RootBatchSink;
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.vector.VectorSchemaRoot;
+
+//
+// Writes one column group's batches to a series of Parquet files in the given folder; a file is
+// finished (footer written) and the next one started once it reaches the roll size. The file
+// which is still open is finished when the sink is closed.
+//
+public class RollingParquetSink extends RootBatchSink {
+
+    private final ColumnGroup group;
+    private final String dir;
+    private final String sourceName;
+    private final String codec;
+    private final long rollSize;
+
+    // Current Parquet file (null before the first batch and between files) and the number of the last one started
+    private ParquetSink parquetSink = null;
+    private int fileNum = 0;
+
+    public RollingParquetSink(BufferAllocator allocatorI, ColumnGroup groupI, String dirI, String sourceNameI, String codecI, long rollSizeI) {
+        super(allocatorI);
+        group = groupI;
+        dir = dirI;
+        sourceName = sourceNameI;
+        codec = codecI;
+        rollSize = rollSizeI;
+    }
+
+    public String getName() {
+        return "parquet";
+    }
+
+    protected void writeRoot(VectorSchemaRoot rootI) throws IOException {
+        if (parquetSink == null) {
+            String filename = new File(dir, group.getParquetFilename(sourceName, ++fileNum)).getPath();
+            parquetSink = new ParquetSink(filename, rootI.getSchema(), codec, ParquetSink.DEFAULT_ROW_GROUP_SIZE);
+        }
+        parquetSink.write(rootI);
+        if (parquetSink.getDataSize() >= rollSize) {
+            finishFile();
+        }
+    }
+
+    public void close() throws IOException {
+        if (parquetSink != null) {
+            finishFile();
+        }
+    }
+
+    private void finishFile() throws IOException {
+        ParquetSink sink = parquetSink;
+        parquetSink = null;
+        sink.close();
+        System.err.println("Finished Parquet file " + sink.getFile());
+    }
+
+}
@@ -17,6 +17,7 @@ limitations under the License.
 package erigo.ct2arrow;
 
 import cycronix.ctlib.CTdata;
+import erigo.arrowcommon.ColumnBuilder;
 import org.apache.arrow.memory.RootAllocator;
 import org.apache.arrow.vector.VarCharVector;
 
@@ -24,22 +25,27 @@ import java.nio.charset.StandardCharsets;
 
 public class StringDataContainer extends DataContainer {
 
+    // Stored in place of missing values
+    private static final byte[] NA_BYTES = "n/a".getBytes(StandardCharsets.UTF_8);
+
     public VarCharVector vec;
+    private final ColumnBuilder col;
 
     public StringDataContainer(String arrow_chanNameI, String ct_chanNameI, RootAllocator allocatorI) throws Exception {
         super(arrow_chanNameI, ct_chanNameI, CT2Arrow.DataType.STRING_DATA);
-        vec = new VarCharVector(arrow_chanName,allocatorI);
-        vec.allocateNew(100);
+        // Values are stored through the shared column-building core
+        col = ColumnBuilder.create(new ColumnBuilder.Spec(arrow_chanName, ColumnBuilder.Type.UTF8), allocatorI, 100);
+        vec = (VarCharVector)col.getVector();
         fieldVec = vec;
         field = vec.getField();
     }
 
     public void reset() {
-        vec.reset();
+        col.reset();
     }
 
     public void setValueCount(int recordsInBatchI) {
-        vec.setValueCount(recordsInBatchI);
+        col.setValueCount(recordsInBatchI);
     }
 
     //
@@ -50,30 +56,39 @@ public class StringDataContainer extends DataContainer {
     //
     public void addDataToVector(CTdata ctDataI,int vec_indexI,double timestampI) {
         if (ctDataI == null) {
-            vec.setSafe(vec_indexI, "n/a".getBytes(StandardCharsets.UTF_8));
+            col.setBytes(vec_indexI, NA_BYTES);
             return;
         }
         double[] times = ctDataI.getTime();
         byte[][] data = ctDataI.getData();
-        int data_index = -1;
-        for (int i = 0; i<times.length; ++i) {
-            if ( Math.abs(times[i] - timestampI) < 0.0001 ) {
-                // We've got a match!
-                data_index = i;
-                break;
-            }
-        }
+        int data_index = findDataIndex(times, timestampI);
         if (data_index == -1) {
             // Store null at this index in the vector
-            System.err.println("Channel " + arrow_chanName + ": didn't find timestamp " + timestampI + " in the given CTdata structure; store null");
             // NB: There's no "setSafe" function which includes the "isSet" argument for a VarCharVector
             // Can either risk it and call the "setNull" function (which won't be good if our index is over the limit
             // or we can just store a "n/a" string
             // vec.setNull(indexI);
-            vec.setSafe(vec_indexI, "n/a".getBytes(StandardCharsets.UTF_8));
+            col.setBytes(vec_indexI, NA_BYTES);
         } else {
-            vec.setSafe(vec_indexI, data[data_index]);
+            col.setBytes(vec_indexI, data[data_index]);
         }
     }
 
+    public Object decode(CTdata ctDataI) {
+        return ctDataI.getData();
+    }
+
+    public void addValueToVector(Object dataI,int data_indexI,int vec_indexI) {
+        col.setBytes(vec_indexI, ((byte[][])dataI)[data_indexI]);
+    }
+
+    public void addInterpolatedValueToVector(Object data0I,int idx0I,Object data1I,int idx1I,double fracI,int vec_indexI) {
+        // Strings can't be interpolated; use the earlier value
+        addValueToVector(data0I, idx0I, vec_indexI);
+    }
+
+    public void addNullToVector(int vec_indexI) {
+        col.setBytes(vec_indexI, NA_BYTES);
+    }
+
 }
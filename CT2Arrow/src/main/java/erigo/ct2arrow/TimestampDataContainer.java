@@ -0,0 +1,123 @@
+/*
+Copyright 2020 Erigo
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package erigo.ct2arrow;
+
+import cycronix.ctlib.CTdata;
+import erigo.arrowcommon.ColumnBuilder;
+import org.apache.arrow.memory.RootAllocator;
+import org.apache.arrow.vector.FieldVector;
+import org.apache.arrow.vector.Float8Vector;
+import org.apache.arrow.vector.TimeStampVector;
+
+//
+// The CT time of each row (the ct_timestamp column).
+//
+// By default the time is stored as a double, in seconds since the epoch, as CT provides it. With
+// bNativeI it is stored as an Arrow timestamp in microseconds since the epoch (UTC), which pandas,
+// Spark, DuckDB, etc. read as a date/time without any conversion.
+//
+// Rows are normally added in timestamp order, in every batch and from one batch to the next, so
+// the field is marked as sorted (see ColumnBuilder.SORTED_KEY). The caller leaves the marker off
+// (bSortedI false) when the batches are written in a different order, e.g. when each batch holds
+// the rows of one key and so overlaps in time with the batches of the other keys.
+//
+public class TimestampDataContainer extends DataContainer {
+
+    private static final double MICROS_PER_SECOND = 1.0e6;
+
+    private final ColumnBuilder col;
+    private final boolean bNative;
+
+    public TimestampDataContainer(String arrow_chanNameI, RootAllocator allocatorI, boolean bNativeI, boolean bSortedI) throws Exception {
+        super(arrow_chanNameI, arrow_chanNameI, CT2Arrow.DataType.DOUBLE_DATA);
+        bNative = bNativeI;
+        ColumnBuilder.Type type = bNative ? ColumnBuilder.Type.TIMESTAMP_MICRO : ColumnBuilder.Type.FLOAT64;
+        col = ColumnBuilder.create(new ColumnBuilder.Spec(arrow_chanName, type, bSortedI), allocatorI, 100);
+        fieldVec = col.getVector();
+        field = fieldVec.getField();
+    }
+
+    //
+    // Units of the stored values per second: 1 for seconds, 1.0e6 for microseconds
+    //
+    public double getUnitsPerSecond() {
+        return bNative ? MICROS_PER_SECOND : 1.0;
+    }
+
+    public void reset() {
+        col.reset();
+    }
+
+    public void setValueCount(int recordsInBatchI) {
+        col.setValueCount(recordsInBatchI);
+    }
+
+    //
+    // Store the given time (in seconds)
+    //
+    public void addDataToVector(int vec_indexI, double timeI) {
+        if (bNative) {
+            col.setLong(vec_indexI, Math.round(timeI * MICROS_PER_SECOND));
+        } else {
+            col.setDouble(vec_indexI, timeI);
+        }
+    }
+
+    //
+    // The time (in seconds) stored at the given index
+    //
+    public double getTime(int vec_indexI) {
+        return getTime(fieldVec, vec_indexI);
+    }
+
+    //
+    // The time (in seconds) at the given index of another vector of this column, e.g. a copy of
+    // the rows of one key (see KeyPartitioner)
+    //
+    public double getTime(FieldVector vecI, int vec_indexI) {
+        if (bNative) {
+            return ((TimeStampVector)vecI).get(vec_indexI) / MICROS_PER_SECOND;
+        }
+        return ((Float8Vector)vecI).get(vec_indexI);
+    }
+
+    //
+    // The row time is the given timestamp; the CT data isn't needed
+    //
+    public void addDataToVector(CTdata ctDataI,int vec_indexI,double timestampI) {
+        addDataToVector(vec_indexI, timestampI);
+    }
+
+    public Object decode(CTdata ctDataI) {
+        return ctDataI.getTime();
+    }
+
+    public void addValueToVector(Object dataI,int data_indexI,int vec_indexI) {
+        addDataToVector(vec_indexI, ((double[])dataI)[data_indexI]);
+    }
+
+    public void addInterpolatedValueToVector(Object data0I,int idx0I,Object data1I,int idx1I,double fracI,int vec_indexI) {
+        double t0 = ((double[])data0I)[idx0I];
+        double t1 = ((double[])data1I)[idx1I];
+        addDataToVector(vec_indexI, t0 + fracI * (t1 - t0));
+    }
+
+    public void addNullToVector(int vec_indexI) {
+        col.setNull(vec_indexI);
+    }
+
+}
@@ -0,0 +1,101 @@
+/*
+Copyright 2020 Erigo
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+
+package erigo.ct2arrow;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import cycronix.ctlib.CTwriter;
+
+import org.apache.arrow.memory.RootAllocator;
+import org.apache.arrow.vector.FieldVector;
+import org.apache.arrow.vector.VectorSchemaRoot;
+import org.apache.arrow.vector.ipc.ArrowStreamReader;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+//
+// Rows still held in the reorder buffer ("-late") when CT2Arrow is stopped must be written out
+//
+public class CT2ArrowStopTest {
+
+    private static final String SOURCE = "stoptest";
+    private static final int NUM_ROWS = 50;
+    // Rows from here on have no data on the "lost" channel, so they wait in the reorder buffer
+    private static final int NUM_COMPLETE = 30;
+    private static final double T0 = 1000.0;
+    private static final double DT = 0.1;
+
+    // Holds both the CloudTurbine data and the output stream
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void heldRowsAreWrittenOnStop() throws Exception {
+        File ctRoot = tempFolder.newFolder("CTdata");
+        CTwriter ctw = new CTwriter(new File(ctRoot, SOURCE).getPath());
+        for (int i = 0; i < NUM_ROWS; ++i) {
+            ctw.setTime(T0 + i * DT);
+            ctw.putData("a.f32", (float)i);
+            if (i < NUM_COMPLETE) {
+                ctw.putData("lost.f32", (float)i);
+            }
+        }
+        ctw.close();
+
+        File outFile = new File(tempFolder.getRoot(), "out.arrows");
+        // The lateness is far longer than the test, so only the stop releases the incomplete rows
+        String[] args = { "-ctroot", ctRoot.getPath(), "-s", SOURCE, "-chans", "a.f32,lost.f32", "-late", "1000", "-f", "500", "-stream", outFile.getPath() };
+        long stopTime = System.currentTimeMillis() + 3000;
+        new CT2Arrow(args, new CT2Arrow.Monitor() {
+            public void batchFlushed(int numRowsI, double firstTimeI, double lastTimeI, long flushNanosI) {}
+            public boolean isStopRequested() {
+                return System.currentTimeMillis() >= stopTime;
+            }
+        });
+
+        int numRows = 0;
+        int numNull = 0;
+        double lastTime = Double.NaN;
+        try (RootAllocator allocator = new RootAllocator(Long.MAX_VALUE);
+             FileInputStream fis = new FileInputStream(outFile);
+             ArrowStreamReader reader = new ArrowStreamReader(fis, allocator)) {
+            VectorSchemaRoot root = reader.getVectorSchemaRoot();
+            while (reader.loadNextBatch()) {
+                FieldVector timeVec = root.getVector("ct_timestamp");
+                FieldVector lostVec = root.getVector("lost");
+                for (int i = 0; i < root.getRowCount(); ++i) {
+                    double time = ((Number)timeVec.getObject(i)).doubleValue();
+                    assertTrue("rows out of order", Double.isNaN(lastTime) || (time > lastTime));
+                    lastTime = time;
+                    if (lostVec.isNull(i)) {
+                        ++numNull;
+                    }
+                    ++numRows;
+                }
+            }
+        }
+        assertEquals(NUM_ROWS, numRows);
+        assertEquals(T0 + (NUM_ROWS - 1) * DT, lastTime, 0.0001);
+        assertEquals("rows missing the late channel", NUM_ROWS - NUM_COMPLETE, numNull);
+    }
+
+}
@@ -18,7 +18,9 @@ limitations under the License.
 
 OBD2Arrow
 
-Reads OBD data from an input file and write it out as Arrow record batches to an Arrow file.
+Reads OBD data from an input file and write it out as Arrow record batches to an Arrow file
+(or, with the "-out" option, to a time-partitioned folder layout based on the TIMESTAMP column,
+or, with the "-partby" option, to one file per value of a column such as VEHICLE_ID).
 
 Sample input file: Data/OBD/v2/dailyRoutes.csv
 (I think this is a somewhat cleaned-up version of "exp1_14drivers_14cars_dailyRoutes.csv" from https://www.kaggle.com/cephasax/obdii-ds3?select=exp1_14drivers_14cars_dailyRoutes.csv)
@@ -40,58 +42,66 @@ https://github.com/animeshtrivedi/ArrowExample/blob/master/src/main/java/com/git
 
 package erigo.obd2arrow;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.FileOutputStream;
 import java.nio.channels.Channels;
-import java.nio.charset.StandardCharsets;
 import java.util.*;
 
+import erigo.arrowcommon.ColumnBuilder.Spec;
+import erigo.arrowcommon.ColumnBuilder.Type;
+import erigo.arrowcommon.ColumnStats;
+import erigo.arrowcommon.DelimitedTextSource;
+import erigo.arrowcommon.IngestEngine;
+import erigo.arrowcommon.KeyPartitionedWriter;
+import erigo.arrowcommon.ParquetSink;
+import erigo.arrowcommon.PartitionedArrowWriter;
+import erigo.arrowcommon.TimeIndex;
+import org.apache.commons.cli.*;
+
 import org.apache.arrow.memory.*;
 import org.apache.arrow.vector.*;
-import org.apache.arrow.vector.dictionary.DictionaryProvider;
 import org.apache.arrow.vector.ipc.ArrowFileWriter;
-import org.apache.arrow.vector.types.pojo.*;
 
 public class OBD2Arrow {
 
-	// Vectors to hold data to add to an Arrow batch
-	// Should be one Vector here per channel
-	BigIntVector timestampVector = null;
-	VarCharVector markVector = null;
-	VarCharVector modelVector = null;
-	IntVector carYearVector = null;
-	Float4Vector enginePowerVector = null;
-	VarCharVector automaticVector = null;
-	VarCharVector vehicleIdVector = null;
-	Float4Vector barometricPressureKpaVector = null;
-	Float4Vector engineCoolantTempVector = null;
-	Float4Vector fuelLevelVector = null;
-	Float4Vector engineLoadVector = null;
-	Float4Vector ambientAirTempVector = null;
-	Float4Vector engineRpmVector = null;
-	Float4Vector intakeManifoldPressureVector = null;
-	Float4Vector mafVector = null;
-	Float4Vector longTermFuelTrimBank2Vector = null;
-	VarCharVector fuelTypeVector = null;
-	Float4Vector airIntakeTempVector = null;
-	Float4Vector fuelPressureVector = null;
-	Float4Vector speedVector = null;
-	Float4Vector shortTermFuelTrimBank2Vector = null;
-	Float4Vector shortTermFuelTrimBank1Vector = null;
-	VarCharVector engineRuntimeVector = null;
-	Float4Vector throttlePosVector = null;
-	VarCharVector dtcNumberVector = null;
-	VarCharVector troubleCodesVector = null;
-	Float4Vector timingAdvanceVector = null;
-	Float4Vector equivRatioVector = null;
-	IntVector minVector = null;
-	IntVector hoursVector = null;
-	IntVector daysOfWeekVector = null;
-	IntVector monthsVector = null;
-	IntVector yearVector = null;
-	BitVector classVector = null;
+	// The columns of the OBD CSV file, in file order, and the type each is stored as
+	// (empty fields and fields which don't parse are stored as null)
+	public static final List<Spec> columns = Arrays.asList(
+			new Spec("TIMESTAMP", Type.INT64),
+			new Spec("MARK", Type.UTF8),
+			new Spec("MODEL", Type.UTF8),
+			new Spec("CAR_YEAR", Type.INT32),
+			new Spec("ENGINE_POWER", Type.FLOAT32),
+			new Spec("AUTOMATIC", Type.UTF8),
+			new Spec("VEHICLE_ID", Type.UTF8),
+			new Spec("BAROMETRIC_PRESSURE_KPA", Type.FLOAT32),
+			new Spec("ENGINE_COOLANT_TEMP", Type.FLOAT32),
+			new Spec("FUEL_LEVEL", Type.FLOAT32),
+			new Spec("ENGINE_LOAD", Type.FLOAT32),
+			new Spec("AMBIENT_AIR_TEMP", Type.FLOAT32),
+			new Spec("ENGINE_RPM", Type.FLOAT32),
+			new Spec("INTAKE_MANIFOLD_PRESSURE", Type.FLOAT32),
+			new Spec("MAF", Type.FLOAT32),
+			new Spec("LONG_TERM_FUEL_TRIM_BANK_2", Type.FLOAT32),
+			new Spec("FUEL_TYPE", Type.UTF8),
+			new Spec("AIR_INTAKE_TEMP", Type.FLOAT32),
+			new Spec("FUEL_PRESSURE", Type.FLOAT32),
+			new Spec("SPEED", Type.FLOAT32),
+			new Spec("SHORT_TERM_FUEL_TRIM_BANK_2", Type.FLOAT32),
+			new Spec("SHORT_TERM_FUEL_TRIM_BANK_1", Type.FLOAT32),
+			new Spec("ENGINE_RUNTIME", Type.UTF8),
+			new Spec("THROTTLE_POS", Type.FLOAT32),
+			new Spec("DTC_NUMBER", Type.UTF8),
+			new Spec("TROUBLE_CODES", Type.UTF8),
+			new Spec("TIMING_ADVANCE", Type.FLOAT32),
+			new Spec("EQUIV_RATIO", Type.FLOAT32),
+			new Spec("MIN", Type.INT32),
+			new Spec("HOURS", Type.INT32),
+			new Spec("DAYS_OF_WEEK", Type.INT32),
+			new Spec("MONTHS", Type.INT32),
+			new Spec("YEAR", Type.INT32),
+			new Spec("CLASS", Type.BIT));
 
 	// Desired number of records per batch
 	public static final int batchSize = 100;
@@ -100,6 +110,29 @@ public class OBD2Arrow {
 	String inFilename = ".\\dailyRoutes.csv";
 	String outFilename = ".\\dailyRoutes.arrow";
 
+	// Root folder of the time-partitioned output layout (null = write everything to outFilename),
+	// the source name used as the top folder of the layout, and the part file roll size
+	String outRootDir = null;
+	String sourceName = "OBD";
+	long rollSize_MB = 128;
+
+	// Column whose values the rows are partitioned on, one output file per value (null = no key partitioning),
+	// the folder for these files, the rows per record batch in them, the cap on buffered rows, the
+	// number of writer threads, and whether to write Arrow IPC streams instead of Arrow files
+	String partColumn = null;
+	String partDir = "partitions";
+	int partRows = 10000;
+	long partMem_MB = 64;
+	int partWriters = 4;
+	boolean bPartStream = false;
+
+	// Optional Parquet file written alongside the Arrow output (null = none) and its compression codec
+	String parquetFilename = null;
+	String parquetCodec = "SNAPPY";
+
+	// Store TIMESTAMP as an Arrow timestamp (milliseconds, UTC) rather than as a 64-bit integer?
+	boolean bNativeTime = false;
+
 	//
 	// Main function
 	//
@@ -118,484 +151,214 @@ public class OBD2Arrow {
 	//
 	public OBD2Arrow(String[] arg) throws Exception {
 
-		// Open up the input CSV file
-		BufferedReader br = new BufferedReader(new FileReader(inFilename));
-		// Skip the first line in the input file (it contains column headings)
-		String csvStr = br.readLine();
-
-		// Create the Vectors to hold data; use the correct data type for each Vector
-		// BitVector		(1 bit, elements can be null)
-		// Float4Vector		(4 bytes, elements can be null)
-		// Float8Vector		(8 bytes, elements can be null)
-		// IntVector		(4 bytes, elements can be null)
-		// BigIntVector		(8 bytes, elements can be null)
-		// VarCharVector	(variable length vector, elements can be null)
-		RootAllocator allocator = new RootAllocator(Long.MAX_VALUE);
-		timestampVector = new BigIntVector("TIMESTAMP",allocator);
-		markVector = new VarCharVector("MARK", allocator);
-		modelVector = new VarCharVector("MODEL", allocator);
-		carYearVector = new IntVector("CAR_YEAR",allocator);
-		enginePowerVector = new Float4Vector("ENGINE_POWER",allocator);
-		automaticVector = new VarCharVector("AUTOMATIC", allocator);
-		vehicleIdVector = new VarCharVector("VEHICLE_ID", allocator);
-		barometricPressureKpaVector = new Float4Vector("BAROMETRIC_PRESSURE_KPA",allocator);
-		engineCoolantTempVector = new Float4Vector("ENGINE_COOLANT_TEMP",allocator);
-		fuelLevelVector = new Float4Vector("FUEL_LEVEL",allocator);
-		engineLoadVector = new Float4Vector("ENGINE_LOAD",allocator);
-		ambientAirTempVector = new Float4Vector("AMBIENT_AIR_TEMP",allocator);
-		engineRpmVector = new Float4Vector("ENGINE_RPM",allocator);
-		intakeManifoldPressureVector = new Float4Vector("INTAKE_MANIFOLD_PRESSURE",allocator);
-		mafVector = new Float4Vector("MAF",allocator);
-		longTermFuelTrimBank2Vector = new Float4Vector("LONG_TERM_FUEL_TRIM_BANK_2",allocator);
-		fuelTypeVector = new VarCharVector("FUEL_TYPE", allocator);
-		airIntakeTempVector = new Float4Vector("AIR_INTAKE_TEMP",allocator);
-		fuelPressureVector = new Float4Vector("FUEL_PRESSURE",allocator);
-		speedVector = new Float4Vector("SPEED",allocator);
-		shortTermFuelTrimBank2Vector = new Float4Vector("SHORT_TERM_FUEL_TRIM_BANK_2",allocator);
-		shortTermFuelTrimBank1Vector = new Float4Vector("SHORT_TERM_FUEL_TRIM_BANK_1",allocator);
-		engineRuntimeVector = new VarCharVector("ENGINE_RUNTIME", allocator);
-		throttlePosVector = new Float4Vector("THROTTLE_POS",allocator);
-		dtcNumberVector = new VarCharVector("DTC_NUMBER", allocator);
-		troubleCodesVector = new VarCharVector("TROUBLE_CODES", allocator);
-		timingAdvanceVector = new Float4Vector("TIMING_ADVANCE",allocator);
-		equivRatioVector = new Float4Vector("EQUIV_RATIO",allocator);
-		minVector = new IntVector("MIN",allocator);
-		hoursVector = new IntVector("HOURS",allocator);
-		daysOfWeekVector = new IntVector("DAYS_OF_WEEK",allocator);
-		monthsVector = new IntVector("MONTHS",allocator);
-		yearVector = new IntVector("YEAR",allocator);
-		classVector = new BitVector("CLASS", allocator);
-
-		// Allocate space for the Vectors
-		timestampVector.allocateNew(batchSize);
-		markVector.allocateNew(batchSize);
-		modelVector.allocateNew(batchSize);
-		carYearVector.allocateNew(batchSize);
-		enginePowerVector.allocateNew(batchSize);
-		automaticVector.allocateNew(batchSize);
-		vehicleIdVector.allocateNew(batchSize);
-		barometricPressureKpaVector.allocateNew(batchSize);
-		engineCoolantTempVector.allocateNew(batchSize);
-		fuelLevelVector.allocateNew(batchSize);
-		engineLoadVector.allocateNew(batchSize);
-		ambientAirTempVector.allocateNew(batchSize);
-		engineRpmVector.allocateNew(batchSize);
-		intakeManifoldPressureVector.allocateNew(batchSize);
-		mafVector.allocateNew(batchSize);
-		longTermFuelTrimBank2Vector.allocateNew(batchSize);
-		fuelTypeVector.allocateNew(batchSize);
-		airIntakeTempVector.allocateNew(batchSize);
-		fuelPressureVector.allocateNew(batchSize);
-		speedVector.allocateNew(batchSize);
-		shortTermFuelTrimBank2Vector.allocateNew(batchSize);
-		shortTermFuelTrimBank1Vector.allocateNew(batchSize);
-		engineRuntimeVector.allocateNew(batchSize);
-		throttlePosVector.allocateNew(batchSize);
-		dtcNumberVector.allocateNew(batchSize);
-		troubleCodesVector.allocateNew(batchSize);
-		timingAdvanceVector.allocateNew(batchSize);
-		equivRatioVector.allocateNew(batchSize);
-		minVector.allocateNew(batchSize);
-		hoursVector.allocateNew(batchSize);
-		daysOfWeekVector.allocateNew(batchSize);
-		monthsVector.allocateNew(batchSize);
-		yearVector.allocateNew(batchSize);
-		classVector.allocateNew(batchSize);
-
-		// Write first record
-		int arrowFileIndex = 0;
-		while (true) {
-			csvStr = br.readLine();
-			if (csvStr == null) {
-				System.err.println("Got null reading file when making first batch");
-				return;
-			}
-			boolean bSuccess = addDataToBatch(arrowFileIndex, csvStr);
-			if (bSuccess) {
-				++arrowFileIndex;
-				if (arrowFileIndex >= batchSize) {
-					break;
-				}
-			}
-		}
-
-		// Specify size for each Vector
-		timestampVector.setValueCount(batchSize);
-		markVector.setValueCount(batchSize);
-		modelVector.setValueCount(batchSize);
-		carYearVector.setValueCount(batchSize);
-		enginePowerVector.setValueCount(batchSize);
-		automaticVector.setValueCount(batchSize);
-		vehicleIdVector.setValueCount(batchSize);
-		barometricPressureKpaVector.setValueCount(batchSize);
-		engineCoolantTempVector.setValueCount(batchSize);
-		fuelLevelVector.setValueCount(batchSize);
-		engineLoadVector.setValueCount(batchSize);
-		ambientAirTempVector.setValueCount(batchSize);
-		engineRpmVector.setValueCount(batchSize);
-		intakeManifoldPressureVector.setValueCount(batchSize);
-		mafVector.setValueCount(batchSize);
-		longTermFuelTrimBank2Vector.setValueCount(batchSize);
-		fuelTypeVector.setValueCount(batchSize);
-		airIntakeTempVector.setValueCount(batchSize);
-		fuelPressureVector.setValueCount(batchSize);
-		speedVector.setValueCount(batchSize);
-		shortTermFuelTrimBank2Vector.setValueCount(batchSize);
-		shortTermFuelTrimBank1Vector.setValueCount(batchSize);
-		engineRuntimeVector.setValueCount(batchSize);
-		throttlePosVector.setValueCount(batchSize);
-		dtcNumberVector.setValueCount(batchSize);
-		troubleCodesVector.setValueCount(batchSize);
-		timingAdvanceVector.setValueCount(batchSize);
-		equivRatioVector.setValueCount(batchSize);
-		minVector.setValueCount(batchSize);
-		hoursVector.setValueCount(batchSize);
-		daysOfWeekVector.setValueCount(batchSize);
-		monthsVector.setValueCount(batchSize);
-		yearVector.setValueCount(batchSize);
-		classVector.setValueCount(batchSize);
-		
-		List<Field> fields = Arrays.asList(
-				timestampVector.getField(),
-				markVector.getField(),
-				modelVector.getField(),
-				carYearVector.getField(),
-				enginePowerVector.getField(),
-				automaticVector.getField(),
-				vehicleIdVector.getField(),
-				barometricPressureKpaVector.getField(),
-				engineCoolantTempVector.getField(),
-				fuelLevelVector.getField(),
-				engineLoadVector.getField(),
-				ambientAirTempVector.getField(),
-				engineRpmVector.getField(),
-				intakeManifoldPressureVector.getField(),
-				mafVector.getField(),
-				longTermFuelTrimBank2Vector.getField(),
-				fuelTypeVector.getField(),
-				airIntakeTempVector.getField(),
-				fuelPressureVector.getField(),
-				speedVector.getField(),
-				shortTermFuelTrimBank2Vector.getField(),
-				shortTermFuelTrimBank1Vector.getField(),
-				engineRuntimeVector.getField(),
-				throttlePosVector.getField(),
-				dtcNumberVector.getField(),
-				troubleCodesVector.getField(),
-				timingAdvanceVector.getField(),
-				equivRatioVector.getField(),
-				minVector.getField(),
-				hoursVector.getField(),
-				daysOfWeekVector.getField(),
-				monthsVector.getField(),
-				yearVector.getField(),
-				classVector.getField());
-		List<FieldVector> vectors = Arrays.asList(
-				timestampVector,
-				markVector,
-				modelVector,
-				carYearVector,
-				enginePowerVector,
-				automaticVector,
-				vehicleIdVector,
-				barometricPressureKpaVector,
-				engineCoolantTempVector,
-				fuelLevelVector,
-				engineLoadVector,
-				ambientAirTempVector,
-				engineRpmVector,
-				intakeManifoldPressureVector,
-				mafVector,
-				longTermFuelTrimBank2Vector,
-				fuelTypeVector,
-				airIntakeTempVector,
-				fuelPressureVector,
-				speedVector,
-				shortTermFuelTrimBank2Vector,
-				shortTermFuelTrimBank1Vector,
-				engineRuntimeVector,
-				throttlePosVector,
-				dtcNumberVector,
-				troubleCodesVector,
-				timingAdvanceVector,
-				equivRatioVector,
-				minVector,
-				hoursVector,
-				daysOfWeekVector,
-				monthsVector,
-				yearVector,
-				classVector);
-
-		VectorSchemaRoot root = new VectorSchemaRoot(fields, vectors);
-
-		// Keep track of how many batches we have written out
-		int batchNum = 0;
-
-		// "null" csv string, used if we want to pad a not-full batch with null data
-		String nullCsvStr = "a, , , , , , , , , , , , , , , , , , , , , , , , , , , , , , , , ,a";
-
-		// This is a try-with-resource block
-		try (FileOutputStream fos = new FileOutputStream(outFilename);
-			// Make the Arrow writer
-            ArrowFileWriter arrowFileWriter = new ArrowFileWriter(root, null, Channels.newChannel(fos))) {
-			arrowFileWriter.start();
-			// Write out first batch of data
-			++batchNum;
-			System.err.println("\nBatch " + batchNum + ", contains " + batchSize + " records");
-			root.setRowCount(batchSize);
-			arrowFileWriter.writeBatch();
-			// Continuously write new batches until we reach end of file
-			boolean bEOF = false;
-			while (true) {
-				// Reset vectors
-				timestampVector.reset();
-				markVector.reset();
-				modelVector.reset();
-				carYearVector.reset();
-				enginePowerVector.reset();
-				automaticVector.reset();
-				vehicleIdVector.reset();
-				barometricPressureKpaVector.reset();
-				engineCoolantTempVector.reset();
-				fuelLevelVector.reset();
-				engineLoadVector.reset();
-				ambientAirTempVector.reset();
-				engineRpmVector.reset();
-				intakeManifoldPressureVector.reset();
-				mafVector.reset();
-				longTermFuelTrimBank2Vector.reset();
-				fuelTypeVector.reset();
-				airIntakeTempVector.reset();
-				fuelPressureVector.reset();
-				speedVector.reset();
-				shortTermFuelTrimBank2Vector.reset();
-				shortTermFuelTrimBank1Vector.reset();
-				engineRuntimeVector.reset();
-				throttlePosVector.reset();
-				dtcNumberVector.reset();
-				troubleCodesVector.reset();
-				timingAdvanceVector.reset();
-				equivRatioVector.reset();
-				minVector.reset();
-				hoursVector.reset();
-				daysOfWeekVector.reset();
-				monthsVector.reset();
-				yearVector.reset();
-				classVector.reset();
-				// Write out a new batch
-				arrowFileIndex = 0;
-				while (true) {
-					csvStr = br.readLine();
-					if (csvStr == null) {
-						System.err.println("We've reached the end of the file");
-						bEOF = true;
-						break;
-					}
-					boolean bSuccess = addDataToBatch(arrowFileIndex, csvStr);
-					if (bSuccess) {
-						++arrowFileIndex;
-						if (arrowFileIndex >= batchSize) {
-							break;
-						}
-					}
-				}
-				/**
-				 * If we want to have every batch the same size, use the following code
-				if ( (bEOF) && (arrowFileIndex != 0) && (arrowFileIndex != batchSize) ) {
-					// We reached end of file but the batch isn't full
-					// Pad the remainder of this record with null data (use nullCsvStr)
-					int num_addl = batchSize - arrowFileIndex;
-					System.err.println("At end of file, but batch isn't full: it currently contains " + arrowFileIndex + " records, need " + num_addl + " more.");
-					for (int i = 0; i < num_addl; ++i) {
-						addDataToBatch(arrowFileIndex, nullCsvStr);
-					}
-				}
-				**/
-				// Write out next batch of data
-				if ( arrowFileIndex > 0 ) {
-					++batchNum;
-					if ( ((batchNum % 10) == 0) || (arrowFileIndex != batchSize) || (bEOF) ) {
-						System.err.println("Batch " + batchNum + ", contains " + arrowFileIndex + " records");
-					}
-					root.setRowCount(arrowFileIndex);
-					arrowFileWriter.writeBatch();
-				}
-				if (bEOF) {
-					break;
-				}
-			}
-			// Close the ArrowFileWriter
-			arrowFileWriter.end();
-			br.close();
-		} catch (IOException ioe) {
-			System.err.println(ioe);
+		//
+		// Argument processing using Apache Commons CLI
+		//
+		// 1. Setup command line options
+		Options options = new Options();
+		options.addOption("h", "help", false, "Print this message.");
+		options.addOption(Option.builder("i").argName("input file").hasArg().desc("Input OBD CSV file; default = " + inFilename + ".").build());
+		options.addOption(Option.builder("o").argName("output file").hasArg().desc("Output Arrow file; default = " + outFilename + ". The TIMESTAMP range of each batch is listed in a time index next to it, <output file name without .arrow>" + TimeIndex.INDEX_SUFFIX + ", which ArrowScan's \"-tindex\" option uses to find a time range.").build());
+		options.addOption(Option.builder("out").argName("root folder").hasArg().desc("Instead of a single output file, write a time-partitioned layout under the given folder, <root>/<source>/date=YYYY-MM-DD/hour=HH/part-N.arrow, based on the TIMESTAMP column (epoch milliseconds, UTC); each partition has a _manifest.tsv listing its files.").build());
+		options.addOption(Option.builder("s").argName("source name").hasArg().desc("With \"-out\", name of the top folder under the root folder; default = " + sourceName + ".").build());
+		options.addOption(Option.builder("roll").argName("size (MB)").hasArg().desc("With \"-out\", start a new part file once the current one reaches this size, in MB; default = " + Long.toString(rollSize_MB) + ".").build());
+		options.addOption(Option.builder("partby").argName("column").hasArg().desc("Instead of a single output file, write the rows of each value of the given column (e.g. VEHICLE_ID) to a file of their own, <folder>/<column>=<value>.arrow, so one value's rows are read with a single sequential file read; the folder has a " + KeyPartitionedWriter.MANIFEST_NAME + " listing the files.").build());
+		options.addOption(Option.builder("partdir").argName("folder").hasArg().desc("With \"-partby\", the output folder; default = " + partDir + ".").build());
+		options.addOption(Option.builder("partrows").argName("num rows").hasArg().desc("With \"-partby\", rows per record batch in each file; default = " + Integer.toString(partRows) + ".").build());
+		options.addOption(Option.builder("partmem").argName("size (MB)").hasArg().desc("With \"-partby\", most data buffered or waiting to be written, in MB; beyond this, the value with the most buffered rows is written out early. Default = " + Long.toString(partMem_MB) + ".").build());
+		options.addOption(Option.builder("partwriters").argName("num threads").hasArg().desc("With \"-partby\", number of threads writing the files in parallel; default = " + Integer.toString(partWriters) + ".").build());
+		options.addOption("partstream", false, "With \"-partby\", write each value's rows as an Arrow IPC stream, <folder>/<column>=<value>.arrows, which can be read while it is being written (ArrowStreamFollower).");
+		options.addOption(Option.builder("parquet").argName("output file").hasArg().desc("Also write the data to the given Parquet file (in addition to the Arrow output); columns are dictionary encoded with page statistics.").build());
+		options.addOption("nativetime", false, "Store TIMESTAMP as an Arrow timestamp (milliseconds since the epoch, UTC) instead of a 64-bit integer.");
+		options.addOption(Option.builder("pcodec").argName("codec").hasArg().desc("With \"-parquet\", the compression codec: " + ParquetSink.SUPPORTED_CODECS + "; default = " + parquetCodec + ".").build());
+
+		// 2. Parse command line options
+		CommandLineParser parser = new DefaultParser();
+		CommandLine line = null;
+		try {	line = parser.parse( options, arg );	}
+		catch( ParseException exp ) {	// oops, something went wrong
+			System.err.println( "Command line argument parsing failed: " + exp.getMessage() );
+			return;
 		}
 
-	}
-
-	//
-	// Break up a given CSV string and add one datapoint to each Vector
-	//
-	private boolean addDataToBatch(int arrowFileIndexI, String csvStrI) {
-		if (arrowFileIndexI > (batchSize-1)) {
-			System.err.println("addDataToBatch(): ERROR: the given index (" + arrowFileIndexI + ") is greater than " + (batchSize-1));
-			return false;
-		}
-		if (csvStrI == null) {
-			return false;
-		}
-		String csvStr = csvStrI.trim();
-		if (csvStr.isEmpty()) {
-			return false;
-		}
-		String[] strArray = csvStr.split(",");
-		if (strArray.length != 34) {
-			System.err.println("addDataToBatch(): got wrong number of array entries: expected 34, got " + strArray.length);
-			return false;
+		// 3. Retrieve the command line values
+		if (line.hasOption("help")) {			// Display help message and quit
+			HelpFormatter formatter = new HelpFormatter();
+			formatter.setWidth(120);
+			formatter.printHelp( "OBD2Arrow", options );
+			return;
 		}
-		storeAsLong(strArray[0],timestampVector,arrowFileIndexI);
-		storeAsStrBytes(strArray[1],markVector,arrowFileIndexI);
-		storeAsStrBytes(strArray[2],modelVector,arrowFileIndexI);
-		storeAsInteger(strArray[3],carYearVector,arrowFileIndexI);
-		storeAsFloat(strArray[4],enginePowerVector,arrowFileIndexI);
-		storeAsStrBytes(strArray[5],automaticVector,arrowFileIndexI);
-		storeAsStrBytes(strArray[6],vehicleIdVector,arrowFileIndexI);
-		storeAsFloat(strArray[7],barometricPressureKpaVector,arrowFileIndexI);
-		storeAsFloat(strArray[8],engineCoolantTempVector,arrowFileIndexI);
-		storeAsFloat(strArray[9],fuelLevelVector,arrowFileIndexI);
-		storeAsFloat(strArray[10],engineLoadVector,arrowFileIndexI);
-		storeAsFloat(strArray[11],ambientAirTempVector,arrowFileIndexI);
-		storeAsFloat(strArray[12],engineRpmVector,arrowFileIndexI);
-		storeAsFloat(strArray[13],intakeManifoldPressureVector,arrowFileIndexI);
-		storeAsFloat(strArray[14],mafVector,arrowFileIndexI);
-		storeAsFloat(strArray[15],longTermFuelTrimBank2Vector,arrowFileIndexI);
-		storeAsStrBytes(strArray[16],fuelTypeVector,arrowFileIndexI);
-		storeAsFloat(strArray[17],airIntakeTempVector,arrowFileIndexI);
-		storeAsFloat(strArray[18],fuelPressureVector,arrowFileIndexI);
-		storeAsFloat(strArray[19],speedVector,arrowFileIndexI);
-		storeAsFloat(strArray[20],shortTermFuelTrimBank2Vector,arrowFileIndexI);
-		storeAsFloat(strArray[21],shortTermFuelTrimBank1Vector,arrowFileIndexI);
-		storeAsStrBytes(strArray[22],engineRuntimeVector,arrowFileIndexI);
-		storeAsFloat(strArray[23],throttlePosVector,arrowFileIndexI);
-		storeAsStrBytes(strArray[24],dtcNumberVector,arrowFileIndexI);
-		storeAsStrBytes(strArray[25],troubleCodesVector,arrowFileIndexI);
-		storeAsFloat(strArray[26],timingAdvanceVector,arrowFileIndexI);
-		storeAsFloat(strArray[27],equivRatioVector,arrowFileIndexI);
-		storeAsInteger(strArray[28],minVector,arrowFileIndexI);
-		storeAsInteger(strArray[29],hoursVector,arrowFileIndexI);
-		storeAsInteger(strArray[30],daysOfWeekVector,arrowFileIndexI);
-		storeAsInteger(strArray[31],monthsVector,arrowFileIndexI);
-		storeAsInteger(strArray[32],yearVector,arrowFileIndexI);
-		storeAsBit(strArray[33],classVector,arrowFileIndexI);
-		return true;
-	}
 
-	//
-	// Add a "bit" to a BitVector at the given index
-	// Very similar to storeAsInteger, but the only acceptable values are 0 or 1 or null
-	//
-	private void storeAsBit(String strI,BitVector vecI,int indexI) {
-		if ( (strI == null) || (strI.trim().isEmpty()) ) {
-			// Here's another way to do it
-			// vecI.setSafe(indexI, 0, 0);
-			vecI.setNull(indexI);
+		inFilename = line.getOptionValue("i", inFilename);
+		outFilename = line.getOptionValue("o", outFilename);
+		if (line.hasOption("out")) {
+			if (line.hasOption("o")) {
+				System.err.println("Error: specify only one of the \"-o\" and \"-out\" options");
+				return;
+			}
+			outRootDir = line.getOptionValue("out");
+			sourceName = line.getOptionValue("s", sourceName);
+			try {
+				rollSize_MB = Long.parseLong(line.getOptionValue("roll", "" + rollSize_MB));
+			} catch (NumberFormatException nfe) {
+				rollSize_MB = 0;
+			}
+			if (rollSize_MB < 1) {
+				System.err.println("Error: the roll size must be an integer greater than 0 (MB)");
+				return;
+			}
+		} else if ( line.hasOption("s") || line.hasOption("roll") ) {
+			System.err.println("Error: the \"-s\" and \"-roll\" options are only used along with \"-out\"");
 			return;
 		}
-		Integer intVal = null;
-		String str = strI.trim();
-		try {
-			intVal = Integer.parseInt(str);
-		} catch (Exception e) {
-			intVal = null;
-		}
-		if ( (intVal == null) || ( (intVal != 0) && (intVal != 1) ) ) {
-			vecI.setNull(indexI);
-		} else {
-			vecI.setSafe(indexI, intVal);
-		}
-	}
 
-	//
-	// Add int to an IntVector at the given index
-	//
-	private void storeAsInteger(String strI,IntVector vecI,int indexI) {
-		if ( (strI == null) || (strI.trim().isEmpty()) ) {
-			// Here's another way to do it
-			// vecI.setSafe(indexI, 0, -999);
-			vecI.setNull(indexI);
+		if (line.hasOption("partby")) {
+			if ( line.hasOption("o") || line.hasOption("out") ) {
+				System.err.println("Error: the \"-partby\" option can't be used along with \"-o\" or \"-out\"");
+				return;
+			}
+			partColumn = line.getOptionValue("partby");
+			boolean bKnownColumn = false;
+			for (Spec spec : columns) {
+				bKnownColumn = bKnownColumn || spec.name.equals(partColumn);
+			}
+			if (!bKnownColumn) {
+				System.err.println("Error: unknown partition column \"" + partColumn + "\"");
+				return;
+			}
+			partDir = line.getOptionValue("partdir", partDir);
+			try {
+				partRows = Integer.parseInt(line.getOptionValue("partrows", "" + partRows));
+				partMem_MB = Long.parseLong(line.getOptionValue("partmem", "" + partMem_MB));
+				partWriters = Integer.parseInt(line.getOptionValue("partwriters", "" + partWriters));
+			} catch (NumberFormatException nfe) {
+				partRows = 0;
+			}
+			if ( (partRows < 1) || (partMem_MB < 1) || (partWriters < 1) ) {
+				System.err.println("Error: the \"-partrows\", \"-partmem\" and \"-partwriters\" values must be integers greater than 0");
+				return;
+			}
+			bPartStream = line.hasOption("partstream");
+		} else if ( line.hasOption("partdir") || line.hasOption("partrows") || line.hasOption("partmem") || line.hasOption("partwriters") || line.hasOption("partstream") ) {
+			System.err.println("Error: the \"-partdir\", \"-partrows\", \"-partmem\", \"-partwriters\" and \"-partstream\" options are only used along with \"-partby\"");
 			return;
 		}
-		Integer intVal = null;
-		String str = strI.trim();
-		try {
-			intVal = Integer.parseInt(str);
-		} catch (Exception e) {
-			intVal = null;
-		}
-		if (intVal == null) {
-			vecI.setNull(indexI);
-		} else {
-			vecI.setSafe(indexI, intVal);
-		}
-	}
 
-	//
-	// Add long to a BigIntVector at the given index
-	//
-	private void storeAsLong(String strI,BigIntVector vecI,int indexI) {
-		if ( (strI == null) || (strI.trim().isEmpty()) ) {
-			// Here's another way to do it
-			// vecI.setSafe(indexI, 0, -999);
-			vecI.setNull(indexI);
+		if (line.hasOption("parquet")) {
+			parquetFilename = line.getOptionValue("parquet");
+			parquetCodec = line.getOptionValue("pcodec", parquetCodec).toUpperCase();
+			if (!Arrays.asList(ParquetSink.SUPPORTED_CODECS.split(", ")).contains(parquetCodec)) {
+				System.err.println("Error: the Parquet codec must be one of " + ParquetSink.SUPPORTED_CODECS);
+				return;
+			}
+		} else if (line.hasOption("pcodec")) {
+			System.err.println("Error: the \"-pcodec\" option is only used along with \"-parquet\"");
 			return;
 		}
-		Long longVal = null;
-		String str = strI.trim();
-		try {
-			longVal = Long.parseLong(str);
-		} catch (Exception e) {
-			longVal = null;
-		}
-		if (longVal == null) {
-			vecI.setNull(indexI);
-		} else {
-			vecI.setSafe(indexI, longVal);
+
+		bNativeTime = line.hasOption("nativetime");
+		List<Spec> specs = columns;
+		if (bNativeTime) {
+			specs = new ArrayList<>(columns);
+			specs.set(0, new Spec("TIMESTAMP", Type.TIMESTAMP_MILLI));
 		}
-	}
 
-	//
-	// Add float to a Float4Vector at the given index
-	//
-	private void storeAsFloat(String strI,Float4Vector vecI,int indexI) {
-		if ( (strI == null) || (strI.trim().isEmpty()) ) {
-			// Here's another way to do it
-			// vecI.setSafe(indexI, 0, -999);
-			vecI.setNull(indexI);
+		// The input is read by the shared ingest engine: a CSV source (the first line of the file
+		// contains column headings) producing batches of batchSize records; the buffers come from a
+		// size-classed pool, which the partitioned writer's batch slices also reuse
+		RootAllocator allocator = PooledAllocationManager.newRootAllocator(Long.MAX_VALUE);
+		DelimitedTextSource source = new DelimitedTextSource(inFilename, ',', 1, specs, batchSize, -1);
+
+		// Per-batch column statistics are accumulated here and written to the file footer
+		// when the writer is closed; ArrowScanner uses these to skip batches which can't
+		// match a query. ArrowFileWriter holds on to this map, so entries added after
+		// construction still end up in the footer.
+		Map<String,String> footerMetadata = new HashMap<>();
+
+		// This is a try-with-resource block; depending on the output mode, either the single
+		// output file (fos, arrowFileWriter and its time index), the partitioned writer (which keeps
+		// its own time index) or the key-partitioned writer is used, the others are null; parquetSink
+		// is null unless Parquet output was requested. The key-partitioned writer is made first so
+		// that its statistics can be printed once it has been closed at the end of the block.
+		KeyPartitionedWriter keyWriter;
+		try {
+			keyWriter = (partColumn == null) ? null : new KeyPartitionedWriter(allocator, partDir, partColumn, partRows, partMem_MB * 1024L * 1024L, partWriters, bPartStream);
+		} catch (IOException ioe) {
+			System.err.println(ioe);
 			return;
 		}
-		Float floatVal = null;
-		String str = strI.trim();
-		try {
-			floatVal = Float.parseFloat(str);
-		} catch (Exception e) {
-			floatVal = null;
+		try (keyWriter;
+			IngestEngine engine = new IngestEngine(source, allocator, batchSize);
+			FileOutputStream fos = ( (outRootDir == null) && (partColumn == null) ) ? new FileOutputStream(outFilename) : null;
+			// Make the Arrow writer
+			ArrowFileWriter arrowFileWriter = (fos == null) ? null : new ArrowFileWriter(engine.getRoot(), null, Channels.newChannel(fos), footerMetadata);
+			TimeIndex.Writer timeIndex = (fos == null) ? null : new TimeIndex.Writer(indexFileFor(outFilename), "TIMESTAMP", false);
+			// TIMESTAMP is in milliseconds since the epoch; keep at most 2 hour partitions open at once
+			PartitionedArrowWriter partitionWriter = (outRootDir == null) ? null : new PartitionedArrowWriter(allocator, outRootDir, sourceName, "TIMESTAMP", 1.0, rollSize_MB * 1024L * 1024L, 2);
+			ParquetSink parquetSink = (parquetFilename == null) ? null : new ParquetSink(parquetFilename, engine.getRoot().getSchema(), parquetCodec, ParquetSink.DEFAULT_ROW_GROUP_SIZE)) {
+			if (arrowFileWriter != null) {
+				arrowFileWriter.start();
+			}
+			// Row number (within the output file) of the first row of the next batch
+			long[] firstRow = new long[1];
+			// Write out each batch until we reach end of file
+			engine.run((VectorSchemaRoot root, int batchNum) -> {
+				int numRecords = root.getRowCount();
+				if ( (batchNum == 1) || ((batchNum % 10) == 0) || (numRecords != batchSize) ) {
+					System.err.println("Batch " + batchNum + ", contains " + numRecords + " records");
+				}
+				if (partitionWriter != null) {
+					partitionWriter.write(root);
+				} else if (keyWriter != null) {
+					keyWriter.write(root);
+				} else {
+					arrowFileWriter.writeBatch();
+					ColumnStats.addToMetadata(footerMetadata, batchNum - 1, root);
+					ColumnStats timeStats = ColumnStats.compute(root.getVector("TIMESTAMP"), numRecords);
+					boolean bTimes = (timeStats != null) && !timeStats.allNull();
+					timeIndex.add(new File(outFilename).getName(), batchNum - 1, firstRow[0], numRecords, bTimes ? timeStats.min : Double.NaN, bTimes ? timeStats.max : Double.NaN);
+					firstRow[0] += numRecords;
+				}
+				if (parquetSink != null) {
+					parquetSink.write(root);
+				}
+			});
+			System.err.println("We've reached the end of the file (" + source.linesRead + " lines, " + source.linesSkipped + " skipped)");
+			if (engine.batchesRead == 0) {
+				System.err.println("No records were read from " + inFilename);
+			}
+			// Close the ArrowFileWriter (the partitioned writers finish their files when they are closed)
+			if (arrowFileWriter != null) {
+				arrowFileWriter.end();
+			} else if (partitionWriter != null) {
+				System.err.println("Wrote " + partitionWriter.rowsWritten + " records under " + partitionWriter.getSourceDir());
+			}
+			if (parquetSink != null) {
+				System.err.println("Wrote " + parquetSink.rowsWritten + " records to Parquet file " + parquetFilename);
+			}
+		} catch (IOException ioe) {
+			// Includes a failure to finish the key-partitioned files when keyWriter is closed
+			System.err.println(ioe);
+			return;
 		}
-		if (floatVal == null) {
-			vecI.setNull(indexI);
-		} else {
-			vecI.setSafe(indexI, floatVal);
+		// The key-partitioned writer's counts are only final once it has been closed
+		if (keyWriter != null) {
+			System.err.println("Wrote " + keyWriter.rowsWritten + " records for " + keyWriter.getNumPartitions() + " values of " + partColumn + " under " + keyWriter.getDir() + " (" + keyWriter.capFlushes + " batches written early to stay under the memory cap)");
+			System.err.print(keyWriter.getStats());
 		}
+
 	}
 
 	//
-	// Add string data (as bytes) to a VarCharVector at the given index
+	// Time index written next to the given output file
 	//
-	private void storeAsStrBytes(String strI,VarCharVector vecI,int indexI) {
-		if ( (strI == null) || (strI.trim().isEmpty()) ) {
-			vecI.setNull(indexI);
-		} else {
-			vecI.setSafe(indexI, strI.trim().getBytes(StandardCharsets.UTF_8));
+	private static File indexFileFor(String outFilenameI) {
+		File outFile = new File(outFilenameI);
+		String name = outFile.getName();
+		if (name.endsWith(".arrow")) {
+			name = name.substring(0, name.length() - ".arrow".length());
 		}
+		return new File(outFile.getAbsoluteFile().getParentFile(), name + TimeIndex.INDEX_SUFFIX);
 	}
-	
+
 } //end class OBD2Arrow
@@ -0,0 +1,384 @@
+/*
+Copyright 2020 Erigo
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+
+/*
+
+OBDGenerator
+
+Write a synthetic OBD CSV file, in the format OBD2Arrow reads (a line of column headings, then one
+line per record with the columns of OBD2Arrow.columns), of any size, for testing OBD2Arrow at 100x
+to 1000x the size of dailyRoutes.csv.
+
+The data imitates dailyRoutes.csv: a fleet of vehicles (each with a fixed make, model, year,
+engine, transmission and fuel type) makes trips one after another; within a trip, speed follows a
+random walk and RPM, load, throttle, MAF and manifold pressure follow from it, the coolant warms up
+and the fuel level drops. The sparse columns (fuel pressure, long term fuel trim bank 2, trouble
+codes) are mostly empty, as they are in the real data. A fraction ("-bad") of the lines are
+malformed the way real exports are: truncated lines, a decimal comma or a percent sign splitting or
+spoiling a field, unreadable numbers and blank lines.
+
+The output is deterministic for a given "-seed".
+
+ */
+
+package erigo.obd2arrow;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.Random;
+
+import erigo.arrowcommon.ColumnBuilder.Spec;
+import org.apache.commons.cli.*;
+
+public class OBDGenerator {
+
+	// Makes and models of the fleet, in pairs
+	private static final String[][] MODELS = {
+			{"chevrolet", "onix"}, {"chevrolet", "prisma"}, {"renault", "sandero"}, {"renault", "logan"},
+			{"fiat", "punto"}, {"fiat", "uno"}, {"volkswagen", "gol"}, {"volkswagen", "fox"},
+			{"hyundai", "hb20"}, {"peugeot", "208"}, {"nissan", "march"}, {"toyota", "corolla"}};
+	private static final String[] FUEL_TYPES = {"Gasoline", "Ethanol", "Flex"};
+	private static final String[] TROUBLE_CODES = {"P0133", "P0171", "P0300", "P0420", "C0300"};
+
+	// Output file
+	String outFilename = null;
+
+	// Size of the output: a number of records or (if rows is 0) a size in MB
+	long numRows = 0;
+	long size_MB = 0;
+
+	// Number of vehicles in the fleet
+	int numVehicles = 14;
+
+	// Time of the first record (epoch msec) and seconds between records within a trip
+	long startTime_msec = 1505232000000L;
+	double samplePeriod_sec = 3.0;
+
+	// Fraction of the lines which are malformed
+	double badFraction = 0.001;
+
+	// Seed for the random numbers
+	long seed = 1;
+
+	//
+	// Main function
+	//
+	public static void main(String[] argsI) {
+		try {
+			new OBDGenerator(argsI);
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.err.println(e);
+		}
+	}
+
+	//
+	// OBDGenerator constructor
+	// Everything happens in this method
+	//
+	public OBDGenerator(String[] argsI) throws Exception {
+
+		//
+		// Argument processing using Apache Commons CLI
+		//
+		// 1. Setup command line options
+		Options options = new Options();
+		options.addOption("h", "help", false, "Print this message.");
+		options.addOption(Option.builder("o").argName("output file").hasArg().desc("Output CSV file.").build());
+		options.addOption(Option.builder("rows").argName("num records").hasArg().desc("Number of records to write (including malformed lines).").build());
+		options.addOption(Option.builder("mb").argName("size (MB)").hasArg().desc("Instead of \"-rows\", write records until the file reaches this size, in MB. (dailyRoutes.csv is about 95k records, 30 MB.)").build());
+		options.addOption(Option.builder("vehicles").argName("num vehicles").hasArg().desc("Number of vehicles in the fleet; default = " + Integer.toString(numVehicles) + ".").build());
+		options.addOption(Option.builder("t0").argName("start time").hasArg().desc("TIMESTAMP of the first record, in milliseconds since the epoch; default = " + Long.toString(startTime_msec) + ".").build());
+		options.addOption(Option.builder("bad").argName("fraction").hasArg().desc("Fraction of the lines which are malformed; default = " + Double.toString(badFraction) + ".").build());
+		options.addOption(Option.builder("seed").argName("seed").hasArg().desc("Seed for the random numbers; default = " + Long.toString(seed) + ".").build());
+
+		// 2. Parse command line options
+		CommandLineParser parser = new DefaultParser();
+		CommandLine line = null;
+		try {	line = parser.parse( options, argsI );	}
+		catch( ParseException exp ) {	// oops, something went wrong
+			System.err.println( "Command line argument parsing failed: " + exp.getMessage() );
+			return;
+		}
+
+		// 3. Retrieve the command line values
+		if (line.hasOption("help")) {			// Display help message and quit
+			HelpFormatter formatter = new HelpFormatter();
+			formatter.setWidth(120);
+			formatter.printHelp( "OBDGenerator", options );
+			return;
+		}
+
+		if (!line.hasOption("o")) {
+			System.err.println("Error: you must specify an output file");
+			return;
+		}
+		outFilename = line.getOptionValue("o");
+		if (line.hasOption("rows") == line.hasOption("mb")) {
+			System.err.println("Error: specify one of the \"-rows\" and \"-mb\" options");
+			return;
+		}
+		try {
+			numRows = Long.parseLong(line.getOptionValue("rows", "0"));
+			size_MB = Long.parseLong(line.getOptionValue("mb", "0"));
+		} catch (NumberFormatException nfe) {
+			numRows = -1;
+		}
+		if ( (numRows < 0) || (size_MB < 0) || ((numRows == 0) && (size_MB == 0)) ) {
+			System.err.println("Error: the number of records or size must be an integer greater than 0");
+			return;
+		}
+		try {
+			numVehicles = Integer.parseInt(line.getOptionValue("vehicles", Integer.toString(numVehicles)));
+		} catch (NumberFormatException nfe) {
+			numVehicles = 0;
+		}
+		if (numVehicles < 1) {
+			System.err.println("Error: the number of vehicles must be an integer greater than 0");
+			return;
+		}
+		try {
+			startTime_msec = Long.parseLong(line.getOptionValue("t0", Long.toString(startTime_msec)));
+		} catch (NumberFormatException nfe) {
+			System.err.println("Error: the start time must be an integer number of milliseconds since the epoch");
+			return;
+		}
+		try {
+			badFraction = Double.parseDouble(line.getOptionValue("bad", Double.toString(badFraction)));
+		} catch (NumberFormatException nfe) {
+			badFraction = -1.0;
+		}
+		if ( !(badFraction >= 0.0) || (badFraction > 1.0) ) {
+			System.err.println("Error: the fraction of malformed lines must be a number from 0 to 1");
+			return;
+		}
+		try {
+			seed = Long.parseLong(line.getOptionValue("seed", Long.toString(seed)));
+		} catch (NumberFormatException nfe) {
+			System.err.println("Error: the seed must be an integer");
+			return;
+		}
+
+		generate();
+	}
+
+	//
+	// One vehicle of the fleet
+	//
+	private static class Vehicle {
+		String id;
+		String mark;
+		String model;
+		int year;
+		float enginePower;
+		String automatic;
+		String fuelType;
+		float fuelLevel;
+		long runtime_sec = 0;
+	}
+
+	private void generate() throws IOException {
+		Random random = new Random(seed);
+
+		Vehicle[] fleet = new Vehicle[numVehicles];
+		for (int v = 0; v < numVehicles; ++v) {
+			Vehicle vehicle = new Vehicle();
+			String[] model = MODELS[random.nextInt(MODELS.length)];
+			vehicle.id = "car" + (v + 1);
+			vehicle.mark = model[0];
+			vehicle.model = model[1];
+			vehicle.year = 2008 + random.nextInt(10);
+			vehicle.enginePower = 1.0f + 0.1f * random.nextInt(11);
+			vehicle.automatic = random.nextBoolean() ? "s" : "n";
+			vehicle.fuelType = FUEL_TYPES[random.nextInt(FUEL_TYPES.length)];
+			vehicle.fuelLevel = 30.0f + 70.0f * random.nextFloat();
+			fleet[v] = vehicle;
+		}
+
+		long maxBytes = size_MB * 1024L * 1024L;
+		long rows = 0;
+		long badLines = 0;
+		long bytes = 0;
+		long time_msec = startTime_msec;
+		long period_msec = (long)(samplePeriod_sec * 1000.0);
+		StringBuilder sb = new StringBuilder(512);
+
+		try (BufferedWriter bw = new BufferedWriter(new FileWriter(outFilename), 1024 * 1024)) {
+			// Column headings
+			for (Spec spec : OBD2Arrow.columns) {
+				if (sb.length() > 0) {
+					sb.append(',');
+				}
+				sb.append(spec.name);
+			}
+			sb.append('\n');
+			bw.write(sb.toString());
+			bytes += sb.length();
+
+			while ( (numRows > 0) ? (rows < numRows) : (bytes < maxBytes) ) {
+				// Next trip: a random vehicle drives for 5 to 60 minutes
+				Vehicle vehicle = fleet[random.nextInt(numVehicles)];
+				int tripRows = (int)((300 + random.nextInt(3300)) / samplePeriod_sec);
+				double speed = 0.0;
+				double ambient = 15.0 + 20.0 * random.nextDouble();
+				double coolant = ambient;
+				double baro = 90.0 + 11.0 * random.nextDouble();
+				boolean bTroubleTrip = random.nextDouble() < 0.02;
+				for (int r = 0; r < tripRows; ++r) {
+					if ( (numRows > 0) ? (rows >= numRows) : (bytes >= maxBytes) ) {
+						break;
+					}
+					// Speed is a random walk between 0 and 130 km/h, stopping now and then
+					speed = Math.max(0.0, Math.min(130.0, speed + 8.0 * random.nextGaussian()));
+					if (random.nextDouble() < 0.01) {
+						speed = 0.0;
+					}
+					coolant = Math.min(92.0 + 3.0 * random.nextGaussian(), coolant + 2.5);
+					vehicle.fuelLevel = Math.max(5.0f, vehicle.fuelLevel - 0.01f * (float)random.nextDouble());
+					vehicle.runtime_sec += period_msec / 1000;
+					double throttle = 15.0 + 0.5 * speed + 5.0 * random.nextGaussian();
+					double load = Math.max(0.0, Math.min(100.0, 20.0 + 0.45 * speed + 8.0 * random.nextGaussian()));
+					double rpm = (speed < 1.0) ? (800.0 + 50.0 * random.nextGaussian()) : (1100.0 + 28.0 * speed + 150.0 * random.nextGaussian());
+					double manifold = 30.0 + 0.6 * load + 3.0 * random.nextGaussian();
+					double maf = 2.0 + rpm * load / 4000.0 + random.nextGaussian();
+
+					sb.setLength(0);
+					sb.append(time_msec).append(',');
+					sb.append(vehicle.mark).append(',').append(vehicle.model).append(',').append(vehicle.year).append(',');
+					appendNumber(sb, vehicle.enginePower, 1).append(',');
+					sb.append(vehicle.automatic).append(',').append(vehicle.id).append(',');
+					appendNumber(sb, baro, 0).append(',');
+					appendNumber(sb, coolant, 0).append(',');
+					appendNumber(sb, vehicle.fuelLevel, 1).append(',');
+					appendNumber(sb, load, 1).append(',');
+					appendNumber(sb, ambient, 0).append(',');
+					appendNumber(sb, rpm, 0).append(',');
+					appendNumber(sb, manifold, 0).append(',');
+					appendNumber(sb, maf, 2).append(',');
+					// LONG_TERM_FUEL_TRIM_BANK_2 is rarely reported
+					if (random.nextDouble() < 0.05) {
+						appendNumber(sb, 3.0 * random.nextGaussian(), 1);
+					}
+					sb.append(',');
+					sb.append(vehicle.fuelType).append(',');
+					appendNumber(sb, ambient + 5.0 + 0.1 * (coolant - ambient), 0).append(',');
+					// FUEL_PRESSURE is rarely reported
+					if (random.nextDouble() < 0.03) {
+						appendNumber(sb, 300.0 + 40.0 * random.nextGaussian(), 0);
+					}
+					sb.append(',');
+					appendNumber(sb, speed, 0).append(',');
+					appendNumber(sb, 2.0 * random.nextGaussian(), 1).append(',');
+					appendNumber(sb, 2.0 * random.nextGaussian(), 1).append(',');
+					long runtime_sec = vehicle.runtime_sec;
+					appendTwoDigits(sb, runtime_sec / 3600 % 100).append(':');
+					appendTwoDigits(sb, runtime_sec / 60 % 60).append(':');
+					appendTwoDigits(sb, runtime_sec % 60).append(',');
+					appendNumber(sb, Math.max(0.0, Math.min(100.0, throttle)), 1).append(',');
+					sb.append(bTroubleTrip ? "MIL is ON1 codes" : "MIL is OFF0 codes").append(',');
+					if (bTroubleTrip) {
+						sb.append(TROUBLE_CODES[(vehicle.id.hashCode() & 0x7fffffff) % TROUBLE_CODES.length]);
+					}
+					sb.append(',');
+					appendNumber(sb, 10.0 + 0.1 * speed + 4.0 * random.nextGaussian(), 1).append(',');
+					appendNumber(sb, 1.0 + 0.02 * random.nextGaussian(), 3).append(',');
+					ZonedDateTime dt = ZonedDateTime.ofInstant(Instant.ofEpochMilli(time_msec), ZoneOffset.UTC);
+					sb.append(dt.getMinute()).append(',').append(dt.getHour()).append(',').append(dt.getDayOfWeek().getValue() % 7).append(',');
+					sb.append(dt.getMonthValue()).append(',').append(dt.getYear()).append(',');
+					sb.append((load > 60.0) ? 1 : 0);
+
+					if ( (badFraction > 0.0) && (random.nextDouble() < badFraction) ) {
+						spoil(sb, random);
+						++badLines;
+					}
+					sb.append('\n');
+					bw.write(sb.toString());
+					bytes += sb.length();
+					++rows;
+					time_msec += period_msec + random.nextInt(1000);
+				}
+				// Time between trips
+				time_msec += 60000L * (1 + random.nextInt(120));
+			}
+		}
+
+		System.err.println("Wrote " + rows + " records (" + badLines + " malformed) to " + outFilename + ", " + bytes + " bytes");
+	}
+
+	//
+	// Make the given line malformed in one of the ways seen in real exports
+	//
+	static void spoil(StringBuilder sbI, Random randomI) {
+		int lastComma = sbI.lastIndexOf(",");
+		switch (randomI.nextInt(4)) {
+			case 0:
+				// Truncated line
+				sbI.setLength(randomI.nextInt(lastComma));
+				break;
+			case 1:
+				// Decimal comma, which adds a field
+				int dot = sbI.indexOf(".");
+				if (dot >= 0) {
+					sbI.setCharAt(dot, ',');
+				} else {
+					sbI.append(",0");
+				}
+				break;
+			case 2:
+				// Percent sign on the last number (the field can't be read)
+				sbI.insert(lastComma, '%');
+				break;
+			default:
+				// Blank line
+				sbI.setLength(0);
+				break;
+		}
+	}
+
+	static StringBuilder appendTwoDigits(StringBuilder sbI, long valueI) {
+		if (valueI < 10) {
+			sbI.append('0');
+		}
+		return sbI.append(valueI);
+	}
+
+	//
+	// Append the given value with the given number of decimal places, without going through
+	// String.format
+	//
+	static StringBuilder appendNumber(StringBuilder sbI, double valueI, int decimalsI) {
+		if (decimalsI == 0) {
+			return sbI.append(Math.round(valueI));
+		}
+		long scale = (decimalsI == 1) ? 10 : ((decimalsI == 2) ? 100 : 1000);
+		long scaled = Math.round(Math.abs(valueI) * scale);
+		if ( (valueI < 0.0) && (scaled != 0) ) {
+			sbI.append('-');
+		}
+		sbI.append(scaled / scale).append('.');
+		String frac = Long.toString(scaled % scale);
+		for (int i = frac.length(); i < decimalsI; ++i) {
+			sbI.append('0');
+		}
+		return sbI.append(frac);
+	}
+
+}
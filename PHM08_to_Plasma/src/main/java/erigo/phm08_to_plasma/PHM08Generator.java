@@ -0,0 +1,270 @@
+/*
+Copyright 2020 Erigo
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+
+/*
+
+PHM08Generator
+
+Write a synthetic PHM08 data file, in the format of the NASA challenge's train.txt (one line per
+engine cycle: unit, cycle, 3 operational settings and 21 sensors, separated by spaces), of any
+size, for testing PHM08_to_Plasma at 100x to 1000x the size of the challenge data.
+
+As in the challenge data, each engine unit runs from cycle 1 until it fails after 128 to 357
+cycles, and every cycle is flown at one of six operating conditions, which sets the operational
+settings and the sensor baselines. On top of the baseline, sensors carry measurement noise and
+(most of them) a degradation trend which grows towards the end of the unit's life. A fraction
+("-bad") of the lines are malformed: truncated lines, unreadable unit numbers, unreadable sensor
+values and blank lines.
+
+The output is deterministic for a given "-seed".
+
+ */
+
+package erigo.phm08_to_plasma;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Random;
+
+import org.apache.commons.cli.*;
+
+public class PHM08Generator {
+
+	// The six operating conditions: op1, op2, op3 and the baselines of sensors 1 to 21
+	private static final double[][] CONDITIONS = {
+			{ 0.0, 0.0, 100.0, 518.67, 642.5, 1590.0, 1408.0, 14.62, 21.61, 553.5, 2388.1, 9050.0, 1.30, 47.5, 521.5, 2388.1, 8130.0, 8.43, 0.03, 392, 2388, 100.0, 38.9, 23.3},
+			{10.0, 0.25, 20.0, 489.05, 604.1, 1499.5, 1310.0, 10.52, 15.49, 394.9, 2318.9, 8770.0, 1.26, 45.4, 372.2, 2388.1, 8120.0, 8.62, 0.03, 368, 2319, 100.0, 28.6, 17.2},
+			{20.0, 0.70, 0.0, 491.19, 607.4, 1481.0, 1252.0, 9.35, 13.65, 334.0, 2323.9, 8710.0, 1.08, 44.3, 315.0, 2388.0, 8060.0, 9.20, 0.02, 364, 2324, 100.0, 24.5, 14.7},
+			{25.0, 0.62, 60.0, 462.54, 536.8, 1262.0, 1047.0, 7.05, 9.00, 175.0, 1915.0, 8000.0, 0.94, 36.6, 164.5, 2028.0, 7870.0, 10.90, 0.02, 307, 1915, 84.93, 14.3, 8.6},
+			{35.0, 0.84, 100.0, 449.44, 555.7, 1366.0, 1130.0, 5.48, 8.00, 194.0, 2223.0, 8340.0, 1.02, 41.9, 183.0, 2388.0, 8070.0, 9.35, 0.02, 334, 2223, 100.0, 14.8, 8.9},
+			{42.0, 0.84, 40.0, 445.00, 549.6, 1350.0, 1120.0, 3.91, 5.70, 138.0, 2211.0, 8320.0, 1.02, 42.2, 130.5, 2388.0, 8080.0, 9.40, 0.02, 331, 2212, 100.0, 10.6, 6.4}};
+
+	// Change of each sensor over a unit's life, as a fraction of its baseline (0 = doesn't degrade)
+	private static final double[] DEGRADATION = {
+			0.0, 0.003, 0.008, 0.012, 0.0, 0.0, -0.004, 0.0003, 0.01, 0.0, 0.01, -0.004, 0.0003, 0.008, 0.01, 0.0, 0.01, 0.0, 0.0, -0.01, -0.01};
+
+	// Number of decimal places of each sensor (as written in the challenge data)
+	private static final int[] DECIMALS = {2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 4, 2, 0, 0, 2, 2, 4};
+
+	// Output file
+	String outFilename = null;
+
+	// Size of the output: a number of lines or (if rows is 0) a size in MB
+	long numRows = 0;
+	long size_MB = 0;
+
+	// Fraction of the lines which are malformed
+	double badFraction = 0.001;
+
+	// Seed for the random numbers
+	long seed = 1;
+
+	//
+	// Main function
+	//
+	public static void main(String[] argsI) {
+		try {
+			new PHM08Generator(argsI);
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.err.println(e);
+		}
+	}
+
+	//
+	// PHM08Generator constructor
+	// Everything happens in this method
+	//
+	public PHM08Generator(String[] argsI) throws Exception {
+
+		//
+		// Argument processing using Apache Commons CLI
+		//
+		// 1. Setup command line options
+		Options options = new Options();
+		options.addOption("h", "help", false, "Print this message.");
+		options.addOption(Option.builder("o").argName("output file").hasArg().desc("Output file.").build());
+		options.addOption(Option.builder("rows").argName("num lines").hasArg().desc("Number of lines (engine cycles) to write, including malformed lines.").build());
+		options.addOption(Option.builder("mb").argName("size (MB)").hasArg().desc("Instead of \"-rows\", write lines until the file reaches this size, in MB. (The challenge's train.txt is about 45k lines, 6 MB.)").build());
+		options.addOption(Option.builder("bad").argName("fraction").hasArg().desc("Fraction of the lines which are malformed; default = " + Double.toString(badFraction) + ".").build());
+		options.addOption(Option.builder("seed").argName("seed").hasArg().desc("Seed for the random numbers; default = " + Long.toString(seed) + ".").build());
+
+		// 2. Parse command line options
+		CommandLineParser parser = new DefaultParser();
+		CommandLine line = null;
+		try {	line = parser.parse( options, argsI );	}
+		catch( ParseException exp ) {	// oops, something went wrong
+			System.err.println( "Command line argument parsing failed: " + exp.getMessage() );
+			return;
+		}
+
+		// 3. Retrieve the command line values
+		if (line.hasOption("help")) {			// Display help message and quit
+			HelpFormatter formatter = new HelpFormatter();
+			formatter.setWidth(120);
+			formatter.printHelp( "PHM08Generator", options );
+			return;
+		}
+
+		if (!line.hasOption("o")) {
+			System.err.println("Error: you must specify an output file");
+			return;
+		}
+		outFilename = line.getOptionValue("o");
+		if (line.hasOption("rows") == line.hasOption("mb")) {
+			System.err.println("Error: specify one of the \"-rows\" and \"-mb\" options");
+			return;
+		}
+		try {
+			numRows = Long.parseLong(line.getOptionValue("rows", "0"));
+			size_MB = Long.parseLong(line.getOptionValue("mb", "0"));
+		} catch (NumberFormatException nfe) {
+			numRows = -1;
+		}
+		if ( (numRows < 0) || (size_MB < 0) || ((numRows == 0) && (size_MB == 0)) ) {
+			System.err.println("Error: the number of lines or size must be an integer greater than 0");
+			return;
+		}
+		try {
+			badFraction = Double.parseDouble(line.getOptionValue("bad", Double.toString(badFraction)));
+		} catch (NumberFormatException nfe) {
+			badFraction = -1.0;
+		}
+		if ( !(badFraction >= 0.0) || (badFraction > 1.0) ) {
+			System.err.println("Error: the fraction of malformed lines must be a number from 0 to 1");
+			return;
+		}
+		try {
+			seed = Long.parseLong(line.getOptionValue("seed", Long.toString(seed)));
+		} catch (NumberFormatException nfe) {
+			System.err.println("Error: the seed must be an integer");
+			return;
+		}
+
+		generate();
+	}
+
+	private void generate() throws IOException {
+		Random random = new Random(seed);
+		long maxBytes = size_MB * 1024L * 1024L;
+		long rows = 0;
+		long badLines = 0;
+		long bytes = 0;
+		int unit = 0;
+		StringBuilder sb = new StringBuilder(256);
+
+		try (BufferedWriter bw = new BufferedWriter(new FileWriter(outFilename), 1024 * 1024)) {
+			while ( (numRows > 0) ? (rows < numRows) : (bytes < maxBytes) ) {
+				// Next engine unit, and the cycle it fails at
+				++unit;
+				int life = 128 + random.nextInt(230);
+				// Each unit's sensors start from a slightly different baseline (manufacturing variation)
+				double[] offset = new double[DEGRADATION.length];
+				for (int s = 0; s < offset.length; ++s) {
+					offset[s] = 0.0005 * random.nextGaussian();
+				}
+				for (int cycle = 1; cycle <= life; ++cycle) {
+					if ( (numRows > 0) ? (rows >= numRows) : (bytes >= maxBytes) ) {
+						break;
+					}
+					double[] condition = CONDITIONS[random.nextInt(CONDITIONS.length)];
+					// Wear grows slowly at first and quickly near the end of life
+					double lifeFraction = (double)cycle / life;
+					double wear = lifeFraction * lifeFraction;
+
+					sb.setLength(0);
+					sb.append(unit).append(' ').append(cycle).append(' ');
+					appendNumber(sb, condition[0] + 0.002 * random.nextGaussian(), 4).append(' ');
+					appendNumber(sb, condition[1] + 0.0002 * random.nextGaussian(), 4).append(' ');
+					appendNumber(sb, condition[2], 1);
+					for (int s = 0; s < DEGRADATION.length; ++s) {
+						double baseline = condition[3 + s];
+						double value = baseline * (1.0 + offset[s] + DEGRADATION[s] * wear);
+						if (DECIMALS[s] > 0) {
+							value += 0.0007 * baseline * random.nextGaussian();
+						}
+						sb.append(' ');
+						appendNumber(sb, value, DECIMALS[s]);
+					}
+					sb.append(' ');
+
+					if ( (badFraction > 0.0) && (random.nextDouble() < badFraction) ) {
+						spoil(sb, random);
+						++badLines;
+					}
+					sb.append('\n');
+					bw.write(sb.toString());
+					bytes += sb.length();
+					++rows;
+				}
+			}
+		}
+
+		System.err.println("Wrote " + rows + " lines (" + unit + " units, " + badLines + " malformed) to " + outFilename + ", " + bytes + " bytes");
+	}
+
+	//
+	// Make the given line malformed
+	//
+	static void spoil(StringBuilder sbI, Random randomI) {
+		switch (randomI.nextInt(4)) {
+			case 0:
+				// Truncated line
+				sbI.setLength(randomI.nextInt(sbI.length() - 1));
+				break;
+			case 1:
+				// Unreadable unit number
+				sbI.insert(0, 'u');
+				break;
+			case 2:
+				// Unreadable sensor value; the line is kept, with a null for that sensor
+				int lastSpace = sbI.lastIndexOf(" ", sbI.length() - 2);
+				sbI.replace(lastSpace + 1, sbI.length() - 1, "nan?");
+				break;
+			default:
+				// Blank line
+				sbI.setLength(0);
+				break;
+		}
+	}
+
+	//
+	// Append the given value with the given number of decimal places, without going through
+	// String.format
+	//
+	static StringBuilder appendNumber(StringBuilder sbI, double valueI, int decimalsI) {
+		if (decimalsI == 0) {
+			return sbI.append(Math.round(valueI));
+		}
+		long scale = 1;
+		for (int i = 0; i < decimalsI; ++i) {
+			scale *= 10;
+		}
+		long scaled = Math.round(Math.abs(valueI) * scale);
+		if ( (valueI < 0.0) && (scaled != 0) ) {
+			sbI.append('-');
+		}
+		sbI.append(scaled / scale).append('.');
+		String frac = Long.toString(scaled % scale);
+		for (int i = frac.length(); i < decimalsI; ++i) {
+			sbI.append('0');
+		}
+		return sbI.append(frac);
+	}
+
+}
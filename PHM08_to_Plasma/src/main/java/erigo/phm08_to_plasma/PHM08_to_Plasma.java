@@ -19,6 +19,9 @@ limitations under the License.
 PHM08_to_Plasma
 
 Reads data from a PHM08 input file and writes it out to Apache Plasma in-memory object store.
+If a shared memory ring file is given as the second argument (e.g. /dev/shm/phm08), the data
+is written to that ring buffer instead, one ring record (a one-batch Arrow IPC stream) per record
+batch; this requires neither a Plasma store nor the Plasma native library. With "-parquet <file>", the batches are also written to a Parquet file.
 
 The PHM08 data is from the NASA jet engine prognostics challenge; from our shared repository, see Data/PHM08 or search for
 "PHM08 Challenge Data Set" at https://ti.arc.nasa.gov/tech/dash/groups/pcoe/prognostic-data-repository/#turbofan
@@ -40,71 +43,105 @@ https://github.com/animeshtrivedi/ArrowExample/blob/master/src/main/java/com/git
 package erigo.phm08_to_plasma;
 
 import java.io.ByteArrayOutputStream;
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.FileOutputStream;
 import java.nio.channels.Channels;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
 
+import erigo.arrowcommon.ColumnBuilder.Spec;
+import erigo.arrowcommon.ColumnBuilder.Type;
+import erigo.arrowcommon.DelimitedTextSource;
+import erigo.arrowcommon.IngestEngine;
+import erigo.arrowcommon.ParquetSink;
+import erigo.arrowcommon.ShmRingWriter;
+import org.apache.commons.cli.*;
+
 import org.apache.arrow.memory.*;
 import org.apache.arrow.plasma.PlasmaClient;
 import org.apache.arrow.vector.*;
-import org.apache.arrow.vector.dictionary.DictionaryProvider;
-import org.apache.arrow.vector.ipc.ArrowFileWriter;
 import org.apache.arrow.vector.ipc.ArrowStreamWriter;
-import org.apache.arrow.vector.ipc.message.ArrowRecordBatch;
-import org.apache.arrow.vector.types.pojo.*;
 
 public class PHM08_to_Plasma {
 
-	// Return codes for addDataToBatch
-	static final int STR_ERROR = -1;     // Data wasn't added to the Vectors due to an error in the input string
-	static final int UNIT_MISMATCH = -2; // Data wasn't added to the Vectors due to a mismatch in the unit number
-	static final int DATA_SUCCESS = 1;   // Data was successfully added to the Vectors
-
-	// Vectors to hold data to add to an Arrow batch
-	// Should be one Vector here per channel
-	IntVector unitVector = null;
-	IntVector timeVector = null;
-	Float4Vector op1Vector = null;
-	Float4Vector op2Vector = null;
-	Float4Vector op3Vector = null;
-	Float4Vector sensor01Vector = null;
-	Float4Vector sensor02Vector = null;
-	Float4Vector sensor03Vector = null;
-	Float4Vector sensor04Vector = null;
-	Float4Vector sensor05Vector = null;
-	Float4Vector sensor06Vector = null;
-	Float4Vector sensor07Vector = null;
-	Float4Vector sensor08Vector = null;
-	Float4Vector sensor09Vector = null;
-	Float4Vector sensor10Vector = null;
-	Float4Vector sensor11Vector = null;
-	Float4Vector sensor12Vector = null;
-	Float4Vector sensor13Vector = null;
-	Float4Vector sensor14Vector = null;
-	Float4Vector sensor15Vector = null;
-	Float4Vector sensor16Vector = null;
-	Float4Vector sensor17Vector = null;
-	Float4Vector sensor18Vector = null;
-	Float4Vector sensor19Vector = null;
-	Float4Vector sensor20Vector = null;
-	Float4Vector sensor21Vector = null;
+	// The columns of the PHM08 data file, in file order; the fields are separated by spaces
+	// (empty fields and fields which don't parse are stored as null)
+	public static final List<Spec> columns = Arrays.asList(
+			new Spec("unit", Type.INT32),
+			new Spec("time_cycles", Type.INT32),
+			new Spec("op1", Type.FLOAT32),
+			new Spec("op2", Type.FLOAT32),
+			new Spec("op3", Type.FLOAT32),
+			new Spec("sensor01", Type.FLOAT32),
+			new Spec("sensor02", Type.FLOAT32),
+			new Spec("sensor03", Type.FLOAT32),
+			new Spec("sensor04", Type.FLOAT32),
+			new Spec("sensor05", Type.FLOAT32),
+			new Spec("sensor06", Type.FLOAT32),
+			new Spec("sensor07", Type.FLOAT32),
+			new Spec("sensor08", Type.FLOAT32),
+			new Spec("sensor09", Type.FLOAT32),
+			new Spec("sensor10", Type.FLOAT32),
+			new Spec("sensor11", Type.FLOAT32),
+			new Spec("sensor12", Type.FLOAT32),
+			new Spec("sensor13", Type.FLOAT32),
+			new Spec("sensor14", Type.FLOAT32),
+			new Spec("sensor15", Type.FLOAT32),
+			new Spec("sensor16", Type.FLOAT32),
+			new Spec("sensor17", Type.FLOAT32),
+			new Spec("sensor18", Type.FLOAT32),
+			new Spec("sensor19", Type.FLOAT32),
+			new Spec("sensor20", Type.FLOAT32),
+			new Spec("sensor21", Type.FLOAT32));
+
+	// Each batch holds the records of one engine unit (column 0); this is the initial capacity of
+	// the Vectors and the most records in a batch (a unit with more records is split over several)
+	public static final int batchSize = 100;
+	public static final int maxBatchSize = 100000;
+
+	// Default size of the shared memory ring, in MB
+	public static final long DEFAULT_SHM_SIZE_MB = 256;
 
 	//
 	// Main function
 	//
 	public static void main(String[] argsI) {
 		try {
-			if (argsI.length < 1) {
-				System.err.println("Usage:");
-				System.err.println("    java -jar PHM08_to_Plasma.jar <in_filename>");
+			Options options = new Options();
+			options.addOption("h", "help", false, "Print this message.");
+			options.addOption(Option.builder("parquet").argName("output file").hasArg().desc("Also write the data to the given Parquet file; columns are dictionary encoded with page statistics.").build());
+			options.addOption(Option.builder("shmsize").argName("size (MB)").hasArg().desc("Size of the shared memory ring buffer, in MB; default = " + Long.toString(DEFAULT_SHM_SIZE_MB) + ". Each record batch is one ring record, which must fit in half of the ring.").build());
+			options.addOption(Option.builder("pcodec").argName("codec").hasArg().desc("With \"-parquet\", the compression codec: " + ParquetSink.SUPPORTED_CODECS + "; default = SNAPPY.").build());
+			CommandLine line = null;
+			try {	line = new DefaultParser().parse( options, argsI );	}
+			catch( ParseException exp ) {	// oops, something went wrong
+				System.err.println( "Command line argument parsing failed: " + exp.getMessage() );
+				return;
+			}
+			// The input file and optional ring file are positional arguments
+			String[] args = line.getArgs();
+			if ( line.hasOption("help") || (args.length < 1) ) {
+				HelpFormatter formatter = new HelpFormatter();
+				formatter.setWidth(120);
+				formatter.printHelp( "java -jar PHM08_to_Plasma.jar [options] <in_filename> [<shared memory ring file>]", options );
 				System.exit(0);
 			}
-			new PHM08_to_Plasma(argsI[0]);
+			String parquetCodec = line.getOptionValue("pcodec", "SNAPPY").toUpperCase();
+			if (!Arrays.asList(ParquetSink.SUPPORTED_CODECS.split(", ")).contains(parquetCodec)) {
+				System.err.println("Error: the Parquet codec must be one of " + ParquetSink.SUPPORTED_CODECS);
+				return;
+			}
+			long shmSize_MB = 0;
+			try {
+				shmSize_MB = Long.parseLong(line.getOptionValue("shmsize", "" + DEFAULT_SHM_SIZE_MB));
+			} catch (NumberFormatException nfe) {
+				shmSize_MB = 0;
+			}
+			if ( (shmSize_MB < 1) || (shmSize_MB > 2000) ) {
+				System.err.println("Error: the shared memory ring size must be an integer between 1 and 2000 (MB)");
+				return;
+			}
+			new PHM08_to_Plasma(args[0], (args.length > 1) ? args[1] : null, shmSize_MB, line.getOptionValue("parquet"), parquetCodec);
 		} catch (Exception e) {
 			e.printStackTrace();
 			System.err.println(e);
@@ -115,281 +152,74 @@ public class PHM08_to_Plasma {
 	// PHM08_to_Plasma constructor
 	// Everything happens in this method
 	//
-	public PHM08_to_Plasma(String filenameI) throws Exception {
-
-		// Next line from the data file
-		String nextLine = null;
+	public PHM08_to_Plasma(String filenameI, String shmPathI, long shmSize_MBI, String parquetFilenameI, String parquetCodecI) throws Exception {
 
 		File infile = new File(filenameI);
 		if (!infile.isFile()) {
 			System.err.println("The given file, " + filenameI + ", does not exist.");
 			return;
 		}
-		// Open up the input file
-		BufferedReader br = new BufferedReader(new FileReader(infile));
-
-		// Create the Vectors to hold data; use the correct data type for each Vector
-		// BitVector		(1 bit, elements can be null)
-		// Float4Vector		(4 bytes, elements can be null)
-		// Float8Vector		(8 bytes, elements can be null)
-		// IntVector		(4 bytes, elements can be null)
-		// BigIntVector		(8 bytes, elements can be null)
-		// VarCharVector	(variable length vector, elements can be null)
-		RootAllocator allocator = new RootAllocator(Long.MAX_VALUE);
-		unitVector = new IntVector("unit",allocator);
-		timeVector = new IntVector("time_cycles",allocator);
-		op1Vector = new Float4Vector("op1",allocator);
-		op2Vector = new Float4Vector("op2",allocator);
-		op3Vector = new Float4Vector("op3",allocator);
-		sensor01Vector = new Float4Vector("sensor01",allocator);
-		sensor02Vector = new Float4Vector("sensor02",allocator);
-		sensor03Vector = new Float4Vector("sensor03",allocator);
-		sensor04Vector = new Float4Vector("sensor04",allocator);
-		sensor05Vector = new Float4Vector("sensor05",allocator);
-		sensor06Vector = new Float4Vector("sensor06",allocator);
-		sensor07Vector = new Float4Vector("sensor07",allocator);
-		sensor08Vector = new Float4Vector("sensor08",allocator);
-		sensor09Vector = new Float4Vector("sensor09",allocator);
-		sensor10Vector = new Float4Vector("sensor10",allocator);
-		sensor11Vector = new Float4Vector("sensor11",allocator);
-		sensor12Vector = new Float4Vector("sensor12",allocator);
-		sensor13Vector = new Float4Vector("sensor13",allocator);
-		sensor14Vector = new Float4Vector("sensor14",allocator);
-		sensor15Vector = new Float4Vector("sensor15",allocator);
-		sensor16Vector = new Float4Vector("sensor16",allocator);
-		sensor17Vector = new Float4Vector("sensor17",allocator);
-		sensor18Vector = new Float4Vector("sensor18",allocator);
-		sensor19Vector = new Float4Vector("sensor19",allocator);
-		sensor20Vector = new Float4Vector("sensor20",allocator);
-		sensor21Vector = new Float4Vector("sensor21",allocator);
-
-		// Allocate space for the Vectors
-		// We don't actually know ahead of time how many records there will be in each batch
-		int batchSize = 100;
-		unitVector.allocateNew(batchSize);
-		timeVector.allocateNew(batchSize);
-		op1Vector.allocateNew(batchSize);
-		op2Vector.allocateNew(batchSize);
-		op3Vector.allocateNew(batchSize);
-		sensor01Vector.allocateNew(batchSize);
-		sensor02Vector.allocateNew(batchSize);
-		sensor03Vector.allocateNew(batchSize);
-		sensor04Vector.allocateNew(batchSize);
-		sensor05Vector.allocateNew(batchSize);
-		sensor06Vector.allocateNew(batchSize);
-		sensor07Vector.allocateNew(batchSize);
-		sensor08Vector.allocateNew(batchSize);
-		sensor09Vector.allocateNew(batchSize);
-		sensor10Vector.allocateNew(batchSize);
-		sensor11Vector.allocateNew(batchSize);
-		sensor12Vector.allocateNew(batchSize);
-		sensor13Vector.allocateNew(batchSize);
-		sensor14Vector.allocateNew(batchSize);
-		sensor15Vector.allocateNew(batchSize);
-		sensor16Vector.allocateNew(batchSize);
-		sensor17Vector.allocateNew(batchSize);
-		sensor18Vector.allocateNew(batchSize);
-		sensor19Vector.allocateNew(batchSize);
-		sensor20Vector.allocateNew(batchSize);
-		sensor21Vector.allocateNew(batchSize);
-
-		// Write data to the first batch
-		int recordsInBatch = 0;
-		int currentUnitNumber = 1;
-		while (true) {
-			nextLine = br.readLine();
-			if (nextLine == null) {
-				System.err.println("Got null reading file when making first batch");
-				return;
-			}
-			int returnVal = addDataToBatch(recordsInBatch, currentUnitNumber, nextLine);
-			if (returnVal == DATA_SUCCESS) {
-				++recordsInBatch;
-			} else if (returnVal == UNIT_MISMATCH) {
-				// We've reached the next unit number
-				break;
-			}
-		}
-
-		// Specify size for each Vector
-		unitVector.setValueCount(recordsInBatch);
-		timeVector.setValueCount(recordsInBatch);
-		op1Vector.setValueCount(recordsInBatch);
-		op2Vector.setValueCount(recordsInBatch);
-		op3Vector.setValueCount(recordsInBatch);
-		sensor01Vector.setValueCount(recordsInBatch);
-		sensor02Vector.setValueCount(recordsInBatch);
-		sensor03Vector.setValueCount(recordsInBatch);
-		sensor04Vector.setValueCount(recordsInBatch);
-		sensor05Vector.setValueCount(recordsInBatch);
-		sensor06Vector.setValueCount(recordsInBatch);
-		sensor07Vector.setValueCount(recordsInBatch);
-		sensor08Vector.setValueCount(recordsInBatch);
-		sensor09Vector.setValueCount(recordsInBatch);
-		sensor10Vector.setValueCount(recordsInBatch);
-		sensor11Vector.setValueCount(recordsInBatch);
-		sensor12Vector.setValueCount(recordsInBatch);
-		sensor13Vector.setValueCount(recordsInBatch);
-		sensor14Vector.setValueCount(recordsInBatch);
-		sensor15Vector.setValueCount(recordsInBatch);
-		sensor16Vector.setValueCount(recordsInBatch);
-		sensor17Vector.setValueCount(recordsInBatch);
-		sensor18Vector.setValueCount(recordsInBatch);
-		sensor19Vector.setValueCount(recordsInBatch);
-		sensor20Vector.setValueCount(recordsInBatch);
-		sensor21Vector.setValueCount(recordsInBatch);
-
-		List<Field> fields = Arrays.asList(
-				unitVector.getField(),
-				timeVector.getField(),
-				op1Vector.getField(),
-				op2Vector.getField(),
-				op3Vector.getField(),
-				sensor01Vector.getField(),
-				sensor02Vector.getField(),
-				sensor03Vector.getField(),
-				sensor04Vector.getField(),
-				sensor05Vector.getField(),
-				sensor06Vector.getField(),
-				sensor07Vector.getField(),
-				sensor08Vector.getField(),
-				sensor09Vector.getField(),
-				sensor10Vector.getField(),
-				sensor11Vector.getField(),
-				sensor12Vector.getField(),
-				sensor13Vector.getField(),
-				sensor14Vector.getField(),
-				sensor15Vector.getField(),
-				sensor16Vector.getField(),
-				sensor17Vector.getField(),
-				sensor18Vector.getField(),
-				sensor19Vector.getField(),
-				sensor20Vector.getField(),
-				sensor21Vector.getField());
-		List<FieldVector> vectors = Arrays.asList(
-				unitVector,
-				timeVector,
-				op1Vector,
-				op2Vector,
-				op3Vector,
-				sensor01Vector,
-				sensor02Vector,
-				sensor03Vector,
-				sensor04Vector,
-				sensor05Vector,
-				sensor06Vector,
-				sensor07Vector,
-				sensor08Vector,
-				sensor09Vector,
-				sensor10Vector,
-				sensor11Vector,
-				sensor12Vector,
-				sensor13Vector,
-				sensor14Vector,
-				sensor15Vector,
-				sensor16Vector,
-				sensor17Vector,
-				sensor18Vector,
-				sensor19Vector,
-				sensor20Vector,
-				sensor21Vector);
-
-		VectorSchemaRoot root = new VectorSchemaRoot(fields, vectors);
 
-		// Keep track of how many batches we have written out
-		int batchNum = 0;
-
-		// This is a try-with-resource block
-		try (ByteArrayOutputStream out = new ByteArrayOutputStream();
-			 ArrowStreamWriter writer = new ArrowStreamWriter(root, /*DictionaryProvider=*/null, Channels.newChannel(out)))
+		// The input is read by the shared ingest engine: a whitespace-delimited source which
+		// starts a new batch whenever the unit number changes; the buffers come from a size-classed
+		// pool, so growing the vectors for a long unit reuses memory
+		RootAllocator allocator = PooledAllocationManager.newRootAllocator(Long.MAX_VALUE);
+		DelimitedTextSource source = new DelimitedTextSource(filenameI, DelimitedTextSource.WHITESPACE, 0, columns, maxBatchSize, 0);
+
+		// When writing to the shared memory ring, each batch is serialized straight into its own
+		// ring record (a one-batch Arrow IPC stream, as CT2Arrow writes), so the size of the input
+		// is only limited by how far behind the readers may fall; for Plasma, the batches are
+		// collected in one stream in a byte array and put as one object
+		ShmRingWriter shmWriter = (shmPathI == null) ? null : new ShmRingWriter(shmPathI, shmSize_MBI * 1024L * 1024L);
+
+		// This is a try-with-resource block; writer is null when writing to the ring and parquetSink
+		// is null unless Parquet output was requested
+		try (IngestEngine engine = new IngestEngine(source, allocator, batchSize);
+			 ByteArrayOutputStream out = new ByteArrayOutputStream();
+			 ArrowStreamWriter writer = (shmWriter != null) ? null : new ArrowStreamWriter(engine.getRoot(), /*DictionaryProvider=*/null, Channels.newChannel(out));
+			 ParquetSink parquetSink = (parquetFilenameI == null) ? null : new ParquetSink(parquetFilenameI, engine.getRoot().getSchema(), parquetCodecI, ParquetSink.DEFAULT_ROW_GROUP_SIZE))
 		{
-			writer.start();
-			// Write out first batch of data
-			++batchNum;
-			System.err.println("\nBatch " + batchNum + ", contains " + recordsInBatch + " records");
-			root.setRowCount(recordsInBatch);
-			writer.writeBatch();
-			// Continuously write new batches until we reach end of file
-			boolean bEOF = false;
-			while (true) {
-				// Reset vectors
-				unitVector.reset();
-				timeVector.reset();
-				op1Vector.reset();
-				op2Vector.reset();
-				op3Vector.reset();
-				sensor01Vector.reset();
-				sensor02Vector.reset();
-				sensor03Vector.reset();
-				sensor04Vector.reset();
-				sensor05Vector.reset();
-				sensor06Vector.reset();
-				sensor07Vector.reset();
-				sensor08Vector.reset();
-				sensor09Vector.reset();
-				sensor10Vector.reset();
-				sensor11Vector.reset();
-				sensor12Vector.reset();
-				sensor13Vector.reset();
-				sensor14Vector.reset();
-				sensor15Vector.reset();
-				sensor16Vector.reset();
-				sensor17Vector.reset();
-				sensor18Vector.reset();
-				sensor19Vector.reset();
-				sensor20Vector.reset();
-				sensor21Vector.reset();
-				// Write out a new batch
-				++currentUnitNumber;
-				recordsInBatch = 0;
-				boolean bFirstLine = true;
-				while (true) {
-					if (bFirstLine) {
-						// We'll use the last line we read in (has the new unit number)
-						bFirstLine = false;
-					} else {
-						nextLine = br.readLine();
-					}
-					if (nextLine == null) {
-						System.err.println("We've reached the end of the file");
-						bEOF = true;
-						break;
-					}
-					int returnVal = addDataToBatch(recordsInBatch, currentUnitNumber, nextLine);
-					if (returnVal == DATA_SUCCESS) {
-						++recordsInBatch;
-					} else if (returnVal == UNIT_MISMATCH) {
-						// We've reached the next unit number
-						break;
-					}
-				}
-				// Write out next batch of data
-				if ( recordsInBatch > 0 ) {
-					++batchNum;
-					System.err.println("Batch " + batchNum + ", contains " + recordsInBatch + " records");
-					root.setRowCount(recordsInBatch);
+			if (writer != null) {
+				writer.start();
+			}
+			// Write out each batch until we reach end of file
+			engine.run((VectorSchemaRoot root, int batchNum) -> {
+				System.err.println("Batch " + batchNum + " (unit " + source.getBatchKey() + "), contains " + root.getRowCount() + " records");
+				if (writer != null) {
 					writer.writeBatch();
+				} else {
+					shmWriter.writeBatch(getObjectId(batchNum), root);
 				}
-				if (bEOF) {
-					// Write the batch out to Plasma
-					System.loadLibrary("plasma_java");
-					PlasmaClient client = new PlasmaClient("/tmp/plasma", "", 0);
-					byte[] nextID = new byte[20];
-					Arrays.fill(nextID, (byte) 1);
-					byte[] recordAsBytes = out.toByteArray();
-					System.err.println("the record batch contains " + recordAsBytes.length + " bytes");
-					// We could create a buffer in Plasma and then write into that buffer;
-					// but the following call to client.put will do this
-					// ByteBuffer plasmaBuf = client.create(nextID,recordAsBytes.length,null);
-					client.put(nextID,recordAsBytes,null);
-					// The client.put call above automatically seals the object in Plasma, don't do it again
-					// client.seal(nextID);
-					break;
+				if (parquetSink != null) {
+					parquetSink.write(root);
 				}
+			});
+			System.err.println("We've reached the end of the file");
+			if (engine.batchesRead == 0) {
+				System.err.println("No records were read from " + filenameI);
+			}
+			if (parquetSink != null) {
+				System.err.println("Wrote " + parquetSink.rowsWritten + " records to Parquet file " + parquetFilenameI);
+			}
+			if (shmWriter != null) {
+				System.err.println("the record batches were written to shared memory ring " + shmPathI + " (" + shmWriter.messagesWritten + " records, " + shmWriter.bytesWritten + " bytes)");
+				shmWriter.close();
+			} else {
+				writer.end();
+				// Write the batches out to Plasma
+				System.loadLibrary("plasma_java");
+				PlasmaClient client = new PlasmaClient("/tmp/plasma", "", 0);
+				byte[] nextID = new byte[20];
+				Arrays.fill(nextID, (byte) 1);
+				byte[] recordAsBytes = out.toByteArray();
+				System.err.println("the record batch contains " + recordAsBytes.length + " bytes");
+				// We could create a buffer in Plasma and then write into that buffer;
+				// but the following call to client.put will do this
+				// ByteBuffer plasmaBuf = client.create(nextID,recordAsBytes.length,null);
+				client.put(nextID,recordAsBytes,null);
+				// The client.put call above automatically seals the object in Plasma, don't do it again
+				// client.seal(nextID);
 			}
-			// Close the ArrowFileWriter
-			writer.end();
-			br.close();
 		} catch (IOException ioe) {
 			System.err.println(ioe);
 		}
@@ -397,185 +227,10 @@ public class PHM08_to_Plasma {
 	}
 
 	//
-	// Break up a given CSV string and add one datapoint to each Vector
-	//
-	// Return value:
-	// STR_ERROR:     Data wasn't added to the Vectors due to an error in the input string
-	// UNIT_MISMATCH: Data wasn't added to the Vectors due to a mismatch in the unit number
-	// DATA_SUCCESS:  Data was successfully added to the Vectors
-	//
-	private int addDataToBatch(int indexI, int currentUnitNumberI, String csvStrI) {
-		if (csvStrI == null) {
-			return STR_ERROR;
-		}
-		String csvStr = csvStrI.trim();
-		if (csvStr.isEmpty()) {
-			return STR_ERROR;
-		}
-		String[] strArray = csvStr.split(" ");
-		if (strArray.length != 26) {
-			System.err.println("addDataToBatch(): got wrong number of array entries: expected 26, got " + strArray.length);
-			return STR_ERROR;
-		}
-		//
-		// Make sure the unit number in the parsed string is the same as the given unit number
-		//
-		String unitNumberStr = strArray[0];
-		if ( (unitNumberStr == null) || (unitNumberStr.trim().isEmpty()) ) {
-			return STR_ERROR;
-		}
-		int unitNumber = -1;
-		unitNumberStr = unitNumberStr.trim();
-		try {
-			unitNumber = Integer.parseInt(unitNumberStr);
-		} catch (Exception e) {
-			return STR_ERROR;
-		}
-		if (unitNumber != currentUnitNumberI) {
-			return UNIT_MISMATCH;
-		}
-		//
-		// Add data to the Vectors
-		//
-		storeAsInteger(strArray[0],unitVector,indexI);
-		storeAsInteger(strArray[1],timeVector,indexI);
-		storeAsFloat(strArray[2],op1Vector,indexI);
-		storeAsFloat(strArray[3],op2Vector,indexI);
-		storeAsFloat(strArray[4],op3Vector,indexI);
-		storeAsFloat(strArray[5],sensor01Vector,indexI);
-		storeAsFloat(strArray[6],sensor02Vector,indexI);
-		storeAsFloat(strArray[7],sensor03Vector,indexI);
-		storeAsFloat(strArray[8],sensor04Vector,indexI);
-		storeAsFloat(strArray[9],sensor05Vector,indexI);
-		storeAsFloat(strArray[10],sensor06Vector,indexI);
-		storeAsFloat(strArray[11],sensor07Vector,indexI);
-		storeAsFloat(strArray[12],sensor08Vector,indexI);
-		storeAsFloat(strArray[13],sensor09Vector,indexI);
-		storeAsFloat(strArray[14],sensor10Vector,indexI);
-		storeAsFloat(strArray[15],sensor11Vector,indexI);
-		storeAsFloat(strArray[16],sensor12Vector,indexI);
-		storeAsFloat(strArray[17],sensor13Vector,indexI);
-		storeAsFloat(strArray[18],sensor14Vector,indexI);
-		storeAsFloat(strArray[19],sensor15Vector,indexI);
-		storeAsFloat(strArray[20],sensor16Vector,indexI);
-		storeAsFloat(strArray[21],sensor17Vector,indexI);
-		storeAsFloat(strArray[22],sensor18Vector,indexI);
-		storeAsFloat(strArray[23],sensor19Vector,indexI);
-		storeAsFloat(strArray[24],sensor20Vector,indexI);
-		storeAsFloat(strArray[25],sensor21Vector,indexI);
-		return DATA_SUCCESS;
-	}
-
-	//
-	// Add a "bit" to a BitVector at the given index
-	// Very similar to storeAsInteger, but the only acceptable values are 0 or 1 or null
-	//
-	private void storeAsBit(String strI,BitVector vecI,int indexI) {
-		if ( (strI == null) || (strI.trim().isEmpty()) ) {
-			// Here's another way to do it
-			// vecI.setNull(indexI);
-			vecI.setSafe(indexI, 0, 0);
-			return;
-		}
-		Integer intVal = null;
-		String str = strI.trim();
-		try {
-			intVal = Integer.parseInt(str);
-		} catch (Exception e) {
-			intVal = null;
-		}
-		if ( (intVal == null) || ( (intVal != 0) && (intVal != 1) ) ) {
-			vecI.setSafe(indexI, 0, 0);
-		} else {
-			vecI.setSafe(indexI, intVal);
-		}
-	}
-
-	//
-	// Add int to an IntVector at the given index
+	// 20-byte ring record ID (the equivalent of a Plasma object ID) of the given batch
 	//
-	private void storeAsInteger(String strI,IntVector vecI,int indexI) {
-		if ( (strI == null) || (strI.trim().isEmpty()) ) {
-			// Here's another way to do it
-			// vecI.setNull(indexI);
-			vecI.setSafe(indexI, 0, -999);
-			return;
-		}
-		Integer intVal = null;
-		String str = strI.trim();
-		try {
-			intVal = Integer.parseInt(str);
-		} catch (Exception e) {
-			intVal = null;
-		}
-		if (intVal == null) {
-			vecI.setSafe(indexI, 0, -999);
-		} else {
-			vecI.setSafe(indexI, intVal);
-		}
+	private static byte[] getObjectId(int batchNumI) {
+		return String.format("phm08_b%013d", batchNumI).getBytes(StandardCharsets.US_ASCII);
 	}
 
-	//
-	// Add long to a BigIntVector at the given index
-	//
-	private void storeAsLong(String strI,BigIntVector vecI,int indexI) {
-		if ( (strI == null) || (strI.trim().isEmpty()) ) {
-			// Here's another way to do it
-			// vecI.setNull(indexI);
-			vecI.setSafe(indexI, 0, -999);
-			return;
-		}
-		Long longVal = null;
-		String str = strI.trim();
-		try {
-			longVal = Long.parseLong(str);
-		} catch (Exception e) {
-			longVal = null;
-		}
-		if (longVal == null) {
-			vecI.setSafe(indexI, 0, -999);
-		} else {
-			vecI.setSafe(indexI, longVal);
-		}
-	}
-
-	//
-	// Add float to a Float4Vector at the given index
-	//
-	private void storeAsFloat(String strI,Float4Vector vecI,int indexI) {
-		if ( (strI == null) || (strI.trim().isEmpty()) ) {
-			// Here's another way to do it
-			// vecI.setNull(indexI);
-			vecI.setSafe(indexI, 0, -999);
-			return;
-		}
-		Float floatVal = null;
-		String str = strI.trim();
-		try {
-			floatVal = Float.parseFloat(str);
-		} catch (Exception e) {
-			floatVal = null;
-		}
-		if (floatVal == null) {
-			vecI.setSafe(indexI, 0, -999);
-		} else {
-			vecI.setSafe(indexI, floatVal);
-		}
-	}
-
-	//
-	// Add string data (as bytes) to a VarCharVector at the given index
-	//
-	private void storeAsStrBytes(String strI,VarCharVector vecI,int indexI) {
-		if ( (strI == null) || (strI.trim().isEmpty()) ) {
-			// NB: There's no "setSafe" function which includes the "isSet" argument for a VarCharVector
-			// Can either risk it and call the "setNull" function (which won't be good if our index is over the limit
-			// or we can just store a "n/a" string
-			// vecI.setNull(indexI);
-			vecI.setSafe(indexI, "n/a".getBytes(StandardCharsets.UTF_8));
-		} else {
-			vecI.setSafe(indexI, strI.trim().getBytes(StandardCharsets.UTF_8));
-		}
-	}
-	
 } //end class PHM08_to_Plasma
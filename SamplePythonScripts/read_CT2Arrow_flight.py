@@ -0,0 +1,31 @@
+
+#
+# Read record batches from the Arrow Flight server embedded in CT2Arrow
+#
+# Start CT2Arrow with the "-flight <port>" option; CT2Arrow then serves the record
+# batches it flushes from an Arrow Flight server on localhost.
+#
+# Usage:
+#    python3 read_CT2Arrow_flight.py <port> <ticket>
+#    e.g.  python3  read_CT2Arrow_flight.py  8815  live
+#          python3  read_CT2Arrow_flight.py  8815  history:1600000000:1600000600
+#
+# Supported tickets:
+#    live                 stream new record batches as CT2Arrow flushes them (until Ctrl-C)
+#    history[:t0[:t1]]    recent record batches whose CT time range overlaps [t0,t1]
+#    follow[:t0]          recent record batches from time t0 on, followed by live batches
+#
+# John P. Wilson, Erigo Technologies
+#
+
+import pyarrow.flight as flight
+import sys
+
+client = flight.FlightClient('grpc://localhost:' + sys.argv[1])
+reader = client.do_get(flight.Ticket(sys.argv[2].encode()))
+print('schema:')
+print(reader.schema)
+for chunk in reader:
+    batch = chunk.data
+    ct_timestamp = batch.column(0).to_pylist()
+    print('received batch: {:d} rows, ct_timestamp {:.3f} to {:.3f}'.format(batch.num_rows, ct_timestamp[0], ct_timestamp[-1]))
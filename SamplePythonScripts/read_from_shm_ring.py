@@ -0,0 +1,76 @@
+
+#
+# Read Arrow record batches from a shared memory ring buffer
+#
+# The ring is written by CT2Arrow ("-shm" option), PHM08_to_Plasma or ArrowPlasmaTestJava
+# (when given a ring file) as an alternative to the Plasma in-memory object store.
+# See ArrowCommon/src/main/java/erigo/arrowcommon/ShmRing.java for the layout.
+#
+# Each ring record holds an Arrow IPC stream; it is read in place from the shared memory
+# (no copy). Since the writer never waits for readers, a record which is overwritten while
+# we read it is detected and skipped.
+#
+# Usage:
+#    python3 read_from_shm_ring.py <ring file> [follow]
+#    e.g.  python3  read_from_shm_ring.py  /dev/shm/ct2arrow  follow
+#
+# John P. Wilson, Erigo Technologies
+#
+
+import mmap
+import struct
+import sys
+import time
+import pyarrow as pa
+
+MAGIC = 0x41524f5753484d31
+HEADER_SIZE = 128
+REC_HEADER_SIZE = 24
+REC_MESSAGE = 1
+REC_WRAP = 2
+
+f = open(sys.argv[1], 'rb')
+mm = mmap.mmap(f.fileno(), 0, access=mmap.ACCESS_READ)
+bFollow = (len(sys.argv) > 2) and (sys.argv[2] == 'follow')
+
+def header_long(offset):
+    return struct.unpack_from('=q', mm, offset)[0]
+
+if (header_long(0) != MAGIC):
+    print('not a shared memory ring: ' + sys.argv[1])
+    sys.exit(1)
+capacity = header_long(16)
+data = memoryview(mm)[HEADER_SIZE:HEADER_SIZE + capacity]
+
+# Start at the beginning, unless the ring has already wrapped
+read_pos = 0 if (header_long(40) == 0) else header_long(32)
+while True:
+    write_pos = header_long(32)
+    if (read_pos >= write_pos):
+        if ( (not bFollow) or (header_long(56) != 0) ):
+            break
+        time.sleep(0.01)
+        continue
+    off = read_pos % capacity
+    if ((capacity - off) < REC_HEADER_SIZE):
+        read_pos += capacity - off
+        continue
+    rec_len, rec_type, seq, id_len, payload_len = struct.unpack_from('=iiqii', data, off)
+    if (rec_type == REC_WRAP):
+        read_pos += capacity - off
+        continue
+    payload_off = off + ((REC_HEADER_SIZE + id_len + 7) & ~7)
+    objid = bytes(data[off + REC_HEADER_SIZE:off + REC_HEADER_SIZE + id_len])
+    try:
+        reader = pa.ipc.open_stream(pa.py_buffer(data[payload_off:payload_off + payload_len]))
+        batches = [batch for batch in reader]
+    except pa.ArrowInvalid:
+        # Not every record has to be an Arrow stream (ArrowPlasmaTestJava writes some raw bytes first)
+        batches = []
+    # The record is only good if the writer hasn't reclaimed its space while we were reading it
+    if (header_long(40) > read_pos):
+        print('reader fell behind the writer; skipping ahead to the newest data')
+        read_pos = header_long(32)
+        continue
+    print('record {:d} (ID {}): {:d} record batch(es), {:d} rows'.format(seq, objid, len(batches), sum(b.num_rows for b in batches)))
+    read_pos += rec_len